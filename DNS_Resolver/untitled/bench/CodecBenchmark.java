@@ -0,0 +1,126 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+
+/**
+ * The codec and cache operations every query goes through, measured on the SamplePackets
+ * (a query with EDNS0, and a 180 byte compressed response with a CNAME and nine more records).
+ * A change to the codec or the cache should not make any of these lines worse.
+ *
+ * The cache benchmarks cycle through NAMES different names so they measure map and trie lookups
+ * rather than one hot entry; the names are the response's own with the first label changed.
+ * Run with: java -cp out CodecBenchmark [only benchmarks whose name contains this]
+ */
+public class CodecBenchmark {
+    private static final int NAMES = 1024;
+
+    private static String filter;
+
+    public static void main(String[] args) throws Exception {
+        filter = args.length > 0 ? args[0] : "";
+
+        // Decoding and encoding whole messages
+        DNSMessage query = DNSMessage.decodeMessage(SamplePackets.QUERY);
+        DNSMessage response = DNSMessage.decodeMessage(SamplePackets.MULTI_RECORD_RESPONSE);
+        run("DNSMessage.decodeMessage(query)", () -> DNSMessage.decodeMessage(SamplePackets.QUERY));
+        run("DNSMessage.decodeMessage(response)", () -> DNSMessage.decodeMessage(SamplePackets.MULTI_RECORD_RESPONSE));
+        run("DNSMessage.toBytes(query)", query::toBytes);
+        run("DNSMessage.toBytes(response)", response::toBytes);
+        ByteBuffer buffer = ByteBuffer.allocate(DNSWireWriter.MAX_MESSAGE_SIZE);
+        DNSWireWriter writer = new DNSWireWriter(buffer);
+        run("DNSMessage.writeTo(response)", () -> {
+            writer.reset(buffer.clear());
+            response.writeTo(writer);
+            return writer.length();
+        });
+
+        // The header alone
+        DNSHeader header = response.getHeader();
+        run("DNSHeader.decodeHeader", () -> DNSHeader.decodeHeader(new ByteArrayInputStream(SamplePackets.MULTI_RECORD_RESPONSE)));
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(12);
+        run("DNSHeader.writeBytes(stream)", () -> {
+            headerBytes.reset();
+            header.writeBytes(headerBytes);
+            return headerBytes.size();
+        });
+        run("DNSHeader.writeBytes(writer)", () -> {
+            writer.reset(buffer.clear());
+            header.writeBytes(writer);
+            return writer.length();
+        });
+
+        // Questions as hash map keys: equal copies, and the same name in other case (RFC 4343)
+        DNSQuestion question = response.getQuestions().get(0);
+        DNSQuestion copy = new DNSQuestion(question.getQname().clone(), question.getQtype(), question.getQclass());
+        DNSQuestion upper = new DNSQuestion(new String[]{"WWW", "GitHub", "COM"}, question.getQtype(), question.getQclass());
+        DNSQuestion other = new DNSQuestion(new String[]{"www", "github", "org"}, question.getQtype(), question.getQclass());
+        run("DNSQuestion.hashCode", question::hashCode);
+        run("DNSQuestion.equals(copy)", () -> question.equals(copy));
+        run("DNSQuestion.equals(other case)", () -> question.equals(upper));
+        run("DNSQuestion.equals(different)", () -> question.equals(other));
+
+        // The cache: NAMES responses for different names
+        DNSMessage[] responses = new DNSMessage[NAMES];
+        DNSQuestion[] questions = new DNSQuestion[NAMES];
+        ByteBuffer[] requests = new ByteBuffer[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            byte[] renamed = renamed(SamplePackets.MULTI_RECORD_RESPONSE, i);
+            responses[i] = DNSMessage.decodeMessage(renamed);
+            questions[i] = responses[i].getQuestions().get(0);
+            requests[i] = ByteBuffer.wrap(DNSMessage.buildQuery(questions[i], i).toBytes());
+        }
+        DNSCache cache = new DNSCache();
+        int[] next = new int[1];
+        run("DNSCache.insert(question, response)", () -> {
+            int i = next[0]++ & (NAMES - 1);
+            return cache.insert(questions[i], responses[i]);
+        });
+        run("DNSCache.query(question)", () -> cache.query(questions[next[0]++ & (NAMES - 1)]));
+        DNSMessageView view = new DNSMessageView();
+        run("DNSCache.query(view)", () -> {
+            view.wrap(requests[next[0]++ & (NAMES - 1)]);
+            return cache.query(view, 0);
+        });
+        DNSQuestion missing = new DNSQuestion(new String[]{"nothing", "cached", "here"}, 1, 1);
+        run("DNSCache.query(miss)", () -> cache.query(missing));
+
+        // A whole cache hit as a server answers it: the request read into the same array every
+        // time, the answer written into the same output buffer. B/op is what one query allocates
+        for (int i = 0; i < NAMES; i++) {
+            cache.insert(questions[i], responses[i]);
+        }
+        QueryHandler handler = new QueryHandler(new ServerConfig(), new ZoneStore(null), cache, (bytes, length) -> {
+            throw new IOException("Only cache hits are measured");
+        }, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "codec-bench-upstream");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        byte[] packet = new byte[Edns.MAX_UDP_PAYLOAD];
+        byte[] out = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        run("QueryHandler.handle(cache hit)", () -> {
+            ByteBuffer request = requests[next[0]++ & (NAMES - 1)];
+            request.get(0, packet, 0, request.limit());
+            return handler.handle(packet, request.limit(), out, true);
+        });
+        cache.shutdown();
+    }
+
+    private static void run(String name, MicroBench.Operation operation) throws Exception {
+        if (name.contains(filter)) {
+            MicroBench.run(name, operation);
+        }
+    }
+
+    // The packet with its first label ("www") replaced by three characters made from i
+    private static byte[] renamed(byte[] packet, int i) {
+        String digits = "abcdefghijklmnopqrstuvwxyz0123456789";
+        byte[] copy = packet.clone();
+        copy[13] = (byte) digits.charAt(i % 36);
+        copy[14] = (byte) digits.charAt(i / 36 % 36);
+        copy[15] = (byte) digits.charAt(i / (36 * 36) % 36);
+        return copy;
+    }
+}
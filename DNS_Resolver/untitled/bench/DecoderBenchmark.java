@@ -0,0 +1,21 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Compares DNSMessage.decodeMessage with the zero-copy DNSMessageView on the same packets.
+ * Run with: java -cp out DecoderBenchmark
+ */
+public class DecoderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        ByteBuffer query = ByteBuffer.wrap(SamplePackets.QUERY);
+        ByteBuffer response = ByteBuffer.wrap(SamplePackets.MULTI_RECORD_RESPONSE);
+        DNSMessageView view = new DNSMessageView();
+
+        MicroBench.run("DNSMessage.decodeMessage(query)", () -> DNSMessage.decodeMessage(SamplePackets.QUERY));
+        MicroBench.run("DNSMessageView.wrap(query)", () -> view.wrap(query) ? view.questionType(0) : -1);
+        MicroBench.run("DNSMessageView.wrap+nameHash(query)", () -> view.wrap(query) ? view.nameHash(view.questionNameOffset(0)) : -1);
+
+        MicroBench.run("DNSMessage.decodeMessage(response)", () -> DNSMessage.decodeMessage(SamplePackets.MULTI_RECORD_RESPONSE));
+        MicroBench.run("DNSMessageView.wrap(response)", () -> view.wrap(response) ? view.getRecordCount() : -1);
+    }
+}
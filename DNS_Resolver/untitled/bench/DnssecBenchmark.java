@@ -0,0 +1,219 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks DNSSEC validation end to end against the SignedZoneStub, offline, then measures what
+ * the key and signature caches save.
+ *
+ * The checks send queries through a QueryHandler with validation on and look at the answer:
+ * secure names get the AD bit, the insecure delegation an answer without it, broken signatures
+ * SERVFAIL unless the query has CD, and NXDOMAIN and NODATA proofs are checked with NSEC and NSEC3.
+ * The timings then validate the same kind of answer with nothing cached (every DS and DNSKEY up
+ * to the root looked up and checked), with the zone's keys cached (only the answer's own
+ * signature checked), and with the answer's signature result cached too.
+ * Run with: java -cp out DnssecBenchmark
+ */
+public class DnssecBenchmark {
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int AD_BIT = 0x20;
+    private static final int CD_BIT = 0x10;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        SignedZoneStub stub = new SignedZoneStub();
+        Map<String, List<RData.DS>> anchors = DnssecValidator.parseTrustAnchors(stub.getTrustAnchor());
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "dnssec-bench-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("Trust anchor " + stub.getTrustAnchor());
+
+        DNSCache cache = new DNSCache();
+        DnssecValidator validator = new DnssecValidator(stub, fetchExecutor, anchors, 2, 100000);
+        QueryHandler handler = new QueryHandler(new ServerConfig(), new ZoneStore(null), cache, stub, fetchExecutor);
+        handler.enableDnssec(validator);
+
+        check(handler, "secure answer (P-256)", "www.example.test", TYPE_A, 0, 0, true, 1);
+        check(handler, "secure answer again, from the cache", "www.example.test", TYPE_A, 0, 0, true, 1);
+        check(handler, "secure answer (RSA/SHA-256)", "www.rsa.test", TYPE_A, 0, 0, true, 1);
+        check(handler, "CNAME to a secure answer", "alias.example.test", TYPE_A, 0, 0, true, 2);
+        check(handler, "answer from a wildcard", "foo.wild.example.test", TYPE_A, 0, 0, true, 1);
+        check(handler, "secure answer from an NSEC3 zone", "www.nsec3.test", TYPE_A, 0, 0, true, 1);
+        check(handler, "NXDOMAIN proven with NSEC", "nothere.example.test", TYPE_A, 0, 3, true, 0);
+        check(handler, "NODATA proven with NSEC", "www.example.test", TYPE_AAAA, 0, 0, true, 0);
+        check(handler, "NXDOMAIN proven with NSEC3", "nothere.nsec3.test", TYPE_A, 0, 3, true, 0);
+        check(handler, "NODATA proven with NSEC3", "www.nsec3.test", TYPE_AAAA, 0, 0, true, 0);
+        check(handler, "insecure delegation", "www.unsigned.test", TYPE_A, 0, 0, false, 1);
+        check(handler, "signature that does not verify", "bad.example.test", TYPE_A, 0, 2, false, 0);
+        check(handler, "expired signature", "old.example.test", TYPE_A, 0, 2, false, 0);
+        check(handler, "signer outside the name's ancestors", "forged.example.test", TYPE_A, 0, 2, false, 0);
+        check(handler, "bad signature with checking disabled", "bad.example.test", TYPE_A, CD_BIT, 0, false, 1);
+        checkWithoutDo(handler, "www.example.test");
+        checkNoDnssecRecords(handler, "no DNSSEC records without DO (miss)", "other.wild.example.test");
+        checkNoDnssecRecords(handler, "no DNSSEC records without DO (hit)", "other.wild.example.test");
+        checkUnsignedZone(handler, validator);
+        System.out.printf("validator: %d secure, %d insecure, %d bogus, %d signatures checked, %d results and %d keys reused%n",
+                validator.getSecureCount(), validator.getInsecureCount(), validator.getBogusCount(),
+                validator.getSignatureCheckCount(), validator.getVerdictCacheHitCount(), validator.getKeyCacheHitCount());
+        cache.shutdown();
+        validator.shutdown();
+        if (failures > 0) {
+            System.out.println(failures + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+
+        timings(stub, anchors, fetchExecutor);
+    }
+
+    // Sends a query with DO (and extra header bits) and compares the answer with what is expected
+    private static void check(QueryHandler handler, String what, String name, int type, int extraBits,
+                              int expectedRcode, boolean expectedAd, int expectedAnswers) throws Exception {
+        byte[] query = Edns.withOpt(DNSMessage.buildQuery(new DNSQuestion(name.split("\\."), type, 1), 4242).toBytes(),
+                Edns.ADVERTISED_UDP_PAYLOAD, true);
+        query[3] |= (byte) extraBits;
+        report(handler, what, query, expectedRcode, expectedAd, expectedAnswers);
+    }
+
+    // A client that asks for neither AD nor DO gets no AD bit, even for a secure answer
+    private static void checkWithoutDo(QueryHandler handler, String name) throws Exception {
+        byte[] query = DNSMessage.buildQuery(new DNSQuestion(name.split("\\."), TYPE_A, 1), 4243).toBytes();
+        report(handler, "no AD for a client without AD or DO", query, 0, false, 1);
+    }
+
+    // RFC 4035 section 3.2.1: the signatures and proofs fetched for validation are not sent to a
+    // client that did not set DO. A wildcard answer has both, RRSIGs in the answer and NSEC in authority
+    private static void checkNoDnssecRecords(QueryHandler handler, String what, String name) throws Exception {
+        byte[] query = DNSMessage.buildQuery(new DNSQuestion(name.split("\\."), TYPE_A, 1), 4244).toBytes();
+        byte[] out = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        int length = handler.handle(query, query.length, out, false);
+        DNSMessage response = DNSMessage.decodeMessage(Arrays.copyOf(out, length));
+        int dnssecRecords = 0;
+        for (List<DNSRecord> section : List.of(response.getAnswers(), response.getAuthorityRecords(), response.getAdditionalRecords())) {
+            for (DNSRecord record : section) {
+                int type = record.getType();
+                if (type == RData.TYPE_RRSIG || type == RData.TYPE_NSEC || type == RData.TYPE_NSEC3) {
+                    dnssecRecords++;
+                }
+            }
+        }
+        boolean pass = response.getHeader().getRCode() == 0 && !response.getAnswers().isEmpty() && dnssecRecords == 0;
+        if (!pass) {
+            failures++;
+        }
+        System.out.printf("%s  %-40s %d answer records, %d DNSSEC records%n", pass ? "PASS" : "FAIL", what,
+                response.getAnswers().size(), dnssecRecords);
+    }
+
+    // Names of a zone already known to be unsigned are insecure without a DS lookup or key entry each
+    private static void checkUnsignedZone(QueryHandler handler, DnssecValidator validator) throws Exception {
+        long fetches = validator.getKeyFetchCount();
+        int cachedKeys = validator.getCachedKeyCount();
+        byte[] out = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        boolean answered = true;
+        for (int i = 0; i < 100; i++) {
+            byte[] query = Edns.withOpt(DNSMessage.buildQuery(new DNSQuestion(new String[]{"n" + i, "unsigned", "test"}, TYPE_A, 1),
+                    i).toBytes(), Edns.ADVERTISED_UDP_PAYLOAD, true);
+            int length = handler.handle(query, query.length, out, false);
+            answered &= length >= 12 && (out[3] & 0x0F) == DNSCacheEntry.RCODE_NXDOMAIN;
+        }
+        long newFetches = validator.getKeyFetchCount() - fetches;
+        int newKeys = validator.getCachedKeyCount() - cachedKeys;
+        boolean pass = answered && newFetches == 0 && newKeys == 0;
+        if (!pass) {
+            failures++;
+        }
+        System.out.printf("%s  %-40s %d key lookups, %d new key entries%n", pass ? "PASS" : "FAIL",
+                "100 names in a known unsigned zone", newFetches, newKeys);
+    }
+
+    private static void report(QueryHandler handler, String what, byte[] query, int expectedRcode, boolean expectedAd,
+                               int expectedAnswers) throws Exception {
+        byte[] out = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        int length = handler.handle(query, query.length, out, false);
+        int rcode = length >= 12 ? out[3] & 0x0F : -1;
+        boolean ad = length >= 12 && (out[3] & AD_BIT) != 0;
+        int answers = length >= 12 ? ((out[6] & 0xFF) << 8) | (out[7] & 0xFF) : -1;
+        // Answer counts include the RRSIGs, so only whether there are answers is compared
+        boolean pass = rcode == expectedRcode && ad == expectedAd && (answers > 0) == (expectedAnswers > 0);
+        if (!pass) {
+            failures++;
+        }
+        System.out.printf("%s  %-40s rcode %d, AD %s, %d answer records%n", pass ? "PASS" : "FAIL", what, rcode, ad ? "set" : "clear", answers);
+    }
+
+    private static void timings(SignedZoneStub stub, Map<String, List<RData.DS>> anchors, ExecutorService fetchExecutor) throws Exception {
+        int rounds = 200;
+        DNSQuestion question = new DNSQuestion(new String[]{"www", "example", "test"}, TYPE_A, 1);
+        DNSQuestion other = new DNSQuestion(new String[]{"www", "rsa", "test"}, TYPE_A, 1);
+        DNSMessage response = DNSMessage.decodeMessage(stub.exchange(query(question), query(question).length));
+
+        // Nothing cached: a fresh validator walks DS and DNSKEY from the root for every answer
+        long coldNanos = 0;
+        long fetches = stub.getQueryCount();
+        for (int i = 0; i < rounds; i++) {
+            DnssecValidator cold = new DnssecValidator(stub, fetchExecutor, anchors, 1, 100000);
+            long start = System.nanoTime();
+            cold.validate(question, response).get();
+            coldNanos += System.nanoTime() - start;
+            cold.shutdown();
+        }
+        long coldFetches = (stub.getQueryCount() - fetches) / rounds;
+
+        // The zone's keys cached, the answer's signature checked every time (a new result cache per round)
+        DnssecValidator warm = new DnssecValidator(stub, fetchExecutor, anchors, 1, 100000);
+        warm.validate(question, response).get();
+        long keysOnlyNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            DnssecValidator.ZoneKeys keys = warm.keysFor(new String[]{"example", "test"}).get();
+            DnssecValidator fresh = new DnssecValidator(stub, fetchExecutor, anchors, 1, 100000);
+            List<DnssecValidator.RRset> rrsets = DnssecValidator.rrsets(response.getAnswers());
+            long start = System.nanoTime();
+            fresh.verifyRRset(rrsets.get(0), keys).get();
+            keysOnlyNanos += System.nanoTime() - start;
+            fresh.shutdown();
+        }
+
+        // Keys and the signature result cached
+        long checks = warm.getSignatureCheckCount();
+        long cachedNanos = 0;
+        for (int i = 0; i < rounds * 10; i++) {
+            long start = System.nanoTime();
+            warm.validate(question, response).get();
+            cachedNanos += System.nanoTime() - start;
+        }
+        System.out.printf("validate, nothing cached       %9.1f us  (%d DS/DNSKEY lookups per answer)%n", coldNanos / 1e3 / rounds, coldFetches);
+        System.out.printf("verify, zone keys cached       %9.1f us%n", keysOnlyNanos / 1e3 / rounds);
+        System.out.printf("validate, keys and result cached %7.1f us  (%d signatures checked in %d answers)%n",
+                cachedNanos / 1e3 / (rounds * 10), warm.getSignatureCheckCount() - checks, rounds * 10);
+
+        // The public key math alone, what the caches avoid
+        DnssecValidator.ZoneKeys exampleKeys = warm.keysFor(new String[]{"example", "test"}).get();
+        DNSMessage rsaResponse = DNSMessage.decodeMessage(stub.exchange(query(other), query(other).length));
+        warm.validate(other, rsaResponse).get();
+        DnssecValidator.ZoneKeys rsaKeys = warm.keysFor(new String[]{"rsa", "test"}).get();
+        benchVerify("Dnssec.verify(ECDSA P-256)", response, exampleKeys);
+        benchVerify("Dnssec.verify(RSA/SHA-256 2048)", rsaResponse, rsaKeys);
+        MicroBench.run("DnssecValidator.validate(cached)", () -> warm.validate(question, response).join());
+        warm.shutdown();
+    }
+
+    private static void benchVerify(String name, DNSMessage response, DnssecValidator.ZoneKeys keys) throws Exception {
+        DnssecValidator.RRset rrset = DnssecValidator.rrsets(response.getAnswers()).get(0);
+        RData.RRSIG signature = rrset.signatures.get(0);
+        byte[] data = Dnssec.signedData(signature, rrset.owner, rrset.records);
+        PublicKey key = keys.keys.get(0).publicKey;
+        MicroBench.run(name, () -> Dnssec.verify(signature.getAlgorithm(), key, data, signature.getSignature()));
+    }
+
+    private static byte[] query(DNSQuestion question) throws Exception {
+        return Edns.withOpt(DNSMessage.buildQuery(question, 1).toBytes(), Edns.ADVERTISED_UDP_PAYLOAD, true);
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the IterativeResolver end to end against the ReferralStub, offline, then measures a
+ * lookup from the root against one that starts at a remembered zone cut.
+ *
+ * The checks follow a referral chain with glue, look up a glueless name server, follow a CNAME
+ * into another zone while ignoring the out-of-zone address sent along with it, get NXDOMAIN, and
+ * give up on a lame delegation. The query counts of the stub's servers show which lookups went
+ * through the root and which started at a cached delegation.
+ * Run with: java -cp out IterativeResolverBenchmark
+ */
+public class IterativeResolverBenchmark {
+    private static final int TYPE_A = 1;
+    private static final int TIMEOUT_MILLIS = 200;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        ReferralStub stub = new ReferralStub(0).start();
+        IterativeResolver resolver = new IterativeResolver(List.of(stub.getRootAddress()), new DelegationCache(1000),
+                TIMEOUT_MILLIS, 64, stub.getPort());
+
+        long rootBefore = stub.getQueryCount("");
+        DNSMessage www = resolve(resolver, "www.example.test");
+        check("referrals with glue", hasAddress(www, new byte[]{(byte) 192, 0, 2, 1}));
+        check("every zone asked once", stub.getQueryCount("") - rootBefore == 1 && stub.getQueryCount("test") == 1
+                && stub.getQueryCount("example.test") == 1);
+
+        rootBefore = stub.getQueryCount("");
+        DNSMessage missing = resolve(resolver, "nothere.example.test");
+        check("NXDOMAIN", missing.getHeader().getRCode() == DNSCacheEntry.RCODE_NXDOMAIN);
+        check("known zone asked without the root", stub.getQueryCount("") == rootBefore);
+
+        DNSMessage glueless = resolve(resolver, "www.glueless.test");
+        check("glueless name server looked up", hasAddress(glueless, new byte[]{(byte) 192, 0, 2, 2}));
+
+        DNSMessage alias = resolve(resolver, "alias.example.test");
+        check("CNAME followed into another zone", alias.getAnswers().size() == 2
+                && hasAddress(alias, new byte[]{(byte) 192, 0, 2, 2}));
+        check("out-of-zone address ignored", !hasAddress(alias, ReferralStub.FORGED_ADDRESS));
+
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            resolve(resolver, "www.lame.test");
+        } catch (IOException e) {
+            failed = true;
+        }
+        long lameMillis = (System.nanoTime() - start) / 1_000_000;
+        check("lame delegation fails within the timeouts", failed && lameMillis < TIMEOUT_MILLIS * 10L);
+
+        timings(stub);
+        stub.close();
+        if (failures > 0) {
+            System.out.println(failures + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // A lookup through the whole chain (a fresh DelegationCache each time) against one from example.test's servers
+    private static void timings(ReferralStub stub) throws Exception {
+        int rounds = 500;
+        long[] cold = new long[rounds];
+        long[] warm = new long[rounds];
+        IterativeResolver cached = new IterativeResolver(List.of(stub.getRootAddress()), new DelegationCache(1000),
+                TIMEOUT_MILLIS, 64, stub.getPort());
+        resolve(cached, "www.example.test");
+        for (int i = 0; i < rounds; i++) {
+            IterativeResolver fresh = new IterativeResolver(List.of(stub.getRootAddress()), new DelegationCache(1000),
+                    TIMEOUT_MILLIS, 64, stub.getPort());
+            long start = System.nanoTime();
+            resolve(fresh, "www.example.test");
+            cold[i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            resolve(cached, "www.example.test");
+            warm[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(cold);
+        Arrays.sort(warm);
+        System.out.printf("from the root        p50 %6.1f us  p99 %6.1f us%n", cold[rounds / 2] / 1e3, cold[rounds * 99 / 100] / 1e3);
+        System.out.printf("from a cached cut    p50 %6.1f us  p99 %6.1f us%n", warm[rounds / 2] / 1e3, warm[rounds * 99 / 100] / 1e3);
+    }
+
+    private static DNSMessage resolve(IterativeResolver resolver, String name) throws IOException {
+        DNSQuestion question = new DNSQuestion(name.split("\\."), TYPE_A, 1);
+        byte[] query = DNSMessage.buildQuery(question, 1).toBytes();
+        return DNSMessage.decodeMessage(resolver.exchange(query, query.length));
+    }
+
+    private static boolean hasAddress(DNSMessage response, byte[] address) {
+        for (DNSRecord record : response.getAnswers()) {
+            if (record.getType() == TYPE_A && Arrays.equals(record.getRdata(), address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(String what, boolean pass) {
+        if (!pass) {
+            failures++;
+        }
+        System.out.printf("%s  %s%n", pass ? "PASS" : "FAIL", what);
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends DNS queries to a server at a fixed rate and reports throughput and latency percentiles.
+ *
+ * The load is open-loop: query i is due at start + i / rate, whether or not earlier queries
+ * have been answered, and its latency is measured from when it was due rather than when it was
+ * actually sent. A closed-loop tool waits for answers before sending more, so when the server
+ * stalls it sends less and the stall hardly shows in its percentiles (coordinated omission).
+ * Here a stall shows as what every client waiting on it would see.
+ *
+ * Names come from a query file (one "name [type]" per line, replayed in order and repeated) or
+ * are made up as name1.bench.test ... nameN.bench.test, picked with a Zipf distribution so a few
+ * names are very popular and most are rare, like real traffic.
+ *
+ * With compare=prefetch no outside server is used: the same traffic is replayed twice against a
+ * server started in process, over a StubUpstream with short TTLs, once with refresh-ahead
+ * prefetching off and once with it on, so the p99 of each can be compared.
+ *
+ * Run with: java -cp out LoadGenerator [key=value ...], keys:
+ *   server=127.0.0.1:8053 rate=10000 seconds=10 names=100000 zipf=1.0 file=queries.txt
+ *   timeoutMillis=2000 sockets=4 seed=1
+ *   compare=prefetch ttl=5 upstreamDelayMillis=20 (server is then ignored)
+ */
+public class LoadGenerator {
+    private static final int TYPE_A = 1;
+    private static final int PREFETCH_BASE_PORT = 18153;
+
+    private final InetSocketAddress server;
+    private final int rate;
+    private final long timeoutNanos;
+    private final byte[][] queries; // encoded queries, the ID is overwritten per send
+    private final int[] picks; // which query each send uses
+
+    // Per socket: when each in-flight ID was due, 0 once answered
+    private final AtomicLongArray[] due;
+    private final long[] latencies;
+    private final AtomicLong answeredCount = new AtomicLong();
+    private final AtomicLong lateCount = new AtomicLong();
+    private final long[] rcodes = new long[16];
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Arguments are key=value, see the class comment");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        InetSocketAddress server = ServerConfig.parseAddress(options.getOrDefault("server", "127.0.0.1:8053"), 53);
+        int rate = Integer.parseInt(options.getOrDefault("rate", "10000"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int timeoutMillis = Integer.parseInt(options.getOrDefault("timeoutMillis", "2000"));
+        int sockets = Integer.parseInt(options.getOrDefault("sockets", "4"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+
+        List<byte[]> queries;
+        int[] picks;
+        long total = (long) rate * seconds;
+        if (options.containsKey("file")) {
+            queries = readQueries(options.get("file"));
+            picks = new int[(int) total];
+            for (int i = 0; i < picks.length; i++) {
+                picks[i] = i % queries.size();
+            }
+            System.out.printf("%d queries from %s at %d/s%n", total, options.get("file"), rate);
+        } else {
+            int names = Integer.parseInt(options.getOrDefault("names", "100000"));
+            double exponent = Double.parseDouble(options.getOrDefault("zipf", "1.0"));
+            queries = new ArrayList<>(names);
+            for (int rank = 1; rank <= names; rank++) {
+                queries.add(query(new String[]{"name" + rank, "bench", "test"}, TYPE_A));
+            }
+            picks = zipf(names, exponent, (int) total, seed);
+            System.out.printf("%d queries over %d names (Zipf %.2f) at %d/s%n", total, names, exponent, rate);
+        }
+        if ("prefetch".equals(options.get("compare"))) {
+            comparePrefetch(options, rate, timeoutMillis, queries.toArray(new byte[0][]), picks, sockets);
+            return;
+        }
+        System.out.println("Sending to " + server);
+        LoadGenerator generator = new LoadGenerator(server, rate, timeoutMillis, queries.toArray(new byte[0][]), picks, sockets);
+        generator.run(sockets);
+    }
+
+    // Replays the same traffic against an in-process server with prefetching off, then on
+    private static void comparePrefetch(Map<String, String> options, int rate, int timeoutMillis, byte[][] queries,
+                                        int[] picks, int sockets) throws Exception {
+        int ttl = Integer.parseInt(options.getOrDefault("ttl", "5"));
+        int delayMillis = Integer.parseInt(options.getOrDefault("upstreamDelayMillis", "20"));
+        StubUpstream stub = new StubUpstream(0, delayMillis, 0, 0, ttl).start();
+        ServerConfig config = new ServerConfig();
+        System.out.printf("upstream answers in %d ms with TTL %d s, prefetch at %d hits and %.0f%% of the TTL left%n",
+                delayMillis, ttl, config.prefetchMinHits, config.prefetchTtlFraction * 100);
+        int port = PREFETCH_BASE_PORT;
+        for (boolean prefetch : new boolean[]{false, true}) {
+            UpstreamResolver upstream = new UpstreamResolver(stub.getAddress(), timeoutMillis);
+            DNSCache cache = new DNSCache();
+            if (prefetch) {
+                cache.enablePrefetch(upstream::resolve, config.prefetchMinHits, config.prefetchTtlFraction);
+            }
+            // A virtual thread per query, so one miss does not hold up the hits behind it
+            QueryHandler handler = new QueryHandler(config, new ZoneStore(null), cache, upstream,
+                    Executors.newVirtualThreadPerTaskExecutor());
+            int serverPort = port++;
+            VirtualThreadUdpServer udpServer = new VirtualThreadUdpServer(serverPort, handler, config.virtualMaxInFlight);
+            Thread server = new Thread(() -> {
+                try {
+                    udpServer.run();
+                } catch (InterruptedException e) {
+                    // Ends with the benchmark
+                }
+            }, "load-server");
+            server.setDaemon(true);
+            server.start();
+            Thread.sleep(200);
+            System.out.println("-- prefetch " + (prefetch ? "on" : "off"));
+            new LoadGenerator(new InetSocketAddress("127.0.0.1", serverPort), rate, timeoutMillis, queries, picks, sockets).run(sockets);
+            System.out.println("upstream    " + (prefetch ? cache.getPrefetchCount() + " entries refreshed ahead of expiry" : "misses only"));
+            cache.shutdown();
+        }
+        stub.close();
+    }
+
+    LoadGenerator(InetSocketAddress server, int rate, int timeoutMillis, byte[][] queries, int[] picks, int sockets) {
+        this.server = server;
+        this.rate = rate;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.queries = queries;
+        this.picks = picks;
+        this.latencies = new long[picks.length];
+        this.due = new AtomicLongArray[sockets];
+        for (int i = 0; i < sockets; i++) {
+            due[i] = new AtomicLongArray(1 << 16);
+        }
+    }
+
+    // "name [type]" lines, type a number or A/AAAA/MX/... as in zone files
+    private static List<byte[]> readQueries(String file) throws IOException {
+        List<byte[]> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty() || fields[0].startsWith("#") || fields[0].startsWith(";")) {
+                continue;
+            }
+            String name = fields[0].endsWith(".") ? fields[0].substring(0, fields[0].length() - 1) : fields[0];
+            int type = fields.length > 1 ? typeNumber(fields[1]) : TYPE_A;
+            queries.add(query(name.split("\\."), type));
+        }
+        if (queries.isEmpty()) {
+            throw new IOException("No queries in " + file);
+        }
+        return queries;
+    }
+
+    private static int typeNumber(String type) {
+        switch (type.toUpperCase()) {
+            case "A":
+                return RData.TYPE_A;
+            case "NS":
+                return RData.TYPE_NS;
+            case "CNAME":
+                return RData.TYPE_CNAME;
+            case "SOA":
+                return RData.TYPE_SOA;
+            case "PTR":
+                return RData.TYPE_PTR;
+            case "MX":
+                return RData.TYPE_MX;
+            case "TXT":
+                return RData.TYPE_TXT;
+            case "AAAA":
+                return RData.TYPE_AAAA;
+            default:
+                return Integer.parseInt(type);
+        }
+    }
+
+    private static byte[] query(String[] name, int type) throws IOException {
+        return DNSMessage.buildQuery(new DNSQuestion(name, type, 1), 0).toBytes();
+    }
+
+    // Name indexes drawn with P(rank k) proportional to 1 / k^exponent, by binary search on the CDF
+    static int[] zipf(int names, double exponent, int count, long seed) {
+        double[] cdf = new double[names];
+        double sum = 0;
+        for (int k = 1; k <= names; k++) {
+            sum += 1 / Math.pow(k, exponent);
+            cdf[k - 1] = sum;
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] picks = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            picks[i] = Math.min(names - 1, index >= 0 ? index : -index - 1);
+        }
+        return picks;
+    }
+
+    void run(int socketCount) throws Exception {
+        DatagramChannel[] channels = new DatagramChannel[socketCount];
+        Thread[] receivers = new Thread[socketCount];
+        for (int s = 0; s < socketCount; s++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            channel.bind(new InetSocketAddress(0));
+            channel.connect(server);
+            channels[s] = channel;
+            int socket = s;
+            receivers[s] = new Thread(() -> receive(channel, due[socket]), "load-receiver-" + s);
+            receivers[s].setDaemon(true);
+            receivers[s].start();
+        }
+
+        long start = System.nanoTime();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long behindNanos = 0;
+        ByteBuffer send = ByteBuffer.allocate(DNSWireWriter.MAX_MESSAGE_SIZE);
+        for (int i = 0; i < picks.length; i++) {
+            long dueAt = start + i * intervalNanos;
+            long now;
+            while ((now = System.nanoTime()) < dueAt) {
+                if (dueAt - now > 200_000) {
+                    Thread.sleep(0, 100_000);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            behindNanos = Math.max(behindNanos, now - dueAt);
+            int socket = i % socketCount;
+            int id = (i / socketCount) & 0xFFFF;
+            // An ID still unanswered from 65536 queries ago has timed out for sure
+            due[socket].set(id, dueAt);
+            byte[] query = queries[picks[i]];
+            send.clear();
+            send.put(query).flip();
+            send.put(0, (byte) (id >>> 8));
+            send.put(1, (byte) id);
+            try {
+                channels[socket].write(send);
+            } catch (IOException e) {
+                // Counted as unanswered
+            }
+        }
+        long sendNanos = System.nanoTime() - start;
+        // Give the last queries their full timeout
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (answeredCount.get() < picks.length && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        for (Thread receiver : receivers) {
+            receiver.join();
+        }
+        report(sendNanos, behindNanos);
+    }
+
+    // Matches answers to the time their query was due
+    private void receive(DatagramChannel channel, AtomicLongArray dueTimes) {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSWireWriter.MAX_MESSAGE_SIZE);
+        while (true) {
+            buffer.clear();
+            try {
+                channel.read(buffer);
+            } catch (IOException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (buffer.position() < 12) {
+                continue;
+            }
+            int id = ((buffer.get(0) & 0xFF) << 8) | (buffer.get(1) & 0xFF);
+            long dueAt = dueTimes.getAndSet(id, 0);
+            if (dueAt == 0) {
+                continue; // a duplicate, or for an ID already reused
+            }
+            long latency = now - dueAt;
+            if (latency > timeoutNanos) {
+                lateCount.incrementAndGet();
+                continue;
+            }
+            long index = answeredCount.getAndIncrement();
+            if (index < latencies.length) {
+                latencies[(int) index] = latency;
+            }
+            synchronized (rcodes) {
+                rcodes[buffer.get(3) & 0x0F]++;
+            }
+        }
+    }
+
+    private void report(long sendNanos, long behindNanos) {
+        int answered = (int) Math.min(answeredCount.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, answered);
+        Arrays.sort(sorted);
+        System.out.printf("sent        %d in %.2f s (%.0f/s target %d/s, sender at most %.1f ms behind)%n",
+                picks.length, sendNanos / 1e9, picks.length * 1e9 / sendNanos, rate, behindNanos / 1e6);
+        System.out.printf("answered    %d (%.2f%%), %d after the %d ms timeout, %d never%n", answered,
+                100.0 * answered / picks.length, lateCount.get(), TimeUnit.NANOSECONDS.toMillis(timeoutNanos),
+                picks.length - answered - lateCount.get());
+        System.out.printf("throughput  %.0f answers/s%n", answered * 1e9 / Math.max(1, sendNanos));
+        if (answered > 0) {
+            System.out.printf("latency ms  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9),
+                    sorted[answered - 1] / 1e6);
+        }
+        StringBuilder codes = new StringBuilder("rcodes     ");
+        for (int rcode = 0; rcode < rcodes.length; rcode++) {
+            if (rcodes[rcode] > 0) {
+                codes.append(' ').append(rcode).append('=').append(rcodes[rcode]);
+            }
+        }
+        System.out.println(codes);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
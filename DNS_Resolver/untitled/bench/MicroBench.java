@@ -0,0 +1,75 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * A small microbenchmark harness: warms an operation up, then times it over several
+ * measured iterations and reports throughput and bytes allocated per operation.
+ * The tree has no build tool to pull in JMH, so this follows the same recipe by hand
+ * (warmup, fixed-time iterations, a consumed result to defeat dead code elimination).
+ */
+public class MicroBench {
+
+    /**
+     * The operation being measured. Its return value is consumed so the JIT cannot drop the work.
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static volatile Object sink;
+
+    /**
+     * Runs one benchmark and prints a result line.
+     *
+     * @param name      The name printed in the report.
+     * @param operation The operation to measure.
+     */
+    public static void run(String name, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation);
+        }
+        double bestOpsPerSecond = 0;
+        double totalOps = 0;
+        double totalNanos = 0;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long[] result = iteration(operation);
+            double opsPerSecond = result[0] * 1e9 / result[1];
+            bestOpsPerSecond = Math.max(bestOpsPerSecond, opsPerSecond);
+            totalOps += result[0];
+            totalNanos += result[1];
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("%-40s %14.0f ops/s (best %14.0f) %10.1f ns/op %10.1f B/op%n",
+                name, totalOps * 1e9 / totalNanos, bestOpsPerSecond, totalNanos / totalOps, allocated / totalOps);
+    }
+
+    // Runs the operation in batches until one iteration's time is used up, returns {ops, nanos}
+    private static long[] iteration(Operation operation) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        Object last = null;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                last = operation.run();
+            }
+            ops += 1000;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink = last;
+        return new long[]{ops, elapsed};
+    }
+
+    // Bytes allocated so far by the current thread, -1 when the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+}
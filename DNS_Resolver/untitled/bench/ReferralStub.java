@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in authoritative servers for iterative mode, a root and the zones below it, so the
+ * IterativeResolver can be tested without the network.
+ *
+ * Every zone has its own loopback address and all share one port, the way real servers share
+ * port 53 (Linux answers on all of 127.0.0.0/8 without any setup):
+ *   127.0.0.1  .               refers test. to a.nic.test, with glue
+ *   127.0.0.2  test.           refers example.test. to ns1.example.test with glue, glueless.test.
+ *                              to ns.example.test without glue, and lame.test. to a server that
+ *                              is not running (127.0.0.9)
+ *   127.0.0.3  example.test.   www, ns, ns1, and alias (CNAME to www.glueless.test, sent along
+ *                              with a forged address for the target, which is outside the zone)
+ *   127.0.0.4  glueless.test.  www
+ * Names that do not exist get NXDOMAIN with the zone's SOA.
+ * Run with: java -cp out ReferralStub [port], then start the server with the printed options.
+ */
+public class ReferralStub {
+    private static final int TTL = 3600;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_SOA = 6;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+    // The address sent along with alias.example.test, never to be believed
+    static final byte[] FORGED_ADDRESS = {6, 6, 6, 6};
+
+    private final int port;
+    private final List<Server> servers = new ArrayList<>();
+
+    // One zone served on its own address
+    private static final class Server {
+        final String[] apex;
+        final InetSocketAddress address;
+        final Map<String, List<DNSRecord>> records = new HashMap<>();
+        // Zones cut off below this one, by apex: the NS records and any glue
+        final Map<String, List<DNSRecord>> cuts = new HashMap<>();
+        final Map<String, List<DNSRecord>> glue = new HashMap<>();
+        // Records sent along in the answer section without being asked for
+        final Map<String, List<DNSRecord>> extras = new HashMap<>();
+        final LongAdder queries = new LongAdder();
+        DatagramChannel channel;
+
+        Server(String[] apex, InetSocketAddress address) {
+            this.apex = apex;
+            this.address = address;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ReferralStub stub = new ReferralStub(args.length > 0 ? Integer.parseInt(args[0]) : 5302).start();
+        System.out.println("Root and zones below it on port " + stub.getPort() + ", start the server with");
+        System.out.println("  -Ddns.mode=iterative -Ddns.rootHints=" + stub.getRootAddress().getHostString() + ":" + stub.getPort()
+                + " -Ddns.iterative.serverPort=" + stub.getPort());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Binds every zone's address.
+     *
+     * @param port The port all zones answer on, 0 picks a free one.
+     * @throws IOException If an address cannot be bound.
+     */
+    public ReferralStub(int port) throws IOException {
+        Server root = server("", 1, port);
+        // The first bind picked the port, the others share it
+        this.port = root.channel.socket().getLocalPort();
+        Server test = server("test", 2, this.port);
+        Server example = server("example.test", 3, this.port);
+        Server glueless = server("glueless.test", 4, this.port);
+
+        delegate(root, "test", "a.nic.test", new byte[]{127, 0, 0, 2});
+        delegate(test, "example.test", "ns1.example.test", new byte[]{127, 0, 0, 3});
+        delegate(test, "glueless.test", "ns.example.test", null);
+        delegate(test, "lame.test", "ns.lame.test", new byte[]{127, 0, 0, 9});
+
+        add(test, "a.nic.test", TYPE_A, new byte[]{127, 0, 0, 2});
+        add(example, "www.example.test", TYPE_A, new byte[]{(byte) 192, 0, 2, 1});
+        add(example, "ns1.example.test", TYPE_A, new byte[]{127, 0, 0, 3});
+        add(example, "ns.example.test", TYPE_A, new byte[]{127, 0, 0, 4});
+        add(example, "alias.example.test", TYPE_CNAME, new RData.Name(TYPE_CNAME, name("www.glueless.test")).toBytes());
+        example.extras.put("alias.example.test", List.of(record("www.glueless.test", TYPE_A, FORGED_ADDRESS)));
+        add(glueless, "www.glueless.test", TYPE_A, new byte[]{(byte) 192, 0, 2, 2});
+    }
+
+    /**
+     * Starts answering, one daemon thread per zone.
+     */
+    public ReferralStub start() {
+        for (Server server : servers) {
+            Thread thread = new Thread(() -> run(server), "referral-stub");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public InetSocketAddress getRootAddress() {
+        return new InetSocketAddress(servers.get(0).address.getAddress(), port);
+    }
+
+    /**
+     * @param zone The zone's name, "" for the root.
+     * @return Queries the zone's server has answered so far.
+     */
+    public long getQueryCount(String zone) {
+        for (Server server : servers) {
+            if (Arrays.equals(server.apex, name(zone))) {
+                return server.queries.sum();
+            }
+        }
+        throw new IllegalArgumentException("No zone " + zone);
+    }
+
+    public void close() throws IOException {
+        for (Server server : servers) {
+            server.channel.close();
+        }
+    }
+
+    private Server server(String apex, int lastByte, int port) throws IOException {
+        Server server = new Server(name(apex), new InetSocketAddress("127.0.0." + lastByte, port));
+        server.channel = DatagramChannel.open();
+        server.channel.bind(server.address);
+        byte[] soa = new RData.SOA(name("ns." + apex), name("hostmaster." + apex), 1, 7200, 900, 1209600, 300).toBytes();
+        server.records.put(apex, List.of(record(apex, TYPE_SOA, soa)));
+        servers.add(server);
+        return server;
+    }
+
+    private static void run(Server server) {
+        ByteBuffer buffer = ByteBuffer.allocate(Edns.MAX_UDP_PAYLOAD);
+        while (true) {
+            try {
+                buffer.clear();
+                SocketAddress client = server.channel.receive(buffer);
+                server.queries.increment();
+                byte[] response = answer(server, Arrays.copyOf(buffer.array(), buffer.position()));
+                server.channel.send(ByteBuffer.wrap(response), client);
+            } catch (IOException e) {
+                if (!server.channel.isOpen()) {
+                    return;
+                }
+                // A query we cannot read is not answered, like a real server
+            }
+        }
+    }
+
+    // A referral if the name is below one of the zone's cuts, otherwise the zone's own answer
+    private static byte[] answer(Server server, byte[] query) throws IOException {
+        DNSMessage request = DNSMessage.decodeMessage(query);
+        DNSQuestion question = request.getQuestions().get(0);
+        String[] qname = question.getQname();
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        ArrayList<DNSRecord> authority = new ArrayList<>();
+        ArrayList<DNSRecord> additional = new ArrayList<>();
+        if (!isSubdomain(qname, server.apex)) {
+            return DNSMessage.buildResponse(request, answers, authority, additional, RCODE_REFUSED).toBytes();
+        }
+        // Deepest cut first
+        for (int skip = 0; skip < qname.length - server.apex.length; skip++) {
+            String cut = key(Arrays.copyOfRange(qname, skip, qname.length));
+            if (server.cuts.containsKey(cut)) {
+                authority.addAll(server.cuts.get(cut));
+                additional.addAll(server.glue.getOrDefault(cut, List.of()));
+                return DNSMessage.buildResponse(request, answers, authority, additional, RCODE_NOERROR).toBytes();
+            }
+        }
+        List<DNSRecord> owned = server.records.get(key(qname));
+        if (owned == null) {
+            authority.addAll(server.records.get(key(server.apex)));
+            return DNSMessage.buildResponse(request, answers, authority, additional, RCODE_NXDOMAIN).toBytes();
+        }
+        for (DNSRecord record : owned) {
+            if (record.getType() == question.getQtype() || record.getType() == TYPE_CNAME) {
+                answers.add(record);
+            }
+        }
+        if (answers.isEmpty()) {
+            authority.addAll(server.records.get(key(server.apex)));
+        } else {
+            answers.addAll(server.extras.getOrDefault(key(qname), List.of()));
+        }
+        return DNSMessage.buildResponse(request, answers, authority, additional, RCODE_NOERROR).toBytes();
+    }
+
+    // glueAddress null leaves the referral without glue
+    private static void delegate(Server parent, String child, String serverName, byte[] glueAddress) {
+        byte[] target = new RData.Name(TYPE_NS, name(serverName)).toBytes();
+        parent.cuts.put(child, List.of(record(child, TYPE_NS, target)));
+        if (glueAddress != null) {
+            parent.glue.put(child, List.of(record(serverName, TYPE_A, glueAddress)));
+        }
+    }
+
+    private static void add(Server server, String name, int type, byte[] rdata) {
+        server.records.computeIfAbsent(name, n -> new ArrayList<>()).add(record(name, type, rdata));
+    }
+
+    private static DNSRecord record(String name, int type, byte[] rdata) {
+        return DNSRecord.authoritative(name(name), type, CLASS_IN, TTL, rdata);
+    }
+
+    private static boolean isSubdomain(String[] name, String[] zone) {
+        if (name.length < zone.length) {
+            return false;
+        }
+        for (int i = 1; i <= zone.length; i++) {
+            if (!name[name.length - i].equalsIgnoreCase(zone[zone.length - i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(String[] name) {
+        return String.join(".", name).toLowerCase();
+    }
+
+    private static String[] name(String text) {
+        return text.isEmpty() ? new String[0] : text.split("\\.");
+    }
+}
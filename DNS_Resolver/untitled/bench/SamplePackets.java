@@ -0,0 +1,27 @@
+/**
+ * DNS packets used by the benchmarks, in wire format.
+ * They are shaped like real traffic: a dig-style query with an EDNS0 OPT record, and a
+ * response with a CNAME, a four address RRset, NS records and glue, all name-compressed.
+ */
+public class SamplePackets {
+
+    // www.example.com A, RD set, OPT advertising a 4096 byte payload
+    public static final byte[] QUERY = hex(
+            "3a7c0120000100000000000103777777076578616d706c6503636f6d00000100010000291000000000000000");
+
+    // www.github.com A -> CNAME github.com, 4 x A, 2 x NS, 2 x glue A (180 bytes, compressed names)
+    public static final byte[] MULTI_RECORD_RESPONSE = hex(
+            "3a7c81800001000500020002037777770667697468756203636f6d0000010001c00c0005000100000e100002c010"
+                    + "c010000100010000003c00048c527003c010000100010000003c00048c527103c010000100010000003c0004"
+                    + "8c527203c010000100010000003c00048c527303c01000020001000003840007046e732d31c010c010000200"
+                    + "01000003840007046e732d32c010c07a00010001000003840004cdfbc1a5c08d00010001000003840004cdfb"
+                    + "c1a6");
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,512 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in resolver for DNSSEC tests with zones it signs itself on startup, so validation can
+ * be tested without the network and without the real root key.
+ *
+ * The zones, all answered as if by a recursive resolver (no referrals):
+ *   .               signed with ECDSA P-256, the trust anchor (see getTrustAnchor())
+ *   test.           signed, delegates to the four below
+ *   example.test.   signed with NSEC: www, alias (CNAME to www), *.wild, and three broken names,
+ *                   bad (signature does not verify), old (signature expired) and forged (signature
+ *                   claiming to be from unsigned.test)
+ *   rsa.test.       signed with RSA/SHA-256
+ *   nsec3.test.     signed with NSEC3 instead of NSEC
+ *   unsigned.test.  not signed, and test. proves it with an NSEC record without the DS bit
+ * DS queries are answered from the parent zone like a real resolver does, DNSSEC records are only
+ * sent to queries with the DO bit.
+ * Run with: java -cp out SignedZoneStub [port], then start the server with the printed options.
+ */
+public class SignedZoneStub implements Upstream {
+    private static final int TTL = 3600;
+    private static final int CLASS_IN = 1;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+    // NSEC3 hashing as RFC 9276 recommends: no extra iterations and no salt
+    private static final RData.NSEC3 NSEC3_PARAMETERS = new RData.NSEC3(Dnssec.NSEC3_SHA1, 0, 0, new byte[0], new byte[0], new byte[0]);
+
+    private final List<Zone> zones = new ArrayList<>();
+    private final LongAdder queries = new LongAdder();
+
+    // One zone: its records by owner name, their signatures, and the NSEC or NSEC3 chain
+    private static final class Zone {
+        final String[] apex;
+        final int algorithm; // 0 if the zone is not signed
+        final KeyPair keys;
+        final RData.DNSKEY dnskey;
+        final boolean nsec3;
+        final Map<String, Owner> owners = new HashMap<>();
+        // NSEC3 records by the hash they are for, in hash order
+        final TreeMap<String, Owner> hashed = new TreeMap<>();
+        final List<Owner> ordered = new ArrayList<>();
+
+        Zone(String[] apex, int algorithm, KeyPair keys, RData.DNSKEY dnskey, boolean nsec3) {
+            this.apex = apex;
+            this.algorithm = algorithm;
+            this.keys = keys;
+            this.dnskey = dnskey;
+            this.nsec3 = nsec3;
+        }
+
+        Owner owner(String[] name) {
+            return owners.computeIfAbsent(Dnssec.nameKey(name), key -> new Owner(name));
+        }
+    }
+
+    // The RRsets at one name, and the RRSIG over each of them
+    private static final class Owner {
+        final String[] name;
+        final TreeMap<Integer, List<DNSRecord>> rrsets = new TreeMap<>();
+        final Map<Integer, DNSRecord> signatures = new HashMap<>();
+        boolean delegation;
+
+        Owner(String[] name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5301;
+        SignedZoneStub stub = new SignedZoneStub();
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", port));
+        System.out.println("Signed zones on 127.0.0.1:" + port + ", start the server with");
+        System.out.println("  -Ddns.upstream=127.0.0.1:" + port + " -Ddns.dnssec.validate=true \"-Ddns.dnssec.trustAnchor="
+                + stub.getTrustAnchor() + "\"");
+        ByteBuffer buffer = ByteBuffer.allocate(Edns.MAX_UDP_PAYLOAD);
+        while (true) {
+            buffer.clear();
+            SocketAddress client = channel.receive(buffer);
+            try {
+                channel.send(ByteBuffer.wrap(stub.exchange(buffer.array(), buffer.position())), client);
+            } catch (IOException e) {
+                System.out.println("Not answered: " + e);
+            }
+        }
+    }
+
+    /**
+     * Makes the keys and signs every zone.
+     *
+     * @throws GeneralSecurityException If the JDK cannot make P-256 or RSA keys.
+     */
+    public SignedZoneStub() throws GeneralSecurityException {
+        long now = System.currentTimeMillis() / 1000;
+        Zone root = zone("", Dnssec.ALGORITHM_ECDSAP256SHA256, false);
+        Zone test = zone("test", Dnssec.ALGORITHM_ECDSAP256SHA256, false);
+        Zone example = zone("example.test", Dnssec.ALGORITHM_ECDSAP256SHA256, false);
+        Zone rsa = zone("rsa.test", Dnssec.ALGORITHM_RSASHA256, false);
+        Zone nsec3 = zone("nsec3.test", Dnssec.ALGORITHM_ECDSAP256SHA256, true);
+        Zone unsigned = zone("unsigned.test", 0, false);
+
+        address(example, "www.example.test", 1);
+        add(example, name("alias.example.test"), RData.TYPE_CNAME, new RData.Name(RData.TYPE_CNAME, name("www.example.test")).toBytes());
+        address(example, "*.wild.example.test", 7);
+        address(example, "bad.example.test", 66);
+        address(example, "old.example.test", 67);
+        address(example, "forged.example.test", 68);
+        address(rsa, "www.rsa.test", 8);
+        address(nsec3, "www.nsec3.test", 9);
+        address(unsigned, "www.unsigned.test", 10);
+
+        delegate(root, test);
+        delegate(test, example);
+        delegate(test, rsa);
+        delegate(test, nsec3);
+        delegate(test, unsigned);
+
+        for (Zone zone : zones) {
+            sign(zone, now - 3600, now + 7 * 86400);
+        }
+        // Broken on purpose: one signature that does not match its data, one that has expired
+        Owner bad = example.owner(name("bad.example.test"));
+        RData.RRSIG good = (RData.RRSIG) bad.signatures.get(RData.TYPE_A).getData();
+        byte[] corrupted = good.getSignature().clone();
+        corrupted[corrupted.length / 2] ^= 1;
+        bad.signatures.put(RData.TYPE_A, rrsig(bad.name, new RData.RRSIG(good.getTypeCovered(), good.getAlgorithm(),
+                good.getLabels(), good.getOriginalTtl(), good.getExpiration(), good.getInception(), good.getKeyTag(),
+                good.getSigner(), corrupted)));
+        Owner old = example.owner(name("old.example.test"));
+        old.signatures.put(RData.TYPE_A, signature(example, old.name, RData.TYPE_A, old.rrsets.get(RData.TYPE_A),
+                now - 30 * 86400, now - 86400));
+        // A signer that is not an ancestor of the name must not make the answer insecure
+        Owner forged = example.owner(name("forged.example.test"));
+        RData.RRSIG real = (RData.RRSIG) forged.signatures.get(RData.TYPE_A).getData();
+        forged.signatures.put(RData.TYPE_A, rrsig(forged.name, new RData.RRSIG(real.getTypeCovered(), real.getAlgorithm(),
+                real.getLabels(), real.getOriginalTtl(), real.getExpiration(), real.getInception(), real.getKeyTag(),
+                unsigned.apex, real.getSignature())));
+    }
+
+    /**
+     * @return The root zone's key as a trust anchor, "zone keytag algorithm digesttype digest".
+     */
+    public String getTrustAnchor() throws GeneralSecurityException {
+        Zone root = zones.get(0);
+        return ". " + Dnssec.keyTag(root.dnskey) + " " + root.algorithm + " " + Dnssec.DIGEST_SHA256 + " "
+                + HexFormat.of().withUpperCase().formatHex(Dnssec.dsDigest(root.apex, root.dnskey, Dnssec.DIGEST_SHA256));
+    }
+
+    /**
+     * @return Queries answered so far.
+     */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    @Override
+    public byte[] exchange(byte[] query, int length) throws IOException {
+        queries.increment();
+        byte[] request = Arrays.copyOf(query, length);
+        DNSMessageView view = new DNSMessageView();
+        if (!view.wrap(ByteBuffer.wrap(request)) || view.getQuestionCount() != 1) {
+            throw new IOException("Malformed query");
+        }
+        boolean dnssecOk = Edns.isDnssecOk(view);
+        DNSMessage message = DNSMessage.decodeMessage(request);
+        DNSQuestion question = message.getQuestions().get(0);
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        ArrayList<DNSRecord> authority = new ArrayList<>();
+        int rcode = answer(question.getQname(), question.getQtype(), dnssecOk, answers, authority, 0);
+        return DNSMessage.buildResponse(message, answers, authority, new ArrayList<>(), rcode).toBytes();
+    }
+
+    // Fills in the answer and authority sections for one name, following CNAMEs
+    private int answer(String[] name, int type, boolean dnssecOk, List<DNSRecord> answers, List<DNSRecord> authority, int depth) {
+        Zone zone = zoneFor(name, type == RData.TYPE_DS);
+        if (zone == null) {
+            return RCODE_REFUSED;
+        }
+        Owner owner = zone.owners.get(Dnssec.nameKey(name));
+        if (owner != null && owner.rrsets.containsKey(type)) {
+            add(answers, owner, type, dnssecOk);
+            return RCODE_NOERROR;
+        }
+        if (owner != null && owner.rrsets.containsKey(RData.TYPE_CNAME) && depth < DNSCacheEntry.MAX_CNAME_CHAIN) {
+            add(answers, owner, RData.TYPE_CNAME, dnssecOk);
+            String[] target = ((RData.Name) owner.rrsets.get(RData.TYPE_CNAME).get(0).getData()).getTarget();
+            return answer(target, type, dnssecOk, answers, authority, depth + 1);
+        }
+        Map<String, Owner> proof = new LinkedHashMap<>();
+        if (owner != null || isEmptyNonTerminal(zone, name)) {
+            // NODATA: the name is there, the type is not
+            if (zone.nsec3) {
+                proof.put("match", nsec3Matching(zone, name));
+            } else {
+                proof.put("match", owner != null ? owner : nsecCovering(zone, name));
+            }
+            negative(zone, proof, dnssecOk, authority);
+            return RCODE_NOERROR;
+        }
+        String[] encloser = closestEncloser(zone, name);
+        String[] wildcardName = wildcard(encloser);
+        Owner wildcard = zone.owners.get(Dnssec.nameKey(wildcardName));
+        String[] nextCloser = Arrays.copyOfRange(name, name.length - encloser.length - 1, name.length);
+        if (wildcard != null && wildcard.rrsets.containsKey(type)) {
+            // Made from the wildcard, with proof that the name itself does not exist
+            for (DNSRecord record : wildcard.rrsets.get(type)) {
+                answers.add(record.withName(name));
+            }
+            if (dnssecOk && zone.algorithm != 0) {
+                answers.add(wildcard.signatures.get(type).withName(name));
+                Owner covering = zone.nsec3 ? nsec3Covering(zone, nextCloser) : nsecCovering(zone, name);
+                addChain(authority, zone, covering);
+            }
+            return RCODE_NOERROR;
+        }
+        // NXDOMAIN: nothing at the name, nor at the wildcard that could have matched it
+        if (zone.nsec3) {
+            proof.put("encloser", nsec3Matching(zone, encloser));
+            proof.put("next", nsec3Covering(zone, nextCloser));
+            proof.put("wildcard", nsec3Covering(zone, wildcardName));
+        } else {
+            proof.put("name", nsecCovering(zone, name));
+            proof.put("wildcard", nsecCovering(zone, wildcardName));
+        }
+        negative(zone, proof, dnssecOk, authority);
+        return RCODE_NXDOMAIN;
+    }
+
+    // The SOA, and with DO the NSEC or NSEC3 records of the proof
+    private void negative(Zone zone, Map<String, Owner> proof, boolean dnssecOk, List<DNSRecord> authority) {
+        add(authority, zone.owners.get(Dnssec.nameKey(zone.apex)), RData.TYPE_SOA, dnssecOk);
+        if (!dnssecOk || zone.algorithm == 0) {
+            return;
+        }
+        List<Owner> added = new ArrayList<>();
+        for (Owner owner : proof.values()) {
+            if (!added.contains(owner)) {
+                added.add(owner);
+                addChain(authority, zone, owner);
+            }
+        }
+    }
+
+    private static void addChain(List<DNSRecord> section, Zone zone, Owner owner) {
+        add(section, owner, zone.nsec3 ? RData.TYPE_NSEC3 : RData.TYPE_NSEC, true);
+    }
+
+    private static void add(List<DNSRecord> section, Owner owner, int type, boolean dnssecOk) {
+        section.addAll(owner.rrsets.get(type));
+        DNSRecord signature = owner.signatures.get(type);
+        if (dnssecOk && signature != null) {
+            section.add(signature);
+        }
+    }
+
+    // The deepest zone holding the name, for DS the one above the zone the name is the apex of
+    private Zone zoneFor(String[] name, boolean ds) {
+        Zone best = null;
+        for (Zone zone : zones) {
+            if (!Dnssec.isSubdomain(name, zone.apex) || (ds && name.length > 0 && zone.apex.length == name.length)) {
+                continue;
+            }
+            if (best == null || zone.apex.length > best.apex.length) {
+                best = zone;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isEmptyNonTerminal(Zone zone, String[] name) {
+        for (Owner owner : zone.owners.values()) {
+            if (owner.name.length > name.length && Dnssec.isSubdomain(owner.name, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The longest name above this one that exists in the zone
+    private static String[] closestEncloser(Zone zone, String[] name) {
+        for (int labels = name.length - 1; labels > zone.apex.length; labels--) {
+            String[] ancestor = Arrays.copyOfRange(name, name.length - labels, name.length);
+            if (zone.owners.containsKey(Dnssec.nameKey(ancestor)) || isEmptyNonTerminal(zone, ancestor)) {
+                return ancestor;
+            }
+        }
+        return zone.apex;
+    }
+
+    private static String[] wildcard(String[] encloser) {
+        String[] wildcard = new String[encloser.length + 1];
+        wildcard[0] = "*";
+        System.arraycopy(encloser, 0, wildcard, 1, encloser.length);
+        return wildcard;
+    }
+
+    // The NSEC owner just before the name in canonical order
+    private static Owner nsecCovering(Zone zone, String[] name) {
+        if (zone.ordered.isEmpty()) {
+            return null; // unsigned, there is no chain and negative() adds no proof
+        }
+        Owner covering = zone.ordered.get(zone.ordered.size() - 1);
+        for (Owner owner : zone.ordered) {
+            if (Dnssec.compareNames(owner.name, name) < 0) {
+                covering = owner;
+            }
+        }
+        return covering;
+    }
+
+    private static Owner nsec3Matching(Zone zone, String[] name) {
+        return zone.hashed.get(hashLabel(name));
+    }
+
+    // The NSEC3 record for the hash just before the name's, the last one if the hash is before them all
+    private static Owner nsec3Covering(Zone zone, String[] name) {
+        Map.Entry<String, Owner> before = zone.hashed.lowerEntry(hashLabel(name));
+        return before != null ? before.getValue() : zone.hashed.lastEntry().getValue();
+    }
+
+    // Base 32 hex keeps the order of the hashes, so the labels sort like the hashes
+    private static String hashLabel(String[] name) {
+        try {
+            return Dnssec.nsec3Label(Dnssec.nsec3Hash(name, NSEC3_PARAMETERS));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A zone with its apex SOA, NS and, when signed, DNSKEY
+    private Zone zone(String apexText, int algorithm, boolean nsec3) throws GeneralSecurityException {
+        String[] apex = name(apexText);
+        KeyPair keys = null;
+        RData.DNSKEY dnskey = null;
+        if (algorithm == Dnssec.ALGORITHM_ECDSAP256SHA256) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            keys = generator.generateKeyPair();
+        } else if (algorithm == Dnssec.ALGORITHM_RSASHA256) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keys = generator.generateKeyPair();
+        }
+        if (keys != null) {
+            // One key signs everything, with SEP set since the parent's DS points to it
+            dnskey = Dnssec.dnskey(RData.DNSKEY.FLAG_ZONE | RData.DNSKEY.FLAG_SEP, keys.getPublic());
+        }
+        Zone zone = new Zone(apex, algorithm, keys, dnskey, nsec3);
+        String[] server = concat("ns", apex);
+        add(zone, apex, RData.TYPE_SOA, new RData.SOA(server, concat("hostmaster", apex), 1, 7200, 3600, 1209600, 300).toBytes());
+        add(zone, apex, RData.TYPE_NS, new RData.Name(RData.TYPE_NS, server).toBytes());
+        if (dnskey != null) {
+            add(zone, apex, RData.TYPE_DNSKEY, dnskey.toBytes());
+        }
+        zones.add(zone);
+        return zone;
+    }
+
+    // The NS records of the child in the parent, and its DS if the child is signed
+    private static void delegate(Zone parent, Zone child) throws GeneralSecurityException {
+        add(parent, child.apex, RData.TYPE_NS, new RData.Name(RData.TYPE_NS, concat("ns", child.apex)).toBytes());
+        parent.owner(child.apex).delegation = true;
+        if (child.dnskey != null) {
+            byte[] digest = Dnssec.dsDigest(child.apex, child.dnskey, Dnssec.DIGEST_SHA256);
+            RData.DS ds = new RData.DS(Dnssec.keyTag(child.dnskey), child.algorithm, Dnssec.DIGEST_SHA256, digest);
+            add(parent, child.apex, RData.TYPE_DS, ds.toBytes());
+        }
+    }
+
+    private static void address(Zone zone, String name, int last) {
+        add(zone, name(name), RData.TYPE_A, new byte[]{(byte) 192, 0, 2, (byte) last});
+    }
+
+    private static void add(Zone zone, String[] name, int type, byte[] rdata) {
+        zone.owner(name).rrsets.computeIfAbsent(type, t -> new ArrayList<>())
+                .add(DNSRecord.authoritative(name, type, CLASS_IN, TTL, rdata));
+    }
+
+    // Builds the NSEC or NSEC3 chain and signs every RRset the zone is authoritative for
+    private static void sign(Zone zone, long inception, long expiration) throws GeneralSecurityException {
+        if (zone.algorithm == 0) {
+            return;
+        }
+        List<Owner> owners = new ArrayList<>(zone.owners.values());
+        owners.sort((a, b) -> Dnssec.compareNames(a.name, b.name));
+        zone.ordered.addAll(owners);
+        if (zone.nsec3) {
+            chainNsec3(zone, owners);
+        } else {
+            for (int i = 0; i < owners.size(); i++) {
+                Owner owner = owners.get(i);
+                TreeSet<Integer> types = types(owner);
+                types.add(RData.TYPE_NSEC);
+                types.add(RData.TYPE_RRSIG);
+                String[] next = owners.get((i + 1) % owners.size()).name;
+                add(zone, owner.name, RData.TYPE_NSEC, new RData.NSEC(next, typeBitmaps(types)).toBytes());
+            }
+        }
+        List<Owner> all = new ArrayList<>(owners);
+        all.addAll(zone.hashed.values());
+        for (Owner owner : all) {
+            for (Map.Entry<Integer, List<DNSRecord>> rrset : owner.rrsets.entrySet()) {
+                // At a delegation only the DS and NSEC records belong to this zone
+                if (owner.delegation && rrset.getKey() != RData.TYPE_DS && rrset.getKey() != RData.TYPE_NSEC) {
+                    continue;
+                }
+                owner.signatures.put(rrset.getKey(), signature(zone, owner.name, rrset.getKey(), rrset.getValue(), inception, expiration));
+            }
+        }
+    }
+
+    // One NSEC3 record per name and empty non-terminal, in hash order
+    private static void chainNsec3(Zone zone, List<Owner> owners) throws GeneralSecurityException {
+        Map<String, TreeSet<Integer>> typesByHash = new TreeMap<>();
+        for (Owner owner : owners) {
+            TreeSet<Integer> types = types(owner);
+            if (!owner.delegation || owner.rrsets.containsKey(RData.TYPE_DS)) {
+                types.add(RData.TYPE_RRSIG);
+            }
+            typesByHash.put(hashLabel(owner.name), types);
+            for (String[] ancestor = Dnssec.parent(owner.name); ancestor.length > zone.apex.length; ancestor = Dnssec.parent(ancestor)) {
+                typesByHash.putIfAbsent(hashLabel(ancestor), new TreeSet<>());
+            }
+        }
+        List<String> hashes = new ArrayList<>(typesByHash.keySet());
+        for (int i = 0; i < hashes.size(); i++) {
+            String[] ownerName = concat(hashes.get(i), zone.apex);
+            byte[] next = Dnssec.nsec3OwnerHash(new String[]{hashes.get((i + 1) % hashes.size())});
+            RData.NSEC3 nsec3 = new RData.NSEC3(Dnssec.NSEC3_SHA1, 0, 0, new byte[0], next, typeBitmaps(typesByHash.get(hashes.get(i))));
+            Owner owner = new Owner(ownerName);
+            owner.rrsets.put(RData.TYPE_NSEC3, new ArrayList<>(List.of(
+                    DNSRecord.authoritative(ownerName, RData.TYPE_NSEC3, CLASS_IN, TTL, nsec3.toBytes()))));
+            zone.hashed.put(hashes.get(i), owner);
+        }
+    }
+
+    private static TreeSet<Integer> types(Owner owner) {
+        return new TreeSet<>(owner.rrsets.keySet());
+    }
+
+    private static DNSRecord signature(Zone zone, String[] owner, int type, List<DNSRecord> rrset, long inception, long expiration)
+            throws GeneralSecurityException {
+        RData.RRSIG unsigned = new RData.RRSIG(type, zone.algorithm, Dnssec.labelCount(owner), TTL, expiration, inception,
+                Dnssec.keyTag(zone.dnskey), zone.apex, new byte[0]);
+        Signature signer = Signature.getInstance(zone.algorithm == Dnssec.ALGORITHM_RSASHA256 ? "SHA256withRSA" : "SHA256withECDSAinP1363Format");
+        signer.initSign(zone.keys.getPrivate());
+        signer.update(Dnssec.signedData(unsigned, owner, rrset));
+        return rrsig(owner, new RData.RRSIG(type, zone.algorithm, unsigned.getLabels(), TTL, expiration, inception,
+                unsigned.getKeyTag(), zone.apex, signer.sign()));
+    }
+
+    private static DNSRecord rrsig(String[] owner, RData.RRSIG signature) {
+        return DNSRecord.authoritative(owner, RData.TYPE_RRSIG, CLASS_IN, TTL, signature.toBytes());
+    }
+
+    // NSEC type bitmaps: per window of 256 types, its number, length and one bit per type
+    private static byte[] typeBitmaps(Collection<Integer> types) {
+        ByteBuffer out = ByteBuffer.allocate(256 * 34);
+        int window = -1;
+        byte[] bits = new byte[32];
+        int length = 0;
+        for (int type : new TreeSet<>(types)) {
+            if (type >>> 8 != window) {
+                if (window >= 0) {
+                    out.put((byte) window).put((byte) length).put(bits, 0, length);
+                }
+                window = type >>> 8;
+                Arrays.fill(bits, (byte) 0);
+                length = 0;
+            }
+            int bit = type & 0xFF;
+            bits[bit / 8] |= (byte) (0x80 >>> (bit % 8));
+            length = Math.max(length, bit / 8 + 1);
+        }
+        if (window >= 0) {
+            out.put((byte) window).put((byte) length).put(bits, 0, length);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static String[] name(String text) {
+        return text.isEmpty() ? new String[0] : text.split("\\.");
+    }
+
+    private static String[] concat(String label, String[] name) {
+        String[] result = new String[name.length + 1];
+        result[0] = label;
+        System.arraycopy(name, 0, result, 1, name.length);
+        return result;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in upstream resolver for benchmarks, so end-to-end runs need no network and give the
+ * same numbers every time. Every A query is answered with one address made from the name, any
+ * other type with an empty NOERROR answer. The answer delay, how many queries are lost and the
+ * TTL are set on the command line; delayed answers are sent from a timer, so a slow stub still
+ * answers thousands of queries at once like a real resolver across the network.
+ * Run with: java -cp out StubUpstream [port] [delayMillis] [jitterMillis] [lossPercent] [ttlSeconds]
+ * and point the server at it with -Ddns.upstream=127.0.0.1:port
+ */
+public class StubUpstream {
+    private static final int TYPE_A = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final DatagramChannel channel;
+    private final int delayMillis;
+    private final int jitterMillis;
+    private final double lossPercent;
+    private final int ttl;
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "stub-upstream-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param port         The port to answer on (0 picks a free one).
+     * @param delayMillis  How long each answer takes.
+     * @param jitterMillis Up to this much is added to the delay at random.
+     * @param lossPercent  Share of queries never answered.
+     * @param ttl          TTL of the answers.
+     * @throws IOException If the port cannot be bound.
+     */
+    public StubUpstream(int port, int delayMillis, int jitterMillis, double lossPercent, int ttl) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        this.channel.bind(new InetSocketAddress("127.0.0.1", port));
+        this.delayMillis = delayMillis;
+        this.jitterMillis = jitterMillis;
+        this.lossPercent = lossPercent;
+        this.ttl = ttl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5300;
+        int delay = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int jitter = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        double loss = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        int ttl = args.length > 4 ? Integer.parseInt(args[4]) : 300;
+        StubUpstream stub = new StubUpstream(port, delay, jitter, loss, ttl);
+        System.out.printf("Stub upstream on %s: %d ms (+%d ms jitter), %.1f%% loss, TTL %d%n",
+                stub.getAddress(), delay, jitter, loss, ttl);
+        stub.run();
+    }
+
+    /**
+     * Starts answering on a daemon thread, for benchmarks that run the stub in process.
+     */
+    public StubUpstream start() {
+        Thread thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "stub-upstream");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Answers queries until the socket is closed.
+     */
+    public void run() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Edns.MAX_UDP_PAYLOAD);
+        while (channel.isOpen()) {
+            buffer.clear();
+            SocketAddress client = channel.receive(buffer);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (lossPercent > 0 && random.nextDouble() * 100 < lossPercent) {
+                continue;
+            }
+            byte[] response = answer(buffer.array(), buffer.position());
+            if (response == null) {
+                continue;
+            }
+            int delay = delayMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+            if (delay <= 0) {
+                send(response, client);
+            } else {
+                timer.schedule(() -> send(response, client), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void send(byte[] response, SocketAddress client) {
+        try {
+            channel.send(ByteBuffer.wrap(response), client);
+        } catch (IOException e) {
+            // The benchmark counts it as lost
+        }
+    }
+
+    // The request's header and question with one address appended for A queries, null if malformed
+    private byte[] answer(byte[] request, int length) {
+        int position = HEADER_SIZE;
+        while (position < length && request[position] != 0) {
+            if ((request[position] & 0xC0) != 0) {
+                return null;
+            }
+            position += 1 + (request[position] & 0xFF);
+        }
+        int questionEnd = position + 5;
+        if (length < HEADER_SIZE || questionEnd > length) {
+            return null;
+        }
+        int type = ((request[position + 1] & 0xFF) << 8) | (request[position + 2] & 0xFF);
+        boolean address = type == TYPE_A;
+        byte[] response = Arrays.copyOf(request, questionEnd + (address ? 16 : 0));
+        response[2] = (byte) (0x80 | (request[2] & 0x01)); // QR, RD copied
+        response[3] = (byte) 0x80; // RA, NOERROR
+        Arrays.fill(response, 6, HEADER_SIZE, (byte) 0);
+        if (address) {
+            response[7] = 1;
+            int p = questionEnd;
+            response[p++] = (byte) 0xC0;
+            response[p++] = HEADER_SIZE;
+            response[p++] = 0;
+            response[p++] = TYPE_A;
+            response[p++] = 0;
+            response[p++] = 1;
+            response[p++] = (byte) (ttl >>> 24);
+            response[p++] = (byte) (ttl >>> 16);
+            response[p++] = (byte) (ttl >>> 8);
+            response[p++] = (byte) ttl;
+            response[p++] = 0;
+            response[p++] = 4;
+            // 10.x.y.z from the name, so different names get different addresses
+            int hash = Arrays.hashCode(Arrays.copyOfRange(request, HEADER_SIZE, position));
+            response[p++] = 10;
+            response[p++] = (byte) (hash >>> 16);
+            response[p++] = (byte) (hash >>> 8);
+            response[p] = (byte) hash;
+        }
+        return response;
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the UDP serving modes of DNSserver under cache misses and cache hits.
+ * Every mode answers from an in-process upstream that takes a fixed time per query, like a real
+ * resolver across the network. A burst of distinct names (all misses) shows how many misses each
+ * mode can have outstanding at once; sending the same names again (all hits) shows the packet rate.
+ * Queries are sent at a fixed rate whatever the answers do, like real clients; a mode that cannot
+ * keep up loses queries in its socket buffer rather than slowing the sender down, and is still
+ * working through the misses it kept while the hits arrive.
+ * Run with: java -cp out UdpModeBenchmark [queries] [upstreamDelayMillis] [queriesPerSecond]
+ */
+public class UdpModeBenchmark {
+    private static final int BASE_PORT = 18053;
+    private static final long PHASE_LIMIT_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    public static void main(String[] args) throws Exception {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int delayMillis = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        PrintStream report = System.out;
+        // The handler logs every query, which would measure the console instead
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        report.printf("%d queries at %d/s, upstream answers in %d ms%n", queries, rate, delayMillis);
+        report.printf("%-12s %-6s %10s %10s %12s%n", "mode", "phase", "answered", "ms", "queries/s");
+        String[] modes = {"single", "reuseport", "virtual", "batch"};
+        for (int i = 0; i < modes.length; i++) {
+            int port = BASE_PORT + i;
+            boolean virtual = modes[i].equals("virtual");
+            QueryHandler handler = new QueryHandler(new ServerConfig(), new ZoneStore(null), new DNSCache(),
+                    new SlowUpstream(delayMillis), virtual ? Executors.newVirtualThreadPerTaskExecutor() : platformPool());
+            start(modes[i], port, handler);
+            Thread.sleep(200);
+            for (String phase : new String[]{"miss", "hit"}) {
+                long[] result = burst(port, queries, rate);
+                report.printf("%-12s %-6s %10d %10.0f %12.0f%n", modes[i], phase, result[0], result[1] / 1e6,
+                        result[0] * 1e9 / result[1]);
+            }
+        }
+        System.exit(0);
+    }
+
+    // The same upstream executor DNSserver uses outside virtual mode
+    private static Executor platformPool() {
+        return new ThreadPoolExecutor(16, 16, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(4096), runnable -> {
+            Thread thread = new Thread(runnable, "dns-upstream");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void start(String mode, int port, QueryHandler handler) throws IOException {
+        if (mode.equals("reuseport")) {
+            new ReusePortUdpServer(port, Runtime.getRuntime().availableProcessors(), handler).start();
+            return;
+        }
+        if (mode.equals("batch")) {
+            new BatchUdpServer(port, Runtime.getRuntime().availableProcessors(), handler, 64, 1024).start();
+            return;
+        }
+        VirtualThreadUdpServer virtualServer = mode.equals("virtual") ? new VirtualThreadUdpServer(port, handler, 50000) : null;
+        Thread server = new Thread(() -> {
+            try {
+                if (virtualServer != null) {
+                    virtualServer.run();
+                } else {
+                    DNSserver.serveSingleSocket(port, handler);
+                }
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, "bench-" + mode);
+        server.setDaemon(true);
+        server.start();
+    }
+
+    // Sends one query per name at a fixed rate and counts answers, returns {answered, nanos}
+    private static long[] burst(int port, int queries, int rate) throws Exception {
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", port);
+        AtomicInteger answered = new AtomicInteger();
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        Thread receiver = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(Edns.MAX_UDP_PAYLOAD);
+            try {
+                while (answered.get() < queries) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    answered.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Channel closed at the end of the phase
+            }
+        });
+        receiver.start();
+        long start = System.nanoTime();
+        long elapsed;
+        try {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            for (int i = 0; i < queries; i++) {
+                while (System.nanoTime() - start < i * interval) {
+                    Thread.onSpinWait();
+                }
+                DNSQuestion question = new DNSQuestion(new String[]{"q" + i, "bench", "test"}, 1, 1);
+                channel.send(ByteBuffer.wrap(DNSMessage.buildQuery(question, i & 0xFFFF).toBytes()), server);
+            }
+            while (answered.get() < queries && System.nanoTime() - start < PHASE_LIMIT_NANOS) {
+                Thread.sleep(1);
+            }
+            elapsed = System.nanoTime() - start;
+        } finally {
+            // Also unblocks the receiver if answers are missing
+            channel.close();
+        }
+        receiver.join();
+        return new long[]{answered.get(), elapsed};
+    }
+
+    // Answers every question with one A record after a fixed delay
+    private static final class SlowUpstream implements Upstream {
+        private final int delayMillis;
+
+        SlowUpstream(int delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public byte[] exchange(byte[] query, int length) throws IOException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            DNSMessage request = DNSMessage.decodeMessage(Arrays.copyOf(query, length));
+            ArrayList<DNSRecord> answers = new ArrayList<>();
+            answers.add(DNSRecord.authoritative(request.getQuestions().get(0).getQname(), 1, 1, 300, new byte[]{10, 0, 0, 1}));
+            return DNSMessage.buildResponse(request, answers).toBytes();
+        }
+    }
+}
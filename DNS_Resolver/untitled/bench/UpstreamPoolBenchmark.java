@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks UpstreamPool's server selection and hedging against several StubUpstreams with injected
+ * delays and loss, offline.
+ *
+ * Selection: three stubs answering in 40, 20 and 2 ms, listed slowest first. The pool starts on
+ * the first one, tries the others as their RTTs decay, and should then send nearly every query
+ * to the 2 ms one.
+ * Hedging: a 2 ms stub that loses a fifth of its queries next to a 10 ms one that loses none.
+ * With hedging on, a lost query is sent again to the second stub after the hedge delay, so even
+ * the slowest answers come back in a few ms. With hedging off the same queries wait for the
+ * whole timeout first. Both pools are warmed up before they are measured.
+ * Run with: java -cp out UpstreamPoolBenchmark
+ */
+public class UpstreamPoolBenchmark {
+    private static final int TYPE_A = 1;
+    private static final int TIMEOUT_MILLIS = 250;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        selection();
+        hedging();
+        if (failures > 0) {
+            System.out.println(failures + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void selection() throws Exception {
+        List<StubUpstream> stubs = List.of(new StubUpstream(0, 40, 0, 0, 300).start(),
+                new StubUpstream(0, 20, 0, 0, 300).start(), new StubUpstream(0, 2, 0, 0, 300).start());
+        UpstreamPool pool = new UpstreamPool(addresses(stubs), TIMEOUT_MILLIS, 0.95, 10, 1);
+        // Long enough for every server to be tried and measured
+        send(pool, 100, "warmup");
+        long[] before = queryCounts(pool);
+        int rounds = 200;
+        send(pool, rounds, "select");
+        long[] after = queryCounts(pool);
+        System.out.println("Selection, servers at 40, 20 and 2 ms listed in that order:");
+        for (int i = 0; i < stubs.size(); i++) {
+            UpstreamPool.Server server = pool.getServers().get(i);
+            System.out.printf("  %-22s srtt %6.1f ms  %3d of the last %d queries%n",
+                    server.getAddress(), server.getSrttMillis(), after[i] - before[i], rounds);
+        }
+        check("fastest server takes most queries", after[2] - before[2] >= rounds * 8 / 10);
+        check("slowest server is only probed now and then", after[0] - before[0] <= rounds / 10);
+        for (StubUpstream stub : stubs) {
+            stub.close();
+        }
+    }
+
+    private static void hedging() throws Exception {
+        List<StubUpstream> stubs = List.of(new StubUpstream(0, 2, 0, 20, 300).start(), new StubUpstream(0, 10, 0, 0, 300).start());
+        int rounds = 200;
+        // Warmed up first, until enough RTTs are in the hedge delay is a fixed 100 ms
+        UpstreamPool hedged = new UpstreamPool(addresses(stubs), TIMEOUT_MILLIS, 0.95, 10, 1);
+        send(hedged, 50, "hedgewarmup");
+        long hedgesBefore = hedged.getHedgeCount();
+        long[] withHedge = send(hedged, rounds, "hedge");
+        UpstreamPool unhedged = new UpstreamPool(addresses(stubs), TIMEOUT_MILLIS, 0, 10, 1);
+        send(unhedged, 50, "nohedgewarmup");
+        long[] withoutHedge = send(unhedged, rounds, "nohedge");
+        System.out.printf("Hedging, 2 ms server losing 20%% next to a 10 ms one, %d ms timeout:%n", TIMEOUT_MILLIS);
+        report("hedging on", withHedge);
+        report("hedging off", withoutHedge);
+        System.out.printf("  %d of %d queries hedged, hedge delay %.1f ms%n", hedged.getHedgeCount() - hedgesBefore, rounds,
+                hedged.getHedgeDelayMillis());
+        check("hedges fire for lost queries", hedged.getHedgeCount() > hedgesBefore);
+        check("hedged p99 well under the timeout", percentile(withHedge, 99) < TIMEOUT_MILLIS / 5.0);
+        check("unhedged p99 waits for the timeout", percentile(withoutHedge, 99) >= TIMEOUT_MILLIS);
+        for (StubUpstream stub : stubs) {
+            stub.close();
+        }
+    }
+
+    // Sends queries one after another, returns each one's latency in nanoseconds, sorted
+    private static long[] send(UpstreamPool pool, int count, String label) throws Exception {
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            DNSQuestion question = new DNSQuestion(new String[]{label + i, "bench", "test"}, TYPE_A, 1);
+            byte[] query = DNSMessage.buildQuery(question, i).toBytes();
+            long start = System.nanoTime();
+            try {
+                pool.exchange(query, query.length);
+            } catch (IOException e) {
+                // Counted as the time it took to give up
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static List<InetSocketAddress> addresses(List<StubUpstream> stubs) throws Exception {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (StubUpstream stub : stubs) {
+            addresses.add(stub.getAddress());
+        }
+        return addresses;
+    }
+
+    private static long[] queryCounts(UpstreamPool pool) {
+        long[] counts = new long[pool.getServers().size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = pool.getServers().get(i).getQueries();
+        }
+        return counts;
+    }
+
+    private static void report(String what, long[] sorted) {
+        System.out.printf("  %-12s p50 %6.1f ms  p99 %6.1f ms  max %6.1f ms%n", what,
+                percentile(sorted, 50), percentile(sorted, 99), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static void check(String what, boolean pass) {
+        if (!pass) {
+            failures++;
+        }
+        System.out.printf("%s  %s%n", pass ? "PASS" : "FAIL", what);
+    }
+}
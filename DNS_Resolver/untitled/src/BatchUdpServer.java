@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDP on non-blocking sockets, answering datagrams in batches.
+ *
+ * Each worker waits on a Selector, and once woken reads every datagram waiting on its socket (up
+ * to a batch size) before answering any of them, then sends all the replies together. Under a
+ * burst one wakeup is shared by the whole batch instead of every packet paying for its own, and
+ * the replies go out back to back while the socket is hot. When the socket's send buffer is full
+ * the rest of the replies wait for the Selector to say there is room, without blocking reads.
+ *
+ * Datagrams are received into and sent from direct buffers taken from a BufferPool shared by all
+ * workers, so the JDK copies nothing into temporary buffers of its own and receiving and sending
+ * allocate nothing per packet; when every buffer is waiting to be sent the worker stops reading
+ * until some are sent. Answering is not quite free: a cache hit allocates about 32 bytes, mostly
+ * the boxed key of the shared cache lookup (QueryHandler.handle in CodecBenchmark). With more than one listener the sockets share the port with SO_REUSEPORT like
+ * ReusePortUdpServer. Cache misses are answered on the worker like in reuseport mode, so a batch
+ * waits for its slowest miss; this mode is for the packet rate of cache hits.
+ */
+public class BatchUdpServer {
+    // Room for bursts on each socket (the kernel caps it at net.core.rmem_max)
+    private static final int RECEIVE_BUFFER_BYTES = 4 << 20;
+
+    private final QueryHandler handler;
+    private final int batchSize;
+    private final BufferPool<Datagram> pool;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Selector> selectors = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder poolExhausted = new LongAdder();
+
+    // One pooled buffer: the request is received into it, then the reply is written over it
+    private static final class Datagram {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Edns.MAX_UDP_PAYLOAD);
+        SocketAddress client;
+    }
+
+    /**
+     * Opens and binds the sockets and fills the buffer pool.
+     *
+     * @param port          The port to listen on.
+     * @param listeners     Number of sockets, each with its own worker thread.
+     * @param handler       Answers the queries.
+     * @param batchSize     Most datagrams read per wakeup.
+     * @param pooledBuffers Direct buffers shared by the workers, Edns.MAX_UDP_PAYLOAD bytes each.
+     * @throws IOException If the port cannot be bound, or SO_REUSEPORT is needed and not supported.
+     */
+    public BatchUdpServer(int port, int listeners, QueryHandler handler, int batchSize, int pooledBuffers) throws IOException {
+        this.handler = handler;
+        this.batchSize = Math.max(1, batchSize);
+        this.pool = new BufferPool<>(pooledBuffers, Datagram::new, pooledBuffers);
+        try {
+            for (int i = 0; i < listeners; i++) {
+                DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channels.add(channel);
+                if (listeners > 1) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new IOException("SO_REUSEPORT is not supported on this platform, use one listener");
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+                channel.bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                Selector selector = Selector.open();
+                selectors.add(selector);
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            closeAll(channels, selectors);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts one worker thread per socket.
+     */
+    public void start() {
+        for (int i = 0; i < channels.size(); i++) {
+            DatagramChannel channel = channels.get(i);
+            Selector selector = selectors.get(i);
+            Thread worker = new Thread(() -> serve(channel, selector), "dns-udp-batch-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Waits until every worker has stopped.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Wakes up, reads a batch, answers it and sends the replies, on one socket
+    private void serve(DatagramChannel channel, Selector selector) {
+        byte[] request = new byte[Edns.MAX_UDP_PAYLOAD];
+        byte[] out = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        Datagram[] batch = new Datagram[batchSize];
+        // Replies the socket had no room for yet, in order
+        ArrayDeque<Datagram> outbox = new ArrayDeque<>(pool.capacity());
+        SelectionKey key = channel.keyFor(selector);
+        while (channel.isOpen()) {
+            try {
+                key.interestOps(outbox.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.select();
+                selector.selectedKeys().clear();
+                wakeups.increment();
+
+                int received = 0;
+                while (received < batchSize) {
+                    Datagram datagram = pool.take();
+                    if (datagram == null) {
+                        // Every buffer is waiting to be sent, read more once some are
+                        poolExhausted.increment();
+                        break;
+                    }
+                    datagram.buffer.clear();
+                    batch[received] = datagram;
+                    datagram.client = channel.receive(datagram.buffer);
+                    if (datagram.client == null) {
+                        batch[received] = null;
+                        pool.give(datagram);
+                        break;
+                    }
+                    received++;
+                }
+                datagrams.add(received);
+
+                for (int i = 0; i < received; i++) {
+                    answer(batch[i], request, out, outbox);
+                    batch[i] = null;
+                }
+                flush(channel, outbox);
+                if (received == 0 && outbox.isEmpty() && pool.available() == 0) {
+                    // Readable, but the other workers hold every buffer for a moment
+                    Thread.yield();
+                }
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("UDP receive failed: " + e);
+                // The rest of the batch is dropped, its buffers go back
+                for (int i = 0; i < batch.length; i++) {
+                    if (batch[i] != null) {
+                        pool.give(batch[i]);
+                        batch[i] = null;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Answers one datagram, putting the reply in its buffer and the buffer in the outbox
+    private void answer(Datagram datagram, byte[] request, byte[] out, ArrayDeque<Datagram> outbox) throws InterruptedException {
+        ByteBuffer buffer = datagram.buffer.flip();
+        int length = buffer.remaining();
+        buffer.get(request, 0, length);
+        try {
+            int responseLength = handler.handleUdp(request, length, out, ((InetSocketAddress) datagram.client).getAddress());
+            if (responseLength < 0) {
+                // Counted by the rate limiter and dns_dropped_total, a line per packet would turn a flood into log I/O
+                pool.give(datagram);
+                return;
+            }
+            if (responseLength > buffer.capacity()) {
+                // UDP answers are truncated to the payload size, so this would be a bug
+                throw new IOException(responseLength + " byte UDP answer");
+            }
+            buffer.clear();
+            buffer.put(out, 0, responseLength).flip();
+            outbox.add(datagram);
+        } catch (IOException e) {
+            // One bad answer should not take the worker down
+            System.out.println("Failed to answer " + datagram.client + ": " + e);
+            pool.give(datagram);
+        }
+    }
+
+    // Sends queued replies until the socket's send buffer is full, returning sent buffers to the pool
+    private void flush(DatagramChannel channel, ArrayDeque<Datagram> outbox) throws ClosedChannelException {
+        Datagram datagram;
+        while ((datagram = outbox.peek()) != null) {
+            try {
+                if (channel.send(datagram.buffer, datagram.client) == 0) {
+                    return; // OP_WRITE says when there is room again
+                }
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                System.out.println("Failed to send to " + datagram.client + ": " + e);
+            }
+            outbox.poll();
+            pool.give(datagram);
+        }
+    }
+
+    /**
+     * Closes every socket and selector, which stops the workers.
+     */
+    public void close() {
+        closeAll(channels, selectors);
+    }
+
+    private static void closeAll(List<DatagramChannel> channels, List<Selector> selectors) {
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        for (Selector selector : selectors) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public int getListenerCount() {
+        return channels.size();
+    }
+
+    /**
+     * @return How many times the workers woke up to read, together.
+     */
+    public long getWakeupCount() {
+        return wakeups.sum();
+    }
+
+    /**
+     * @return Datagrams read, getDatagramCount() / getWakeupCount() is the average batch.
+     */
+    public long getDatagramCount() {
+        return datagrams.sum();
+    }
+
+    /**
+     * @return Times a worker stopped reading because every pooled buffer was in use.
+     */
+    public long getPoolExhaustedCount() {
+        return poolExhausted.sum();
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * An immutable set of blocked domains. A name is blocked if it or any of its parents is on the
+ * list, so blocking "ads.example.com" also blocks "x.ads.example.com".
+ *
+ * Names are kept in a DomainNameTable, which is a trie of labels read from the right, plus one
+ * bit per trie node marking the names that were listed. Most queries are for names that are not
+ * blocked, so a Bloom filter over the hashes of the listed names answers those first. The hash of
+ * every suffix of the query name comes straight from the request bytes, and only a suffix the
+ * Bloom filter cannot rule out is looked up in the trie. With 10 bits per name the filter
+ * lets about 1% of clean names through to the trie. Lookups never lock and never allocate.
+ */
+public final class Blocklist {
+    public static final Blocklist EMPTY = new Blocklist(new DomainNameTable(1), new long[1], new int[0], 0);
+
+    private static final int BLOOM_BITS_PER_NAME = 10;
+    private static final int BLOOM_PROBES = 7;
+    // Names hosts files map to an address for the machine itself, not things to block
+    private static final Set<String> HOSTS_FILE_NAMES = Set.of("localhost", "localhost.localdomain", "local",
+            "broadcasthost", "ip6-localhost", "ip6-loopback", "0.0.0.0");
+
+    private final DomainNameTable names;
+    private final long[] listed; // one bit per trie node, set for names on the list
+    private final long[] bloom;
+    private final int bloomMask;
+    private final int size;
+
+    private Blocklist(DomainNameTable names, long[] listed, int[] hashes, int size) {
+        this.names = names;
+        this.listed = listed;
+        this.size = size;
+        int bits = Integer.highestOneBit(Math.max(64, size * BLOOM_BITS_PER_NAME) - 1) << 1;
+        this.bloom = new long[bits >>> 6];
+        this.bloomMask = bits - 1;
+        for (int i = 0; i < size; i++) {
+            int hash = hashes[i];
+            for (int probe = 0; probe < BLOOM_PROBES; probe++) {
+                int bit = bloomBit(hash, probe);
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Reads a blocklist one line at a time, so lists of millions of names never need to be held
+     * as text. Each line is a domain ("ads.example.com"), a hosts file entry
+     * ("0.0.0.0 ads.example.com") or an adblock rule ("||ads.example.com^"). Blank lines,
+     * comments (#, !) and lines that are not a domain are skipped.
+     *
+     * @param file     The list.
+     * @param maxNames Most names to load, the rest are skipped.
+     * @return The list.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Blocklist load(Path file, int maxNames) throws IOException {
+        // The trie never needs more nodes than names times labels, it usually shares most of them
+        DomainNameTable names = new DomainNameTable((int) Math.min(Integer.MAX_VALUE - 8, Math.max(1024L, maxNames * 4L)));
+        long[] listed = new long[1024];
+        int[] hashes = new int[1024];
+        int size = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null && size < maxNames) {
+                String[] labels = parseLine(line);
+                if (labels == null) {
+                    continue;
+                }
+                int node = names.intern(labels);
+                if (node == DomainNameTable.NOT_FOUND) {
+                    break;
+                }
+                if (node >= listed.length * 64) {
+                    listed = Arrays.copyOf(listed, Math.max(listed.length * 2, (node >>> 6) + 1));
+                }
+                if ((listed[node >>> 6] & (1L << node)) != 0) {
+                    continue; // listed twice
+                }
+                listed[node >>> 6] |= 1L << node;
+                if (size == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, size * 2);
+                }
+                hashes[size++] = names.nameHash(node);
+            }
+        }
+        return new Blocklist(names, listed, hashes, size);
+    }
+
+    // The domain on a list line, or null if there is none
+    static String[] parseLine(String line) {
+        String text = line.trim();
+        if (text.isEmpty() || text.charAt(0) == '#' || text.charAt(0) == '!') {
+            return null;
+        }
+        int comment = text.indexOf('#');
+        if (comment > 0) {
+            text = text.substring(0, comment).trim();
+        }
+        String[] fields = text.split("\\s+");
+        // Hosts files put the address first
+        String domain = fields.length > 1 ? fields[1] : fields[0];
+        if (domain.startsWith("||")) {
+            domain = domain.substring(2);
+        }
+        if (domain.endsWith("^")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (domain.isEmpty() || domain.length() > 253 || HOSTS_FILE_NAMES.contains(domain.toLowerCase())) {
+            return null;
+        }
+        String[] labels = domain.split("\\.", -1);
+        for (String label : labels) {
+            if (label.isEmpty() || label.length() > 63) {
+                return null;
+            }
+            for (int i = 0; i < label.length(); i++) {
+                char c = label.charAt(i);
+                if (!(Character.isLetterOrDigit(c) && c < 128) && c != '-' && c != '_') {
+                    return null;
+                }
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Checks a name inside a message against the list. Allocates nothing.
+     *
+     * @param view       The message.
+     * @param nameOffset The offset of the name in the message.
+     * @param scratch    At least 128 ints of scratch space for label positions.
+     * @return true if the name or one of its parents is on the list.
+     */
+    public boolean contains(DNSMessageView view, int nameOffset, int[] scratch) {
+        if (size == 0) {
+            return false;
+        }
+        int count = view.collectLabels(nameOffset, scratch);
+        if (count < 0) {
+            return false;
+        }
+        // The same hash DomainNameTable keeps for each node, built up from the root
+        ByteBuffer buffer = view.getBuffer();
+        int hash = 1;
+        boolean candidate = false;
+        for (int i = count - 1; i >= 0 && !candidate; i--) {
+            hash = 31 * hash + labelHash(buffer, scratch[i]);
+            candidate = mightContain(hash);
+        }
+        if (!candidate) {
+            return false;
+        }
+        // Every parent of the longest suffix the trie has is a suffix of the name as well
+        for (int node = names.lookupClosest(view, nameOffset, scratch); node > DomainNameTable.ROOT; node = names.parent(node)) {
+            if ((node >>> 6) < listed.length && (listed[node >>> 6] & (1L << node)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(int hash) {
+        for (int probe = 0; probe < BLOOM_PROBES; probe++) {
+            int bit = bloomBit(hash, probe);
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Double hashing: two values mixed from the name hash give every probe position
+    private int bloomBit(int hash, int probe) {
+        long mixed = hash * 0x9E3779B97F4A7C15L;
+        mixed ^= mixed >>> 29;
+        int first = (int) mixed;
+        int second = (int) (mixed >>> 32) | 1;
+        return (first + probe * second) & bloomMask;
+    }
+
+    // Same label hash as DomainNameTable: the length, then the lower-case bytes
+    private static int labelHash(ByteBuffer buffer, int position) {
+        int length = buffer.get(position) & 0xFF;
+        int hash = length;
+        for (int k = 1; k <= length; k++) {
+            int b = buffer.get(position + k) & 0xFF;
+            hash = 31 * hash + (b >= 'A' && b <= 'Z' ? b + 32 : b);
+        }
+        return hash;
+    }
+
+    /**
+     * @return The number of names on the list.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Blocklist{" +
+                "names=" + size +
+                ", trieNodes=" + names.size() +
+                ", bloomBytes=" + bloom.length * 8L +
+                '}';
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Blocks queries for names on a blocklist file, answering them with NXDOMAIN or, in sinkhole
+ * mode, with 0.0.0.0 / :: so the client connects nowhere.
+ *
+ * The list in use is one immutable Blocklist behind an AtomicReference, like the zones in
+ * ZoneStore: a reload builds the new list off to the side and swaps it in at once, so queries
+ * never wait for a load and never see half a list. If a reload fails the previous list stays.
+ */
+public class BlocklistFilter implements QueryFilter {
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    // Label positions of the question name, per thread
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[128]);
+
+    private final Path file;
+    private final int maxNames;
+    private final boolean sinkhole;
+    private final int sinkholeTtl;
+    private final AtomicReference<Blocklist> current = new AtomicReference<>(Blocklist.EMPTY);
+    private final LongAdder blocked = new LongAdder();
+    private volatile long loadedFingerprint;
+
+    /**
+     * @param file        The blocklist file.
+     * @param maxNames    Most names to load from it.
+     * @param sinkhole    true to answer A and AAAA queries with an unroutable address, false for NXDOMAIN.
+     * @param sinkholeTtl TTL of sinkhole answers.
+     */
+    public BlocklistFilter(Path file, int maxNames, boolean sinkhole, int sinkholeTtl) {
+        this.file = file;
+        this.maxNames = maxNames;
+        this.sinkhole = sinkhole;
+        this.sinkholeTtl = sinkholeTtl;
+    }
+
+    /**
+     * Loads the file and swaps the new list in.
+     *
+     * @throws IOException If the file cannot be read, the previous list stays in use.
+     */
+    public void reload() throws IOException {
+        long fingerprint = fingerprint();
+        long start = System.nanoTime();
+        Blocklist loaded = Blocklist.load(file, maxNames);
+        current.set(loaded);
+        loadedFingerprint = fingerprint;
+        System.out.println("Loaded " + loaded + " from " + file + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Checks the file every few seconds and reloads it when it changed.
+     */
+    public void watch(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                    if (fingerprint() != loadedFingerprint) {
+                        reload();
+                    }
+                } catch (IOException e) {
+                    // Keep blocking with the list we have, and try again after the next change
+                    loadedFingerprint = safeFingerprint();
+                    System.out.println("Blocklist reload failed, keeping the previous list: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-blocklist-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private long fingerprint() throws IOException {
+        return Files.getLastModifiedTime(file).toMillis() * 31 + Files.size(file);
+    }
+
+    private long safeFingerprint() {
+        try {
+            return fingerprint();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int filter(DNSMessageView request, byte[] raw, int length, byte[] out) {
+        if (!current.get().contains(request, request.questionNameOffset(0), SCRATCH.get())) {
+            return -1;
+        }
+        blocked.increment();
+        int questionEnd = request.questionEnd(0);
+        int type = request.questionType(0);
+        boolean address = (type == TYPE_A || type == TYPE_AAAA) && request.questionClass(0) == CLASS_IN;
+        if (!sinkhole) {
+            return QueryHandler.emptyResponse(raw, questionEnd, out, RCODE_NXDOMAIN);
+        }
+        int end = QueryHandler.emptyResponse(raw, questionEnd, out, 0);
+        if (!address) {
+            // The name exists as far as the client knows, it just has no records of this type
+            return end;
+        }
+        int rdLength = type == TYPE_A ? 4 : 16;
+        out[7] = 1; // ANCOUNT
+        out[end++] = (byte) 0xC0; // pointer to the question name
+        out[end++] = 12;
+        out[end++] = 0;
+        out[end++] = (byte) type;
+        out[end++] = 0;
+        out[end++] = CLASS_IN;
+        out[end++] = (byte) (sinkholeTtl >>> 24);
+        out[end++] = (byte) (sinkholeTtl >>> 16);
+        out[end++] = (byte) (sinkholeTtl >>> 8);
+        out[end++] = (byte) sinkholeTtl;
+        out[end++] = 0;
+        out[end++] = (byte) rdLength;
+        // 0.0.0.0 or ::
+        for (int i = 0; i < rdLength; i++) {
+            out[end++] = 0;
+        }
+        return end;
+    }
+
+    /**
+     * @return The list in use.
+     */
+    public Blocklist getBlocklist() {
+        return current.get();
+    }
+
+    /**
+     * @return The number of queries blocked.
+     */
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * A fixed number of reusable buffers (or any other objects) shared by many threads.
+ *
+ * It is a bounded lock-free queue like the QueryLog ring: a compare-and-set claims the next
+ * slot to put into or take from, and a sequence number per slot says whether it holds a buffer
+ * or is free, so taking and giving back never lock and never allocate. When the pool is empty
+ * take() returns null and the caller decides whether to make a new buffer or wait; a buffer given
+ * back to a full pool is simply dropped for the garbage collector.
+ */
+public final class BufferPool<T> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to take from
+    private final AtomicLong tail = new AtomicLong(); // next slot to give back into
+
+    /**
+     * @param capacity Buffers the pool holds, rounded up to a power of two.
+     * @param factory  Makes the buffers the pool starts with.
+     * @param filled   How many of them to make up front (at most the capacity).
+     */
+    public BufferPool(int capacity, Supplier<T> factory, int filled) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        for (int i = 0; i < Math.min(filled, size); i++) {
+            give(factory.get());
+        }
+    }
+
+    /**
+     * @return A pooled buffer, or null if all of them are in use.
+     */
+    @SuppressWarnings("unchecked")
+    public T take() {
+        long position = head.get();
+        while (true) {
+            int slot = (int) (position & mask);
+            long difference = sequences.getAcquire(slot) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T item = (T) items[slot];
+                    items[slot] = null;
+                    // Free for give() on the next lap
+                    sequences.setRelease(slot, position + mask + 1);
+                    return item;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null; // nothing given back into this slot yet
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Puts a buffer back.
+     *
+     * @return false if the pool was full and the buffer was dropped.
+     */
+    public boolean give(T item) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) (position & mask);
+            long difference = sequences.getAcquire(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items[slot] = item;
+                    // Publishes the buffer to take()
+                    sequences.setRelease(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // still taken from the previous lap, so the pool is full
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return About how many buffers are in the pool right now.
+     */
+    public int available() {
+        return (int) Math.max(0, Math.min(items.length, tail.get() - head.get()));
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * A small cache in front of the shared DNSCache, owned by one thread.
+ * It maps the raw question bytes of a request (name, type and class) straight to the shared cache
+ * entry, so a repeated question costs one hash over a few bytes and an array read: no name table
+ * lookup and no shared map, nothing another core writes to. Slots are direct mapped, a new
+ * question simply replaces whatever was in its slot.
+ *
+ * An entry is only trusted for a short time before the shared cache is asked again, so an answer
+ * the shared cache replaced (a refresh, a new upstream answer) is picked up quickly.
+ *
+ * Not thread-safe: every thread has its own (see QueryHandler).
+ */
+public final class CacheFront {
+    // How long a slot is used before the shared cache is asked again
+    static final long RECHECK_NANOS = 1_000_000_000L;
+    // Longest question section remembered (a full-length name, type and class)
+    private static final int MAX_KEY_LENGTH = 255 + 4;
+
+    private final byte[][] keys;
+    private final int[] keyLengths;
+    private final DNSCacheEntry[] entries;
+    private final long[] validUntilNanos;
+    private final int mask;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param size Number of slots, rounded up to a power of two.
+     */
+    public CacheFront(int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        keys = new byte[capacity][MAX_KEY_LENGTH];
+        keyLengths = new int[capacity];
+        entries = new DNSCacheEntry[capacity];
+        validUntilNanos = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Finds the entry remembered for a question.
+     *
+     * @param request  The raw request.
+     * @param from     Offset of the question name in request.
+     * @param to       Offset just past the question's class.
+     * @param nowNanos The current System.nanoTime().
+     * @return The entry, or null if it is not here or must be checked with the shared cache.
+     */
+    public DNSCacheEntry get(byte[] request, int from, int to, long nowNanos) {
+        int length = to - from;
+        int slot = hash(request, from, to) & mask;
+        DNSCacheEntry entry = entries[slot];
+        if (entry == null || keyLengths[slot] != length || nowNanos - validUntilNanos[slot] > 0
+                || !sameKey(keys[slot], request, from, length)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Remembers the shared cache entry for a question.
+     *
+     * @param request  The raw request.
+     * @param from     Offset of the question name in request.
+     * @param to       Offset just past the question's class.
+     * @param entry    The entry the shared cache returned.
+     * @param nowNanos The current System.nanoTime().
+     */
+    public void put(byte[] request, int from, int to, DNSCacheEntry entry, long nowNanos) {
+        int length = to - from;
+        if (length > MAX_KEY_LENGTH) {
+            return;
+        }
+        int slot = hash(request, from, to) & mask;
+        byte[] key = keys[slot];
+        for (int i = 0; i < length; i++) {
+            key[i] = fold(request[from + i], i < length - 4);
+        }
+        keyLengths[slot] = length;
+        entries[slot] = entry;
+        // Never past the entry's own expiry
+        long until = nowNanos + RECHECK_NANOS;
+        validUntilNanos[slot] = entry.getExpiresAtNanos() - until < 0 ? entry.getExpiresAtNanos() : until;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    // Names are compared without regard to case, so "WWW.example.com" shares the slot of "www.example.com".
+    // The last 4 bytes are the type and class, which are numbers and are never folded
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + fold(bytes[i], i < to - 4);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameKey(byte[] key, byte[] request, int from, int length) {
+        for (int i = 0; i < length; i++) {
+            if (key[i] != fold(request[from + i], i < length - 4)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte fold(byte b, boolean inName) {
+        return inName && b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
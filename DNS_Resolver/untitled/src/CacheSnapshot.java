@@ -0,0 +1,365 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ File layout, big endian:
+   header   MAGIC (4) | VERSION (4) | saved at, epoch millis (8)
+   entry    length of the rest of the entry (4)
+            question name | QTYPE (2) | QCLASS (2) | RCODE (1) | flags (1) | expires at, epoch millis (8)
+            answer count (2) | authority count (2) | additional count (2)
+            records, in section order
+   record   name | TYPE (2) | CLASS (2) | TTL (4) | expires at, epoch millis (8) | RDLENGTH (2) | RDATA
+ Flags: FLAG_AUTHENTICATED if DNSSEC validated the entry as secure.
+ Names are uncompressed wire format. The file simply ends after the last entry.
+ */
+/**
+ * Saves the cache to a compact binary file every so often, and loads it back on startup so a
+ * restarted server answers from a warm cache instead of sending every query upstream.
+ * Saving walks the cache's live view on a background thread and never blocks queries. It writes
+ * to a temporary file and renames it over the old snapshot, so a crash mid-save keeps the previous one.
+ * Expiry times are saved as wall-clock times, because System.nanoTime() means nothing in another
+ * process. Loading memory-maps the file, finds where each entry starts from the length prefixes,
+ * and decodes the entries on several threads at once while the server is already answering,
+ * skipping everything that expired while the server was down.
+ * Entries kept off the heap are not part of the cache's live view, so with an off-heap cache
+ * nothing is saved and the last snapshot file is left as it is; it can still be restored.
+ */
+public class CacheSnapshot {
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 2; // 2 added the flags byte
+    private static final int FLAG_AUTHENTICATED = 0x01;
+    private static final int HEADER_SIZE = 16;
+
+    private final DNSCache cache;
+    private final Path file;
+    private ScheduledExecutorService saver;
+
+    /**
+     * @param cache The cache to save and restore.
+     * @param file  The snapshot file.
+     */
+    public CacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    /**
+     * Saves the cache every intervalSeconds on a daemon thread. Does nothing for an off-heap cache.
+     *
+     * @param intervalSeconds Seconds between snapshots (0 disables periodic snapshots).
+     */
+    public synchronized void schedule(int intervalSeconds) {
+        if (intervalSeconds <= 0 || saver != null || cache.isOffHeap()) {
+            return;
+        }
+        saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.out.println("Cache snapshot failed: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes every unexpired entry to the snapshot file.
+     *
+     * @return The number of entries written, or -1 if the cache is off the heap and the file was
+     *         left alone rather than overwritten with an empty snapshot.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized int save() throws IOException {
+        if (cache.isOffHeap()) {
+            return -1;
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        int written = 0;
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(512);
+        DataOutputStream entryOut = new DataOutputStream(entryBytes);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nowMillis);
+            for (DNSCacheEntry entry : cache.entries()) {
+                if (entry.isExpired(nowNanos)) {
+                    continue;
+                }
+                entryBytes.reset();
+                writeEntry(entryOut, entry, nowNanos, nowMillis);
+                out.writeInt(entryBytes.size());
+                entryBytes.writeTo(out);
+                written++;
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    private static void writeEntry(DataOutputStream out, DNSCacheEntry entry, long nowNanos, long nowMillis) throws IOException {
+        DNSQuestion question = entry.getQuestion();
+        writeName(out, question.getQname());
+        out.writeShort(question.getQtype());
+        out.writeShort(question.getQclass());
+        out.writeByte(entry.getRCode());
+        out.writeByte(entry.isAuthenticated() ? FLAG_AUTHENTICATED : 0);
+        out.writeLong(toMillis(entry.getExpiresAtNanos(), nowNanos, nowMillis));
+        out.writeShort(entry.getAnswers().size());
+        out.writeShort(entry.getAuthorityRecords().size());
+        out.writeShort(entry.getAdditionalRecords().size());
+        writeRecords(out, entry.getAnswers(), nowNanos, nowMillis);
+        writeRecords(out, entry.getAuthorityRecords(), nowNanos, nowMillis);
+        writeRecords(out, entry.getAdditionalRecords(), nowNanos, nowMillis);
+    }
+
+    private static void writeRecords(DataOutputStream out, List<DNSRecord> records, long nowNanos, long nowMillis) throws IOException {
+        for (DNSRecord record : records) {
+            writeName(out, record.getName());
+            out.writeShort(record.getType());
+            out.writeShort(record.getRclass());
+            out.writeInt(record.getTtl());
+            out.writeLong(toMillis(record.getExpiresAtNanos(), nowNanos, nowMillis));
+            byte[] rdata = record.getRdata();
+            out.writeShort(rdata.length);
+            out.write(rdata);
+        }
+    }
+
+    private static void writeName(OutputStream out, String[] name) throws IOException {
+        for (String label : name) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes);
+        }
+        out.write(0);
+    }
+
+    // Zone records never expire, saturate instead of overflowing
+    private static long toMillis(long expiresAtNanos, long nowNanos, long nowMillis) {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - nowNanos);
+        return remainingMillis > Long.MAX_VALUE - nowMillis ? Long.MAX_VALUE : nowMillis + remainingMillis;
+    }
+
+    /**
+     * Loads the snapshot into the cache on a background thread, so the server can start answering
+     * at once. Entries the server has cached in the meantime are not replaced.
+     *
+     * @param threads Threads decoding entries in parallel.
+     */
+    public void restoreInBackground(int threads) {
+        Thread restorer = new Thread(() -> {
+            try {
+                long start = System.nanoTime();
+                int restored = restore(threads);
+                System.out.println("Restored " + restored + " cache entries from " + file + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            } catch (IOException e) {
+                System.out.println("Cache snapshot not restored: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "dns-cache-restore");
+        restorer.setDaemon(true);
+        restorer.start();
+    }
+
+    /**
+     * Loads the snapshot into the cache, dropping entries that have expired since it was saved.
+     *
+     * @param threads Threads decoding entries in parallel.
+     * @return The number of entries restored.
+     * @throws IOException          If there is no snapshot or it is not one of ours.
+     * @throws InterruptedException If interrupted while waiting for the decoding threads.
+     */
+    public int restore(int threads) throws IOException, InterruptedException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is larger than 2 GB");
+            }
+            // The mapping stays valid after the channel is closed
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a cache snapshot");
+        }
+
+        // Find every entry from the length prefixes, a cut-off last entry is ignored
+        ArrayList<Integer> offsets = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while (position + 4 <= map.limit()) {
+            int length = map.getInt(position);
+            if (length < 0 || position + 4 + length > map.limit()) {
+                break;
+            }
+            offsets.add(position + 4);
+            position += 4 + length;
+        }
+
+        // Each thread decodes its own slice, reading the shared mapping with absolute gets only
+        int workers = Math.max(1, Math.min(threads, offsets.size() / 1024 + 1));
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-restore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long nowNanos = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            List<Future<Integer>> results = new ArrayList<>();
+            int slice = (offsets.size() + workers - 1) / workers;
+            for (int w = 0; w < workers; w++) {
+                int from = w * slice;
+                int to = Math.min(offsets.size(), from + slice);
+                results.add(pool.submit(() -> restoreSlice(map, offsets.subList(from, to), nowNanos, nowMillis)));
+            }
+            int restored = 0;
+            for (Future<Integer> result : results) {
+                restored += result.get();
+            }
+            return restored;
+        } catch (ExecutionException e) {
+            throw new IOException("Cache snapshot could not be decoded", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private int restoreSlice(MappedByteBuffer map, List<Integer> offsets, long nowNanos, long nowMillis) {
+        int restored = 0;
+        for (int offset : offsets) {
+            try {
+                DNSCacheEntry entry = readEntry(new Reader(map, offset), nowNanos, nowMillis);
+                if (entry != null && cache.insertIfAbsent(entry)) {
+                    restored++;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // A damaged entry, skip it and keep the rest
+            }
+        }
+        return restored;
+    }
+
+    // Decodes one entry, or returns null if it has expired
+    private static DNSCacheEntry readEntry(Reader in, long nowNanos, long nowMillis) {
+        String[] qname = in.readName();
+        int qtype = in.readShort();
+        int qclass = in.readShort();
+        int rCode = in.readByte();
+        int flags = in.readByte();
+        long expiresAtMillis = in.readLong();
+        if (expiresAtMillis <= nowMillis) {
+            return null;
+        }
+        int answerCount = in.readShort();
+        int authorityCount = in.readShort();
+        int additionalCount = in.readShort();
+        ArrayList<DNSRecord> answers = readRecords(in, answerCount, nowNanos, nowMillis);
+        ArrayList<DNSRecord> authority = readRecords(in, authorityCount, nowNanos, nowMillis);
+        ArrayList<DNSRecord> additional = readRecords(in, additionalCount, nowNanos, nowMillis);
+        return DNSCacheEntry.restored(new DNSQuestion(qname, qtype, qclass), answers, authority, additional, rCode,
+                (flags & FLAG_AUTHENTICATED) != 0, toNanos(expiresAtMillis, nowNanos, nowMillis));
+    }
+
+    private static ArrayList<DNSRecord> readRecords(Reader in, int count, long nowNanos, long nowMillis) {
+        ArrayList<DNSRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] name = in.readName();
+            int type = in.readShort();
+            int rclass = in.readShort();
+            int ttl = in.readInt();
+            long expiresAtMillis = in.readLong();
+            byte[] rdata = in.readBytes(in.readShort());
+            records.add(DNSRecord.restored(name, type, rclass, ttl, rdata, toNanos(expiresAtMillis, nowNanos, nowMillis)));
+        }
+        return records;
+    }
+
+    // Back to this process's System.nanoTime(), zone records keep never expiring
+    private static long toNanos(long expiresAtMillis, long nowNanos, long nowMillis) {
+        long remainingMillis = Math.min(expiresAtMillis - nowMillis, TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE / 2));
+        return nowNanos + TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+    }
+
+    // Reads fields from the mapping at a cursor of its own, so threads never share a position
+    private static final class Reader {
+        private final MappedByteBuffer map;
+        private int position;
+
+        Reader(MappedByteBuffer map, int position) {
+            this.map = map;
+            this.position = position;
+        }
+
+        int readByte() {
+            return map.get(position++) & 0xFF;
+        }
+
+        int readShort() {
+            int value = map.getShort(position) & 0xFFFF;
+            position += 2;
+            return value;
+        }
+
+        int readInt() {
+            int value = map.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            long value = map.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        byte[] readBytes(int length) {
+            byte[] bytes = new byte[length];
+            map.get(position, bytes);
+            position += length;
+            return bytes;
+        }
+
+        String[] readName() {
+            ArrayList<String> labels = new ArrayList<>();
+            int length;
+            while ((length = readByte()) != 0) {
+                labels.add(new String(readBytes(length), StandardCharsets.US_ASCII));
+            }
+            return labels.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Stops periodic snapshots.
+     */
+    public synchronized void shutdown() {
+        if (saver != null) {
+            saver.shutdownNow();
+        }
+    }
+}
@@ -1,40 +1,489 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DNSCache {
-    private final HashMap<DNSQuestion, DNSRecord> cache;
+    // How often the background sweeper advances the timer wheel
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    // Most entries kept on the heap unless setMaxEntries() says otherwise
+    static final int DEFAULT_MAX_ENTRIES = 1_000_000;
+
+    // Keyed by the hash of (name, qtype, qclass), see DNSQuestion.hashedCacheKey. Keys may collide,
+    // so a lookup checks the entry's question, and a colliding insert simply replaces the entry
+    private final ConcurrentHashMap<Long, DNSCacheEntry> cache;
+    // Label positions scratch for lookups straight from a request, so hashing the name allocates nothing
+    private static final ThreadLocal<int[]> LABEL_SCRATCH = ThreadLocal.withInitial(() -> new int[128]);
+    // Expires entries in the background, both guarded by expiryWheel's monitor: an entry waits in
+    // expiryWheel until it expires, then with serve-stale on in staleWheel until its grace period is over
+    private final TimerWheel<DNSCacheEntry> expiryWheel;
+    private final TimerWheel<DNSCacheEntry> staleWheel;
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Resolves a question upstream, used to refresh popular entries before they expire.
+     */
+    public interface Refresher {
+        DNSMessage resolve(DNSQuestion question) throws IOException;
+    }
+
+    // Refresh-ahead settings, prefetching is off until enablePrefetch() is called
+    private volatile Refresher refresher;
+    private volatile int prefetchMinHits;
+    private volatile double prefetchTtlFraction;
+    private final ThreadPoolExecutor refreshPool;
+    // Expired entries removed by the sweeper
+    private final LongAdder evictions = new LongAdder();
+    // Entries removed to stay within maxEntries
+    private final LongAdder capacityEvictions = new LongAdder();
+    // Most entries kept on the heap, so a flood of random names cannot grow the cache without end
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    // Set when entries are kept off the heap, see enableOffHeap()
+    private volatile OffHeapStore offHeap;
+    private final AtomicLong prefetches = new AtomicLong();
+
+    // Serve-stale (RFC 8767): expired entries are kept this long so they can be served when
+    // the upstream is slow or down. 0 (the default) evicts entries as soon as they expire
+    private volatile long staleGraceNanos;
 
     // Private constructor to prevent instantiation
     public DNSCache() {
-        cache = new HashMap<>();
+        cache = new ConcurrentHashMap<>();
+        expiryWheel = new TimerWheel<>(TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS), System.nanoTime());
+        staleWheel = new TimerWheel<>(TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS), System.nanoTime());
+
+        // Sweep expired entries on a daemon thread so records nobody asks for again still get evicted
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Refreshes run in the background while the old answer keeps being served,
+        // a bounded queue keeps a slow upstream from piling up work
+        refreshPool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024), runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Turns on refresh-ahead prefetching.
+     *
+     * @param refresher   Resolves questions upstream.
+     * @param minHits     An entry must have been hit this many times to be refreshed.
+     * @param ttlFraction Refresh once less than this fraction of the entry's TTL is left.
+     */
+    public void enablePrefetch(Refresher refresher, int minHits, double ttlFraction) {
+        this.prefetchMinHits = minHits;
+        this.prefetchTtlFraction = ttlFraction;
+        this.refresher = ttlFraction > 0 ? refresher : null;
+    }
+
+    /**
+     * Bounds the number of entries kept on the heap (the off-heap store is bounded by its size in
+     * bytes instead). Past the bound, expired entries kept for serve-stale are evicted first, the
+     * one closest to the end of its grace period first, then the entries closest to expiry.
+     * Expired entries are only kept for serve-stale while the cache is below the bound.
+     *
+     * @param maxEntries The most entries to keep.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Turns on serve-stale: expired entries stay available to queryStale() for a grace period,
+     * as long as the cache has room for them (see setMaxEntries()).
+     * Must be called before anything is inserted.
+     *
+     * @param graceSeconds How long past expiry an entry may still be served, 0 to disable.
+     */
+    public void enableServeStale(long graceSeconds) {
+        this.staleGraceNanos = TimeUnit.SECONDS.toNanos(graceSeconds);
+    }
+
+    /**
+     * Keeps every entry inserted from now on encoded in an OffHeapStore instead of as objects on the
+     * heap, so the heap no longer grows with the cache. Hits are then answered with
+     * writeFromStore(). Entries live in the store as encoded responses only, so they are not
+     * prefetched and do not take part in CNAME chain flattening.
+     *
+     * @param store The store to keep entries in.
+     */
+    public void enableOffHeap(OffHeapStore store) {
+        this.offHeap = store;
     }
 
-// Method to query the cache for a DNSRecord based on a DNSQuestion
-    public  DNSRecord query(DNSQuestion question) {
+    public boolean isOffHeap() {
+        return offHeap != null;
+    }
 
-        // Check if the cache contains the question
-        if(cache.containsKey(question)){
-        // If it does, check if the record is expired
-         DNSRecord record = cache.get(question);
-            // If the record is expired, remove it from the cache and return "not found"
-            if(record.isExpired()){
-                 cache.remove(question);
-                 return null;
-             }
-            // If the record is not expired, return the record
-            else{
-                return record;
+    /**
+     * Answers a request from the off-heap store.
+     *
+     * @param request       The parsed request.
+     * @param raw           The raw request.
+     * @param length        The number of valid bytes in raw.
+     * @param out           The buffer to write the response into.
+     * @param nowNanos      The current System.nanoTime().
+     * @param staleTtl      -1 for an unexpired entry, otherwise serve an expired entry still inside
+     *                      the serve-stale grace period, with this TTL.
+     * @return The response length, or -1 if there is no such entry (or no store).
+     */
+    public int writeFromStore(DNSMessageView request, byte[] raw, int length, byte[] out, long nowNanos, int staleTtl) {
+        OffHeapStore store = offHeap;
+        long key = store == null ? -1 : key(request, 0);
+        if (key < 0) {
+            return -1;
+        }
+        // The store checks the stored question against the request's
+        int questionEnd = request.questionEnd(0);
+        if (Edns.isDnssecOk(request)) {
+            int written = store.writeTo(dnssecKey(key), raw, length, questionEnd, out, nowNanos, staleTtl, staleGraceNanos);
+            if (written >= 0) {
+                return written;
             }
         }
-        else {
-            // If the cache does not contain the question, return "not found"
+        return store.writeTo(key, raw, length, questionEnd, out, nowNanos, staleTtl, staleGraceNanos);
+    }
+
+// Method to query the cache for the cached response (positive or negative) to a DNSQuestion
+    public DNSCacheEntry query(DNSQuestion question) {
+        return query(find(question));
+    }
+
+    // Method to query the cache for a question of a request, without materialising the question
+    public DNSCacheEntry query(DNSMessageView request, int questionIndex) {
+        return query(find(request, questionIndex));
+    }
+
+    // Method to find an expired entry that is still inside the serve-stale grace period,
+    // to answer with when the upstream cannot be reached in time
+    public DNSCacheEntry queryStale(DNSQuestion question) {
+        return queryStale(find(question));
+    }
+
+    public DNSCacheEntry queryStale(DNSMessageView request, int questionIndex) {
+        return queryStale(find(request, questionIndex));
+    }
+
+    // Cache key of a question
+    private static long key(DNSQuestion question) {
+        return DNSQuestion.hashedCacheKey(DNSQuestion.nameHash(question.getQname()), question.getQtype(), question.getQclass());
+    }
+
+    // Off-heap key of the answer with its DNSSEC records. May collide like any key, the store checks the question
+    private static long dnssecKey(long key) {
+        return (Long.rotateLeft(key, 32) ^ 0x9E3779B97F4A7C15L) & Long.MAX_VALUE;
+    }
+
+    // Cache key of a question of a request, -1 if its name is malformed
+    private static long key(DNSMessageView request, int questionIndex) {
+        long nameHash = DNSQuestion.nameHash(request, request.questionNameOffset(questionIndex), LABEL_SCRATCH.get());
+        if (nameHash == -1) {
+            return -1;
+        }
+        return DNSQuestion.hashedCacheKey(nameHash, request.questionType(questionIndex), request.questionClass(questionIndex));
+    }
+
+    // The entry for a question, null if there is none or the key belongs to another question
+    private DNSCacheEntry find(DNSQuestion question) {
+        DNSCacheEntry entry = cache.get(key(question));
+        return entry != null && entry.getQuestion().equals(question) ? entry : null;
+    }
+
+    private DNSCacheEntry find(DNSMessageView request, int questionIndex) {
+        long key = key(request, questionIndex);
+        DNSCacheEntry entry = key < 0 ? null : cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        DNSQuestion cached = entry.getQuestion();
+        boolean same = cached.getQtype() == request.questionType(questionIndex)
+                && cached.getQclass() == request.questionClass(questionIndex)
+                && request.nameEquals(request.questionNameOffset(questionIndex), cached.getQname());
+        return same ? entry : null;
+    }
+
+    private DNSCacheEntry queryStale(DNSCacheEntry entry) {
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (!entry.isExpired(now) || isPastGrace(entry, now)) {
+            return null;
+        }
+        return entry;
+    }
+
+    private DNSCacheEntry query(DNSCacheEntry entry) {
+        // If the cache does not contain the question, return "not found"
+        if (entry == null) {
+            return null;
+        }
+        // The sweeper runs once per tick, so an entry can still be here just after it expired
+        long now = System.nanoTime();
+        if (entry.isExpired(now)) {
+            // Expired entries inside the grace period stay for queryStale()
+            if (isPastGrace(entry, now)) {
+                remove(entry);
+            }
+            return null;
+        }
+        recordHit(entry, now);
+        // If the entry is not expired, return it
+        return entry;
+    }
+
+    // Counts a hit on an entry found without going through query(), e.g. by a CacheFront,
+    // so popular entries close to expiry still get refreshed in the background
+    void recordHit(DNSCacheEntry entry, long nowNanos) {
+        Refresher currentRefresher = refresher;
+        if (currentRefresher != null && entry.recordHitAndCheckRefresh(nowNanos, prefetchMinHits, prefetchTtlFraction)) {
+            startRefresh(currentRefresher, entry);
+        }
+    }
+
+    // Queues an upstream refresh of an entry, the entry stays in the cache until the new one replaces it
+    private void startRefresh(Refresher currentRefresher, DNSCacheEntry entry) {
+        try {
+            refreshPool.execute(() -> {
+                try {
+                    DNSMessage response = currentRefresher.resolve(entry.getQuestion());
+                    DNSCacheEntry fresh = DNSCacheEntry.fromResponse(entry.getQuestion(), response);
+                    if (fresh != null) {
+                        fresh.inheritHits(entry);
+                        insert(fresh);
+                        prefetches.incrementAndGet();
+                    } else {
+                        entry.refreshFailed();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    entry.refreshFailed();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshFailed();
+        }
+    }
+
+    // Number of entries refreshed ahead of expiry so far
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    // Method to cache an upstream response to a DNSQuestion, returns false if the response is not cacheable.
+    // Each link of a CNAME chain in the answer is cached on its own too, so other aliases on it can use them
+    public boolean insert(DNSQuestion question, DNSMessage response) {
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(question, response);
+        if (entry == null) {
+            return false;
+        }
+        for (DNSCacheEntry link : DNSCacheEntry.chainLinks(entry)) {
+            insert(link);
+        }
+        return insert(entry);
+    }
+
+    /**
+     * Answers a question for an alias from the cache alone: follows cached CNAME links from the
+     * name until a name whose answer for the question's type is cached, and puts the chain and
+     * that answer together. The result is cached under the question, so the next query for it is
+     * a plain hit.
+     *
+     * @param question The question that missed the cache.
+     * @return The flattened answer, or null if some link or the final answer is not cached.
+     */
+    public DNSCacheEntry queryChain(DNSQuestion question) {
+        if (question.getQtype() == DNSCacheEntry.TYPE_CNAME) {
             return null;
         }
+        ArrayList<DNSRecord> chain = new ArrayList<>();
+        boolean chainAuthenticated = true;
+        String[] name = question.getQname();
+        // A loop in the chain just runs into the limit
+        for (int i = 0; i < DNSCacheEntry.MAX_CNAME_CHAIN; i++) {
+            DNSCacheEntry link = query(new DNSQuestion(name, DNSCacheEntry.TYPE_CNAME, question.getQclass()));
+            if (link == null) {
+                return null;
+            }
+            DNSRecord cname = DNSCacheEntry.findRecord(link.getAnswers(), name, DNSCacheEntry.TYPE_CNAME);
+            if (cname == null) {
+                return null;
+            }
+            chain.add(cname);
+            chainAuthenticated &= link.isAuthenticated();
+            name = DNSCacheEntry.cnameTarget(cname);
+            if (name == null) {
+                return null;
+            }
+            DNSCacheEntry target = query(new DNSQuestion(name, question.getQtype(), question.getQclass()));
+            if (target != null) {
+                DNSCacheEntry flattened = DNSCacheEntry.flattened(question, chain, target, chainAuthenticated);
+                insert(flattened);
+                return flattened;
+            }
+        }
+        return null;
+    }
+
+    // Method to insert a cache entry, replacing any entry for the same question.
+    // Returns false if the entry was not cached
+    public boolean insert(DNSCacheEntry entry) {
+        return insert(entry, true);
     }
 
-    // Method to insert a DNSRecord into the cache based on a DNSQuestion
-    public void insert(DNSQuestion question, DNSRecord answer) {
-            cache.put(question, answer);
+    // Method to insert an entry only if the question is not cached yet, so an entry restored from a
+    // snapshot never replaces a fresher answer that arrived since the server started
+    public boolean insertIfAbsent(DNSCacheEntry entry) {
+        return insert(entry, false);
+    }
+
+    private boolean insert(DNSCacheEntry entry, boolean replace) {
+        entry.cacheKey = key(entry.getQuestion());
+        OffHeapStore store = offHeap;
+        if (store != null) {
+            // Only the encoded response is kept, the entry itself becomes garbage right away
+            try {
+                DNSCacheEntry plain = entry.withoutDnssec();
+                if (plain != entry) {
+                    // With DNSSEC records: the usual key answers clients without DO, the full answer
+                    // is kept under a key of its own for clients with DO
+                    store.put(dnssecKey(entry.cacheKey), entry.getWireResponse(), entry.getExpiresAtNanos(), replace);
+                }
+                return store.put(entry.cacheKey, plain.getWireResponse(), entry.getExpiresAtNanos(), replace);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        DNSCacheEntry previous;
+        if (replace) {
+            previous = cache.put(entry.cacheKey, entry);
+        } else {
+            previous = null;
+            if (cache.putIfAbsent(entry.cacheKey, entry) != null) {
+                return false;
+            }
+        }
+        synchronized (expiryWheel) {
+            if (previous != null) {
+                cancelTimer(previous);
+            }
+            // Room is made before the new entry is in the wheel, so it never evicts itself
+            if (previous == null) {
+                makeRoom();
+            }
+            entry.timer = expiryWheel.schedule(entry, entry.getExpiresAtNanos());
+        }
+        return true;
+    }
 
+    // Every entry currently cached, a live view that never blocks queries (for snapshots)
+    public Collection<DNSCacheEntry> entries() {
+        return cache.values();
     }
 
+    /**
+     * @return The number of expired entries removed so far.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of entries removed so far to stay within maxEntries.
+     */
+    public long getCapacityEvictionCount() {
+        return capacityEvictions.sum();
+    }
+
+    // Number of questions currently cached
+    public int size() {
+        OffHeapStore store = offHeap;
+        return store == null ? cache.size() : (int) Math.min(Integer.MAX_VALUE, cache.size() + store.size());
+    }
+
+    // Stops the background sweeper and refreshes
+    public void shutdown() {
+        sweeper.shutdownNow();
+        refreshPool.shutdownNow();
+    }
+
+    // Advances the timer wheels, evicting every entry whose TTL and any grace period ran out
+    private void sweep() {
+        synchronized (expiryWheel) {
+            long now = System.nanoTime();
+            expiryWheel.advance(now, expired -> {
+                // Kept for serve-stale only while the cache has room, a full cache drops it right away
+                if (staleGraceNanos > 0 && cache.get(expired.cacheKey) == expired && cache.size() < maxEntries) {
+                    expired.stale = true;
+                    expired.timer = staleWheel.schedule(expired, expired.getExpiresAtNanos() + staleGraceNanos);
+                } else if (unmap(expired)) {
+                    evictions.increment();
+                }
+            });
+            staleWheel.advance(now, stale -> {
+                if (unmap(stale)) {
+                    evictions.increment();
+                }
+            });
+        }
+        OffHeapStore store = offHeap;
+        if (store != null) {
+            evictions.add(store.sweep(System.nanoTime(), staleGraceNanos));
+        }
+    }
+
+    private boolean isPastGrace(DNSCacheEntry entry, long nowNanos) {
+        return nowNanos - (entry.getExpiresAtNanos() + staleGraceNanos) > 0;
+    }
+
+    // Removes an entry found expired on lookup and cancels its timer
+    private void remove(DNSCacheEntry entry) {
+        if (unmap(entry)) {
+            synchronized (expiryWheel) {
+                cancelTimer(entry);
+            }
+        }
+    }
+
+    // Cancels an entry's timer in whichever wheel it waits in, called with the wheel lock held
+    private void cancelTimer(DNSCacheEntry entry) {
+        if (entry.timer != null) {
+            (entry.stale ? staleWheel : expiryWheel).cancel(entry.timer);
+        }
+    }
+
+    // Evicts entries until the cache is back within maxEntries: stale entries first, then the live
+    // ones closest to expiry. Called with the wheel lock held
+    private void makeRoom() {
+        while (cache.size() > maxEntries) {
+            DNSCacheEntry victim = staleWheel.pollEarliest();
+            if (victim == null) {
+                victim = expiryWheel.pollEarliest();
+            }
+            if (victim == null) {
+                return;
+            }
+            if (unmap(victim)) {
+                capacityEvictions.increment();
+            }
+        }
+    }
+
+    // Removes an entry from the map, if it is still the current one for its key
+    private boolean unmap(DNSCacheEntry entry) {
+        return cache.remove(entry.cacheKey, entry);
+    }
 }
@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cached response to one DNSQuestion.
+ * Positive entries hold the complete answer RRset together with the authority and
+ * additional sections that came with it. Negative entries (NXDOMAIN or NODATA, RFC 2308)
+ * hold only the SOA record from the authority section, and for an NXDOMAIN reached through
+ * aliases the CNAMEs that led there.
+ * With DNSSEC validation on, answers come with their RRSIG and NSEC records, which only clients
+ * that set DO may see (RFC 4035 section 3.2.1); withoutDnssec() is the entry as everyone else
+ * gets it.
+ */
+public class DNSCacheEntry {
+    // Response codes this cache cares about
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_OPT = 41;
+    static final int TYPE_NSEC3PARAM = 51;
+    static final int TYPE_ANY = 255;
+    // Longest alias chain we split into links or put back together from them
+    static final int MAX_CNAME_CHAIN = 8;
+    // Stands for "no expiry" while taking the earliest of several
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private final DNSQuestion question;
+    private final ArrayList<DNSRecord> answers;
+    private final ArrayList<DNSRecord> authorityRecords;
+    private final ArrayList<DNSRecord> additionalRecords;
+    private final int rCode;
+    private final long expiresAtNanos; // absolute System.nanoTime() the whole entry expires at
+    private final long cachedAtNanos; // when the entry was built, expiresAtNanos - cachedAtNanos is its TTL
+    private boolean authenticated; // DNSSEC validated the answer as secure, set before the entry is cached
+
+    // Refresh-ahead bookkeeping
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile WireResponse wireResponse; // encoded on first hit, then only patched per request
+    private volatile DNSCacheEntry withoutDnssec; // this entry for clients without DO, built on first use
+
+    TimerWheel.Timer<DNSCacheEntry> timer; // evicts this entry, guarded by the cache's wheel
+    boolean stale; // expired and kept for serve-stale, its timer is in the cache's stale wheel
+
+    long cacheKey; // hashed (name, qtype, qclass) key, set when inserted into a DNSCache
+
+    private DNSCacheEntry(DNSQuestion question, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorityRecords,
+                          ArrayList<DNSRecord> additionalRecords, int rCode, long expiresAtNanos) {
+        this.question = question;
+        this.answers = answers;
+        this.authorityRecords = authorityRecords;
+        this.additionalRecords = additionalRecords;
+        this.rCode = rCode;
+        this.expiresAtNanos = expiresAtNanos;
+        this.cachedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Builds a cache entry from an upstream response.
+     *
+     * @param question The question the response answers.
+     * @param response The decoded upstream response.
+     * @return The entry, or null if the response must not be cached
+     * (server failures, or negative answers without an SOA to take the negative TTL from).
+     */
+    public static DNSCacheEntry fromResponse(DNSQuestion question, DNSMessage response) {
+        int rCode = response.getHeader().getRCode();
+        if (response.getHeader().getTc() == 1) {
+            // A truncated answer is missing records, caching it would serve the partial RRset
+            return null;
+        }
+        ArrayList<DNSRecord> additional = withoutOpt(response.getAdditionalRecords());
+
+        if (rCode == RCODE_NOERROR && !response.getAnswers().isEmpty()) {
+            // Positive answer, the entry lives as long as the shortest TTL of everything it serves,
+            // so no authority or additional record is ever served past its own TTL
+            ArrayList<DNSRecord> answers = new ArrayList<>(response.getAnswers());
+            ArrayList<DNSRecord> authority = new ArrayList<>(response.getAuthorityRecords());
+            long expiresAt = earlier(earliestExpiry(answers), earlier(earliestExpiry(authority), earliestExpiry(additional)));
+            DNSCacheEntry entry = new DNSCacheEntry(question, answers, authority, additional, rCode, expiresAt);
+            entry.authenticated = response.isAuthenticated();
+            return entry;
+        }
+
+        if (rCode == RCODE_NXDOMAIN || rCode == RCODE_NOERROR) {
+            // Negative answer (NXDOMAIN, or NODATA when NOERROR has no answers).
+            // RFC 2308 section 5: the negative TTL is the smaller of the SOA's TTL and its MINIMUM field
+            for (DNSRecord record : response.getAuthorityRecords()) {
+                if (record.getType() == TYPE_SOA) {
+                    long negativeTtl = Math.min(record.getTtl() & 0xFFFFFFFFL, soaMinimum(record));
+                    long expiresAt = earlier(record.getExpiresAtNanos(), System.nanoTime() + TimeUnit.SECONDS.toNanos(negativeTtl));
+                    // An NXDOMAIN at the end of a CNAME chain is about the last target, the aliases
+                    // before it exist (RFC 2308 section 2.1), so their CNAMEs are served with it
+                    ArrayList<DNSRecord> answers = new ArrayList<>(response.getAnswers());
+                    expiresAt = earlier(expiresAt, earliestExpiry(answers));
+                    ArrayList<DNSRecord> authority = new ArrayList<>();
+                    // Serve the SOA with the negative TTL, as the upstream would have
+                    authority.add(record.withExpiry(expiresAt));
+                    DNSCacheEntry entry = new DNSCacheEntry(question, answers, authority, new ArrayList<>(), rCode, expiresAt);
+                    entry.authenticated = response.isAuthenticated();
+                    return entry;
+                }
+            }
+        }
+        // SERVFAIL, REFUSED, ... or a negative answer without an SOA: RFC 2308 says do not cache
+        return null;
+    }
+
+    /**
+     * Splits the CNAME chain of a positive answer into entries of their own: one (alias, CNAME)
+     * entry per link, and the final target's RRset under (target, qtype). Cached next to the answer
+     * itself, they let a later question for any alias on the chain be answered from the cache.
+     *
+     * @param entry A positive entry.
+     * @return The link entries, empty if the answer has no CNAMEs.
+     */
+    static ArrayList<DNSCacheEntry> chainLinks(DNSCacheEntry entry) {
+        ArrayList<DNSCacheEntry> links = new ArrayList<>();
+        DNSQuestion question = entry.getQuestion();
+        if (entry.isNegative() || question.getQtype() == TYPE_CNAME) {
+            return links;
+        }
+        String[] name = question.getQname();
+        for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+            DNSRecord cname = findRecord(entry.answers, name, TYPE_CNAME);
+            if (cname == null || cnameTarget(cname) == null) {
+                break;
+            }
+            ArrayList<DNSRecord> link = new ArrayList<>();
+            link.add(cname);
+            DNSCacheEntry linkEntry = new DNSCacheEntry(new DNSQuestion(name, TYPE_CNAME, question.getQclass()), link,
+                    new ArrayList<>(), new ArrayList<>(), RCODE_NOERROR, cname.getExpiresAtNanos());
+            linkEntry.authenticated = entry.authenticated;
+            links.add(linkEntry);
+            name = cnameTarget(cname);
+        }
+        if (links.isEmpty()) {
+            return links;
+        }
+        // The records of the end of the chain, if the upstream sent them
+        ArrayList<DNSRecord> target = new ArrayList<>();
+        for (DNSRecord answer : entry.answers) {
+            if (answer.getType() == question.getQtype() && sameName(answer.getName(), name)) {
+                target.add(answer);
+            }
+        }
+        if (!target.isEmpty()) {
+            DNSCacheEntry targetEntry = new DNSCacheEntry(new DNSQuestion(name, question.getQtype(), question.getQclass()), target,
+                    new ArrayList<>(), new ArrayList<>(), RCODE_NOERROR, earliestExpiry(target));
+            targetEntry.authenticated = entry.authenticated;
+            links.add(targetEntry);
+        }
+        return links;
+    }
+
+    /**
+     * Builds the answer to an alias from cached pieces: the CNAMEs of the chain followed by the
+     * cached answer (positive or negative) for its final target.
+     *
+     * @param question The question asked for the alias.
+     * @param chain    The CNAME records from the alias to the target, in order.
+     * @param target   The cached entry for the target.
+     * @param chainAuthenticated true if every link of the chain came from a DNSSEC secure answer.
+     * @return The entry, expiring with the first of its pieces.
+     */
+    static DNSCacheEntry flattened(DNSQuestion question, ArrayList<DNSRecord> chain, DNSCacheEntry target,
+                                   boolean chainAuthenticated) {
+        ArrayList<DNSRecord> answers = new ArrayList<>(chain);
+        answers.addAll(target.answers);
+        long expiresAt = earliestExpiry(chain);
+        if (target.expiresAtNanos - expiresAt < 0) {
+            expiresAt = target.expiresAtNanos;
+        }
+        DNSCacheEntry entry = new DNSCacheEntry(question, answers, new ArrayList<>(target.authorityRecords),
+                new ArrayList<>(target.additionalRecords), target.rCode, expiresAt);
+        entry.authenticated = chainAuthenticated && target.authenticated;
+        return entry;
+    }
+
+    // The record of a type owned by a name, or null
+    static DNSRecord findRecord(ArrayList<DNSRecord> records, String[] name, int type) {
+        for (DNSRecord record : records) {
+            if (record.getType() == type && sameName(record.getName(), name)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds an entry saved in a cache snapshot.
+     *
+     * @param authenticated  true if DNSSEC had validated the entry as secure when it was saved.
+     * @param expiresAtNanos The absolute System.nanoTime() the entry expires at in this process.
+     * @return The entry.
+     */
+    static DNSCacheEntry restored(DNSQuestion question, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorityRecords,
+                                  ArrayList<DNSRecord> additionalRecords, int rCode, boolean authenticated, long expiresAtNanos) {
+        DNSCacheEntry entry = new DNSCacheEntry(question, answers, authorityRecords, additionalRecords, rCode, expiresAtNanos);
+        entry.authenticated = authenticated;
+        return entry;
+    }
+
+    // Where a CNAME record points, decoded from its RDATA, or null if the RDATA is malformed
+    static String[] cnameTarget(DNSRecord cname) {
+        RData data = cname.getData();
+        return data instanceof RData.Name ? ((RData.Name) data).getTarget() : null;
+    }
+
+    // Domain names compare without regard to case
+    private static boolean sameName(String[] a, String[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (!a[i].equalsIgnoreCase(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The expiry of the shortest lived record, NEVER if there are none
+    private static long earliestExpiry(ArrayList<DNSRecord> records) {
+        long expiresAt = NEVER;
+        for (DNSRecord record : records) {
+            expiresAt = earlier(expiresAt, record.getExpiresAtNanos());
+        }
+        return expiresAt;
+    }
+
+    // The earlier of two System.nanoTime() expiries, NEVER counting as later than any time
+    private static long earlier(long a, long b) {
+        if (a == NEVER) {
+            return b;
+        }
+        if (b == NEVER) {
+            return a;
+        }
+        return b - a < 0 ? b : a;
+    }
+
+    // The SOA MINIMUM field is the last 4 bytes of the RDATA, whatever the compressed names before it look like
+    static long soaMinimum(DNSRecord soa) {
+        byte[] rdata = soa.getRdata();
+        if (rdata.length < 20) {
+            return 0;
+        }
+        int i = rdata.length - 4;
+        return ((rdata[i] & 0xFFL) << 24) | ((rdata[i + 1] & 0xFFL) << 16) | ((rdata[i + 2] & 0xFFL) << 8) | (rdata[i + 3] & 0xFFL);
+    }
+
+    /**
+     * @return This entry without its DNSSEC records, for a client that did not set DO. The entry
+     * itself if it has none.
+     */
+    public DNSCacheEntry withoutDnssec() {
+        DNSCacheEntry plain = withoutDnssec;
+        if (plain == null) {
+            int qtype = question.getQtype();
+            ArrayList<DNSRecord> plainAnswers = withoutDnssec(answers, qtype);
+            ArrayList<DNSRecord> plainAuthority = withoutDnssec(authorityRecords, qtype);
+            ArrayList<DNSRecord> plainAdditional = withoutDnssec(additionalRecords, qtype);
+            if (plainAnswers == answers && plainAuthority == authorityRecords && plainAdditional == additionalRecords) {
+                plain = this;
+            } else {
+                plain = new DNSCacheEntry(question, plainAnswers, plainAuthority, plainAdditional, rCode, expiresAtNanos);
+                plain.authenticated = authenticated;
+            }
+            withoutDnssec = plain;
+        }
+        return plain;
+    }
+
+    /**
+     * Drops the records only a client that set DO may get (RFC 4035 section 3.2.1): signatures,
+     * denial proofs and keys, unless they are what was asked for.
+     *
+     * @param records The records of one section.
+     * @param qtype   The type asked for.
+     * @return The records without DNSSEC ones, the same list if there were none.
+     */
+    static ArrayList<DNSRecord> withoutDnssec(ArrayList<DNSRecord> records, int qtype) {
+        ArrayList<DNSRecord> result = null;
+        for (int i = 0; i < records.size(); i++) {
+            DNSRecord record = records.get(i);
+            boolean dnssec = isDnssecType(record.getType()) && record.getType() != qtype && qtype != TYPE_ANY;
+            if (dnssec && result == null) {
+                result = new ArrayList<>(records.subList(0, i));
+            } else if (!dnssec && result != null) {
+                result.add(record);
+            }
+        }
+        return result == null ? records : result;
+    }
+
+    private static boolean isDnssecType(int type) {
+        return type == RData.TYPE_RRSIG || type == RData.TYPE_NSEC || type == RData.TYPE_NSEC3
+                || type == RData.TYPE_DS || type == RData.TYPE_DNSKEY || type == TYPE_NSEC3PARAM;
+    }
+
+    // The OPT pseudo record belongs to a single transaction and must never be cached
+    static ArrayList<DNSRecord> withoutOpt(ArrayList<DNSRecord> records) {
+        ArrayList<DNSRecord> result = new ArrayList<>(records.size());
+        for (DNSRecord record : records) {
+            if (record.getType() != TYPE_OPT) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns this entry encoded in wire format, encoding it on first use.
+     * Two threads may race to encode the same entry, both results are identical.
+     *
+     * @return The encoded response.
+     * @throws IOException If the entry cannot be encoded.
+     */
+    public WireResponse getWireResponse() throws IOException {
+        WireResponse encoded = wireResponse;
+        if (encoded == null) {
+            encoded = WireResponse.encode(this);
+            wireResponse = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Counts a cache hit and tells whether this entry should now be refreshed ahead of expiry:
+     * it is popular (at least minHits hits) and less than ttlFraction of its TTL is left.
+     * Returns true to only one caller, who must then refresh the entry or call refreshFailed().
+     *
+     * @param nowNanos    The current System.nanoTime().
+     * @param minHits     Hits needed before an entry is worth refreshing.
+     * @param ttlFraction Fraction of the TTL left at which to refresh.
+     * @return true if the caller should start a refresh.
+     */
+    boolean recordHitAndCheckRefresh(long nowNanos, int minHits, double ttlFraction) {
+        int count = hits.incrementAndGet();
+        if (count < minHits || refreshing.get()) {
+            return false;
+        }
+        long ttlNanos = expiresAtNanos - cachedAtNanos;
+        long remainingNanos = expiresAtNanos - nowNanos;
+        if (remainingNanos > ttlNanos * ttlFraction) {
+            return false;
+        }
+        return refreshing.compareAndSet(false, true);
+    }
+
+    // Lets a later hit try the refresh again
+    void refreshFailed() {
+        refreshing.set(false);
+    }
+
+    // A refreshed entry keeps half of the popularity of the one it replaces
+    void inheritHits(DNSCacheEntry previous) {
+        hits.addAndGet(previous.hits.get() / 2);
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public boolean isExpired(long nowNanos) {
+        return nowNanos - expiresAtNanos > 0;
+    }
+
+    // NXDOMAIN entries may hold the CNAMEs leading to the missing name, they are still negative
+    public boolean isNegative() {
+        return rCode == RCODE_NXDOMAIN || answers.isEmpty();
+    }
+
+    public DNSQuestion getQuestion() {
+        return question;
+    }
+
+    public ArrayList<DNSRecord> getAnswers() {
+        return answers;
+    }
+
+    public ArrayList<DNSRecord> getAuthorityRecords() {
+        return authorityRecords;
+    }
+
+    public ArrayList<DNSRecord> getAdditionalRecords() {
+        return additionalRecords;
+    }
+
+    public int getRCode() {
+        return rCode;
+    }
+
+    public long getExpiresAtNanos() {
+        return expiresAtNanos;
+    }
+
+    /**
+     * @return true if DNSSEC validated the answer as secure, so it may be served with the AD bit.
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    @Override
+    public String toString() {
+        return "DNSCacheEntry{" +
+                "question=" + question +
+                ", rCode=" + rCode +
+                ", answers=" + answers +
+                ", authorityRecords=" + authorityRecords +
+                ", additionalRecords=" + additionalRecords +
+                '}';
+    }
+}
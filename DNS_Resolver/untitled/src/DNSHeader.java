@@ -131,32 +131,102 @@ public class DNSHeader {
      * Builds a DNSHeader for the response based on the request's header.
      *
      * @param request The DNSMessage object representing the request.
+     * @param response The DNSMessage the header is built for, its sections give the counts.
+     * @param rCode The response code to send (NoError, NXDomain, ...).
      * @return The DNSHeader object for the response.
      */
-    public static DNSHeader buildHeaderForResponse(DNSMessage request, DNSMessage response) {
+    public static DNSHeader buildHeaderForResponse(DNSMessage request, DNSMessage response, int rCode) {
         DNSHeader requestHeader = request.getHeader();
 
         // Create a new header using the request's header as a template
         DNSHeader responseHeader = new DNSHeader();
         responseHeader.id = (requestHeader.getId());
         responseHeader.flags = (requestHeader.getFlags());
+        // Copy opcode and RD from the request flags
+        parseFlags(responseHeader.flags, responseHeader);
         responseHeader.qdCount = (requestHeader.getQdCount());
-        responseHeader.nsCount = (requestHeader.getNsCount());
-        responseHeader.adCount = (requestHeader.getAdCount());
 
-        // Set QR flag to indicate a response
+        // Set QR flag to indicate a response, and RA since we resolve recursively for the client
         responseHeader.qr = 1;
+        responseHeader.ra = 1;
+        responseHeader.aa = 0;
+        responseHeader.tc = 0;
+        responseHeader.rCode = rCode;
 
-        // Set ANCOUNT to 1 if answer is good (otherwise so not send an
-        if (response.getAnswerCount() > 0) {
-
-            responseHeader.anCount = 1;
-        }
+        // Counts come from the sections actually being sent
+        responseHeader.anCount = response.getAnswerCount();
+        responseHeader.nsCount = response.getAuthorityRecords().size();
+        responseHeader.adCount = response.getAdditionalRecords().size();
 
         return responseHeader;
     }
 
 
+    /**
+     * Builds the header of a recursive query we send upstream.
+     *
+     * @param id The transaction ID, matched against the upstream's response.
+     * @param qdCount The number of questions in the query.
+     * @return The DNSHeader object for the query.
+     */
+    public static DNSHeader buildHeaderForQuery(int id, int qdCount) {
+        return buildHeaderForQuery(id, qdCount, true);
+    }
+
+    /**
+     * Builds the header of a query, recursive or not.
+     *
+     * @param id The transaction ID, matched against the server's response.
+     * @param qdCount The number of questions in the query.
+     * @param recursionDesired false for iterative queries to authoritative servers.
+     * @return The DNSHeader object for the query.
+     */
+    public static DNSHeader buildHeaderForQuery(int id, int qdCount, boolean recursionDesired) {
+        DNSHeader queryHeader = new DNSHeader();
+        queryHeader.id = id;
+        // Ask the upstream to recurse for us, authoritative servers are asked without RD
+        queryHeader.rd = recursionDesired ? 1 : 0;
+        queryHeader.flags = queryHeader.convertFlagsToShort();
+        queryHeader.qdCount = qdCount;
+        return queryHeader;
+    }
+
+    /**
+     * Builds the header of a response that is encoded once and cached.
+     * The ID and RD flag are left 0 and patched in for each request (see WireResponse).
+     *
+     * @param response The DNSMessage the header is built for, its sections give the counts.
+     * @param rCode The response code to send (NoError, NXDomain, ...).
+     * @return The DNSHeader object for the cached response.
+     */
+    public static DNSHeader buildHeaderForCachedResponse(DNSMessage response, int rCode) {
+        return buildHeaderForCachedResponse(response, rCode, false);
+    }
+
+    /**
+     * Builds the header of a pre-encoded response, with the AA flag set for answers from our own zones.
+     *
+     * @param response The DNSMessage the header is built for, its sections give the counts.
+     * @param rCode The response code to send (NoError, NXDomain, ...).
+     * @param authoritative true if we are the authority for the answer.
+     * @return The DNSHeader object for the response.
+     */
+    public static DNSHeader buildHeaderForCachedResponse(DNSMessage response, int rCode, boolean authoritative) {
+        DNSHeader responseHeader = new DNSHeader();
+        responseHeader.aa = authoritative ? 1 : 0;
+        responseHeader.qr = 1;
+        responseHeader.ra = 1;
+        responseHeader.rCode = rCode;
+        responseHeader.flags = responseHeader.convertFlagsToShort();
+
+        responseHeader.qdCount = response.getQuestions().size();
+        responseHeader.anCount = response.getAnswerCount();
+        responseHeader.nsCount = response.getAuthorityRecords().size();
+        responseHeader.adCount = response.getAdditionalRecords().size();
+
+        return responseHeader;
+    }
+
     /**
      * Encodes the header to bytes for sending back to the client.
      *
@@ -185,6 +255,21 @@ public class DNSHeader {
         dataOutputStream.writeShort(adCount);
 
     }
+    /**
+     * Encodes the header with the allocation-free DNSWireWriter.
+     *
+     * @param writer The writer to write the header bytes to.
+     */
+    public void writeBytes(DNSWireWriter writer) {
+        flags = convertFlagsToShort();
+        writer.writeShort(id);
+        writer.writeShort(flags);
+        writer.writeShort(qdCount);
+        writer.writeShort(anCount);
+        writer.writeShort(nsCount);
+        writer.writeShort(adCount);
+    }
+
     /**
      * Helper method to convert flag int into two bytes (short)
      */
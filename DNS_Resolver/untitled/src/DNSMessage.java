@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.BufferOverflowException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,6 +25,7 @@ public class DNSMessage {
     private ArrayList<DNSRecord> authorityRecords; // List of authority records
     private ArrayList<DNSRecord> additionalRecords; // List of additional records
     private byte[] messageBytes; // Byte array containing the complete message
+    private boolean authenticated; // DNSSEC validated the answer as secure, never read from or written to the wire
 
     // Constructor to initialize DNSMessage
     public DNSMessage() {
@@ -85,84 +87,173 @@ public class DNSMessage {
     // If the name is empty, return an empty list
     public String[] readDomainName(InputStream inputStream) throws IOException {
         ArrayList<String> domainNameParts = new ArrayList<>();
-        int currentByte = inputStream.read();
+        readDomainName(inputStream, domainNameParts, 0);
+        // Convert the ArrayList to a String array and return
+        return domainNameParts.toArray(new String[0]);
+    }
 
-        // If the first byte is 0, indicating an empty name, return an empty list
-        if (currentByte == 0) {
-            return new String[0];
-        }
+    // Method to read the pieces of a domain name from a specified byte position
+    public String[] readDomainName(int firstByte) throws IOException {
+        ArrayList<String> domainNameParts = new ArrayList<>();
+        readDomainName(firstByte, domainNameParts, 0);
+        return domainNameParts.toArray(new String[0]);
+    }
+
+    // Reads labels until the terminating 0, following a compression pointer wherever one appears
+    // (a name can be a few labels followed by a pointer, e.g. "ns-1" + pointer to "github.com")
+    private void readDomainName(InputStream inputStream, ArrayList<String> domainNameParts, int jumps) throws IOException {
+        int currentByte = inputStream.read();
 
-        // Read the bytes until the length is not 0 (indicating the end of QNAME)
+        // Read the bytes until the length is 0 (indicating the end of QNAME)
         while (currentByte > 0) {
+            if ((currentByte & 0xC0) == 0xC0) {
+                // Pointer to a prior occurrence, the rest of the name is there
+                int low = inputStream.read();
+                if (low < 0) {
+                    throw new EOFException("Truncated compression pointer");
+                }
+                readDomainName(((currentByte & 0x3F) << 8) | low, domainNameParts, jumps + 1);
+                return;
+            }
             // Initialize a byte array to store the label bytes
             byte[] labelBytes = new byte[currentByte];
             // Read the label bytes from the input stream
-            inputStream.read(labelBytes, 0, labelBytes.length);
+            if (inputStream.readNBytes(labelBytes, 0, labelBytes.length) != labelBytes.length) {
+                throw new EOFException("Truncated label");
+            }
             // Convert the byte array to a string and append it to the domain name parts list
             String label = new String(labelBytes, StandardCharsets.UTF_8);
             domainNameParts.add(label);
             currentByte = inputStream.read();
         }
-
-        // Convert the ArrayList to a String array and return
-        return domainNameParts.toArray(new String[0]);
+        if (currentByte < 0) {
+            throw new EOFException("Truncated domain name");
+        }
     }
 
-
-
-    // Method to read the pieces of a domain name from a specified byte position
-    public String[] readDomainName(int firstByte) throws IOException {
+    private void readDomainName(int firstByte, ArrayList<String> domainNameParts, int jumps) throws IOException {
+        // A name has at most 127 labels, more jumps than that means a pointer loop
+        if (jumps > 127 || firstByte >= messageBytes.length) {
+            throw new IOException("Bad compression pointer to " + firstByte);
+        }
         // Create a ByteArrayInputStream starting at the specified byte position
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(messageBytes, firstByte, messageBytes.length - firstByte);
-        // Call the existing readDomainName(InputStream) method passing the created ByteArrayInputStream
-        return readDomainName(byteArrayInputStream);
-
+        readDomainName(byteArrayInputStream, domainNameParts, jumps);
     }
 
     // Method to build a response DNS message
     public static DNSMessage buildResponse(DNSMessage request, ArrayList<DNSRecord> answers) {
+        return buildResponse(request, answers, new ArrayList<>(), new ArrayList<>(), DNSCacheEntry.RCODE_NOERROR);
+    }
+
+    // Method to build a response DNS message from a cached (positive or negative) entry
+    public static DNSMessage buildResponse(DNSMessage request, DNSCacheEntry entry) {
+        return buildResponse(request, entry.getAnswers(), entry.getAuthorityRecords(), entry.getAdditionalRecords(), entry.getRCode());
+    }
+
+    // Method to build a response DNS message with every section and the response code
+    public static DNSMessage buildResponse(DNSMessage request, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorityRecords,
+                                           ArrayList<DNSRecord> additionalRecords, int rCode) {
         // Create a new DNSMessage for the response
         DNSMessage response = new DNSMessage();
 
+        // Set the questions, answers, authorities, and additional records
+        response.questions = request.getQuestions();
         response.answers = answers;
+        response.authorityRecords = authorityRecords;
+        response.additionalRecords = additionalRecords;
 
-        // Build the header for the response
-        response.header = DNSHeader.buildHeaderForResponse(request, response);
+        // Build the header for the response, the counts come from the sections above
+        response.header = DNSHeader.buildHeaderForResponse(request, response, rCode);
 
-        // Set the number of questions, answers, authorities, and additional records
-        response.questions = request.getQuestions();
-        response.authorityRecords = request.getAuthorityRecords();
-        response.additionalRecords = request.getAdditionalRecords();
+        return response;
+    }
+
+    // Method to build a recursive query for one question, used to ask an upstream resolver ourselves
+    public static DNSMessage buildQuery(DNSQuestion question, int id) {
+        return buildQuery(question, id, true);
+    }
+
+    // Method to build a query for one question, without RD for iterative queries to authoritative servers
+    public static DNSMessage buildQuery(DNSQuestion question, int id, boolean recursionDesired) {
+        DNSMessage query = new DNSMessage();
+        query.questions.add(question);
+        query.header = DNSHeader.buildHeaderForQuery(id, 1, recursionDesired);
+        return query;
+    }
+
+    // Method to build the response for a cache entry independent of any request (ID 0, RD clear),
+    // used to encode the entry once so cache hits only need to patch the bytes
+    public static DNSMessage buildCachedResponse(DNSCacheEntry entry) {
+        DNSMessage response = new DNSMessage();
+
+        response.questions = new ArrayList<>();
+        response.questions.add(entry.getQuestion());
+        response.answers = entry.getAnswers();
+        response.authorityRecords = entry.getAuthorityRecords();
+        response.additionalRecords = entry.getAdditionalRecords();
+
+        response.header = DNSHeader.buildHeaderForCachedResponse(response, entry.getRCode());
 
         return response;
     }
 
-    // Method to convert DNSMessage to byte array
-    public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    // Method to build a response from one of our own zones independent of any request (ID 0, RD clear),
+    // encoded once when the zone is loaded
+    public static DNSMessage buildAuthoritativeResponse(DNSQuestion question, ArrayList<DNSRecord> answers,
+                                                        ArrayList<DNSRecord> authorityRecords, ArrayList<DNSRecord> additionalRecords,
+                                                        int rCode, boolean authoritative) {
+        DNSMessage response = new DNSMessage();
 
-        // Initialize domainLocations hashmap
-        HashMap<String, Integer> domainLocations = new HashMap<>();
+        response.questions = new ArrayList<>();
+        response.questions.add(question);
+        response.answers = answers;
+        response.authorityRecords = authorityRecords;
+        response.additionalRecords = additionalRecords;
 
-        // Write header, questions, answers, authority records, and additional records
-        header.writeBytes(byteArrayOutputStream);
+        response.header = DNSHeader.buildHeaderForCachedResponse(response, rCode, authoritative);
 
-        for (DNSQuestion question : questions) {
-            question.writeBytes(byteArrayOutputStream, domainLocations);
-        }
-        //Write answer
-        answers.get(0).writeBytes(byteArrayOutputStream, domainLocations);
+        return response;
+    }
 
-        for (DNSRecord ar : authorityRecords) {
-            ar.writeBytes(byteArrayOutputStream, domainLocations);
+    // Method to convert DNSMessage to byte array
+    public byte[] toBytes() throws IOException {
+        DNSWireWriter writer = DNSWireWriter.forCurrentThread();
+        try {
+            writeTo(writer);
+            // Copy the message out of the thread's reusable buffer
+            return writer.toByteArray();
+        } finally {
+            writer.release();
         }
+    }
 
-        for (DNSRecord ad : additionalRecords) {
-            ad.writeBytes(byteArrayOutputStream, domainLocations);
-        }
+    // Method to encode the DNSMessage into a writer without creating garbage,
+    // names are compressed by shared suffix
+    public void writeTo(DNSWireWriter writer) throws IOException {
+        long now = System.nanoTime();
+        try {
+            // Write header, questions, answers, authority records, and additional records
+            header.writeBytes(writer);
 
-        // Convert ByteArrayOutputStream to byte array
-        return byteArrayOutputStream.toByteArray();
+            for (DNSQuestion question : questions) {
+                question.writeBytes(writer);
+            }
+            //Write the whole answer RRset
+            for (DNSRecord answer : answers) {
+                answer.writeBytes(writer, now);
+            }
+
+            for (DNSRecord ar : authorityRecords) {
+                ar.writeBytes(writer, now);
+            }
+
+            for (DNSRecord ad : additionalRecords) {
+                ad.writeBytes(writer, now);
+            }
+        } catch (BufferOverflowException e) {
+            throw new IOException("DNS message does not fit in " + writer.getBuffer().capacity() + " bytes", e);
+        }
     }
 
     // Method to write a domain name to ByteArrayOutputStream
@@ -229,6 +320,14 @@ public class DNSMessage {
         return messageBytes;
     }
 
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    public void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
     public int getAnswerCount(){
         return answers.size();
     }
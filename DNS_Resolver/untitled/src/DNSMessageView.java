@@ -0,0 +1,482 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Zero-copy, flyweight view of a DNS message.
+ * Unlike DNSMessage.decodeMessage, which copies the datagram and builds String[] labels for
+ * every name, this class parses in place over a ByteBuffer and only remembers offsets.
+ * Header fields, questions and records are read straight out of the buffer by index, and
+ * nothing is allocated unless a caller explicitly asks for a DNSQuestion or a String[] name.
+ * One view can be reused for many messages by calling wrap() again.
+ *
+ * wrap() validates the whole message: every label and record must lie inside the buffer,
+ * compression pointers must point backwards (so they can never loop) and names are limited
+ * to 255 bytes, as RFC 1035 requires.
+ */
+public class DNSMessageView {
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    // A name of 255 bytes has at most 127 labels, so any more jumps than that is malicious
+    private static final int MAX_POINTER_JUMPS = 127;
+
+    private ByteBuffer buffer;
+    private ByteBuffer arrayBuffer; // kept by wrap(byte[], int, int) for the next message in the same array
+    private int base; // index of the first message byte in the buffer
+    private int limit; // index just past the last message byte
+
+    private int questionCount;
+    private int recordCount;
+    private int answerCount;
+    private int authorityCount;
+    // For each question: offset of the name, offset of QTYPE
+    private int[] questionNames = new int[4];
+    private int[] questionFields = new int[4];
+    // For each record: offset of the name, offset of TYPE
+    private int[] recordNames = new int[16];
+    private int[] recordFields = new int[16];
+
+    // Scratch result of skipName so it does not need to return two values
+    private int nameEnd;
+
+    /**
+     * Points this view at the message between the buffer's position and limit.
+     * The buffer's position and limit are not modified.
+     *
+     * @param message The buffer holding one DNS message.
+     * @return true if the message is well formed, false if it is truncated or malformed
+     * (the view is then empty).
+     */
+    public boolean wrap(ByteBuffer message) {
+        this.buffer = message;
+        this.base = message.position();
+        this.limit = message.limit();
+        this.questionCount = 0;
+        this.recordCount = 0;
+        this.answerCount = 0;
+        this.authorityCount = 0;
+
+        if (limit - base < HEADER_SIZE) {
+            return fail();
+        }
+        int qdCount = u16(4);
+        int anCount = u16(6);
+        int nsCount = u16(8);
+        int arCount = u16(10);
+
+        int position = base + HEADER_SIZE;
+        // A question takes at least 5 bytes and a record at least 11, reject impossible
+        // counts before sizing any arrays from them
+        if (qdCount * 5L + (anCount + nsCount + arCount) * 11L > limit - position) {
+            return fail();
+        }
+        ensureQuestionCapacity(qdCount);
+        for (int i = 0; i < qdCount; i++) {
+            if (!skipName(position)) {
+                return fail();
+            }
+            questionNames[i] = position - base;
+            position = nameEnd;
+            if (position + 4 > limit) {
+                return fail();
+            }
+            questionFields[i] = position - base;
+            position += 4;
+        }
+
+        int totalRecords = anCount + nsCount + arCount;
+        ensureRecordCapacity(totalRecords);
+        for (int i = 0; i < totalRecords; i++) {
+            if (!skipName(position)) {
+                return fail();
+            }
+            recordNames[i] = position - base;
+            position = nameEnd;
+            // TYPE, CLASS, TTL, RDLENGTH
+            if (position + 10 > limit) {
+                return fail();
+            }
+            recordFields[i] = position - base;
+            int rdLength = buffer.getShort(position + 8) & 0xFFFF;
+            position += 10 + rdLength;
+            if (position > limit) {
+                return fail();
+            }
+        }
+
+        this.questionCount = qdCount;
+        this.recordCount = totalRecords;
+        this.answerCount = anCount;
+        this.authorityCount = nsCount;
+        return true;
+    }
+
+    /**
+     * Points this view at a message in an array. Servers read every request into the same array,
+     * so the ByteBuffer over it is made once and reused instead of wrapping it for every packet.
+     *
+     * @param message The array holding the message.
+     * @param offset  Where the message starts.
+     * @param length  The message length.
+     * @return true if the message is well formed, see wrap(ByteBuffer).
+     */
+    public boolean wrap(byte[] message, int offset, int length) {
+        ByteBuffer reused = arrayBuffer;
+        if (reused == null || reused.array() != message) {
+            reused = ByteBuffer.wrap(message);
+            arrayBuffer = reused;
+        }
+        reused.clear().position(offset).limit(offset + length);
+        return wrap(reused);
+    }
+
+    // Header fields
+
+    public int getId() {
+        return u16(0);
+    }
+
+    public int getFlags() {
+        return u16(2);
+    }
+
+    public int getQr() {
+        return (getFlags() >> 15) & 0x1;
+    }
+
+    public int getOpCode() {
+        return (getFlags() >> 11) & 0xF;
+    }
+
+    public int getTc() {
+        return (getFlags() >> 9) & 0x1;
+    }
+
+    public int getRd() {
+        return (getFlags() >> 8) & 0x1;
+    }
+
+    public int getRCode() {
+        return getFlags() & 0xF;
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public int getAuthorityCount() {
+        return authorityCount;
+    }
+
+    public int getAdditionalCount() {
+        return recordCount - answerCount - authorityCount;
+    }
+
+    /**
+     * @return The number of records in all three record sections together.
+     * Records are indexed answers first, then authority, then additional.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return The size of the message in bytes.
+     */
+    public int length() {
+        return limit - base;
+    }
+
+    // Questions
+
+    public int questionNameOffset(int index) {
+        return questionNames[index];
+    }
+
+    public int questionType(int index) {
+        return u16(questionFields[index]);
+    }
+
+    public int questionClass(int index) {
+        return u16(questionFields[index] + 2);
+    }
+
+    /**
+     * @return The offset just past the given question.
+     */
+    public int questionEnd(int index) {
+        return questionFields[index] + 4;
+    }
+
+    /**
+     * Materialises a question as a DNSQuestion. This is the only question accessor that allocates.
+     */
+    public DNSQuestion toQuestion(int index) {
+        DNSQuestion question = new DNSQuestion();
+        question.qname = readName(questionNames[index]);
+        question.qtype = questionType(index);
+        question.qclass = questionClass(index);
+        return question;
+    }
+
+    // Records
+
+    public int recordNameOffset(int index) {
+        return recordNames[index];
+    }
+
+    public int recordType(int index) {
+        return u16(recordFields[index]);
+    }
+
+    public int recordClass(int index) {
+        return u16(recordFields[index] + 2);
+    }
+
+    public long recordTtl(int index) {
+        return buffer.getInt(base + recordFields[index] + 4) & 0xFFFFFFFFL;
+    }
+
+    public int rdLength(int index) {
+        return u16(recordFields[index] + 8);
+    }
+
+    public int rdataOffset(int index) {
+        return recordFields[index] + 10;
+    }
+
+    /**
+     * @return The offset of the TTL field of a record, for in-place patching.
+     */
+    public int ttlOffset(int index) {
+        return recordFields[index] + 4;
+    }
+
+    // Names
+
+    /**
+     * Decodes the name at an offset (relative to the start of the message), following
+     * compression pointers. Allocates the String[] and its labels.
+     * The name must lie in the validated part of the message (a question or record name,
+     * or a name inside RDATA after checking it with isValidName()).
+     */
+    public String[] readName(int offset) {
+        ArrayList<String> labels = new ArrayList<>();
+        int position = base + offset;
+        int jumps = 0;
+        while (true) {
+            int length = buffer.get(position) & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                if (++jumps > MAX_POINTER_JUMPS) {
+                    break;
+                }
+                position = base + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            byte[] label = new byte[length];
+            for (int i = 0; i < length; i++) {
+                label[i] = buffer.get(position + 1 + i);
+            }
+            labels.add(new String(label, StandardCharsets.UTF_8));
+            position += 1 + length;
+        }
+        return labels.toArray(new String[0]);
+    }
+
+    /**
+     * Collects where each label of the name at an offset starts, following compression pointers.
+     * Allocates nothing: positions are absolute buffer indexes of each label's length byte,
+     * in wire order (leftmost label first).
+     *
+     * @param offset    The name's offset relative to the start of the message.
+     * @param positions Filled with label positions, 128 entries always suffice for a valid name.
+     * @return The number of labels, or -1 if positions is too small.
+     */
+    public int collectLabels(int offset, int[] positions) {
+        int position = base + offset;
+        int jumps = 0;
+        int count = 0;
+        while (true) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                if (++jumps > MAX_POINTER_JUMPS) {
+                    return -1;
+                }
+                position = base + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            if (length == 0) {
+                return count;
+            }
+            if (count == positions.length) {
+                return -1;
+            }
+            positions[count++] = position;
+            position += 1 + length;
+        }
+    }
+
+    /**
+     * Checks that a name at an offset (for example one inside RDATA) is well formed.
+     */
+    public boolean isValidName(int offset) {
+        return skipName(base + offset);
+    }
+
+    /**
+     * Compares the name at an offset with dotted labels, ignoring ASCII case. Allocates nothing.
+     */
+    public boolean nameEquals(int offset, String[] labels) {
+        int position = base + offset;
+        int jumps = 0;
+        int labelIndex = 0;
+        while (true) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                if (++jumps > MAX_POINTER_JUMPS) {
+                    return false;
+                }
+                position = base + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            if (length == 0) {
+                return labelIndex == labels.length;
+            }
+            if (labelIndex >= labels.length || labels[labelIndex].length() != length) {
+                return false;
+            }
+            String label = labels[labelIndex];
+            for (int i = 0; i < length; i++) {
+                if (toLower(buffer.get(position + 1 + i)) != toLower((byte) label.charAt(i))) {
+                    return false;
+                }
+            }
+            labelIndex++;
+            position += 1 + length;
+        }
+    }
+
+    /**
+     * Hashes the name at an offset ignoring ASCII case, so equal names hash equally however
+     * they were compressed or capitalised. Allocates nothing.
+     */
+    public int nameHash(int offset) {
+        int position = base + offset;
+        int jumps = 0;
+        int hash = 1;
+        while (true) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                if (++jumps > MAX_POINTER_JUMPS) {
+                    return hash;
+                }
+                position = base + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            if (length == 0) {
+                return hash;
+            }
+            hash = 31 * hash + length;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + toLower(buffer.get(position + 1 + i));
+            }
+            position += 1 + length;
+        }
+    }
+
+    /**
+     * @return The buffer this view reads from.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The index in the buffer where the message starts, add it to any offset for absolute access.
+     */
+    public int getBase() {
+        return base;
+    }
+
+    // Validates the name starting at an absolute position and stores where it ends (in the
+    // original, uncompressed position) in nameEnd. Pointers must point strictly backwards.
+    private boolean skipName(int position) {
+        int end = -1;
+        int nameLength = 1;
+        int jumps = 0;
+        int lowestSeen = position;
+        while (true) {
+            if (position >= limit) {
+                return false;
+            }
+            int length = buffer.get(position) & 0xFF;
+            if (length == 0) {
+                nameEnd = end < 0 ? position + 1 : end;
+                return true;
+            }
+            int kind = length & 0xC0;
+            if (kind == 0xC0) {
+                if (position + 1 >= limit) {
+                    return false;
+                }
+                int target = base + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                // Only backwards pointers, to before anything already visited, so loops are impossible
+                if (target >= lowestSeen || ++jumps > MAX_POINTER_JUMPS) {
+                    return false;
+                }
+                if (end < 0) {
+                    end = position + 2;
+                }
+                position = target;
+                lowestSeen = target;
+                continue;
+            }
+            if (kind != 0) {
+                // 0x40 and 0x80 label types are not supported (RFC 6891 deprecated them)
+                return false;
+            }
+            nameLength += 1 + length;
+            if (nameLength > MAX_NAME_LENGTH || position + 1 + length > limit) {
+                return false;
+            }
+            position += 1 + length;
+        }
+    }
+
+    private boolean fail() {
+        questionCount = 0;
+        recordCount = 0;
+        answerCount = 0;
+        authorityCount = 0;
+        return false;
+    }
+
+    private int u16(int offset) {
+        return buffer.getShort(base + offset) & 0xFFFF;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b & 0xFF;
+    }
+
+    private void ensureQuestionCapacity(int count) {
+        if (questionNames.length < count) {
+            questionNames = new int[count];
+            questionFields = new int[count];
+        }
+    }
+
+    private void ensureRecordCapacity(int count) {
+        if (recordNames.length < count) {
+            recordNames = new int[count];
+            recordFields = new int[count];
+        }
+    }
+}
@@ -1,7 +1,8 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Objects;
 /*
 +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
 |                                               |
@@ -35,6 +36,19 @@ public class DNSQuestion {
         this.qclass = 0;
     }
 
+    /**
+     * Creates a question we ask ourselves, for example while resolving iteratively.
+     *
+     * @param qname  The labels of the name.
+     * @param qtype  The query type.
+     * @param qclass The query class.
+     */
+    public DNSQuestion(String[] qname, int qtype, int qclass) {
+        this.qname = qname;
+        this.qtype = qtype;
+        this.qclass = qclass;
+    }
+
 
     /**
      * Decode a DNS question from the input stream.
@@ -79,6 +93,17 @@ public class DNSQuestion {
         dataOutputStream.writeShort(qclass);
     }
 
+    /**
+     * Write the question with the allocation-free DNSWireWriter, which compresses shared name suffixes.
+     *
+     * @param writer The writer to write to.
+     */
+    void writeBytes(DNSWireWriter writer) {
+        writer.writeName(qname);
+        writer.writeShort(qtype);
+        writer.writeShort(qclass);
+    }
+
     @Override
     public String toString() {
         return "DNSQuestion{" +
@@ -88,24 +113,154 @@ public class DNSQuestion {
                 '}';
     }
 
+    // Domain names compare case-insensitively (RFC 4343), so Example.COM and example.com are one question.
+    // Only ASCII letters fold, like DomainNameTable, so equals and hashCode agree on every byte
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return qtype == that.qtype &&
-                qclass == that.qclass &&
-                Arrays.equals(qname, that.qname);
+        if (qtype != that.qtype || qclass != that.qclass || qname.length != that.qname.length) {
+            return false;
+        }
+        for (int i = 0; i < qname.length; i++) {
+            if (!labelEquals(qname[i], that.qname[i])) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(qtype, qclass);
-        result = 31 * result + Arrays.hashCode(qname);
+        int result = 31 * (31 + qtype) + qclass;
+        for (String label : qname) {
+            // Same label hash as DomainNameTable: the length, then the lower-case bytes
+            int hash = label.length();
+            for (int k = 0; k < label.length(); k++) {
+                hash = 31 * hash + toLower(label.charAt(k));
+            }
+            result = 31 * result + hash;
+        }
         return result;
     }
-}
 
+    private static boolean labelEquals(String a, String b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (int k = 0; k < a.length(); k++) {
+            if (toLower(a.charAt(k)) != toLower(b.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(char c) {
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    /**
+     * Builds the compact cache key of a question: its interned name node id, QTYPE and QCLASS
+     * packed into one long.
+     *
+     * @param nameId The node id of QNAME in a DomainNameTable.
+     * @param qtype  The query type.
+     * @param qclass The query class.
+     * @return The key.
+     */
+    static long cacheKey(int nameId, int qtype, int qclass) {
+        return ((long) nameId << 32) | ((long) (qtype & 0xFFFF) << 16) | (qclass & 0xFFFF);
+    }
+
+    // Random per process, so nobody can work out names whose hashes collide ahead of time
+    private static final long NAME_HASH_SEED = new SecureRandom().nextLong();
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    /**
+     * Hashes a name to 64 bits ignoring ASCII case. Labels are hashed from the root down, each
+     * into the hash of its parent, so walking a name from the root gives the hash of every
+     * enclosing zone on the way (see DelegationCache). Needs no table, so unlike a DomainNameTable
+     * node id there is nothing that can fill up.
+     *
+     * @param name The labels of the name ("www", "example", "com"), any letter case.
+     * @return The hash.
+     */
+    static long nameHash(String[] name) {
+        long hash = rootHash();
+        for (int i = name.length - 1; i >= 0; i--) {
+            hash = labelHash(hash, name[i]);
+        }
+        return hash;
+    }
+
+    /**
+     * Hashes a name inside a message the same way as nameHash(String[]). Allocates nothing.
+     *
+     * @param view       The message.
+     * @param nameOffset The offset of the name in the message.
+     * @param scratch    At least 128 ints of scratch space for label positions.
+     * @return The hash, or -1 if the name is malformed.
+     */
+    static long nameHash(DNSMessageView view, int nameOffset, int[] scratch) {
+        int count = view.collectLabels(nameOffset, scratch);
+        if (count < 0) {
+            return -1;
+        }
+        ByteBuffer buffer = view.getBuffer();
+        long hash = rootHash();
+        for (int i = count - 1; i >= 0; i--) {
+            int position = scratch[i];
+            int length = buffer.get(position) & 0xFF;
+            hash = (hash ^ length) * FNV_PRIME;
+            for (int k = 1; k <= length; k++) {
+                hash = (hash ^ toLower((char) (buffer.get(position + k) & 0xFF))) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    // The hash of the root, what every name's hash starts from
+    static long rootHash() {
+        return NAME_HASH_SEED;
+    }
 
+    // The hash of a name given the hash of its parent and its leftmost label
+    static long labelHash(long parentHash, String label) {
+        long hash = (parentHash ^ label.length()) * FNV_PRIME;
+        for (int k = 0; k < label.length(); k++) {
+            hash = (hash ^ toLower((char) (label.charAt(k) & 0xFF))) * FNV_PRIME;
+        }
+        return hash;
+    }
 
+    /**
+     * Builds the cache key of a question from the hash of its name, QTYPE and QCLASS.
+     * Two questions can share a key, so whoever finds an entry by key checks its question.
+     *
+     * @param nameHash The name's hash, see nameHash().
+     * @param qtype    The query type.
+     * @param qclass   The query class.
+     * @return The key, never negative.
+     */
+    static long hashedCacheKey(long nameHash, int qtype, int qclass) {
+        long key = nameHash ^ (((long) (qtype & 0xFFFF) << 16) | (qclass & 0xFFFF));
+        // Mix every bit into every other, the stores pick slots and stripes from different bits
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (key ^ (key >>> 33)) & Long.MAX_VALUE;
+    }
 
+    public String[] getQname() {
+        return qname;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public int getQclass() {
+        return qclass;
+    }
+}
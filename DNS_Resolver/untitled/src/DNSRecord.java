@@ -1,7 +1,7 @@
 import java.io.*;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 //|+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+|
 //|                  NAME                           |  unknown size
@@ -23,8 +23,9 @@ public class DNSRecord {
     private int rclass; //A 16-bit integer specifying the class of the resource record.
     private int ttl; //A 32-bit unsigned integer specifying the time interval that the resource record may be cached.
     private int rdLength; //A 16-bit integer specifying the length of the RDATA field.
-    private byte[] rdata; //A variable-length field containing data specific to the resource record type.
-    private Date creationDate;
+    private byte[] rdata; //A variable-length field containing data specific to the resource record type, names uncompressed.
+    private RData data; //The RDATA decoded by type, decoded from rdata on first use if the record was not read from a message
+    private long expiresAtNanos; //Absolute System.nanoTime() at which the record expires (monotonic, no Date allocation)
 
 
     /**
@@ -37,8 +38,6 @@ public class DNSRecord {
      */
     static DNSRecord decodeRecord(InputStream inputStream, DNSMessage dnsMessage){
         DNSRecord record = new DNSRecord();
-        // Set creation date
-        record.creationDate = new Date();
 
 
         try (DataInputStream dataInputStream = new DataInputStream(inputStream)) {
@@ -57,17 +56,33 @@ public class DNSRecord {
                 // Read name, type, class, and TTL
                 record.name = dnsMessage.readDomainName(inputStream);
             }
-                record.type = dataInputStream.readShort();
-                record.rclass = dataInputStream.readShort();
+                record.type = dataInputStream.readUnsignedShort();
+                record.rclass = dataInputStream.readUnsignedShort();
                 record.ttl = dataInputStream.readInt();
 
                 // Read RDLENGTH
-                record.rdLength = dataInputStream.readShort(); //This field contains the length of the RDATA field
+                record.rdLength = dataInputStream.readUnsignedShort(); //This field contains the length of the RDATA field (up to 65535)
 
                 // Read RDATA
+                byte[] messageBytes = dnsMessage.getMessageBytes();
+                int rdataOffset = messageBytes.length - inputStream.available();
                 record.rdata = new byte[record.rdLength];
                 dataInputStream.readFully(record.rdata);
 
+                // Decode it against the whole message, so compressed names inside it are resolved now.
+                // The record keeps the RDATA with its names written out in full: the pointers only
+                // mean something inside this message, not once the record is cached and sent in another
+                try {
+                    record.data = RData.decode(record.type, messageBytes, rdataOffset, record.rdLength);
+                    record.rdata = record.data.toBytes();
+                    record.rdLength = record.rdata.length;
+                } catch (IOException e) {
+                    // Malformed for its type, keep the bytes as they came
+                    record.data = new RData.Opaque(record.type, record.rdata);
+                }
+
+                // Store the absolute expiry so the remaining TTL can be computed without allocating
+                record.expiresAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds(record.ttl));
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -95,8 +110,8 @@ public class DNSRecord {
         dataOutputStream.writeShort(type);
         // Write class (2 bytes)
         dataOutputStream.writeShort(rclass);
-        // Write time to live (4 bytes)
-        dataOutputStream.writeInt(ttl);
+        // Write time to live (4 bytes), decremented by the time the record has spent in the cache
+        dataOutputStream.writeInt(getRemainingTtl(System.nanoTime()));
         // Write length of the RDATA field (2 bytes)
         dataOutputStream.writeShort(rdLength);
         // Write RDATA field
@@ -106,20 +121,177 @@ public class DNSRecord {
     }
 
 
+    /**
+     * Writes the DNS record with the allocation-free DNSWireWriter, which compresses shared name suffixes.
+     * @param writer The writer to write the record to.
+     * @param nowNanos The current System.nanoTime(), used to decrement the TTL.
+     */
+    public void writeBytes(DNSWireWriter writer, long nowNanos) {
+        writer.writeName(name);
+        writer.writeShort(type);
+        writer.writeShort(rclass);
+        writer.writeInt(getRemainingTtl(nowNanos));
+        // Names inside the RDATA may be compressed too, so the length is only known once it is written
+        int lengthOffset = writer.position();
+        writer.writeShort(0);
+        getData().writeTo(writer);
+        writer.patchShort(lengthOffset, writer.position() - lengthOffset - 2);
+    }
+
     /**
      * Checks whether this DNS record has expired based on its TTL (Time to Live).
      * @return true if the record has expired, false otherwise.
      */
     public boolean isExpired() {
-        // Get the current date and time
-        Date now = new Date();
-        // Get the current time in milliseconds since the epoch
-        long currentTimeMillis = now.getTime();
-        // Calculate the expiration time in milliseconds by adding the TTL (which is in secs) to the creation date
-        long expirationTimeMillis = creationDate.getTime() + (ttl * 1000);
-        // Compare the current time to the expiration time to determine if the record has expired
-        return currentTimeMillis > expirationTimeMillis;
+        return isExpired(System.nanoTime());
+    }
+
+    /**
+     * Checks whether this DNS record has expired at the given time.
+     * @param nowNanos The current System.nanoTime().
+     * @return true if the record has expired, false otherwise.
+     */
+    public boolean isExpired(long nowNanos) {
+        // Compare with subtraction so the check survives nanoTime overflow
+        return nowNanos - expiresAtNanos > 0;
+    }
+
+    /**
+     * Computes the TTL to put in an answer served at the given time, so clients
+     * see the TTL decremented by the time the record has spent in the cache.
+     * @param nowNanos The current System.nanoTime().
+     * @return The remaining TTL in seconds, never negative.
+     */
+    public int getRemainingTtl(long nowNanos) {
+        long remainingNanos = expiresAtNanos - nowNanos;
+        if (remainingNanos <= 0) {
+            return 0;
+        }
+        // Round up, so a record just received from upstream is served with the TTL it came with
+        return (int) Math.min(TimeUnit.NANOSECONDS.toSeconds(remainingNanos + 999_999_999L), ttlSeconds(ttl));
+    }
+
+    // The TTL is an unsigned 32 bit value, RFC 2181 says values with the top bit set are treated as 0
+    private static long ttlSeconds(int ttl) {
+        return ttl < 0 ? 0 : ttl;
+    }
+
+    /**
+     * Creates a record of zone data we are authoritative for. It never expires, so its TTL is
+     * always served as written in the zone file.
+     * @param name The owner name.
+     * @param type The record type.
+     * @param rclass The record class.
+     * @param ttl The TTL in seconds.
+     * @param rdata The RDATA in wire format, names uncompressed.
+     * @return The record.
+     */
+    public static DNSRecord authoritative(String[] name, int type, int rclass, int ttl, byte[] rdata) {
+        DNSRecord record = new DNSRecord();
+        record.name = name;
+        record.type = type;
+        record.rclass = rclass;
+        record.ttl = ttl;
+        record.rdLength = rdata.length;
+        record.rdata = rdata;
+        // Far enough ahead that getRemainingTtl() always caps at ttl, near enough not to overflow
+        record.expiresAtNanos = System.nanoTime() + Long.MAX_VALUE / 2;
+        return record;
+    }
+
+    /**
+     * Creates a record saved in a cache snapshot, expiring when it would have in the process that saved it.
+     * @param name The owner name.
+     * @param type The record type.
+     * @param rclass The record class.
+     * @param ttl The TTL the record came with, in seconds.
+     * @param rdata The RDATA in wire format, names uncompressed.
+     * @param expiresAtNanos The absolute System.nanoTime() the record expires at in this process.
+     * @return The record.
+     */
+    public static DNSRecord restored(String[] name, int type, int rclass, int ttl, byte[] rdata, long expiresAtNanos) {
+        DNSRecord record = new DNSRecord();
+        record.name = name;
+        record.type = type;
+        record.rclass = rclass;
+        record.ttl = ttl;
+        record.rdLength = rdata.length;
+        record.rdata = rdata;
+        record.expiresAtNanos = expiresAtNanos;
+        return record;
+    }
+
+    /**
+     * Returns a copy of this record with another owner name, used to answer from a wildcard.
+     * @param name The owner name of the copy.
+     * @return The copy.
+     */
+    public DNSRecord withName(String[] name) {
+        DNSRecord copy = withExpiry(expiresAtNanos);
+        copy.name = name;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this record that expires no later than the given time.
+     * Used for the SOA of negative answers, whose TTL is capped by the SOA MINIMUM field.
+     * @param expiresAtNanos The latest absolute System.nanoTime() the copy may expire at.
+     * @return The copy.
+     */
+    public DNSRecord withExpiry(long expiresAtNanos) {
+        DNSRecord copy = new DNSRecord();
+        copy.name = name;
+        copy.type = type;
+        copy.rclass = rclass;
+        copy.ttl = ttl;
+        copy.rdLength = rdLength;
+        copy.rdata = rdata;
+        copy.data = data;
+        copy.expiresAtNanos = expiresAtNanos - this.expiresAtNanos < 0 ? expiresAtNanos : this.expiresAtNanos;
+        return copy;
+    }
+
+    public String[] getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRclass() {
+        return rclass;
+    }
+
+    public byte[] getRdata() {
+        return rdata;
+    }
+
+    /**
+     * @return The RDATA decoded by type.
+     */
+    public RData getData() {
+        RData decoded = data;
+        if (decoded == null) {
+            // Records built from zone files hold uncompressed RDATA, which decodes on its own
+            try {
+                decoded = RData.decode(type, rdata, 0, rdata.length);
+            } catch (IOException e) {
+                decoded = new RData.Opaque(type, rdata);
+            }
+            data = decoded;
+        }
+        return decoded;
+    }
+
+    public long getExpiresAtNanos() {
+        return expiresAtNanos;
     }
+
+    public int getTtl() {
+        return ttl;
+    }
+
     @Override
     public String toString() {
         return "DNSRecord{" +
@@ -128,8 +300,8 @@ public class DNSRecord {
                 ", rclass=" + rclass +
                 ", ttl=" + ttl +
                 ", rdLength=" + rdLength +
-                ", rdata=" + new String(rdata) +
-                ", creationDate=" + creationDate +
+                ", rdata=" + getData() +
+                ", expiresAtNanos=" + expiresAtNanos +
                 '}';
     }
 
@@ -0,0 +1,271 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free DNS message encoder.
+ * Writes into a reusable ByteBuffer and compresses names by shared suffix (RFC 1035 section 4.1.4):
+ * "mail.example.com" written after "www.example.com" becomes "mail" plus a pointer to "example.com".
+ * Suffixes already written are remembered in a small open-addressed hash table of offsets that is
+ * cleared in O(1) between messages, so encoding a message creates no garbage.
+ * Not thread-safe, use one writer per thread (see forCurrentThread() and release()).
+ */
+public final class DNSWireWriter {
+    // Largest DNS message (TCP length prefix is 16 bits)
+    public static final int MAX_MESSAGE_SIZE = 65535;
+    // Compression pointers hold 14 bit offsets
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+    private static final int TABLE_SIZE = 512; // power of two
+    private static final int MAX_LABELS = 128;
+
+    private static final ThreadLocal<DNSWireWriter> THREAD_WRITER = ThreadLocal.withInitial(DNSWireWriter::newOwned);
+    // Virtual threads run one query each, so a writer of their own would be 64 KB allocated per
+    // query. They borrow one from here instead, encoding never blocks so few are out at once
+    private static final BufferPool<DNSWireWriter> SHARED_WRITERS = new BufferPool<>(256, DNSWireWriter::newOwned, 0);
+
+    private final ByteBuffer ownBuffer; // buffer given at construction, reused by forCurrentThread()
+    private boolean borrowed; // taken from SHARED_WRITERS, given back by release()
+    private ByteBuffer buffer;
+    private int start; // buffer index of the first byte of the current message
+
+    // Compression table: suffix hash -> offset of that suffix in the message
+    private final int[] tableHashes = new int[TABLE_SIZE];
+    private final int[] tableOffsets = new int[TABLE_SIZE];
+    private final int[] tableGeneration = new int[TABLE_SIZE];
+    private int generation = 1; // entries from older generations count as empty
+
+    // Scratch space for one name, reused between calls
+    private final int[] suffixHashes = new int[MAX_LABELS + 1];
+    private final int[] labelOffsets = new int[MAX_LABELS];
+
+    /**
+     * Creates a writer over a buffer. Messages are written from the buffer's position.
+     */
+    public DNSWireWriter(ByteBuffer buffer) {
+        this.ownBuffer = buffer;
+        reset(buffer);
+    }
+
+    /**
+     * @return A writer for the calling thread, reset and ready for a new message. Call release()
+     * once the message has been copied out.
+     */
+    public static DNSWireWriter forCurrentThread() {
+        DNSWireWriter writer;
+        if (Thread.currentThread().isVirtual()) {
+            writer = SHARED_WRITERS.take();
+            if (writer == null) {
+                writer = newOwned();
+            }
+            writer.borrowed = true;
+        } else {
+            writer = THREAD_WRITER.get();
+        }
+        writer.ownBuffer.clear();
+        writer.reset(writer.ownBuffer);
+        return writer;
+    }
+
+    /**
+     * Gives a writer from forCurrentThread() back. A platform thread keeps its own, so this only
+     * matters on virtual threads. The writer must not be used afterwards.
+     */
+    public void release() {
+        if (borrowed) {
+            borrowed = false;
+            SHARED_WRITERS.give(this);
+        }
+    }
+
+    private static DNSWireWriter newOwned() {
+        return new DNSWireWriter(ByteBuffer.allocate(MAX_MESSAGE_SIZE));
+    }
+
+    /**
+     * Starts a new message at the buffer's current position and forgets all compression state.
+     */
+    public void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        if (++generation == 0) {
+            // Wrapped around, clear for real once every 4 billion messages
+            java.util.Arrays.fill(tableGeneration, 0);
+            generation = 1;
+        }
+    }
+
+    public void writeByte(int value) {
+        buffer.put((byte) value);
+    }
+
+    public void writeShort(int value) {
+        buffer.putShort((short) value);
+    }
+
+    public void writeInt(int value) {
+        buffer.putInt(value);
+    }
+
+    public void writeBytes(byte[] bytes) {
+        buffer.put(bytes);
+    }
+
+    /**
+     * Overwrites a 16 bit value already written, for example a count in the header.
+     */
+    public void patchShort(int offset, int value) {
+        buffer.putShort(start + offset, (short) value);
+    }
+
+    /**
+     * @return The offset in the message the next byte will be written at.
+     */
+    public int position() {
+        return buffer.position() - start;
+    }
+
+    /**
+     * Writes a domain name, replacing its longest already written suffix with a pointer.
+     *
+     * @param labels The labels of the name ("www", "example", "com"), an empty array for the root.
+     */
+    public void writeName(String[] labels) {
+        int count = labels.length;
+        if (count > MAX_LABELS) {
+            throw new IllegalArgumentException("Too many labels in name: " + count);
+        }
+        // Hash every suffix, from the root up
+        suffixHashes[count] = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            suffixHashes[i] = 31 * suffixHashes[i + 1] + labelHash(labels[i]);
+        }
+
+        // Find the longest suffix that is already in the message
+        int matchIndex = count;
+        int matchOffset = -1;
+        for (int i = 0; i < count; i++) {
+            int offset = lookup(suffixHashes[i], labels, i);
+            if (offset >= 0) {
+                matchIndex = i;
+                matchOffset = offset;
+                break;
+            }
+        }
+
+        // Write the labels in front of the shared suffix, remembering where each suffix starts
+        for (int i = 0; i < matchIndex; i++) {
+            String label = labels[i];
+            labelOffsets[i] = position();
+            buffer.put((byte) label.length());
+            for (int k = 0; k < label.length(); k++) {
+                buffer.put((byte) label.charAt(k));
+            }
+        }
+        if (matchOffset >= 0) {
+            buffer.putShort((short) (0xC000 | matchOffset));
+        } else {
+            buffer.put((byte) 0);
+        }
+        // The new suffixes can now be pointed at by later names
+        for (int i = 0; i < matchIndex; i++) {
+            if (labelOffsets[i] <= MAX_POINTER_OFFSET) {
+                remember(suffixHashes[i], labelOffsets[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes written for the current message.
+     */
+    public int length() {
+        return buffer.position() - start;
+    }
+
+    /**
+     * @return The buffer being written to. The message is between the start position and position().
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Copies the current message out. This is the only method that allocates.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length()];
+        buffer.get(start, bytes);
+        return bytes;
+    }
+
+    // Finds a written suffix equal to labels[from..] (ignoring ASCII case), -1 if there is none
+    private int lookup(int hash, String[] labels, int from) {
+        int slot = slot(hash);
+        for (int probes = 0; probes < TABLE_SIZE; probes++) {
+            if (tableGeneration[slot] != generation) {
+                return -1;
+            }
+            if (tableHashes[slot] == hash && suffixEquals(tableOffsets[slot], labels, from)) {
+                return tableOffsets[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    private void remember(int hash, int offset) {
+        int slot = slot(hash);
+        for (int probes = 0; probes < TABLE_SIZE / 2; probes++) {
+            if (tableGeneration[slot] != generation) {
+                tableGeneration[slot] = generation;
+                tableHashes[slot] = hash;
+                tableOffsets[slot] = offset;
+                return;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        // Table is crowded, skip this suffix (only costs compression, never correctness)
+    }
+
+    // Compares the name written at an offset with labels[from..], following our own pointers
+    private boolean suffixEquals(int offset, String[] labels, int from) {
+        int position = start + offset;
+        int index = from;
+        while (true) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                position = start + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            if (length == 0) {
+                return index == labels.length;
+            }
+            if (index == labels.length || labels[index].length() != length) {
+                return false;
+            }
+            String label = labels[index];
+            for (int k = 0; k < length; k++) {
+                if (toLower(buffer.get(position + 1 + k)) != toLower((byte) label.charAt(k))) {
+                    return false;
+                }
+            }
+            index++;
+            position += 1 + length;
+        }
+    }
+
+    // Spreads the polynomial hash so similar names do not cluster in the low bits
+    private static int slot(int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & (TABLE_SIZE - 1);
+    }
+
+    private static int labelHash(String label) {
+        int hash = label.length();
+        for (int k = 0; k < label.length(); k++) {
+            hash = 31 * hash + toLower((byte) label.charAt(k));
+        }
+        return hash;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b & 0xFF;
+    }
+}
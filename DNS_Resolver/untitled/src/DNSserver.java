@@ -1,92 +1,267 @@
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
 public class DNSserver {
     static DNSCache cache = new DNSCache();
-    static ArrayList<DNSRecord> answer;
+    // Runs upstream exchanges so a slow upstream never blocks the receive loop for long
+    static ThreadPoolExecutor upstreamExecutor = new ThreadPoolExecutor(16, 16, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(4096), runnable -> {
+                Thread thread = new Thread(runnable, "dns-upstream");
+                thread.setDaemon(true);
+                return thread;
+            });
 
 
     public static void main(String[] args) {
+        ServerConfig config = new ServerConfig();
+        System.out.println("Starting with " + config);
+        // Virtual mode waits on the upstream from virtual threads, not a fixed pool of platform threads
+        boolean virtual = "virtual".equals(config.udpMode);
+        Upstream upstream;
+        if ("iterative".equals(config.mode)) {
+            // Resolve from the root servers ourselves, remembering zone cuts along the way
+            DelegationCache delegations = new DelegationCache(config.delegationCacheSize);
+            upstream = new IterativeResolver(config.rootHints, delegations, config.iterativeTimeoutMillis,
+                    config.iterativeMaxQueries, config.authoritativePort, virtual);
+        } else {
+            // Queries go to the fastest healthy upstream, hedged to the next one when it is slow
+            upstream = new UpstreamPool(config.upstreams, config.upstreamTimeoutMillis,
+                    config.hedgePercentile, config.hedgeMinDelayMillis, config.upstreamTcpConnections, virtual);
+        }
+        // Multi-million entry caches live in native memory, where the garbage collector never scans them
+        OffHeapStore offHeap = null;
+        if (config.cacheOffHeapBytes > 0) {
+            offHeap = new OffHeapStore(config.cacheOffHeapBytes);
+            cache.enableOffHeap(offHeap);
+        }
+        Executor handlerExecutor = virtual ? Executors.newVirtualThreadPerTaskExecutor() : upstreamExecutor;
+        // DNSSEC keys are looked up through the same upstream, signatures checked on threads of their own
+        DnssecValidator validator = null;
+        if (config.dnssecValidate) {
+            try {
+                validator = new DnssecValidator(upstream, handlerExecutor, DnssecValidator.parseTrustAnchors(config.dnssecTrustAnchor),
+                        config.dnssecWorkers, config.dnssecResultCacheSize);
+            } catch (IOException e) {
+                System.out.println("DNSSEC validation not enabled: " + e.getMessage());
+            }
+        }
+        // Popular entries are refreshed through the same upstream before they expire, validated like any other answer
+        cache.enablePrefetch(validator != null ? validator::resolve : upstream::resolve,
+                config.prefetchMinHits, config.prefetchTtlFraction);
+        // Keep expired entries around to answer from when the upstream is slow or down, within a bounded cache
+        cache.setMaxEntries(config.cacheMaxEntries);
+        cache.enableServeStale(config.staleGraceSeconds);
+        // Warm restart: load the last snapshot while already answering, then keep saving new ones
+        if (config.cacheSnapshotFile != null) {
+            CacheSnapshot snapshot = new CacheSnapshot(cache, Paths.get(config.cacheSnapshotFile));
+            snapshot.restoreInBackground(Runtime.getRuntime().availableProcessors());
+            snapshot.schedule(config.cacheSnapshotSeconds);
+            if (cache.isOffHeap()) {
+                System.out.println("Off-heap cache entries are not snapshotted, " + config.cacheSnapshotFile + " is only restored");
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    int saved = snapshot.save();
+                    if (saved >= 0) {
+                        System.out.println("Saved " + saved + " cache entries");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Cache snapshot on shutdown failed: " + e);
+                }
+            }, "dns-cache-snapshot-exit"));
+        }
+        // Our own zones, reloaded in the background when their files change
+        ZoneStore zones = new ZoneStore(config.zonesDirectory == null ? null : Paths.get(config.zonesDirectory));
+        // Answers queries from our zones, the cache or the upstream, shared by UDP and TCP
+        QueryHandler handler = new QueryHandler(config, zones, cache, upstream, handlerExecutor);
+        // Always counting, shown over JMX and on a local HTTP endpoint
+        Metrics metrics = new Metrics();
+        handler.enableMetrics(metrics);
+        metrics.registerGauge("dns_cache_entries", cache::size);
+        metrics.registerGauge("dns_cache_evictions_total", cache::getEvictionCount);
+        metrics.registerGauge("dns_cache_capacity_evictions_total", cache::getCapacityEvictionCount);
+        if (offHeap != null) {
+            metrics.registerGauge("dns_cache_offheap_bytes", offHeap::getUsedBytes);
+            metrics.registerGauge("dns_cache_offheap_rejected_total", offHeap::getRejectedCount);
+        }
+        if (upstream instanceof UpstreamPool) {
+            UpstreamPool pool = (UpstreamPool) upstream;
+            metrics.registerGauge("dns_upstream_hedges_total", pool::getHedgeCount);
+            for (UpstreamPool.Server server : pool.getServers()) {
+                String label = "{server=\"" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "\"}";
+                metrics.registerGauge("dns_upstream_queries_total" + label, server::getQueries);
+                metrics.registerGauge("dns_upstream_failures_total" + label, server::getFailures);
+                metrics.registerHistogram("dns_upstream_rtt" + label, server.getRttHistogram());
+            }
+        }
+        if (validator != null) {
+            handler.enableDnssec(validator);
+            metrics.registerGauge("dns_dnssec_secure_total", validator::getSecureCount);
+            metrics.registerGauge("dns_dnssec_insecure_total", validator::getInsecureCount);
+            metrics.registerGauge("dns_dnssec_bogus_total", validator::getBogusCount);
+            metrics.registerGauge("dns_dnssec_signature_checks_total", validator::getSignatureCheckCount);
+            metrics.registerGauge("dns_dnssec_verdict_cache_hits_total", validator::getVerdictCacheHitCount);
+            metrics.registerGauge("dns_dnssec_key_cache_hits_total", validator::getKeyCacheHitCount);
+            metrics.registerGauge("dns_dnssec_key_fetches_total", validator::getKeyFetchCount);
+            metrics.registerGauge("dns_dnssec_key_failures_total", validator::getKeyFailureCount);
+        }
+        // Every answered query is logged by a background writer, never on the answering thread
+        if (config.queryLogFile != null) {
+            try {
+                QueryLog queryLog = new QueryLog(Paths.get(config.queryLogFile), config.queryLogMaxFileBytes,
+                        config.queryLogKeepFiles, config.queryLogBufferEntries);
+                handler.enableQueryLog(queryLog);
+                metrics.registerGauge("dns_querylog_written_total", queryLog::getWrittenCount);
+                metrics.registerGauge("dns_querylog_dropped_total", queryLog::getDroppedCount);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        queryLog.close();
+                        System.out.println(queryLog);
+                    } catch (IOException | InterruptedException e) {
+                        System.out.println("Query log not closed cleanly: " + e);
+                    }
+                }, "dns-querylog-exit"));
+            } catch (IOException e) {
+                System.out.println("Query log not opened, queries are not logged: " + e.getMessage());
+            }
+        }
+        // Blocked names are answered before the cache is even looked at
+        if (config.blocklistFile != null) {
+            BlocklistFilter blocklist = new BlocklistFilter(Paths.get(config.blocklistFile), config.blocklistMaxNames,
+                    "sinkhole".equals(config.blocklistAction), config.blocklistTtl);
+            try {
+                blocklist.reload();
+            } catch (IOException e) {
+                System.out.println("Blocklist not loaded, nothing is blocked until it can be: " + e.getMessage());
+            }
+            blocklist.watch(config.blocklistReloadSeconds);
+            handler.addFilter(blocklist);
+            metrics.registerGauge("dns_blocked_total", blocklist::getBlockedCount);
+            metrics.registerGauge("dns_blocklist_names", () -> blocklist.getBlocklist().size());
+        }
+        // One noisy or spoofed client network must not starve the rest or use us to amplify a flood
+        if (config.rrlPerSecond > 0) {
+            ResponseRateLimiter limiter = new ResponseRateLimiter(config.rrlPerSecond, config.rrlBurst,
+                    config.rrlSlip, config.rrlTableSize);
+            handler.enableRateLimiting(limiter);
+            metrics.registerGauge("dns_ratelimit_dropped_total", limiter::getDroppedCount);
+            metrics.registerGauge("dns_ratelimit_slipped_total", limiter::getSlippedCount);
+        }
+        metrics.startSampler();
         try {
+            metrics.registerJmx();
+        } catch (JMException e) {
+            System.out.println("Metrics not registered with JMX: " + e);
+        }
+        if (config.metricsPort > 0) {
+            try {
+                metrics.startHttp(config.metricsPort);
+                System.out.println("Metrics at http://127.0.0.1:" + config.metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.out.println("Metrics endpoint not started: " + e.getMessage());
+            }
+        }
 
-            // Create a UDP socket to listen for requests on port 53
-            DatagramSocket socket = new DatagramSocket(8053);
-
-            while (true) {
-                //System.out.println("Running server ");
-                // Receive incoming request
-                byte[] requestData = new byte[512];
-                DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length);
-                socket.receive(requestPacket);
-
-                // Decode the DNS message
-                DNSMessage requestMessage = DNSMessage.decodeMessage(requestPacket.getData());
-                //System.out.println("MSG contents: " + requestMessage);
-                //System.out.println("Received DNS request from: " + requestPacket.getAddress());
-
-
-                //Check cache for question
-                ArrayList<DNSQuestion> question =  requestMessage.getQuestions();
-                DNSRecord cachedRecord = cache.query(question.get(0));
-                System.out.println(cachedRecord);
-
-                //If question is cache, set answer to cache answer
-                if(cachedRecord != null) {
-                    ArrayList<DNSRecord> temPAnswer = new ArrayList<>();
-                    temPAnswer.add(cachedRecord);
-                    answer = temPAnswer;
-
-                    System.out.println("Found cached record for query: " + question);
-
-                } else {
-                    System.out.println("NOT FOUND in cached record for query: " + question);
-
-                    // Forward request to Google DNS (8.8.8.8)
-                    InetAddress googleDNS = InetAddress.getByName("8.8.8.8");
-                    DatagramPacket forwardPacket = new DatagramPacket(requestData, requestData.length, googleDNS, 53);
-                    socket.send(forwardPacket);
-                    //System.out.println("forwardSocket.send(forwardPacket);\n");
+        try {
+            zones.reload();
+            zones.watch(config.zonesReloadSeconds);
 
-                    // Receive response from Google DNS
-                    byte[] responseFromGoogle = new byte[514];
-                    DatagramPacket responsePacket = new DatagramPacket(responseFromGoogle, responseFromGoogle.length);
-                    socket.receive(responsePacket);
-                    //System.out.println("forwardSocket.receive(responsePacket);\n");
+            // Answers that do not fit in UDP are retried by clients over TCP on the same port
+            if (config.tcpEnabled) {
+                TcpServer tcpServer = new TcpServer(config.port, handler, config.tcpWorkers,
+                        config.tcpIdleTimeoutMillis, config.tcpMaxConnections);
+                metrics.registerGauge("dns_tcp_refused_connections_total", tcpServer::getRefusedConnectionCount);
+                metrics.registerGauge("dns_tcp_failed_connections_total", tcpServer::getFailedConnectionCount);
+                metrics.registerGauge("dns_tcp_dropped_total", tcpServer::getDroppedQueryCount);
+                tcpServer.start();
+            }
 
-                    // Decode response from Google DNS
-                    DNSMessage googleResponse = DNSMessage.decodeMessage(responsePacket.getData());
-                    //System.out.println("DNSMessage googleResponse = DNSMessage.decodeMessage(responsePacket.getData());\n");
-                    answer = googleResponse.getAnswers();
-                    if(!answer.isEmpty()) {
-                        cache.insert(question.get(0), answer.get(0));
-                        //System.out.println("cache.insert(question.get(0), answer.get(0));\n: " + question.get(0));
-                    }
-                    if(answer.isEmpty()){
-                        System.out.println("Error: faulty domain-name");
-                    }
-                }
+            if ("reuseport".equals(config.udpMode)) {
+                // One socket per worker on the same port, the kernel spreads the packets over them
+                ReusePortUdpServer udpServer = new ReusePortUdpServer(config.port, config.udpListeners, handler);
+                udpServer.start();
+                System.out.println("Answering UDP on " + udpServer.getListenerCount() + " SO_REUSEPORT sockets");
+                udpServer.join();
+                return;
+            }
 
-                // Build response message
-                DNSMessage responseMessage = DNSMessage.buildResponse(requestMessage, answer);
-                //System.out.println("Response message: " + responseMessage);
-                // Send response back to client
-                byte[] responseData = responseMessage.toBytes();
-                DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, requestPacket.getAddress(), requestPacket.getPort());
-                socket.send(responsePacket);
-                //System.out.println("Sent response to: " + requestPacket.getAddress());
+            if ("batch".equals(config.udpMode)) {
+                // Non-blocking sockets read in bursts into pooled direct buffers, replies sent together
+                BatchUdpServer udpServer = new BatchUdpServer(config.port, config.udpListeners, handler,
+                        config.udpBatchSize, config.udpPooledBuffers);
+                metrics.registerGauge("dns_udp_wakeups_total", udpServer::getWakeupCount);
+                metrics.registerGauge("dns_udp_datagrams_total", udpServer::getDatagramCount);
+                metrics.registerGauge("dns_udp_pool_exhausted_total", udpServer::getPoolExhaustedCount);
+                udpServer.start();
+                System.out.println("Answering UDP in batches on " + udpServer.getListenerCount() + " non-blocking sockets");
+                udpServer.join();
+                return;
+            }
 
+            if (virtual) {
+                // Every query on its own virtual thread, blocking on the upstream costs almost nothing
+                System.out.println("Answering UDP on a virtual thread per query");
+                new VirtualThreadUdpServer(config.port, handler, config.virtualMaxInFlight).run();
+                return;
             }
+
+            serveSingleSocket(config.port, handler);
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
-
 
+    /**
+     * Answers UDP queries on one socket, one at a time, on the calling thread.
+     *
+     * @param port    The port to listen on.
+     * @param handler Answers the queries.
+     * @throws IOException          If the socket cannot be bound or fails.
+     * @throws InterruptedException If interrupted while waiting for an upstream.
+     */
+    static void serveSingleSocket(int port, QueryHandler handler) throws IOException, InterruptedException {
+        // Create a UDP socket to listen for requests on port 53
+        DatagramSocket socket = new DatagramSocket(port);
+        // Buffers and packets reused for every request and response
+        byte[] requestData = new byte[Edns.MAX_UDP_PAYLOAD];
+        byte[] responseData = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length);
+        DatagramPacket clientResponsePacket = new DatagramPacket(responseData, responseData.length);
 
+        while (true) {
+            //System.out.println("Running server ");
+            // Receive incoming request, big enough for any EDNS0 request
+            requestPacket.setLength(requestData.length);
+            socket.receive(requestPacket);
 
+            int length;
+            try {
+                length = handler.handleUdp(requestData, requestPacket.getLength(), responseData, requestPacket.getAddress());
+            } catch (IOException e) {
+                // One bad answer should not take the whole server down
+                System.out.println("Failed to answer " + requestPacket.getAddress() + ": " + e);
+                continue;
+            }
+            if (length < 0) {
+                // Counted by the rate limiter and dns_dropped_total, a line per packet would turn a flood into log I/O
+                continue;
+            }
+            // Send response back to client
+            clientResponsePacket.setLength(length);
+            clientResponsePacket.setAddress(requestPacket.getAddress());
+            clientResponsePacket.setPort(requestPacket.getPort());
+            socket.send(clientResponsePacket);
+            //System.out.println("Sent response to: " + requestPacket.getAddress());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers zone cuts learnt from referrals: for each zone, its name servers and their addresses
+ * (from glue, or resolved separately). An iterative lookup starts at the closest enclosing zone
+ * in here instead of at the root, so after "www.example.com" has been resolved once, a query for
+ * "mail.example.com" goes straight to example.com's servers.
+ * Zones are keyed by the hash of their name (DNSQuestion.nameHash), built up from the root, so the
+ * closest enclosing zone is found by hashing the query name one label at a time and looking up
+ * every enclosing zone's hash on the way.
+ */
+public class DelegationCache {
+
+    /**
+     * The name servers of one zone.
+     */
+    public static final class Delegation {
+        private final String[] zone;
+        private final List<InetSocketAddress> servers; // addresses known for the zone's name servers
+        private final List<String[]> serverNames; // name servers, including those without known addresses
+        private final long expiresAtNanos;
+
+        Delegation(String[] zone, List<InetSocketAddress> servers, List<String[]> serverNames, long expiresAtNanos) {
+            this.zone = zone;
+            this.servers = List.copyOf(servers);
+            this.serverNames = List.copyOf(serverNames);
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        public String[] getZone() {
+            return zone;
+        }
+
+        public List<InetSocketAddress> getServers() {
+            return servers;
+        }
+
+        public List<String[]> getServerNames() {
+            return serverNames;
+        }
+
+        public boolean isExpired(long nowNanos) {
+            return nowNanos - expiresAtNanos >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Delegation{" +
+                    "zone=" + DNSMessage.joinDomainName(zone) +
+                    ", servers=" + servers +
+                    ", serverNames=" + serverNames.size() +
+                    '}';
+        }
+    }
+
+    private final int maxEntries;
+    // Hashes may collide, so a zone found by hash is checked against the name
+    private final ConcurrentHashMap<Long, Delegation> delegations = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries The most zones to remember.
+     */
+    public DelegationCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Remembers a zone's name servers.
+     *
+     * @param zone        The zone name.
+     * @param servers     Addresses of its name servers.
+     * @param serverNames Names of its name servers.
+     * @param ttlSeconds  How long the delegation is valid (the NS records' TTL).
+     */
+    public void put(String[] zone, List<InetSocketAddress> servers, List<String[]> serverNames, long ttlSeconds) {
+        if (delegations.size() >= maxEntries) {
+            removeExpired(System.nanoTime());
+            if (delegations.size() >= maxEntries) {
+                return;
+            }
+        }
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds);
+        delegations.put(DNSQuestion.nameHash(zone), new Delegation(zone, servers, serverNames, expiresAt));
+    }
+
+    /**
+     * Finds the deepest zone enclosing a name whose servers have known addresses.
+     *
+     * @param name The name being resolved.
+     * @return The delegation, or null if only the root is known (start from the root hints).
+     */
+    public Delegation findClosest(String[] name) {
+        long now = System.nanoTime();
+        // hashes[i] is the hash of the name with its first i labels removed
+        long[] hashes = new long[name.length + 1];
+        hashes[name.length] = DNSQuestion.rootHash();
+        for (int i = name.length - 1; i >= 0; i--) {
+            hashes[i] = DNSQuestion.labelHash(hashes[i + 1], name[i]);
+        }
+        // Deepest first, the root itself is never cached
+        for (int i = 0; i < name.length; i++) {
+            Delegation delegation = delegations.get(hashes[i]);
+            if (delegation == null || !isSuffix(delegation.getZone(), name, i)) {
+                continue;
+            }
+            if (delegation.isExpired(now)) {
+                delegations.remove(hashes[i], delegation);
+            } else if (!delegation.getServers().isEmpty()) {
+                return delegation;
+            }
+        }
+        return null;
+    }
+
+    // true if zone is the name with its first skip labels removed, ignoring ASCII case
+    private static boolean isSuffix(String[] zone, String[] name, int skip) {
+        if (zone.length != name.length - skip) {
+            return false;
+        }
+        for (int i = 0; i < zone.length; i++) {
+            if (!zone[i].equalsIgnoreCase(name[skip + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void removeExpired(long nowNanos) {
+        delegations.values().removeIf(delegation -> delegation.isExpired(nowNanos));
+    }
+
+    public int size() {
+        return delegations.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DelegationCache{" +
+                "size=" + delegations.size() +
+                ", maxEntries=" + maxEntries +
+                '}';
+    }
+}
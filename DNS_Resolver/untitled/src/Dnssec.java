@@ -0,0 +1,515 @@
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The DNSSEC building blocks (RFC 4034, 4035): canonical names and RRsets, key tags, DS digests
+ * and signature checks for the two algorithms almost every signed zone uses, RSA/SHA-256 (8) and
+ * ECDSA P-256 with SHA-256 (13). DnssecValidator puts them together into chains of trust.
+ */
+public final class Dnssec {
+    public static final int ALGORITHM_RSASHA256 = 8;
+    public static final int ALGORITHM_ECDSAP256SHA256 = 13;
+    public static final int DIGEST_SHA1 = 1;
+    public static final int DIGEST_SHA256 = 2;
+    public static final int DIGEST_SHA384 = 4;
+    // The only DNSKEY protocol value (RFC 4034 section 2.1.2)
+    static final int PROTOCOL = 3;
+    // The only NSEC3 hash algorithm, SHA-1 (RFC 5155)
+    public static final int NSEC3_SHA1 = 1;
+    // NSEC3 chains hashed more often than this cost too much CPU to check, RFC 9276 says treat them as insecure
+    public static final int MAX_NSEC3_ITERATIONS = 150;
+
+    private static final String BASE32_HEX = "0123456789abcdefghijklmnopqrstuv";
+
+    private static final int P256_COORDINATE_SIZE = 32;
+    private static final ECParameterSpec P256 = p256();
+
+    // Signature objects are not thread-safe but are expensive to look up, so each thread keeps its own
+    private static final ThreadLocal<Signature[]> SIGNATURES = ThreadLocal.withInitial(() -> new Signature[2]);
+
+    private Dnssec() {
+    }
+
+    public static boolean isSupportedAlgorithm(int algorithm) {
+        return algorithm == ALGORITHM_RSASHA256 || algorithm == ALGORITHM_ECDSAP256SHA256;
+    }
+
+    public static boolean isSupportedDigest(int digestType) {
+        return digestType == DIGEST_SHA1 || digestType == DIGEST_SHA256 || digestType == DIGEST_SHA384;
+    }
+
+    /**
+     * @return The name in wire format, uncompressed and in lowercase (RFC 4034 section 6.2).
+     */
+    public static byte[] canonicalName(String[] name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeCanonicalName(out, name);
+        return out.toByteArray();
+    }
+
+    private static void writeCanonicalName(ByteArrayOutputStream out, String[] name) {
+        for (String label : name) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes.length);
+            for (byte b : bytes) {
+                out.write(lowercase(b));
+            }
+        }
+        out.write(0);
+    }
+
+    private static int lowercase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    /**
+     * @return The name in lowercase with dots, "." for the root, for use as a map key.
+     */
+    public static String nameKey(String[] name) {
+        if (name.length == 0) {
+            return ".";
+        }
+        StringBuilder key = new StringBuilder(64);
+        for (String label : name) {
+            for (int i = 0; i < label.length(); i++) {
+                char c = label.charAt(i);
+                key.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            }
+            key.append('.');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Orders names the way NSEC chains are sorted (RFC 4034 section 6.1): label by label from
+     * the right, each label compared as lowercase bytes, and a name sorts before its subdomains.
+     */
+    public static int compareNames(String[] a, String[] b) {
+        int i = a.length - 1;
+        int j = b.length - 1;
+        while (i >= 0 && j >= 0) {
+            byte[] x = a[i--].getBytes(StandardCharsets.UTF_8);
+            byte[] y = b[j--].getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(x.length, y.length);
+            for (int k = 0; k < length; k++) {
+                int difference = lowercase(x[k]) - lowercase(y[k]);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            if (x.length != y.length) {
+                return x.length - y.length;
+            }
+        }
+        return Integer.compare(i, j);
+    }
+
+    /**
+     * @return true if name is zone or a name below it.
+     */
+    public static boolean isSubdomain(String[] name, String[] zone) {
+        if (name.length < zone.length) {
+            return false;
+        }
+        int offset = name.length - zone.length;
+        for (int i = 0; i < zone.length; i++) {
+            if (!name[offset + i].equalsIgnoreCase(zone[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The name without its first label, the root for the root.
+     */
+    public static String[] parent(String[] name) {
+        return name.length == 0 ? name : Arrays.copyOfRange(name, 1, name.length);
+    }
+
+    // Labels of a name for the RRSIG labels field: the root and a leading "*" do not count
+    static int labelCount(String[] name) {
+        return name.length > 0 && name[0].equals("*") ? name.length - 1 : name.length;
+    }
+
+    /**
+     * Builds what an RRSIG signs: its own fields with the signer in canonical form, then every
+     * record of the RRset in canonical form with the original TTL, sorted by RDATA.
+     * A record synthesized from a wildcard is put back under the wildcard's name.
+     *
+     * @param signature The RRSIG.
+     * @param owner     The owner name of the RRset.
+     * @param rrset     The records of the RRset, all of the type the RRSIG covers.
+     * @return The signed data, or null if the RRSIG cannot belong to this owner name.
+     */
+    public static byte[] signedData(RData.RRSIG signature, String[] owner, List<DNSRecord> rrset) {
+        int labels = labelCount(owner);
+        if (signature.getLabels() > labels) {
+            return null;
+        }
+        String[] signedOwner = owner;
+        if (signature.getLabels() < labels) {
+            // Expanded from a wildcard: the signature is over *.<the rightmost labels>
+            signedOwner = new String[signature.getLabels() + 1];
+            signedOwner[0] = "*";
+            System.arraycopy(owner, owner.length - signature.getLabels(), signedOwner, 1, signature.getLabels());
+        }
+        byte[] ownerBytes = canonicalName(signedOwner);
+        List<byte[]> rdatas = new ArrayList<>(rrset.size());
+        for (DNSRecord record : rrset) {
+            rdatas.add(canonicalRdata(record.getType(), record.getRdata()));
+        }
+        rdatas.sort(Arrays::compareUnsigned);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        byte[] fields = signature.fieldsBeforeSignature(lowercase(signature.getSigner()));
+        out.write(fields, 0, fields.length);
+        int rclass = rrset.get(0).getRclass();
+        byte[] previous = null;
+        for (byte[] rdata : rdatas) {
+            if (previous != null && Arrays.equals(previous, rdata)) {
+                continue; // duplicates are signed once
+            }
+            previous = rdata;
+            out.write(ownerBytes, 0, ownerBytes.length);
+            out.write(signature.getTypeCovered() >>> 8);
+            out.write(signature.getTypeCovered());
+            out.write(rclass >>> 8);
+            out.write(rclass);
+            RData.writeInt(out, signature.getOriginalTtl());
+            out.write(rdata.length >>> 8);
+            out.write(rdata.length);
+            out.write(rdata, 0, rdata.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String[] lowercase(String[] name) {
+        String[] lower = new String[name.length];
+        for (int i = 0; i < name.length; i++) {
+            lower[i] = name[i].toLowerCase(Locale.ROOT);
+        }
+        return lower;
+    }
+
+    // RDATA with the names inside it in lowercase, for the types RFC 4034 section 6.2 lists that we decode
+    static byte[] canonicalRdata(int type, byte[] rdata) {
+        switch (type) {
+            case RData.TYPE_NS:
+            case RData.TYPE_CNAME:
+            case RData.TYPE_PTR:
+                return lowercaseNames(rdata, 0, 1);
+            case RData.TYPE_MX:
+                return lowercaseNames(rdata, 2, 1);
+            case RData.TYPE_SOA:
+                return lowercaseNames(rdata, 0, 2);
+            default:
+                return rdata;
+        }
+    }
+
+    // A copy of the RDATA with the uncompressed names starting at offset lowercased
+    private static byte[] lowercaseNames(byte[] rdata, int offset, int names) {
+        byte[] copy = rdata.clone();
+        int position = offset;
+        for (int n = 0; n < names; n++) {
+            while (position < copy.length && copy[position] != 0) {
+                int length = copy[position] & 0xFF;
+                for (int i = position + 1; i <= position + length && i < copy.length; i++) {
+                    copy[i] = (byte) lowercase(copy[i]);
+                }
+                position += 1 + length;
+            }
+            position++;
+        }
+        return copy;
+    }
+
+    /**
+     * @return true if an NSEC record from owner to next proves name does not exist: it sorts
+     * between them, or after the last name of the zone, whose NSEC points back at the apex.
+     */
+    public static boolean covers(String[] owner, String[] next, String[] name) {
+        return compareNames(owner, name) < 0 && (compareNames(name, next) < 0 || compareNames(owner, next) >= 0);
+    }
+
+    /**
+     * @return true if an NSEC3 record from the owner hash to the next hash covers a hash, the same
+     * way as covers() but ordered as unsigned bytes.
+     */
+    public static boolean covers(byte[] ownerHash, byte[] nextHash, byte[] hash) {
+        return Arrays.compareUnsigned(ownerHash, hash) < 0
+                && (Arrays.compareUnsigned(hash, nextHash) < 0 || Arrays.compareUnsigned(ownerHash, nextHash) >= 0);
+    }
+
+    /**
+     * @return The NSEC3 hash of a name with the record's salt and iterations (RFC 5155 section 5):
+     * SHA-1 of the canonical name and salt, then again of the hash and salt iterations times.
+     */
+    public static byte[] nsec3Hash(String[] name, RData.NSEC3 parameters) throws GeneralSecurityException {
+        if (parameters.getHashAlgorithm() != NSEC3_SHA1) {
+            throw new GeneralSecurityException("Unsupported NSEC3 hash " + parameters.getHashAlgorithm());
+        }
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(canonicalName(name));
+        sha1.update(parameters.getSalt());
+        byte[] hash = sha1.digest();
+        for (int i = 0; i < parameters.getIterations(); i++) {
+            sha1.update(hash);
+            sha1.update(parameters.getSalt());
+            hash = sha1.digest();
+        }
+        return hash;
+    }
+
+    /**
+     * @return The hash an NSEC3 owner name's first label spells in base 32 with the extended hex
+     * alphabet, or null if the label is not such a hash.
+     */
+    public static byte[] nsec3OwnerHash(String[] owner) {
+        if (owner.length == 0) {
+            return null;
+        }
+        String label = owner[0];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(20);
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < label.length(); i++) {
+            int value = BASE32_HEX.indexOf(Character.toLowerCase(label.charAt(i)));
+            if (value < 0) {
+                return null;
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                out.write(buffer >>> bits);
+                buffer &= (1 << bits) - 1;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return A hash as an NSEC3 owner label, the reverse of nsec3OwnerHash(). Used to sign test zones.
+     */
+    public static String nsec3Label(byte[] hash) {
+        StringBuilder label = new StringBuilder(32);
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : hash) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                label.append(BASE32_HEX.charAt((buffer >>> bits) & 0x1F));
+            }
+        }
+        if (bits > 0) {
+            label.append(BASE32_HEX.charAt((buffer << (5 - bits)) & 0x1F));
+        }
+        return label.toString();
+    }
+
+    /**
+     * @return The key tag of a DNSKEY (RFC 4034 appendix B), which RRSIG and DS records use to
+     * point at it.
+     */
+    public static int keyTag(RData.DNSKEY key) {
+        byte[] rdata = key.toBytes();
+        long sum = 0;
+        for (int i = 0; i < rdata.length; i++) {
+            sum += (i & 1) == 0 ? (rdata[i] & 0xFF) << 8 : rdata[i] & 0xFF;
+        }
+        sum += (sum >>> 16) & 0xFFFF;
+        return (int) (sum & 0xFFFF);
+    }
+
+    /**
+     * @return The digest a DS record for the key holds: owner name and DNSKEY RDATA, hashed.
+     * @throws GeneralSecurityException If the digest type is not supported.
+     */
+    public static byte[] dsDigest(String[] owner, RData.DNSKEY key, int digestType) throws GeneralSecurityException {
+        String algorithm;
+        switch (digestType) {
+            case DIGEST_SHA1:
+                algorithm = "SHA-1";
+                break;
+            case DIGEST_SHA256:
+                algorithm = "SHA-256";
+                break;
+            case DIGEST_SHA384:
+                algorithm = "SHA-384";
+                break;
+            default:
+                throw new GeneralSecurityException("Unsupported DS digest type " + digestType);
+        }
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        digest.update(canonicalName(owner));
+        digest.update(key.toBytes());
+        return digest.digest();
+    }
+
+    /**
+     * @return true if the DS record is a digest of the key at the owner name.
+     */
+    public static boolean matches(RData.DS ds, String[] owner, RData.DNSKEY key, int keyTag) {
+        if (ds.getKeyTag() != keyTag || ds.getAlgorithm() != key.getAlgorithm() || !isSupportedDigest(ds.getDigestType())) {
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(ds.getDigest(), dsDigest(owner, key, ds.getDigestType()));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the public key of a DNSKEY: RSA as exponent length, exponent and modulus (RFC 3110),
+     * ECDSA P-256 as the two 32 byte coordinates of the point (RFC 6605).
+     *
+     * @throws GeneralSecurityException If the algorithm is not supported or the key is malformed.
+     */
+    public static PublicKey publicKey(RData.DNSKEY key) throws GeneralSecurityException {
+        byte[] bytes = key.getPublicKey();
+        if (key.getAlgorithm() == ALGORITHM_RSASHA256) {
+            if (bytes.length < 3) {
+                throw new GeneralSecurityException("RSA key too short");
+            }
+            int exponentLength = bytes[0] & 0xFF;
+            int start = 1;
+            if (exponentLength == 0) {
+                exponentLength = ((bytes[1] & 0xFF) << 8) | (bytes[2] & 0xFF);
+                start = 3;
+            }
+            if (start + exponentLength >= bytes.length) {
+                throw new GeneralSecurityException("RSA key too short");
+            }
+            BigInteger exponent = new BigInteger(1, Arrays.copyOfRange(bytes, start, start + exponentLength));
+            BigInteger modulus = new BigInteger(1, Arrays.copyOfRange(bytes, start + exponentLength, bytes.length));
+            return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        }
+        if (key.getAlgorithm() == ALGORITHM_ECDSAP256SHA256) {
+            if (bytes.length != 2 * P256_COORDINATE_SIZE) {
+                throw new GeneralSecurityException("P-256 key must be 64 bytes, not " + bytes.length);
+            }
+            BigInteger x = new BigInteger(1, Arrays.copyOfRange(bytes, 0, P256_COORDINATE_SIZE));
+            BigInteger y = new BigInteger(1, Arrays.copyOfRange(bytes, P256_COORDINATE_SIZE, bytes.length));
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), P256));
+        }
+        throw new GeneralSecurityException("Unsupported DNSKEY algorithm " + key.getAlgorithm());
+    }
+
+    /**
+     * Encodes a public key as DNSKEY RDATA, the reverse of publicKey(). Used to sign test zones.
+     *
+     * @param flags The DNSKEY flags, 257 for a key signing key and 256 for a zone signing key.
+     */
+    public static RData.DNSKEY dnskey(int flags, PublicKey key) throws GeneralSecurityException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(300);
+        if (key instanceof RSAPublicKey) {
+            byte[] exponent = unsigned(((RSAPublicKey) key).getPublicExponent(), 0);
+            byte[] modulus = unsigned(((RSAPublicKey) key).getModulus(), 0);
+            if (exponent.length > 255) {
+                out.write(0);
+                out.write(exponent.length >>> 8);
+            }
+            out.write(exponent.length);
+            out.write(exponent, 0, exponent.length);
+            out.write(modulus, 0, modulus.length);
+            return new RData.DNSKEY(flags, PROTOCOL, ALGORITHM_RSASHA256, out.toByteArray());
+        }
+        if (key instanceof ECPublicKey) {
+            ECPoint point = ((ECPublicKey) key).getW();
+            out.write(unsigned(point.getAffineX(), P256_COORDINATE_SIZE), 0, P256_COORDINATE_SIZE);
+            out.write(unsigned(point.getAffineY(), P256_COORDINATE_SIZE), 0, P256_COORDINATE_SIZE);
+            return new RData.DNSKEY(flags, PROTOCOL, ALGORITHM_ECDSAP256SHA256, out.toByteArray());
+        }
+        throw new GeneralSecurityException("Unsupported key " + key.getAlgorithm());
+    }
+
+    // Big-endian bytes without a sign byte, left-padded with zeros to size
+    private static byte[] unsigned(BigInteger value, int size) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        if (bytes.length >= size) {
+            return bytes;
+        }
+        byte[] padded = new byte[size];
+        System.arraycopy(bytes, 0, padded, size - bytes.length, bytes.length);
+        return padded;
+    }
+
+    /**
+     * @return A Signature for the algorithm, owned by the calling thread. ECDSA signatures in DNSSEC
+     * are the two 32 byte integers r and s one after the other, the IEEE P1363 format.
+     */
+    static Signature signature(int algorithm) throws GeneralSecurityException {
+        Signature[] cached = SIGNATURES.get();
+        int index = algorithm == ALGORITHM_RSASHA256 ? 0 : 1;
+        if (cached[index] == null) {
+            if (algorithm == ALGORITHM_RSASHA256) {
+                cached[index] = Signature.getInstance("SHA256withRSA");
+            } else if (algorithm == ALGORITHM_ECDSAP256SHA256) {
+                cached[index] = Signature.getInstance("SHA256withECDSAinP1363Format");
+            } else {
+                throw new GeneralSecurityException("Unsupported algorithm " + algorithm);
+            }
+        }
+        return cached[index];
+    }
+
+    /**
+     * Checks one signature. This is the expensive step that runs on DnssecValidator's workers.
+     *
+     * @return true if the signature over data was made with the key.
+     */
+    public static boolean verify(int algorithm, PublicKey key, byte[] data, byte[] signature) {
+        try {
+            Signature verifier = signature(algorithm);
+            verifier.initVerify(key);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if now is between the RRSIG's inception and expiration, compared with serial
+     * number arithmetic so the 32 bit times keep working after 2106.
+     */
+    public static boolean isCurrent(RData.RRSIG signature, long nowSeconds) {
+        return (int) (nowSeconds - signature.getInception()) >= 0 && (int) (signature.getExpiration() - nowSeconds) >= 0;
+    }
+
+    private static ECParameterSpec p256() {
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec("secp256r1"));
+            return parameters.getParameterSpec(ECParameterSpec.class);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("P-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,1012 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks upstream answers with DNSSEC (RFC 4033-4035) before they are cached.
+ *
+ * Every RRset of an answer must carry a signature made by its zone's key. A zone's keys are
+ * trusted when the parent zone has a signed DS record with their digest, and so on up to a trust
+ * anchor, by default the root key. Zones the parent proves unsigned (an NSEC or NSEC3 record
+ * without the DS bit) are insecure, their answers are passed on as they are. Negative answers must
+ * come with signed NSEC or NSEC3 records proving the name or the type does not exist.
+ *
+ * Two caches keep this cheap. Validated DNSKEY sets are kept per zone for as long as their TTLs
+ * and signatures allow, so the chain up to the root is walked once per zone and not per answer.
+ * The result of every signature check is kept by a digest of the signature, key and signed data
+ * for as long as the RRset's TTL, so an RRset that comes back again (a refresh, the NS set of a
+ * popular zone) is not checked again. Checks that do need the public key math run on a small pool
+ * of their own, and the DS and DNSKEY lookups on the fetch executor, so nothing here ever blocks
+ * the threads answering queries; they wait for the result with the same budget as the upstream.
+ */
+public class DnssecValidator {
+    // Validation results, worse is bigger so a whole answer is as bad as its worst RRset
+    public static final int SECURE = 0;
+    public static final int INSECURE = 1;
+    public static final int BOGUS = 2;
+
+    // The root zone's key signing key (KSK-2017) as a DS record, from https://data.iana.org/root-anchors/
+    public static final String DEFAULT_TRUST_ANCHOR =
+            ". 20326 8 2 E06D44B80B8F1D39A95C0B0D7C65D08458E880409BBC683457104237C7F8EC8D";
+
+    // A zone whose keys could not be validated is retried after this long
+    private static final long FAILURE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Trust anchors do not expire, an hour bounds how long their DNSKEY set is trusted without a re-check
+    private static final long ANCHOR_NANOS = TimeUnit.HOURS.toNanos(1);
+    private static final int RCODE_NOERROR = DNSCacheEntry.RCODE_NOERROR;
+    private static final int RCODE_NXDOMAIN = DNSCacheEntry.RCODE_NXDOMAIN;
+    private static final int TYPE_ANY = 255;
+
+    private final Upstream upstream;
+    private final Executor fetchExecutor;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, List<RData.DS>> trustAnchors;
+    private final int maxCachedResults;
+    // Validated keys, or proof there are none, per name looked up (see keysFor())
+    private final ConcurrentHashMap<String, CompletableFuture<ZoneKeys>> keys = new ConcurrentHashMap<>();
+    // Result of each signature check, by digest of signature, key and signed data
+    private final ConcurrentHashMap<ByteBuffer, Verdict> verdicts = new ConcurrentHashMap<>();
+
+    private final LongAdder secureCount = new LongAdder();
+    private final LongAdder insecureCount = new LongAdder();
+    private final LongAdder bogusCount = new LongAdder();
+    private final LongAdder signatureChecks = new LongAdder();
+    private final LongAdder verdictCacheHits = new LongAdder();
+    private final LongAdder keyCacheHits = new LongAdder();
+    private final LongAdder keyFetches = new LongAdder();
+    private final LongAdder keyFailures = new LongAdder();
+
+    // The validated keys of a zone, or why there are none, and until when that holds
+    static final class ZoneKeys {
+        final int status;
+        final String[] zone;
+        final List<Key> keys;
+        final long expiresAtNanos;
+
+        ZoneKeys(int status, String[] zone, List<Key> keys, long expiresAtNanos) {
+            this.status = status;
+            this.zone = zone;
+            this.keys = keys;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        static ZoneKeys insecure(String[] zone, long expiresAtNanos) {
+            return new ZoneKeys(INSECURE, zone, List.of(), expiresAtNanos);
+        }
+
+        static ZoneKeys bogus(String[] zone) {
+            return new ZoneKeys(BOGUS, zone, List.of(), System.nanoTime() + FAILURE_NANOS);
+        }
+
+        boolean isExpired(long nowNanos) {
+            return nowNanos - expiresAtNanos > 0;
+        }
+    }
+
+    // One DNSKEY, decoded once
+    static final class Key {
+        final RData.DNSKEY dnskey;
+        final int tag;
+        final PublicKey publicKey;
+
+        Key(RData.DNSKEY dnskey, int tag, PublicKey publicKey) {
+            this.dnskey = dnskey;
+            this.tag = tag;
+            this.publicKey = publicKey;
+        }
+    }
+
+    // Whether a signature checked out, and until when the answer may be reused
+    private static final class Verdict {
+        final boolean valid;
+        final long expiresAtNanos;
+
+        Verdict(boolean valid, long expiresAtNanos) {
+            this.valid = valid;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    // The records of one owner name and type from a section, with the RRSIGs covering them
+    static final class RRset {
+        final String[] owner;
+        final int type;
+        final List<DNSRecord> records = new ArrayList<>();
+        final List<RData.RRSIG> signatures = new ArrayList<>();
+        long expiresAtNanos;
+
+        RRset(String[] owner, int type, long expiresAtNanos) {
+            this.owner = owner;
+            this.type = type;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        void add(DNSRecord record) {
+            if (record.getExpiresAtNanos() - expiresAtNanos < 0) {
+                expiresAtNanos = record.getExpiresAtNanos();
+            }
+        }
+    }
+
+    // One signature that a key of the zone may have made
+    private static final class Candidate {
+        final RData.RRSIG signature;
+        final Key key;
+        final byte[] data;
+        final ByteBuffer cacheKey;
+        final long expiresAtNanos;
+
+        Candidate(RData.RRSIG signature, Key key, byte[] data, ByteBuffer cacheKey, long expiresAtNanos) {
+            this.signature = signature;
+            this.key = key;
+            this.data = data;
+            this.cacheKey = cacheKey;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * @param upstream         Where DS and DNSKEY records are looked up.
+     * @param fetchExecutor    Runs those lookups.
+     * @param trustAnchors     DS records of the zones trusted without a parent, see parseTrustAnchors().
+     * @param workers          Threads checking signatures.
+     * @param maxCachedResults Most signature results and zone keys kept.
+     */
+    public DnssecValidator(Upstream upstream, Executor fetchExecutor, Map<String, List<RData.DS>> trustAnchors,
+                           int workers, int maxCachedResults) {
+        this.upstream = upstream;
+        this.fetchExecutor = fetchExecutor;
+        this.trustAnchors = trustAnchors;
+        this.maxCachedResults = maxCachedResults;
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(4096),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "dns-dnssec-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Parses trust anchors written as DS records, "zone keytag algorithm digesttype hexdigest",
+     * several separated by ';'.
+     *
+     * @return The DS records by zone (see Dnssec.nameKey()).
+     * @throws IOException If an anchor is malformed.
+     */
+    public static Map<String, List<RData.DS>> parseTrustAnchors(String text) throws IOException {
+        Map<String, List<RData.DS>> anchors = new LinkedHashMap<>();
+        for (String anchor : text.split(";")) {
+            String[] fields = anchor.trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                continue;
+            }
+            if (fields.length != 5) {
+                throw new IOException("Trust anchor is not \"zone keytag algorithm digesttype digest\": " + anchor);
+            }
+            try {
+                String zone = fields[0].equals(".") ? "" : fields[0].endsWith(".") ? fields[0].substring(0, fields[0].length() - 1) : fields[0];
+                String[] name = zone.isEmpty() ? new String[0] : zone.split("\\.");
+                RData.DS ds = new RData.DS(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]), HexFormat.of().parseHex(fields[4]));
+                anchors.computeIfAbsent(Dnssec.nameKey(name), key -> new ArrayList<>()).add(ds);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed trust anchor: " + anchor, e);
+            }
+        }
+        if (anchors.isEmpty()) {
+            throw new IOException("No trust anchors");
+        }
+        return anchors;
+    }
+
+    /**
+     * Validates a response. Never blocks: the result completes once every key and signature it
+     * needs has been looked up and checked.
+     *
+     * @param question The question the response answers.
+     * @param response The decoded response, sent with the DO bit so it carries its signatures.
+     * @return SECURE, INSECURE or BOGUS.
+     */
+    public CompletableFuture<Integer> validate(DNSQuestion question, DNSMessage response) {
+        int rcode = response.getHeader().getRCode();
+        if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) {
+            // A failure proves nothing and is never cached
+            return CompletableFuture.completedFuture(INSECURE);
+        }
+        List<RRset> answers = rrsets(response.getAnswers());
+        List<RRset> authority = rrsets(response.getAuthorityRecords());
+        List<CompletableFuture<Integer>> checks = new ArrayList<>();
+        for (RRset rrset : answers) {
+            checks.add(checkRRset(rrset, authority));
+        }
+
+        // Follow the CNAME chain to the name the answer is really about
+        String[] target = question.getQname();
+        boolean positive = false;
+        for (int i = 0; i <= DNSCacheEntry.MAX_CNAME_CHAIN; i++) {
+            if (find(answers, target, question.getQtype()) != null
+                    || (question.getQtype() == TYPE_ANY && !answers.isEmpty())) {
+                positive = true;
+                break;
+            }
+            RRset cname = find(answers, target, RData.TYPE_CNAME);
+            if (cname == null || DNSCacheEntry.cnameTarget(cname.records.get(0)) == null) {
+                break;
+            }
+            target = DNSCacheEntry.cnameTarget(cname.records.get(0));
+        }
+        if (!positive && find(answers, target, RData.TYPE_CNAME) == null) {
+            checks.add(checkDenial(target, question.getQtype(), rcode, authority));
+        }
+
+        return worst(checks).thenApply(result -> {
+            count(result);
+            return result;
+        });
+    }
+
+    /**
+     * Asks the upstream a question with the DO bit and validates the answer, for cache refreshes.
+     * Blocks, so it must only be called from a thread that may wait.
+     *
+     * @return The response, marked authenticated if it is secure.
+     * @throws IOException If the exchange fails or the answer is bogus.
+     */
+    public DNSMessage resolve(DNSQuestion question) throws IOException {
+        DNSMessage response = query(question.getQname(), question.getQtype());
+        int result;
+        try {
+            result = validate(question, response).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating " + question);
+        } catch (ExecutionException e) {
+            throw new IOException("Validation of " + question + " failed", e.getCause());
+        }
+        if (result == BOGUS) {
+            throw new IOException("DNSSEC validation failed for " + question);
+        }
+        response.setAuthenticated(result == SECURE);
+        return response;
+    }
+
+    // An answer RRset: signed by a zone whose keys we trust, or from a zone proven unsigned
+    private CompletableFuture<Integer> checkRRset(RRset rrset, List<RRset> authority) {
+        RData.RRSIG first = signatureFromAncestor(rrset.signatures, rrset.owner);
+        if (first == null) {
+            // Only fine if the name is in an unsigned zone
+            return keysFor(rrset.owner).thenApply(zoneKeys -> zoneKeys.status == SECURE ? BOGUS : zoneKeys.status);
+        }
+        return keysFor(first.getSigner()).thenCompose(zoneKeys -> {
+            if (zoneKeys.status != SECURE) {
+                return CompletableFuture.completedFuture(zoneKeys.status);
+            }
+            return verifyRRset(rrset, zoneKeys).thenCompose(status -> {
+                if (status != SECURE || first.getLabels() >= Dnssec.labelCount(rrset.owner)) {
+                    return CompletableFuture.completedFuture(status);
+                }
+                // Made from a wildcard, which is only right if the name itself does not exist
+                return checkWildcard(rrset.owner, first.getLabels(), zoneKeys, authority);
+            });
+        });
+    }
+
+    // The first signature whose signer is the name or above it (RFC 4035 section 5.3.1). Any
+    // other signer is ignored: it could be an unsigned zone, naming it would make the answer insecure
+    private static RData.RRSIG signatureFromAncestor(List<RData.RRSIG> signatures, String[] name) {
+        for (RData.RRSIG signature : signatures) {
+            if (Dnssec.isSubdomain(name, signature.getSigner())) {
+                return signature;
+            }
+        }
+        return null;
+    }
+
+    // The authority section must prove that the name closer to the answer than the wildcard does not exist
+    private CompletableFuture<Integer> checkWildcard(String[] owner, int wildcardLabels, ZoneKeys zoneKeys, List<RRset> authority) {
+        String[] nextCloser = Arrays.copyOfRange(owner, owner.length - wildcardLabels - 1, owner.length);
+        List<RRset> proof = new ArrayList<>();
+        for (RRset rrset : authority) {
+            if (rrset.type == RData.TYPE_NSEC) {
+                for (DNSRecord record : rrset.records) {
+                    RData.NSEC nsec = (RData.NSEC) record.getData();
+                    if (Dnssec.covers(rrset.owner, nsec.getNext(), owner)) {
+                        proof.add(rrset);
+                    }
+                }
+            } else if (rrset.type == RData.TYPE_NSEC3 && nsec3Covers(rrset, nextCloser)) {
+                proof.add(rrset);
+            }
+        }
+        if (proof.isEmpty()) {
+            return CompletableFuture.completedFuture(BOGUS);
+        }
+        return verifyAll(proof, zoneKeys);
+    }
+
+    // A negative answer: the zone's SOA and the NSEC or NSEC3 records proving there is nothing
+    private CompletableFuture<Integer> checkDenial(String[] name, int qtype, int rcode, List<RRset> authority) {
+        List<RRset> proof = new ArrayList<>();
+        RData.RRSIG signed = null;
+        for (RRset rrset : authority) {
+            if (rrset.type == RData.TYPE_SOA || rrset.type == RData.TYPE_NSEC || rrset.type == RData.TYPE_NSEC3) {
+                proof.add(rrset);
+                if (signed == null) {
+                    signed = signatureFromAncestor(rrset.signatures, name);
+                }
+            }
+        }
+        if (signed == null) {
+            // Nothing signed by a zone above the name, only fine if the name is in an unsigned zone
+            return keysFor(name).thenApply(zoneKeys -> zoneKeys.status == SECURE ? BOGUS : zoneKeys.status);
+        }
+        return keysFor(signed.getSigner()).thenCompose(zoneKeys -> {
+            // Checked before the status, so no signer but the name's own zone can make it insecure
+            if (!Dnssec.isSubdomain(name, zoneKeys.zone)) {
+                return CompletableFuture.completedFuture(BOGUS);
+            }
+            if (zoneKeys.status != SECURE) {
+                return CompletableFuture.completedFuture(zoneKeys.status);
+            }
+            return verifyAll(proof, zoneKeys).thenApply(status ->
+                    status != SECURE ? status : proves(name, qtype, rcode, authority, zoneKeys.zone));
+        });
+    }
+
+    // Whether validated NSEC or NSEC3 records deny the name (NXDOMAIN) or the type at it (NODATA)
+    private static int proves(String[] name, int qtype, int rcode, List<RRset> authority, String[] zone) {
+        List<RRset> nsecs = new ArrayList<>();
+        List<RRset> nsec3s = new ArrayList<>();
+        for (RRset rrset : authority) {
+            if (rrset.type == RData.TYPE_NSEC) {
+                nsecs.add(rrset);
+            } else if (rrset.type == RData.TYPE_NSEC3) {
+                nsec3s.add(rrset);
+            }
+        }
+        if (!nsecs.isEmpty()) {
+            return provesWithNsec(name, qtype, rcode, nsecs) ? SECURE : BOGUS;
+        }
+        if (!nsec3s.isEmpty()) {
+            for (RRset rrset : nsec3s) {
+                RData.NSEC3 nsec3 = (RData.NSEC3) rrset.records.get(0).getData();
+                if (nsec3.getHashAlgorithm() != Dnssec.NSEC3_SHA1 || nsec3.getIterations() > Dnssec.MAX_NSEC3_ITERATIONS) {
+                    return INSECURE;
+                }
+            }
+            return provesWithNsec3(name, qtype, rcode, nsec3s, zone) ? SECURE : BOGUS;
+        }
+        return BOGUS;
+    }
+
+    private static boolean provesWithNsec(String[] name, int qtype, int rcode, List<RRset> nsecs) {
+        RRset covering = null;
+        RData.NSEC coveringNsec = null;
+        for (RRset rrset : nsecs) {
+            RData.NSEC nsec = (RData.NSEC) rrset.records.get(0).getData();
+            if (rcode == RCODE_NOERROR && Dnssec.compareNames(rrset.owner, name) == 0) {
+                // NODATA: the name exists without the type, or a CNAME that would have been followed
+                return !nsec.hasType(qtype) && !nsec.hasType(RData.TYPE_CNAME);
+            }
+            if (Dnssec.covers(rrset.owner, nsec.getNext(), name)) {
+                covering = rrset;
+                coveringNsec = nsec;
+            }
+        }
+        if (covering == null) {
+            return false;
+        }
+        if (rcode == RCODE_NOERROR && Dnssec.isSubdomain(coveringNsec.getNext(), name)) {
+            // NODATA for an empty non-terminal: nothing at the name but names below it
+            return true;
+        }
+        // The closest name that does exist, and the wildcard there that could have answered
+        int common = Math.max(commonLabels(name, covering.owner), commonLabels(name, coveringNsec.getNext()));
+        String[] wildcard = new String[common + 1];
+        wildcard[0] = "*";
+        System.arraycopy(name, name.length - common, wildcard, 1, common);
+        for (RRset rrset : nsecs) {
+            RData.NSEC nsec = (RData.NSEC) rrset.records.get(0).getData();
+            if (rcode == RCODE_NXDOMAIN && Dnssec.covers(rrset.owner, nsec.getNext(), wildcard)) {
+                return true;
+            }
+            if (rcode == RCODE_NOERROR && Dnssec.compareNames(rrset.owner, wildcard) == 0) {
+                // NODATA from a wildcard that exists without the type
+                return !nsec.hasType(qtype) && !nsec.hasType(RData.TYPE_CNAME);
+            }
+        }
+        return false;
+    }
+
+    // RFC 5155 section 8: NODATA needs the name's own NSEC3, NXDOMAIN the closest encloser proof
+    private static boolean provesWithNsec3(String[] name, int qtype, int rcode, List<RRset> nsec3s, String[] zone) {
+        if (rcode == RCODE_NOERROR) {
+            RRset matching = nsec3Matching(nsec3s, name);
+            if (matching != null) {
+                RData.NSEC3 nsec3 = (RData.NSEC3) matching.records.get(0).getData();
+                return !nsec3.hasType(qtype) && !nsec3.hasType(RData.TYPE_CNAME);
+            }
+            return false;
+        }
+        // The closest encloser exists, the next name towards the query does not, nor the wildcard
+        for (int labels = name.length - 1; labels >= zone.length; labels--) {
+            String[] encloser = Arrays.copyOfRange(name, name.length - labels, name.length);
+            if (nsec3Matching(nsec3s, encloser) == null) {
+                continue;
+            }
+            String[] nextCloser = Arrays.copyOfRange(name, name.length - labels - 1, name.length);
+            String[] wildcard = new String[labels + 1];
+            wildcard[0] = "*";
+            System.arraycopy(encloser, 0, wildcard, 1, labels);
+            return anyCovers(nsec3s, nextCloser) && anyCovers(nsec3s, wildcard);
+        }
+        return false;
+    }
+
+    private static RRset nsec3Matching(List<RRset> nsec3s, String[] name) {
+        for (RRset rrset : nsec3s) {
+            byte[] ownerHash = Dnssec.nsec3OwnerHash(rrset.owner);
+            byte[] hash = nsec3Hash(rrset, name);
+            if (ownerHash != null && hash != null && Arrays.equals(ownerHash, hash)) {
+                return rrset;
+            }
+        }
+        return null;
+    }
+
+    private static boolean anyCovers(List<RRset> nsec3s, String[] name) {
+        for (RRset rrset : nsec3s) {
+            if (nsec3Covers(rrset, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean nsec3Covers(RRset rrset, String[] name) {
+        RData data = rrset.records.get(0).getData();
+        byte[] ownerHash = Dnssec.nsec3OwnerHash(rrset.owner);
+        byte[] hash = nsec3Hash(rrset, name);
+        return data instanceof RData.NSEC3 && ownerHash != null && hash != null
+                && Dnssec.covers(ownerHash, ((RData.NSEC3) data).getNextHashed(), hash);
+    }
+
+    private static byte[] nsec3Hash(RRset rrset, String[] name) {
+        RData data = rrset.records.get(0).getData();
+        if (!(data instanceof RData.NSEC3)) {
+            return null;
+        }
+        try {
+            return Dnssec.nsec3Hash(name, (RData.NSEC3) data);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    // Labels two names share from the right
+    private static int commonLabels(String[] a, String[] b) {
+        int common = 0;
+        while (common < a.length && common < b.length
+                && a[a.length - 1 - common].equalsIgnoreCase(b[b.length - 1 - common])) {
+            common++;
+        }
+        return common;
+    }
+
+    /**
+     * The keys of the zone a name is in, validated up to a trust anchor, or INSECURE if the name
+     * is below an unsigned delegation, or BOGUS if the chain is broken. Lookups for the same name
+     * share one future, kept until the keys or the proof expire. A name below a zone cut already
+     * known to be unsigned is answered from that cut, so every name of an unsigned zone does not
+     * cost a DS lookup and an entry of its own.
+     */
+    CompletableFuture<ZoneKeys> keysFor(String[] name) {
+        String key = Dnssec.nameKey(name);
+        long now = System.nanoTime();
+        CompletableFuture<ZoneKeys> cached = keys.get(key);
+        if (cached != null && !(cached.isDone() && cached.join().isExpired(now))) {
+            keyCacheHits.increment();
+            return cached;
+        }
+        ZoneKeys enclosing = closestKnown(name, now);
+        if (enclosing != null && enclosing.status == INSECURE) {
+            keyCacheHits.increment();
+            return CompletableFuture.completedFuture(enclosing);
+        }
+        if (keys.size() >= maxCachedResults) {
+            keys.entrySet().removeIf(entry -> entry.getValue().isDone() && entry.getValue().join().isExpired(now));
+            if (keys.size() >= maxCachedResults) {
+                // Everything is still fresh, start over rather than grow without bound
+                keys.clear();
+            }
+        }
+        CompletableFuture<ZoneKeys> loading = new CompletableFuture<>();
+        CompletableFuture<ZoneKeys> current = keys.compute(key, (k, old) -> old != null && old != cached ? old : loading);
+        if (current != loading) {
+            return current;
+        }
+        CompletableFuture<ZoneKeys> loaded;
+        try {
+            loaded = loadKeys(name);
+        } catch (RuntimeException e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        loaded.whenComplete((zoneKeys, error) -> {
+            if (error != null) {
+                // A lookup that failed proves nothing, the next question tries again. Counted, not
+                // logged: an upstream that is down would otherwise print a line per question
+                keys.remove(key, loading);
+                keyFailures.increment();
+                loading.complete(ZoneKeys.bogus(name));
+            } else {
+                loading.complete(zoneKeys);
+            }
+        });
+        return loading;
+    }
+
+    // The keys already known for the closest name above this one, walking up label by label. null
+    // if none are known, or a trust anchor comes first: below an anchor the chain starts over
+    private ZoneKeys closestKnown(String[] name, long nowNanos) {
+        for (int skip = 1; skip <= name.length; skip++) {
+            String ancestorKey = Dnssec.nameKey(Arrays.copyOfRange(name, skip, name.length));
+            if (trustAnchors.containsKey(ancestorKey)) {
+                return null;
+            }
+            CompletableFuture<ZoneKeys> known = keys.get(ancestorKey);
+            if (known != null && known.isDone()) {
+                ZoneKeys zoneKeys = known.join();
+                if (!zoneKeys.isExpired(nowNanos)) {
+                    return zoneKeys;
+                }
+            }
+        }
+        return null;
+    }
+
+    private CompletableFuture<ZoneKeys> loadKeys(String[] name) {
+        List<RData.DS> anchor = trustAnchors.get(Dnssec.nameKey(name));
+        if (anchor != null) {
+            return keysMatching(name, anchor, System.nanoTime() + ANCHOR_NANOS);
+        }
+        if (name.length == 0) {
+            // No trust anchor above the name, nothing can be proven
+            return CompletableFuture.completedFuture(ZoneKeys.insecure(name, System.nanoTime() + ANCHOR_NANOS));
+        }
+        keyFetches.increment();
+        return fetch(name, RData.TYPE_DS).thenCompose(response -> delegation(name, response));
+    }
+
+    // What the parent says about a name: a signed DS, an unsigned delegation, or no zone cut at all
+    private CompletableFuture<ZoneKeys> delegation(String[] name, DNSMessage response) {
+        List<RRset> answers = rrsets(response.getAnswers());
+        List<RRset> authority = rrsets(response.getAuthorityRecords());
+        RRset ds = find(answers, name, RData.TYPE_DS);
+        RData.RRSIG signed = null;
+        if (ds != null && !ds.signatures.isEmpty()) {
+            signed = ds.signatures.get(0);
+        } else {
+            for (RRset rrset : authority) {
+                if (!rrset.signatures.isEmpty()) {
+                    signed = rrset.signatures.get(0);
+                    break;
+                }
+            }
+        }
+        if (signed == null) {
+            // Whoever answered does not sign, which is only fine if the zone above is unsigned too
+            return keysFor(Dnssec.parent(name)).thenApply(parent -> parent.status == SECURE ? ZoneKeys.bogus(name) : parent);
+        }
+        String[] signer = signed.getSigner();
+        if (signer.length >= name.length || !Dnssec.isSubdomain(name, signer)) {
+            // The answer must come from a zone above the name
+            return CompletableFuture.completedFuture(ZoneKeys.bogus(name));
+        }
+        RRset dsSet = ds;
+        return keysFor(signer).thenCompose(parent -> {
+            if (parent.status != SECURE) {
+                return CompletableFuture.completedFuture(parent);
+            }
+            if (dsSet != null && !dsSet.signatures.isEmpty()) {
+                return verifyRRset(dsSet, parent).thenCompose(status -> {
+                    if (status != SECURE) {
+                        return CompletableFuture.completedFuture(ZoneKeys.bogus(name));
+                    }
+                    List<RData.DS> records = new ArrayList<>();
+                    for (DNSRecord record : dsSet.records) {
+                        records.add((RData.DS) record.getData());
+                    }
+                    return keysMatching(name, records, dsSet.expiresAtNanos);
+                });
+            }
+            List<RRset> proof = new ArrayList<>();
+            for (RRset rrset : authority) {
+                if (rrset.type == RData.TYPE_NSEC || rrset.type == RData.TYPE_NSEC3) {
+                    proof.add(rrset);
+                }
+            }
+            return verifyAll(proof, parent).thenApply(status ->
+                    status != SECURE ? ZoneKeys.bogus(name) : withoutDs(name, proof, parent));
+        });
+    }
+
+    // No DS: an unsigned delegation if the name has NS and no DS, otherwise the name is in the parent's zone
+    private static ZoneKeys withoutDs(String[] name, List<RRset> proof, ZoneKeys parent) {
+        for (RRset rrset : proof) {
+            RData data = rrset.records.get(0).getData();
+            if (data instanceof RData.NSEC) {
+                RData.NSEC nsec = (RData.NSEC) data;
+                if (Dnssec.compareNames(rrset.owner, name) == 0) {
+                    if (nsec.hasType(RData.TYPE_DS)) {
+                        return ZoneKeys.bogus(name);
+                    }
+                    return nsec.hasType(RData.TYPE_NS) && !nsec.hasType(RData.TYPE_SOA)
+                            ? ZoneKeys.insecure(name, rrset.expiresAtNanos) : parent;
+                }
+                if (Dnssec.covers(rrset.owner, nsec.getNext(), name)) {
+                    return parent; // the name does not exist, so it is no zone cut
+                }
+            }
+        }
+        List<RRset> nsec3s = new ArrayList<>();
+        for (RRset rrset : proof) {
+            if (rrset.type == RData.TYPE_NSEC3) {
+                RData.NSEC3 nsec3 = (RData.NSEC3) rrset.records.get(0).getData();
+                if (nsec3.getHashAlgorithm() != Dnssec.NSEC3_SHA1 || nsec3.getIterations() > Dnssec.MAX_NSEC3_ITERATIONS) {
+                    return ZoneKeys.insecure(name, rrset.expiresAtNanos);
+                }
+                nsec3s.add(rrset);
+            }
+        }
+        if (nsec3s.isEmpty()) {
+            return ZoneKeys.bogus(name);
+        }
+        RRset matching = nsec3Matching(nsec3s, name);
+        if (matching != null) {
+            RData.NSEC3 nsec3 = (RData.NSEC3) matching.records.get(0).getData();
+            if (nsec3.hasType(RData.TYPE_DS)) {
+                return ZoneKeys.bogus(name);
+            }
+            return nsec3.hasType(RData.TYPE_NS) && !nsec3.hasType(RData.TYPE_SOA)
+                    ? ZoneKeys.insecure(name, matching.expiresAtNanos) : parent;
+        }
+        // Not listed: an opt-out range may hide an unsigned delegation (RFC 5155 section 6)
+        String[] nextCloser = name;
+        for (int labels = name.length - 1; labels >= parent.zone.length; labels--) {
+            String[] encloser = Arrays.copyOfRange(name, name.length - labels, name.length);
+            if (nsec3Matching(nsec3s, encloser) != null) {
+                nextCloser = Arrays.copyOfRange(name, name.length - labels - 1, name.length);
+                break;
+            }
+        }
+        for (RRset rrset : nsec3s) {
+            if (nsec3Covers(rrset, nextCloser)) {
+                RData.NSEC3 nsec3 = (RData.NSEC3) rrset.records.get(0).getData();
+                return nsec3.isOptOut() ? ZoneKeys.insecure(name, rrset.expiresAtNanos) : parent;
+            }
+        }
+        return ZoneKeys.bogus(name);
+    }
+
+    // Looks up a zone's DNSKEY set and trusts it if a key the DS records point to signed it
+    private CompletableFuture<ZoneKeys> keysMatching(String[] zone, List<RData.DS> dsRecords, long dsExpiresAtNanos) {
+        List<RData.DS> usable = new ArrayList<>();
+        for (RData.DS ds : dsRecords) {
+            if (Dnssec.isSupportedAlgorithm(ds.getAlgorithm()) && Dnssec.isSupportedDigest(ds.getDigestType())) {
+                usable.add(ds);
+            }
+        }
+        if (usable.isEmpty()) {
+            // RFC 4035 section 5.2: a zone signed only with algorithms we do not know is treated as unsigned
+            return CompletableFuture.completedFuture(ZoneKeys.insecure(zone, dsExpiresAtNanos));
+        }
+        keyFetches.increment();
+        return fetch(zone, RData.TYPE_DNSKEY).thenCompose(response -> {
+            RRset dnskeys = find(rrsets(response.getAnswers()), zone, RData.TYPE_DNSKEY);
+            if (dnskeys == null || dnskeys.signatures.isEmpty()) {
+                return CompletableFuture.completedFuture(ZoneKeys.bogus(zone));
+            }
+            List<Key> all = new ArrayList<>();
+            List<Key> entryPoints = new ArrayList<>();
+            for (DNSRecord record : dnskeys.records) {
+                RData.DNSKEY dnskey = (RData.DNSKEY) record.getData();
+                if ((dnskey.getFlags() & RData.DNSKEY.FLAG_ZONE) == 0 || dnskey.getProtocol() != Dnssec.PROTOCOL
+                        || !Dnssec.isSupportedAlgorithm(dnskey.getAlgorithm())) {
+                    continue;
+                }
+                Key key;
+                try {
+                    key = new Key(dnskey, Dnssec.keyTag(dnskey), Dnssec.publicKey(dnskey));
+                } catch (GeneralSecurityException e) {
+                    continue;
+                }
+                all.add(key);
+                for (RData.DS ds : usable) {
+                    if (Dnssec.matches(ds, zone, dnskey, key.tag)) {
+                        entryPoints.add(key);
+                        break;
+                    }
+                }
+            }
+            if (entryPoints.isEmpty()) {
+                return CompletableFuture.completedFuture(ZoneKeys.bogus(zone));
+            }
+            long expiresAt = dnskeys.expiresAtNanos - dsExpiresAtNanos < 0 ? dnskeys.expiresAtNanos : dsExpiresAtNanos;
+            // The DNSKEY set must be signed by a key the parent vouches for
+            ZoneKeys trusted = new ZoneKeys(SECURE, zone, entryPoints, expiresAt);
+            return verifyRRset(dnskeys, trusted).thenApply(status -> {
+                if (status != SECURE) {
+                    return ZoneKeys.bogus(zone);
+                }
+                // Trusted until a TTL runs out or the signature over the keys expires
+                long now = System.nanoTime();
+                return new ZoneKeys(SECURE, zone, all, now + Math.min(expiresAt - now, signaturesValidNanos(dnskeys)));
+            });
+        });
+    }
+
+    // How long until the first signature of an RRset expires
+    private static long signaturesValidNanos(RRset rrset) {
+        long now = System.currentTimeMillis() / 1000;
+        long nanos = Long.MAX_VALUE / 4;
+        for (RData.RRSIG signature : rrset.signatures) {
+            nanos = Math.min(nanos, TimeUnit.SECONDS.toNanos(Math.max(0, (int) (signature.getExpiration() - now))));
+        }
+        return nanos;
+    }
+
+    // Every RRset must verify, the result is the worst of them
+    private CompletableFuture<Integer> verifyAll(List<RRset> rrsets, ZoneKeys zoneKeys) {
+        List<CompletableFuture<Integer>> checks = new ArrayList<>();
+        for (RRset rrset : rrsets) {
+            checks.add(verifyRRset(rrset, zoneKeys));
+        }
+        return worst(checks);
+    }
+
+    // The worst of several results, once all of them are known
+    private static CompletableFuture<Integer> worst(List<CompletableFuture<Integer>> checks) {
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            int result = SECURE;
+            for (CompletableFuture<Integer> check : checks) {
+                result = Math.max(result, check.join());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Checks that one of an RRset's signatures was made by one of the zone's keys. Results already
+     * known are answered on the calling thread, the rest are checked on the workers.
+     */
+    CompletableFuture<Integer> verifyRRset(RRset rrset, ZoneKeys zoneKeys) {
+        long nowSeconds = System.currentTimeMillis() / 1000;
+        long now = System.nanoTime();
+        List<Candidate> candidates = new ArrayList<>();
+        boolean unsupportedOnly = !rrset.signatures.isEmpty();
+        for (RData.RRSIG signature : rrset.signatures) {
+            if (!Dnssec.isSupportedAlgorithm(signature.getAlgorithm())) {
+                continue;
+            }
+            unsupportedOnly = false;
+            if (Dnssec.compareNames(signature.getSigner(), zoneKeys.zone) != 0 || !Dnssec.isSubdomain(rrset.owner, zoneKeys.zone)
+                    || !Dnssec.isCurrent(signature, nowSeconds)) {
+                continue;
+            }
+            byte[] data = null;
+            for (Key key : zoneKeys.keys) {
+                if (key.tag != signature.getKeyTag() || key.dnskey.getAlgorithm() != signature.getAlgorithm()) {
+                    continue;
+                }
+                if (data == null) {
+                    data = Dnssec.signedData(signature, rrset.owner, rrset.records);
+                    if (data == null) {
+                        break;
+                    }
+                }
+                long validNanos = Math.min(rrset.expiresAtNanos - now,
+                        TimeUnit.SECONDS.toNanos((int) (signature.getExpiration() - nowSeconds)));
+                candidates.add(new Candidate(signature, key, data, cacheKey(signature, key, data), now + validNanos));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return CompletableFuture.completedFuture(unsupportedOnly ? INSECURE : BOGUS);
+        }
+
+        boolean allKnown = true;
+        for (Candidate candidate : candidates) {
+            Verdict verdict = verdicts.get(candidate.cacheKey);
+            if (verdict == null || now - verdict.expiresAtNanos > 0) {
+                allKnown = false;
+            } else {
+                verdictCacheHits.increment();
+                if (verdict.valid) {
+                    return CompletableFuture.completedFuture(SECURE);
+                }
+            }
+        }
+        if (allKnown) {
+            return CompletableFuture.completedFuture(BOGUS);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            for (Candidate candidate : candidates) {
+                signatureChecks.increment();
+                boolean valid = Dnssec.verify(candidate.signature.getAlgorithm(), candidate.key.publicKey,
+                        candidate.data, candidate.signature.getSignature());
+                remember(candidate, valid);
+                if (valid) {
+                    return SECURE;
+                }
+            }
+            return BOGUS;
+        }, workers);
+    }
+
+    private void remember(Candidate candidate, boolean valid) {
+        long now = System.nanoTime();
+        long expiresAt = valid || candidate.expiresAtNanos - (now + FAILURE_NANOS) < 0 ? candidate.expiresAtNanos : now + FAILURE_NANOS;
+        if (expiresAt - now <= 0) {
+            return;
+        }
+        if (verdicts.size() >= maxCachedResults) {
+            verdicts.entrySet().removeIf(entry -> now - entry.getValue().expiresAtNanos > 0);
+            if (verdicts.size() >= maxCachedResults) {
+                // Everything is still fresh, start over rather than grow without bound
+                verdicts.clear();
+            }
+        }
+        verdicts.put(candidate.cacheKey, new Verdict(valid, expiresAt));
+    }
+
+    // A digest of everything a signature check depends on, so a cached result cannot be reused for other data
+    private static ByteBuffer cacheKey(RData.RRSIG signature, Key key, byte[] data) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(signature.getSignature());
+            sha256.update(key.dnskey.toBytes());
+            sha256.update(data);
+            return ByteBuffer.wrap(sha256.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Looks a name up through the upstream with the DO bit, on the fetch executor
+    private CompletableFuture<DNSMessage> fetch(String[] name, int type) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return query(name, type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, fetchExecutor);
+    }
+
+    private DNSMessage query(String[] name, int type) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        byte[] query = Edns.withOpt(DNSMessage.buildQuery(new DNSQuestion(name, type, 1), id).toBytes(),
+                Edns.ADVERTISED_UDP_PAYLOAD, true);
+        return DNSMessage.decodeMessage(upstream.exchange(query, query.length));
+    }
+
+    // Groups a section into RRsets, each with the RRSIGs that cover it
+    static List<RRset> rrsets(List<DNSRecord> section) {
+        Map<String, RRset> byKey = new LinkedHashMap<>();
+        for (DNSRecord record : section) {
+            if (record.getType() == RData.TYPE_RRSIG || record.getType() == Edns.TYPE_OPT) {
+                continue;
+            }
+            String key = Dnssec.nameKey(record.getName()) + "/" + record.getType();
+            RRset rrset = byKey.computeIfAbsent(key, k -> new RRset(record.getName(), record.getType(), record.getExpiresAtNanos()));
+            rrset.records.add(record);
+            rrset.add(record);
+        }
+        for (DNSRecord record : section) {
+            if (record.getType() == RData.TYPE_RRSIG && record.getData() instanceof RData.RRSIG) {
+                RData.RRSIG signature = (RData.RRSIG) record.getData();
+                RRset rrset = byKey.get(Dnssec.nameKey(record.getName()) + "/" + signature.getTypeCovered());
+                if (rrset != null) {
+                    rrset.signatures.add(signature);
+                    rrset.add(record);
+                }
+            }
+        }
+        return new ArrayList<>(byKey.values());
+    }
+
+    private static RRset find(List<RRset> rrsets, String[] owner, int type) {
+        for (RRset rrset : rrsets) {
+            if (rrset.type == type && Dnssec.compareNames(rrset.owner, owner) == 0) {
+                return rrset;
+            }
+        }
+        return null;
+    }
+
+    private void count(int result) {
+        if (result == SECURE) {
+            secureCount.increment();
+        } else if (result == INSECURE) {
+            insecureCount.increment();
+        } else {
+            bogusCount.increment();
+        }
+    }
+
+    /**
+     * Stops the signature workers.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public long getSecureCount() {
+        return secureCount.sum();
+    }
+
+    public long getInsecureCount() {
+        return insecureCount.sum();
+    }
+
+    public long getBogusCount() {
+        return bogusCount.sum();
+    }
+
+    /**
+     * @return Signatures checked with the public key math, the ones the result cache did not know.
+     */
+    public long getSignatureCheckCount() {
+        return signatureChecks.sum();
+    }
+
+    public long getVerdictCacheHitCount() {
+        return verdictCacheHits.sum();
+    }
+
+    public long getKeyCacheHitCount() {
+        return keyCacheHits.sum();
+    }
+
+    /**
+     * @return DS and DNSKEY lookups sent upstream.
+     */
+    public long getKeyFetchCount() {
+        return keyFetches.sum();
+    }
+
+    /**
+     * @return Key lookups that failed (upstream errors or timeouts) and were answered as bogus.
+     */
+    public long getKeyFailureCount() {
+        return keyFailures.sum();
+    }
+
+    public int getCachedKeyCount() {
+        return keys.size();
+    }
+
+    public int getCachedVerdictCount() {
+        return verdicts.size();
+    }
+}
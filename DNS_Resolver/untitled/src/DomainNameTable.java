@@ -0,0 +1,383 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+                     (root, id 0)
+                      /        \
+                   com          org
+                  /    \          \
+            example    github     wikipedia
+            /     \       \
+          www     mail    www
+ */
+/**
+ * Interned domain names stored as a label trie, rooted at the DNS root.
+ * Every name is a node id. Names that share a suffix share the trie nodes for it, so millions
+ * of names under a handful of zones cost one node (a parent id and one label) each.
+ * Labels are stored as canonical lower-case bytes, which makes "Example.COM" and
+ * "example.com" the same node, and each node keeps a precomputed hash of its whole name.
+ *
+ * Lookups never lock and never allocate: children are found in one open-addressed table keyed
+ * by (parent id, label). Interning new names takes a lock. Nodes are never removed, so the
+ * table has a node limit; interning past it fails, is counted, and the caller has to keep such
+ * names some other way.
+ */
+public class DomainNameTable {
+    public static final int ROOT = 0;
+    public static final int NOT_FOUND = -1;
+
+    private static final int DEFAULT_MAX_NODES = 1 << 24;
+
+    // Everything readers need, replaced as a whole when the table grows
+    private static final class State {
+        final int[] parents; // node -> parent node
+        final byte[][] labels; // node -> lower-case label bytes
+        final int[] labelHashes; // node -> hash of its own label
+        final int[] nameHashes; // node -> hash of the whole name
+        final AtomicIntegerArray slots; // child table, holds node id + 1, 0 = empty
+        final int mask;
+
+        State(int nodeCapacity, int slotCapacity) {
+            parents = new int[nodeCapacity];
+            labels = new byte[nodeCapacity][];
+            labelHashes = new int[nodeCapacity];
+            nameHashes = new int[nodeCapacity];
+            slots = new AtomicIntegerArray(slotCapacity);
+            mask = slotCapacity - 1;
+        }
+    }
+
+    private final int maxNodes;
+    private volatile State state;
+    private volatile int size; // number of nodes, including the root
+    private final LongAdder rejected = new LongAdder(); // names not interned because the table was full
+
+    public DomainNameTable() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * @param maxNodes The most nodes the table may hold, bounding its memory.
+     */
+    public DomainNameTable(int maxNodes) {
+        this.maxNodes = maxNodes;
+        State initial = new State(1024, 2048);
+        initial.labels[ROOT] = new byte[0];
+        initial.parents[ROOT] = -1;
+        initial.nameHashes[ROOT] = 1;
+        this.state = initial;
+        this.size = 1;
+    }
+
+    /**
+     * Finds the node of a name without adding it.
+     *
+     * @param name The labels of the name ("www", "example", "com"), any letter case.
+     * @return The node id, or NOT_FOUND if the name was never interned.
+     */
+    public int lookup(String[] name) {
+        State current = state;
+        int node = ROOT;
+        for (int i = name.length - 1; i >= 0 && node != NOT_FOUND; i--) {
+            String label = name[i];
+            node = findChild(current, node, labelHash(label), label);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the longest suffix of a name that has been interned, for closest-enclosing lookups
+     * (the root if none of it has).
+     *
+     * @param name The labels of the name, any letter case.
+     * @return The node id of the longest interned suffix.
+     */
+    public int lookupClosest(String[] name) {
+        State current = state;
+        int node = ROOT;
+        for (int i = name.length - 1; i >= 0; i--) {
+            String label = name[i];
+            int child = findChild(current, node, labelHash(label), label);
+            if (child == NOT_FOUND) {
+                break;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Finds the node of a name inside a message without adding it. Allocates nothing.
+     *
+     * @param view       The message.
+     * @param nameOffset The offset of the name in the message.
+     * @param scratch    At least 128 ints of scratch space for label positions.
+     * @return The node id, or NOT_FOUND if the name was never interned (or is malformed).
+     */
+    public int lookup(DNSMessageView view, int nameOffset, int[] scratch) {
+        int count = view.collectLabels(nameOffset, scratch);
+        if (count < 0) {
+            return NOT_FOUND;
+        }
+        ByteBuffer buffer = view.getBuffer();
+        State current = state;
+        int node = ROOT;
+        for (int i = count - 1; i >= 0 && node != NOT_FOUND; i--) {
+            node = findChild(current, node, buffer, scratch[i]);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the longest interned suffix of a name inside a message (the root if none of it is).
+     * Allocates nothing.
+     *
+     * @param view       The message.
+     * @param nameOffset The offset of the name in the message.
+     * @param scratch    At least 128 ints of scratch space for label positions.
+     * @return The node id of the longest interned suffix, or NOT_FOUND if the name is malformed.
+     */
+    public int lookupClosest(DNSMessageView view, int nameOffset, int[] scratch) {
+        int count = view.collectLabels(nameOffset, scratch);
+        if (count < 0) {
+            return NOT_FOUND;
+        }
+        ByteBuffer buffer = view.getBuffer();
+        State current = state;
+        int node = ROOT;
+        for (int i = count - 1; i >= 0; i--) {
+            int child = findChild(current, node, buffer, scratch[i]);
+            if (child == NOT_FOUND) {
+                break;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node of a name, adding any missing nodes.
+     *
+     * @param name The labels of the name, any letter case.
+     * @return The node id, or NOT_FOUND if the table is full.
+     */
+    public int intern(String[] name) {
+        int found = lookup(name);
+        if (found != NOT_FOUND) {
+            return found;
+        }
+        synchronized (this) {
+            int node = ROOT;
+            for (int i = name.length - 1; i >= 0; i--) {
+                String label = name[i];
+                int hash = labelHash(label);
+                int child = findChild(state, node, hash, label);
+                if (child == NOT_FOUND) {
+                    child = addChild(node, hash, toLowerBytes(label));
+                    if (child == NOT_FOUND) {
+                        rejected.increment();
+                        return NOT_FOUND;
+                    }
+                }
+                node = child;
+            }
+            return node;
+        }
+    }
+
+    /**
+     * @return The canonical (lower-case) labels of a node's name. Allocates.
+     */
+    public String[] toLabels(int node) {
+        State current = state;
+        int depth = 0;
+        for (int n = node; n != ROOT; n = current.parents[n]) {
+            depth++;
+        }
+        String[] name = new String[depth];
+        int i = 0;
+        for (int n = node; n != ROOT; n = current.parents[n]) {
+            name[i++] = new String(current.labels[n], StandardCharsets.US_ASCII);
+        }
+        return name;
+    }
+
+    /**
+     * @return The precomputed case-insensitive hash of a node's whole name.
+     */
+    public int nameHash(int node) {
+        return state.nameHashes[node];
+    }
+
+    /**
+     * @return The parent of a node (the name with its leftmost label removed), -1 for the root.
+     */
+    public int parent(int node) {
+        return state.parents[node];
+    }
+
+    /**
+     * @return The number of nodes in the table, including the root.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of names intern() turned away because the table was full.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    // Child lookup by String label, case-insensitive
+    private static int findChild(State current, int parent, int hash, String label) {
+        int slot = slot(parent, hash) & current.mask;
+        while (true) {
+            int entry = current.slots.get(slot);
+            if (entry == 0) {
+                return NOT_FOUND;
+            }
+            int child = entry - 1;
+            if (current.parents[child] == parent && current.labelHashes[child] == hash
+                    && labelEquals(current.labels[child], label)) {
+                return child;
+            }
+            slot = (slot + 1) & current.mask;
+        }
+    }
+
+    // Child lookup by a label in a buffer (position of its length byte), case-insensitive
+    private static int findChild(State current, int parent, ByteBuffer buffer, int position) {
+        int length = buffer.get(position) & 0xFF;
+        int hash = length;
+        for (int k = 1; k <= length; k++) {
+            hash = 31 * hash + toLower(buffer.get(position + k));
+        }
+        int slot = slot(parent, hash) & current.mask;
+        while (true) {
+            int entry = current.slots.get(slot);
+            if (entry == 0) {
+                return NOT_FOUND;
+            }
+            int child = entry - 1;
+            if (current.parents[child] == parent && current.labelHashes[child] == hash
+                    && labelEquals(current.labels[child], buffer, position)) {
+                return child;
+            }
+            slot = (slot + 1) & current.mask;
+        }
+    }
+
+    // Adds a node, called with the lock held
+    private int addChild(int parent, int hash, byte[] label) {
+        int id = size;
+        if (id >= maxNodes) {
+            return NOT_FOUND;
+        }
+        State current = state;
+        // Keep the child table at most half full, and room for the new node
+        if (id >= current.parents.length || (id + 1) * 2 > current.slots.length()) {
+            current = grow(current, id + 1);
+        }
+        current.parents[id] = parent;
+        current.labels[id] = label;
+        current.labelHashes[id] = hash;
+        current.nameHashes[id] = 31 * current.nameHashes[parent] + hash;
+        // Publishing the slot (a volatile write) makes the node fields visible to readers
+        int slot = slot(parent, hash) & current.mask;
+        while (current.slots.get(slot) != 0) {
+            slot = (slot + 1) & current.mask;
+        }
+        current.slots.set(slot, id + 1);
+        size = id + 1;
+        return id;
+    }
+
+    // Copies everything into bigger arrays and publishes them
+    private State grow(State old, int needed) {
+        int nodeCapacity = old.parents.length;
+        while (nodeCapacity < needed) {
+            nodeCapacity *= 2;
+        }
+        int slotCapacity = old.slots.length();
+        while (slotCapacity < needed * 2) {
+            slotCapacity *= 2;
+        }
+        State grown = new State(nodeCapacity, slotCapacity);
+        int count = size;
+        System.arraycopy(old.parents, 0, grown.parents, 0, count);
+        System.arraycopy(old.labels, 0, grown.labels, 0, count);
+        System.arraycopy(old.labelHashes, 0, grown.labelHashes, 0, count);
+        System.arraycopy(old.nameHashes, 0, grown.nameHashes, 0, count);
+        for (int id = 1; id < count; id++) {
+            int slot = slot(grown.parents[id], grown.labelHashes[id]) & grown.mask;
+            while (grown.slots.get(slot) != 0) {
+                slot = (slot + 1) & grown.mask;
+            }
+            grown.slots.set(slot, id + 1);
+        }
+        state = grown;
+        return grown;
+    }
+
+    private static int slot(int parent, int labelHash) {
+        int mixed = (labelHash ^ (parent * 0x9E3779B9)) * 0x85EBCA6B;
+        return mixed ^ (mixed >>> 15);
+    }
+
+    private static int labelHash(String label) {
+        int hash = label.length();
+        for (int k = 0; k < label.length(); k++) {
+            hash = 31 * hash + toLower((byte) label.charAt(k));
+        }
+        return hash;
+    }
+
+    private static boolean labelEquals(byte[] canonical, String label) {
+        if (canonical.length != label.length()) {
+            return false;
+        }
+        for (int k = 0; k < canonical.length; k++) {
+            if (canonical[k] != (byte) toLower((byte) label.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean labelEquals(byte[] canonical, ByteBuffer buffer, int position) {
+        if (canonical.length != (buffer.get(position) & 0xFF)) {
+            return false;
+        }
+        for (int k = 0; k < canonical.length; k++) {
+            if (canonical[k] != (byte) toLower(buffer.get(position + 1 + k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toLowerBytes(String label) {
+        byte[] bytes = new byte[label.length()];
+        for (int k = 0; k < bytes.length; k++) {
+            bytes[k] = (byte) toLower((byte) label.charAt(k));
+        }
+        return bytes;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b & 0xFF;
+    }
+
+    @Override
+    public String toString() {
+        return "DomainNameTable{" +
+                "size=" + size +
+                ", maxNodes=" + maxNodes +
+                ", rejected=" + rejected.sum() +
+                '}';
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * EDNS0 (RFC 6891) helpers working directly on wire-format messages.
+ * Without EDNS a UDP message is limited to 512 bytes. A client that can take more puts an OPT
+ * pseudo record in the additional section whose CLASS field is the largest UDP payload it accepts.
+ * Anything that still does not fit is sent with the TC bit set, and the client retries over TCP.
+ */
+public class Edns {
+    static final int TYPE_OPT = DNSCacheEntry.TYPE_OPT;
+    // Limit for UDP messages without EDNS (RFC 1035)
+    public static final int DEFAULT_UDP_PAYLOAD = 512;
+    // Payload size we advertise by default, small enough to avoid IP fragmentation (DNS flag day 2020)
+    public static final int ADVERTISED_UDP_PAYLOAD = 1232;
+    // Largest UDP message we ever read
+    public static final int MAX_UDP_PAYLOAD = 4096;
+    // Root name, TYPE, CLASS, TTL, RDLENGTH
+    static final int OPT_RECORD_SIZE = 11;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int TC_BIT = 0x02; // in the third header byte
+    // "DNSSEC OK" in the flags half of the OPT record's TTL field (RFC 3225)
+    static final int DO_BIT = 0x8000;
+
+    /**
+     * @return The index of the OPT record in a message's additional section, or -1 if there is none.
+     */
+    public static int findOpt(DNSMessageView view) {
+        int firstAdditional = view.getAnswerCount() + view.getAuthorityCount();
+        for (int i = firstAdditional; i < view.getRecordCount(); i++) {
+            if (view.recordType(i) == TYPE_OPT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The largest UDP response the sender of a request accepts, 512 without EDNS.
+     */
+    public static int udpPayloadSize(DNSMessageView view) {
+        int opt = findOpt(view);
+        if (opt < 0) {
+            return DEFAULT_UDP_PAYLOAD;
+        }
+        // Values below 512 must be treated as 512
+        return Math.max(DEFAULT_UDP_PAYLOAD, view.recordClass(opt));
+    }
+
+    /**
+     * @return true if a request's OPT record has the DO bit, asking for DNSSEC records and the AD bit.
+     */
+    public static boolean isDnssecOk(DNSMessageView view) {
+        int opt = findOpt(view);
+        return opt >= 0 && (view.recordTtl(opt) & DO_BIT) != 0;
+    }
+
+    /**
+     * Appends an OPT record advertising a payload size and bumps ARCOUNT.
+     *
+     * @param message     The message, with room for OPT_RECORD_SIZE more bytes.
+     * @param length      The current message length.
+     * @param payloadSize The UDP payload size to advertise.
+     * @return The new message length.
+     */
+    public static int appendOpt(byte[] message, int length, int payloadSize) {
+        message[length] = 0; // root name
+        writeShort(message, length + 1, TYPE_OPT);
+        writeShort(message, length + 3, payloadSize);
+        // Extended RCODE, version 0, no flags, no options
+        Arrays.fill(message, length + 5, length + OPT_RECORD_SIZE, (byte) 0);
+        writeShort(message, 10, readShort(message, 10) + 1);
+        return length + OPT_RECORD_SIZE;
+    }
+
+    /**
+     * @return A copy of a message with an OPT record advertising a payload size appended.
+     */
+    public static byte[] withOpt(byte[] message, int payloadSize) {
+        return withOpt(message, payloadSize, false);
+    }
+
+    /**
+     * @return A copy of a message with an OPT record appended, with the DO bit set if dnssecOk.
+     */
+    public static byte[] withOpt(byte[] message, int payloadSize, boolean dnssecOk) {
+        byte[] copy = Arrays.copyOf(message, message.length + OPT_RECORD_SIZE);
+        appendOpt(copy, message.length, payloadSize);
+        if (dnssecOk) {
+            // The flags are the last two bytes of the TTL field
+            writeShort(copy, message.length + 7, DO_BIT);
+        }
+        return copy;
+    }
+
+    /**
+     * Prepares a client's request to be forwarded: its own OPT record keeps its flags and options
+     * (the DO bit, cookies, ...) but advertises our payload size, and a request without one gets ours,
+     * so the upstream sends large answers over UDP instead of truncating them at 512 bytes.
+     *
+     * @param view        The parsed request.
+     * @param request     The raw request.
+     * @param length      The number of valid bytes in request.
+     * @param payloadSize The UDP payload size to advertise upstream.
+     * @return The query to send upstream.
+     */
+    public static byte[] forUpstream(DNSMessageView view, byte[] request, int length, int payloadSize) {
+        return forUpstream(view, request, length, payloadSize, false);
+    }
+
+    /**
+     * Like forUpstream(view, request, length, payloadSize), and when dnssecOk also sets the DO bit
+     * so the upstream sends the RRSIG and NSEC records a validator needs.
+     */
+    public static byte[] forUpstream(DNSMessageView view, byte[] request, int length, int payloadSize, boolean dnssecOk) {
+        int opt = findOpt(view);
+        if (opt < 0) {
+            byte[] query = Arrays.copyOf(request, length + OPT_RECORD_SIZE);
+            appendOpt(query, length, payloadSize);
+            if (dnssecOk) {
+                writeShort(query, length + 7, DO_BIT);
+            }
+            return query;
+        }
+        byte[] query = Arrays.copyOf(request, length);
+        // CLASS sits just before the TTL
+        writeShort(query, view.ttlOffset(opt) - 2, payloadSize);
+        if (dnssecOk) {
+            int flags = view.ttlOffset(opt) + 2;
+            writeShort(query, flags, readShort(query, flags) | DO_BIT);
+        }
+        return query;
+    }
+
+    /**
+     * Cuts a response down to its header and question and sets TC, telling the client to retry over TCP.
+     *
+     * @param message     The response.
+     * @param questionEnd The offset just past the question section.
+     * @return The new message length.
+     */
+    public static int truncate(byte[] message, int questionEnd) {
+        message[2] |= TC_BIT;
+        // No answer, authority or additional records left
+        Arrays.fill(message, 6, HEADER_SIZE, (byte) 0);
+        return questionEnd;
+    }
+
+    /**
+     * @return true if a raw response has the TC bit set.
+     */
+    public static boolean isTruncated(byte[] message) {
+        return message.length > 2 && (message[2] & TC_BIT) != 0;
+    }
+
+    private static int readShort(byte[] message, int offset) {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] message, int offset, int value) {
+        message[offset] = (byte) (value >>> 8);
+        message[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves names itself, starting from the root servers and following referrals, instead of
+ * forwarding to a public resolver.
+ *
+ * For "www.example.com" the root refers us to the com servers, they refer us to example.com's
+ * servers, and those answer. Every referral is remembered in a DelegationCache, so the next query
+ * under example.com starts at example.com's servers. Referrals that come without glue (name
+ * servers whose addresses were not included) are resolved as separate lookups, all at once, and
+ * the first one to produce an address is used. CNAMEs are followed from the closest known zone
+ * of the target.
+ *
+ * Every lookup has a budget of queries, referrals and CNAMEs so that broken or malicious
+ * delegations cannot make it loop.
+ */
+public class IterativeResolver implements Upstream {
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_ANY = 255;
+    static final int CLASS_IN = 1;
+
+    private static final int MAX_REFERRALS = 16;
+    private static final int MAX_CNAMES = 8;
+    // Lookups of name server addresses nested inside lookups
+    private static final int MAX_DEPTH = 4;
+    // Glueless name servers resolved in parallel for one referral
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 3;
+    // Servers of one zone tried before giving up on it
+    private static final int MAX_SERVERS_PER_ZONE = 3;
+    // Longest a delegation is remembered, whatever its TTL says
+    private static final long MAX_DELEGATION_TTL = 86400;
+
+    // The 13 root servers (IPv4), as in the IANA root hints file
+    static final String DEFAULT_ROOT_HINTS = "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,192.203.230.10,"
+            + "192.5.5.241,192.112.36.4,198.97.190.53,192.36.148.17,192.58.128.30,193.0.14.129,199.7.83.42,202.12.27.33";
+
+    private final List<InetSocketAddress> rootServers;
+    private final DelegationCache delegations;
+    private final int timeoutMillis;
+    private final int maxQueries;
+    private final int serverPort; // port of authoritative servers learnt from glue and lookups
+    private final ConcurrentHashMap<InetSocketAddress, UpstreamResolver> servers = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param rootServers   The root hints to start from.
+     * @param delegations   Where zone cuts are remembered.
+     * @param timeoutMillis How long to wait for one authoritative server.
+     * @param maxQueries    Most queries one lookup may send, including nested lookups.
+     * @param serverPort    Port authoritative servers listen on, 53 except when testing against local servers.
+     */
+    public IterativeResolver(List<InetSocketAddress> rootServers, DelegationCache delegations, int timeoutMillis, int maxQueries,
+                             int serverPort) {
+        this(rootServers, delegations, timeoutMillis, maxQueries, serverPort, false);
+    }
+
+    /**
+     * @param virtualThreads Run nested lookups on virtual threads instead of a growing pool of platform threads.
+     * @see #IterativeResolver(List, DelegationCache, int, int, int)
+     */
+    public IterativeResolver(List<InetSocketAddress> rootServers, DelegationCache delegations, int timeoutMillis, int maxQueries,
+                             int serverPort, boolean virtualThreads) {
+        if (rootServers.isEmpty()) {
+            throw new IllegalArgumentException("At least one root server is needed");
+        }
+        this.rootServers = List.copyOf(rootServers);
+        this.delegations = delegations;
+        this.timeoutMillis = timeoutMillis;
+        this.maxQueries = maxQueries;
+        this.serverPort = serverPort;
+        // Nested lookups block while waiting on each other, so the pool must be able to grow
+        this.executor = virtualThreads ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dns-iterative-", 0).factory())
+                : Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "dns-iterative");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Resolves a client's query and encodes the answer as if a recursive resolver had sent it.
+     */
+    @Override
+    public byte[] exchange(byte[] query, int length) throws IOException {
+        DNSMessage request = DNSMessage.decodeMessage(Arrays.copyOf(query, length));
+        if (request.getQuestions().size() != 1) {
+            throw new IOException("Only single-question queries can be resolved");
+        }
+        DNSMessage result = lookup(request.getQuestions().get(0), new Budget(maxQueries), 0);
+        DNSMessage response = DNSMessage.buildResponse(request, result.getAnswers(), result.getAuthorityRecords(),
+                DNSCacheEntry.withoutOpt(result.getAdditionalRecords()), result.getHeader().getRCode());
+        return response.toBytes();
+    }
+
+    public DelegationCache getDelegations() {
+        return delegations;
+    }
+
+    // Limits on the work one lookup, with all its nested lookups, may do
+    private static final class Budget {
+        final AtomicInteger queries;
+
+        Budget(int maxQueries) {
+            this.queries = new AtomicInteger(maxQueries);
+        }
+
+        void spend() throws IOException {
+            if (queries.decrementAndGet() < 0) {
+                throw new IOException("Query budget exhausted");
+            }
+        }
+    }
+
+    // Resolves a question from the closest known zone, following referrals and CNAMEs
+    private DNSMessage lookup(DNSQuestion question, Budget budget, int depth) throws IOException {
+        String[] name = question.getQname();
+        ArrayList<DNSRecord> chain = new ArrayList<>(); // CNAMEs followed so far
+        int cnames = 0;
+
+        Zone zone = closestZone(name);
+        for (int referrals = 0; referrals <= MAX_REFERRALS; referrals++) {
+            DNSQuestion current = new DNSQuestion(name, question.getQtype(), question.getQclass());
+            byte[] responseBytes = ask(zone, current, budget, depth);
+            DNSMessageView view = new DNSMessageView();
+            if (!view.wrap(ByteBuffer.wrap(responseBytes))) {
+                throw new IOException("Malformed response from " + DNSMessage.joinDomainName(zone.name) + " servers");
+            }
+
+            int rCode = view.getRCode();
+            if (rCode == DNSCacheEntry.RCODE_NXDOMAIN) {
+                return finalAnswer(responseBytes, zone, chain, rCode);
+            }
+
+            // Answer for the name we asked: records of the type asked for, or a CNAME to follow
+            boolean answered = false;
+            int cnameIndex = -1;
+            for (int i = 0; i < view.getAnswerCount(); i++) {
+                if (!view.nameEquals(view.recordNameOffset(i), name)) {
+                    continue;
+                }
+                int type = view.recordType(i);
+                if (type == question.getQtype() || question.getQtype() == TYPE_ANY) {
+                    answered = true;
+                } else if (type == TYPE_CNAME && cnameIndex < 0) {
+                    cnameIndex = i;
+                }
+            }
+            if (answered) {
+                return finalAnswer(responseBytes, zone, chain, rCode);
+            }
+            if (cnameIndex >= 0) {
+                if (++cnames > MAX_CNAMES || !view.isValidName(view.rdataOffset(cnameIndex))) {
+                    throw new IOException("CNAME chain too long or broken at " + DNSMessage.joinDomainName(name));
+                }
+                String[] target = view.readName(view.rdataOffset(cnameIndex));
+                // Servers often include the target's records when they have them, then we are done.
+                // Only if the target is in the zone these servers are authoritative for: anything
+                // else they say about it is out of bailiwick and could poison the cache
+                if (isSubdomain(target, zone.name) && hasAnswer(view, target, question.getQtype())) {
+                    return finalAnswer(responseBytes, zone, chain, rCode);
+                }
+                // Keep the CNAME records for the final answer, then start over for the target
+                DNSMessage decoded = DNSMessage.decodeMessage(responseBytes);
+                for (DNSRecord record : decoded.getAnswers()) {
+                    if (record.getType() == TYPE_CNAME && isSubdomain(record.getName(), zone.name)) {
+                        chain.add(record);
+                    }
+                }
+                name = target;
+                zone = closestZone(name);
+                continue;
+            }
+
+            // No answer: either a referral to a zone closer to the name, or a final NODATA
+            Zone next = referral(view, zone, name, budget, depth);
+            if (next == null) {
+                return finalAnswer(responseBytes, zone, chain, rCode);
+            }
+            zone = next;
+        }
+        throw new IOException("Too many referrals for " + DNSMessage.joinDomainName(question.getQname()));
+    }
+
+    private static boolean hasAnswer(DNSMessageView view, String[] name, int qtype) {
+        for (int i = 0; i < view.getAnswerCount(); i++) {
+            if (view.recordType(i) == qtype && view.nameEquals(view.recordNameOffset(i), name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A zone and the servers to ask about it
+    private static final class Zone {
+        final String[] name;
+        final List<InetSocketAddress> servers;
+
+        Zone(String[] name, List<InetSocketAddress> servers) {
+            this.name = name;
+            this.servers = servers;
+        }
+    }
+
+    private Zone closestZone(String[] name) {
+        DelegationCache.Delegation delegation = delegations.findClosest(name);
+        if (delegation == null) {
+            return new Zone(new String[0], rootServers);
+        }
+        return new Zone(delegation.getZone(), delegation.getServers());
+    }
+
+    // Sends a question to a zone's servers, trying the next server when one fails or times out
+    private byte[] ask(Zone zone, DNSQuestion question, Budget budget, int depth) throws IOException {
+        List<InetSocketAddress> candidates = zone.servers;
+        int start = ThreadLocalRandom.current().nextInt(candidates.size());
+        IOException last = null;
+        for (int i = 0; i < Math.min(MAX_SERVERS_PER_ZONE, candidates.size()); i++) {
+            InetSocketAddress address = candidates.get((start + i) % candidates.size());
+            budget.spend();
+            int id = ThreadLocalRandom.current().nextInt(0x10000);
+            byte[] query = Edns.withOpt(DNSMessage.buildQuery(question, id, false).toBytes(), Edns.ADVERTISED_UDP_PAYLOAD);
+            try {
+                byte[] response = server(address).exchange(query, query.length);
+                int rCode = response.length > 3 ? response[3] & 0x0F : -1;
+                if (rCode == DNSCacheEntry.RCODE_NOERROR || rCode == DNSCacheEntry.RCODE_NXDOMAIN) {
+                    return response;
+                }
+                // SERVFAIL, REFUSED (lame delegation), ...: another server may do better
+                last = new IOException(address + " answered rcode " + rCode);
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        throw new IOException("No server for " + DNSMessage.joinDomainName(zone.name) + " answered (depth " + depth + ")", last);
+    }
+
+    private UpstreamResolver server(InetSocketAddress address) {
+        // One TCP connection is plenty for the rare truncated answer from an authoritative server
+        return servers.computeIfAbsent(address, a -> new UpstreamResolver(a, timeoutMillis, 1));
+    }
+
+    // Reads a referral: NS records for a zone below the current one that encloses the name
+    private Zone referral(DNSMessageView view, Zone zone, String[] name, Budget budget, int depth) throws IOException {
+        String[] child = null;
+        long ttl = MAX_DELEGATION_TTL;
+        ArrayList<String[]> serverNames = new ArrayList<>();
+        int authorityEnd = view.getAnswerCount() + view.getAuthorityCount();
+        for (int i = view.getAnswerCount(); i < authorityEnd; i++) {
+            if (view.recordType(i) != TYPE_NS || !view.isValidName(view.rdataOffset(i))) {
+                continue;
+            }
+            String[] owner = view.readName(view.recordNameOffset(i));
+            // Only accept a cut strictly below the zone we asked and above (or at) the name, anything
+            // else is a server trying to claim a zone it has no authority over
+            if (owner.length <= zone.name.length || !isSubdomain(owner, zone.name) || !isSubdomain(name, owner)) {
+                continue;
+            }
+            if (child == null) {
+                child = owner;
+            } else if (!sameName(child, owner)) {
+                continue;
+            }
+            ttl = Math.min(ttl, view.recordTtl(i));
+            serverNames.add(view.readName(view.rdataOffset(i)));
+        }
+        if (child == null) {
+            return null;
+        }
+
+        // Glue: addresses of those servers in the additional section, only trusted inside the zone we asked
+        ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = authorityEnd; i < view.getRecordCount(); i++) {
+            if (view.recordType(i) != TYPE_A || view.rdLength(i) != 4) {
+                continue;
+            }
+            String[] owner = view.readName(view.recordNameOffset(i));
+            if (!isSubdomain(owner, zone.name) || !contains(serverNames, owner)) {
+                continue;
+            }
+            addresses.add(new InetSocketAddress(readAddress(view, view.rdataOffset(i)), serverPort));
+        }
+
+        if (addresses.isEmpty()) {
+            // Glueless: look up the name servers' addresses ourselves
+            addresses.addAll(resolveServerAddresses(serverNames, child, budget, depth));
+            if (addresses.isEmpty()) {
+                throw new IOException("No address for any name server of " + DNSMessage.joinDomainName(child));
+            }
+        }
+        delegations.put(child, addresses, serverNames, ttl);
+        return new Zone(child, addresses);
+    }
+
+    // Resolves several name servers at once and returns the addresses of whichever answers first
+    private List<InetSocketAddress> resolveServerAddresses(List<String[]> serverNames, String[] zone, Budget budget, int depth) throws IOException {
+        if (depth >= MAX_DEPTH) {
+            throw new IOException("Name server lookups nested too deep for " + DNSMessage.joinDomainName(zone));
+        }
+        CompletableFuture<List<InetSocketAddress>> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger();
+        ArrayList<CompletableFuture<List<InetSocketAddress>>> lookups = new ArrayList<>();
+        for (String[] serverName : serverNames) {
+            // A name server inside the zone it serves can only be found through glue
+            if (isSubdomain(serverName, zone) || lookups.size() >= MAX_PARALLEL_NS_LOOKUPS) {
+                continue;
+            }
+            remaining.incrementAndGet();
+            lookups.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    DNSMessage answer = lookup(new DNSQuestion(serverName, TYPE_A, CLASS_IN), budget, depth + 1);
+                    return addressesOf(answer, serverPort);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        if (lookups.isEmpty()) {
+            return List.of();
+        }
+        for (CompletableFuture<List<InetSocketAddress>> lookup : lookups) {
+            lookup.whenComplete((addresses, error) -> {
+                if (error == null && !addresses.isEmpty()) {
+                    first.complete(addresses);
+                } else if (remaining.decrementAndGet() == 0) {
+                    first.complete(List.of());
+                }
+            });
+        }
+        try {
+            return first.get((long) timeoutMillis * MAX_SERVERS_PER_ZONE * MAX_REFERRALS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return List.of();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted resolving name servers of " + DNSMessage.joinDomainName(zone), e);
+        }
+    }
+
+    private static List<InetSocketAddress> addressesOf(DNSMessage answer, int port) {
+        ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+        for (DNSRecord record : answer.getAnswers()) {
+            if (record.getType() == TYPE_A && record.getRdata().length == 4) {
+                try {
+                    addresses.add(new InetSocketAddress(InetAddress.getByAddress(record.getRdata()), port));
+                } catch (IOException ignored) {
+                    // Cannot happen for 4 bytes
+                }
+            }
+        }
+        return addresses;
+    }
+
+    // The answer with the CNAMEs followed to get there, and only the records the zone's servers
+    // may speak for: whatever they add about names outside their zone is dropped
+    private static DNSMessage finalAnswer(byte[] responseBytes, Zone zone, ArrayList<DNSRecord> chain, int rCode) throws IOException {
+        DNSMessage response = DNSMessage.decodeMessage(responseBytes);
+        ArrayList<DNSRecord> answers = new ArrayList<>(chain);
+        answers.addAll(inZone(response.getAnswers(), zone.name));
+        return DNSMessage.buildResponse(response, answers, inZone(response.getAuthorityRecords(), zone.name),
+                inZone(response.getAdditionalRecords(), zone.name), rCode);
+    }
+
+    private static ArrayList<DNSRecord> inZone(ArrayList<DNSRecord> records, String[] zone) {
+        ArrayList<DNSRecord> kept = new ArrayList<>(records.size());
+        for (DNSRecord record : records) {
+            if (isSubdomain(record.getName(), zone)) {
+                kept.add(record);
+            }
+        }
+        return kept;
+    }
+
+    private static InetAddress readAddress(DNSMessageView view, int offset) throws IOException {
+        byte[] address = new byte[4];
+        view.getBuffer().get(view.getBase() + offset, address);
+        return InetAddress.getByAddress(address);
+    }
+
+    // true if name equals zone or is below it
+    static boolean isSubdomain(String[] name, String[] zone) {
+        if (name.length < zone.length) {
+            return false;
+        }
+        int offset = name.length - zone.length;
+        for (int i = 0; i < zone.length; i++) {
+            if (!name[offset + i].equalsIgnoreCase(zone[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameName(String[] a, String[] b) {
+        return a.length == b.length && isSubdomain(a, b);
+    }
+
+    private static boolean contains(List<String[]> names, String[] name) {
+        for (String[] candidate : names) {
+            if (sameName(candidate, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "IterativeResolver{" +
+                "rootServers=" + rootServers.size() +
+                ", delegations=" + delegations +
+                ", timeoutMillis=" + timeoutMillis +
+                ", maxQueries=" + maxQueries +
+                '}';
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets that double in width: bucket i holds durations from 2^i to
+ * 2^(i+1) nanoseconds. 40 buckets cover a nanosecond to nine minutes, and a percentile read from
+ * them is within a factor of two, which is plenty to see p99 move.
+ * Recording is one bucket index computation and two LongAdder additions: no locks, no allocation,
+ * and threads recording at once do not contend, so it can stay on in production.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos A duration, from System.nanoTime() differences.
+     */
+    public void record(long nanos) {
+        int bucket = nanos <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+        buckets[bucket].increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * @return The number of durations recorded.
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The mean duration in nanoseconds, 0 if none were recorded.
+     */
+    public long meanNanos() {
+        long count = count();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    /**
+     * @return The longest duration recorded, in nanoseconds.
+     */
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Estimates a percentile as the upper edge of the bucket it falls in.
+     *
+     * @param percentile From 0 to 100.
+     * @return The duration in nanoseconds, 0 if none were recorded.
+     */
+    public long percentileNanos(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Never more than the longest one actually seen
+                return Math.min(2L << i, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" +
+                "count=" + count() +
+                ", meanMicros=" + meanNanos() / 1000 +
+                ", p99Micros=" + percentileNanos(99) / 1000 +
+                ", maxMicros=" + maxNanos() / 1000 +
+                '}';
+    }
+}
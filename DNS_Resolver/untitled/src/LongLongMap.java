@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * A map from long keys to long values held in two primitive arrays, with no object per entry.
+ * Open addressing with linear probing; removal shifts the following entries back instead of
+ * leaving tombstones, so lookups never slow down after many removals. Keys must not be negative
+ * (EMPTY marks a free slot), which holds for DNSQuestion.cacheKey() and hashedCacheKey().
+ *
+ * Not thread-safe: the caller locks (see OffHeapStore). A reader racing a writer may see a
+ * half-updated table, but a lookup always ends, so it can be retried under a lock.
+ */
+public final class LongLongMap {
+    public static final long NOT_FOUND = -1;
+    private static final long EMPTY = -1;
+    private static final double MAX_LOAD = 0.7;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    /**
+     * @param expectedSize Entries to make room for before the table has to grow.
+     */
+    public LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        keys = newKeys(capacity);
+        values = new long[capacity];
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    /**
+     * @return The value for a key, or NOT_FOUND.
+     */
+    public long get(long key) {
+        long[] k = keys;
+        long[] v = values;
+        int mask = Math.min(k.length, v.length) - 1;
+        int slot = slot(key, mask);
+        // Bounded, so a lookup racing a resize still ends
+        for (int probes = 0; probes <= mask; probes++) {
+            long found = k[slot];
+            if (found == key) {
+                return v[slot];
+            }
+            if (found == EMPTY) {
+                return NOT_FOUND;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Sets the value for a key.
+     *
+     * @return The previous value, or NOT_FOUND.
+     */
+    public long put(long key, long value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                long previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length * MAX_LOAD) {
+            grow();
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return The value it had, or NOT_FOUND.
+     */
+    public long remove(long key) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                return NOT_FOUND;
+            }
+            slot = (slot + 1) & mask;
+        }
+        long previous = values[slot];
+        // Shift back every following entry that would not be found past the new gap
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = slot(keys[next], mask);
+            // Move it if its home slot is not between the gap and where it sits now
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return previous;
+    }
+
+    /**
+     * Calls the visitor for every entry. The visitor must not change the map.
+     */
+    public void forEach(Visitor visitor) {
+        long[] k = keys;
+        long[] v = values;
+        for (int i = 0; i < k.length; i++) {
+            if (k[i] != EMPTY) {
+                visitor.visit(k[i], v[i]);
+            }
+        }
+    }
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        int capacity = oldKeys.length * 2;
+        long[] newKeys = newKeys(capacity);
+        long[] newValues = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i], mask);
+                while (newKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = oldKeys[i];
+                newValues[slot] = oldValues[i];
+            }
+        }
+        // Values first: a racing reader that sees the new keys with the old values fails validation
+        values = newValues;
+        keys = newKeys;
+    }
+
+    // Spread the key bits (the low bits of a cache key are the type and class, which repeat a lot)
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,291 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the whole server, shown over JMX and as plain text on a
+ * small local HTTP endpoint.
+ *
+ * The query path only ever adds to LongAdders and LatencyHistograms, which are striped so threads
+ * answering at once do not contend, and never allocate once warm. Numbers kept by other parts of
+ * the server (cache size, evictions, rate limiter and query log counts...) are not copied in on
+ * every query: they are registered once as gauges and only read when someone looks.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final int OUTCOMES = QueryLog.OUTCOMES.length;
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final LongAdder[] answered = new LongAdder[OUTCOMES];
+    private final LongAdder udpQueries = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    // Things that used to be a log line per query
+    private final LongAdder upstreamFailures = new LongAdder();
+    private final LongAdder uncacheable = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+
+    // Registered at startup, read when rendering
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    // Queries per second over the last sample interval, updated by the sampler thread
+    private volatile double queriesPerSecond;
+
+    public Metrics() {
+        for (int i = 0; i < OUTCOMES; i++) {
+            answered[i] = new LongAdder();
+        }
+        histograms.put("dns_query_latency", queryLatency);
+        histograms.put("dns_decode_time", decodeTime);
+        histograms.put("dns_encode_time", encodeTime);
+    }
+
+    /**
+     * Called when a query starts being answered.
+     */
+    public void queryStarted(boolean udp) {
+        inFlight.increment();
+        (udp ? udpQueries : tcpQueries).increment();
+    }
+
+    /**
+     * Called when a query has been answered (or dropped).
+     *
+     * @param outcome A QueryLog outcome, or -1 if the query was dropped.
+     * @param nanos   How long it took.
+     */
+    public void queryFinished(int outcome, long nanos) {
+        inFlight.decrement();
+        if (outcome < 0) {
+            dropped.increment();
+            return;
+        }
+        answered[outcome].increment();
+        queryLatency.record(nanos);
+    }
+
+    public void recordDecode(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    public void recordEncode(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    /**
+     * Called when the upstream failed or missed the time budget for a query.
+     */
+    public void recordUpstreamFailure() {
+        upstreamFailures.increment();
+    }
+
+    /**
+     * Called when an upstream response could not be cached (REFUSED, SERVFAIL...).
+     */
+    public void recordUncacheable() {
+        uncacheable.increment();
+    }
+
+    /**
+     * Called when a UDP answer was too big for the client and sent truncated.
+     */
+    public void recordTruncated() {
+        truncated.increment();
+    }
+
+    /**
+     * Adds a number kept elsewhere in the server, read only when the metrics are looked at.
+     */
+    public synchronized void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Adds a histogram kept elsewhere in the server, such as one upstream's round trip times.
+     */
+    public synchronized void registerHistogram(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * Registers with the platform MBean server as "dns:type=Metrics".
+     */
+    public void registerJmx() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("dns:type=Metrics"));
+    }
+
+    /**
+     * Serves render() at http://127.0.0.1:port/metrics. Only bound to the loopback address.
+     *
+     * @throws IOException If the port cannot be bound.
+     */
+    public void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * Samples the query rate once a second.
+     */
+    public void startSampler() {
+        Thread sampler = new Thread(() -> {
+            long lastQueries = getQueries();
+            long lastNanos = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long queries = getQueries();
+                long now = System.nanoTime();
+                queriesPerSecond = (queries - lastQueries) * 1e9 / (now - lastNanos);
+                lastQueries = queries;
+                lastNanos = now;
+            }
+        }, "dns-metrics-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    @Override
+    public long getQueries() {
+        return udpQueries.sum() + tcpQueries.sum();
+    }
+
+    @Override
+    public double getQueriesPerSecond() {
+        return queriesPerSecond;
+    }
+
+    @Override
+    public double getHitRatio() {
+        return ratio(QueryLog.HIT);
+    }
+
+    @Override
+    public double getMissRatio() {
+        return ratio(QueryLog.MISS);
+    }
+
+    @Override
+    public double getStaleRatio() {
+        return ratio(QueryLog.STALE);
+    }
+
+    // Share of answered queries with an outcome
+    private double ratio(int outcome) {
+        long total = 0;
+        for (LongAdder count : answered) {
+            total += count.sum();
+        }
+        return total == 0 ? 0 : (double) answered[outcome].sum() / total;
+    }
+
+    @Override
+    public long getQueriesInFlight() {
+        return inFlight.sum();
+    }
+
+    @Override
+    public long getDroppedQueries() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return queryLatency.percentileNanos(50) / 1000;
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return queryLatency.percentileNanos(99) / 1000;
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return queryLatency.percentileNanos(99.9) / 1000;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * @return Every metric as "name value" lines, histograms as quantiles in microseconds.
+     */
+    @Override
+    public synchronized String render() {
+        StringBuilder text = new StringBuilder(4096);
+        line(text, "dns_queries_total{transport=\"udp\"}", udpQueries.sum());
+        line(text, "dns_queries_total{transport=\"tcp\"}", tcpQueries.sum());
+        text.append("dns_queries_per_second ").append(String.format("%.1f", queriesPerSecond)).append('\n');
+        for (int i = 0; i < OUTCOMES; i++) {
+            line(text, "dns_answers_total{outcome=\"" + QueryLog.OUTCOMES[i] + "\"}", answered[i].sum());
+        }
+        line(text, "dns_dropped_total", dropped.sum());
+        line(text, "dns_queries_in_flight", inFlight.sum());
+        line(text, "dns_upstream_failed_total", upstreamFailures.sum());
+        line(text, "dns_uncacheable_total", uncacheable.sum());
+        line(text, "dns_truncated_total", truncated.sum());
+        for (Map.Entry<String, Long> gauge : getGauges().entrySet()) {
+            line(text, gauge.getKey(), gauge.getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            histogram(text, histogram.getKey(), histogram.getValue());
+        }
+        return text.toString();
+    }
+
+    private static void histogram(StringBuilder text, String name, LatencyHistogram histogram) {
+        // A name with labels already ("x{server=...}") gets the quantile added to them
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1) + ",";
+        for (String quantile : QUANTILES) {
+            line(text, base + "_us{" + labels + "quantile=\"" + quantile + "\"}",
+                    histogram.percentileNanos(Double.parseDouble(quantile) * 100) / 1000);
+        }
+        line(text, base + "_us_max" + (brace < 0 ? "" : name.substring(brace)), histogram.maxNanos() / 1000);
+        line(text, base + "_us_mean" + (brace < 0 ? "" : name.substring(brace)), histogram.meanNanos() / 1000);
+        line(text, base + "_count" + (brace < 0 ? "" : name.substring(brace)), histogram.count());
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
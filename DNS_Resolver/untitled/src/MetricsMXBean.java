@@ -0,0 +1,36 @@
+import java.util.Map;
+
+/**
+ * What Metrics shows over JMX (jconsole, VisualVM), under "dns:type=Metrics".
+ */
+public interface MetricsMXBean {
+    long getQueries();
+
+    double getQueriesPerSecond();
+
+    double getHitRatio();
+
+    double getMissRatio();
+
+    double getStaleRatio();
+
+    long getQueriesInFlight();
+
+    long getDroppedQueries();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    /**
+     * @return Every gauge and counter registered by other parts of the server, by name.
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return Everything, in the text format of the HTTP endpoint.
+     */
+    String render();
+}
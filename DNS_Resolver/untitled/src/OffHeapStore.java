@@ -0,0 +1,357 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ Block layout, one cached response per block:
+   size class (1) | expires at, System.nanoTime() (8) | wire length (2) | question end (2)
+   TTL count (2) | TTL count x (offset (2) | expires at (8)) | encoded response
+ */
+/**
+ * Cached responses kept outside the Java heap, for caches of millions of entries.
+ * Each response is stored already encoded, with where its TTLs are, in a block of a large direct
+ * buffer. The heap only holds the index: primitive long arrays mapping the cache key to the
+ * block's address, so the garbage collector has the same small amount of work whatever the cache
+ * holds, and a hit is one array lookup and one copy into the outbound buffer.
+ *
+ * Memory is handed out by a slab allocator: segments of SEGMENT_SIZE are cut into 1 MB slabs,
+ * and each slab into equal blocks of one size class (powers of two from 64 bytes). Freed blocks
+ * go on their class's free list and are reused as they are, so there is no fragmentation to
+ * compact. When every segment is used and a class has no free block, the response is not cached.
+ *
+ * The index is split into stripes, each behind a StampedLock. Lookups are optimistic: they read
+ * the index and copy the block without locking, then check nothing was written meanwhile, and
+ * only retry under the read lock if something was. A block is freed only after its stripe's
+ * write lock is released, which makes any reader still copying it retry.
+ */
+public final class OffHeapStore {
+    static final int SEGMENT_SIZE = 64 << 20;
+    static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SHIFT = 6; // 64 bytes
+    private static final int SIZE_CLASSES = 15; // up to 1 MB, one block per slab
+    private static final int STRIPES = 64;
+    private static final int HEADER_SIZE = 15;
+    private static final int TTL_ENTRY_SIZE = 10;
+
+    private final long maxBytes;
+    private final ArrayList<ByteBuffer> segments = new ArrayList<>();
+    private volatile ByteBuffer[] segmentArray = new ByteBuffer[0]; // what readers use, grows by copy
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // Allocator state, guarded by this
+    private final long[][] freeBlocks = new long[SIZE_CLASSES][];
+    private final int[] freeCounts = new int[SIZE_CLASSES];
+    private int slabsInLastSegment = SEGMENT_SIZE / SLAB_SIZE; // forces a first segment
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private int sweepCursor;
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        final LongLongMap index = new LongLongMap(1024);
+    }
+
+    /**
+     * @param maxBytes Most direct memory to use, rounded down to whole segments (at least one).
+     */
+    public OffHeapStore(long maxBytes) {
+        this.maxBytes = Math.max(SEGMENT_SIZE, maxBytes);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            freeBlocks[i] = new long[16];
+        }
+    }
+
+    /**
+     * Stores an encoded response.
+     *
+     * @param key            The cache key (DNSQuestion.hashedCacheKey).
+     * @param response       The encoded response.
+     * @param expiresAtNanos When the whole entry expires.
+     * @param replace        false to keep an entry already stored for the key.
+     * @return true if stored, false if the key was present (and replace is false), or there was no room.
+     */
+    public boolean put(long key, WireResponse response, long expiresAtNanos, boolean replace) {
+        byte[] wire = response.getWire();
+        int[] ttlOffsets = response.getTtlOffsets();
+        long[] ttlExpiries = response.getTtlExpiresAtNanos();
+        int size = HEADER_SIZE + ttlOffsets.length * TTL_ENTRY_SIZE + wire.length;
+        int sizeClass = sizeClass(size);
+        long address = sizeClass < 0 ? -1 : allocate(sizeClass);
+        if (address < 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        // Fill the block before it is reachable from the index
+        ByteBuffer segment = segmentArray[segmentOf(address)];
+        int position = offsetOf(address);
+        segment.put(position, (byte) sizeClass);
+        segment.putLong(position + 1, expiresAtNanos);
+        segment.putShort(position + 9, (short) wire.length);
+        segment.putShort(position + 11, (short) response.getQuestionEnd());
+        segment.putShort(position + 13, (short) ttlOffsets.length);
+        position += HEADER_SIZE;
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            segment.putShort(position, (short) ttlOffsets[i]);
+            segment.putLong(position + 2, ttlExpiries[i]);
+            position += TTL_ENTRY_SIZE;
+        }
+        segment.put(position, wire);
+
+        Stripe stripe = stripe(key);
+        boolean stored = true;
+        long previous;
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (!replace && stripe.index.get(key) != LongLongMap.NOT_FOUND) {
+                stored = false;
+                previous = address; // ours was not needed
+            } else {
+                previous = stripe.index.put(key, address);
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        // Only now that no new lookup can reach the old block
+        if (previous != LongLongMap.NOT_FOUND) {
+            free(previous);
+        }
+        return stored;
+    }
+
+    /**
+     * Writes the stored response for a key into an outbound buffer, patched for the request.
+     *
+     * @param key           The cache key.
+     * @param request       The raw request.
+     * @param requestLength The number of valid bytes in request.
+     * @param requestQuestionEnd The offset just past the request's question section.
+     * @param out           The buffer to write into.
+     * @param nowNanos      The current System.nanoTime().
+     * @param staleTtl      -1 to answer only from an unexpired entry, otherwise answer only from an
+     *                      expired one no more than graceNanos past its expiry, with this TTL.
+     * @param graceNanos    How long past expiry an entry may be served stale.
+     * @return The response length, or -1 if there is no suitable entry or its question is not the
+     *         request's.
+     */
+    public int writeTo(long key, byte[] request, int requestLength, int requestQuestionEnd, byte[] out, long nowNanos, int staleTtl, long graceNanos) {
+        Stripe stripe = stripe(key);
+        long stamp = stripe.lock.tryOptimisticRead();
+        int length = -1;
+        try {
+            length = copy(stripe, key, request, requestLength, requestQuestionEnd, out, nowNanos, staleTtl, graceNanos);
+        } catch (IndexOutOfBoundsException e) {
+            // Read a block while it was being reused, the validation below fails
+        }
+        if (stripe.lock.validate(stamp)) {
+            return length;
+        }
+        stamp = stripe.lock.readLock();
+        try {
+            return copy(stripe, key, request, requestLength, requestQuestionEnd, out, nowNanos, staleTtl, graceNanos);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    private int copy(Stripe stripe, long key, byte[] request, int requestLength, int requestQuestionEnd, byte[] out,
+                     long nowNanos, int staleTtl, long graceNanos) {
+        long address = stripe.index.get(key);
+        if (address == LongLongMap.NOT_FOUND) {
+            return -1;
+        }
+        ByteBuffer segment = segmentArray[segmentOf(address)];
+        int position = offsetOf(address);
+        long expiresAt = segment.getLong(position + 1);
+        boolean expired = nowNanos - expiresAt > 0;
+        if (staleTtl < 0 ? expired : !expired || nowNanos - (expiresAt + graceNanos) > 0) {
+            return -1;
+        }
+        int wireLength = segment.getShort(position + 9) & 0xFFFF;
+        int questionEnd = segment.getShort(position + 11) & 0xFFFF;
+        int ttlCount = segment.getShort(position + 13) & 0xFFFF;
+        if (!WireResponse.fitsQuestion(questionEnd, requestLength, requestQuestionEnd)) {
+            return -1;
+        }
+        int ttlTable = position + HEADER_SIZE;
+        int wireStart = ttlTable + ttlCount * TTL_ENTRY_SIZE;
+        segment.get(wireStart, out, 0, wireLength);
+        // Keys are hashes, another question may have the same one
+        if (!WireResponse.sameQuestion(out, request, questionEnd)) {
+            return -1;
+        }
+        WireResponse.patchHeader(out, questionEnd, request);
+        for (int i = 0; i < ttlCount; i++) {
+            int entry = ttlTable + i * TTL_ENTRY_SIZE;
+            WireResponse.patchTtl(out, segment.getShort(entry) & 0xFFFF, segment.getLong(entry + 2), nowNanos, staleTtl);
+        }
+        return wireLength;
+    }
+
+    private static boolean isExpired(ByteBuffer[] segments, long address, long nowNanos, long graceNanos) {
+        long expiresAt = segments[segmentOf(address)].getLong(offsetOf(address) + 1);
+        return nowNanos - (expiresAt + graceNanos) > 0;
+    }
+
+    /**
+     * Frees entries that are past their expiry plus the grace period. Each call walks a quarter
+     * of the stripes in turn, so one call never holds up lookups for long.
+     *
+     * @param nowNanos   The current System.nanoTime().
+     * @param graceNanos How long expired entries are kept for serve-stale.
+     * @return The number of entries freed.
+     */
+    public int sweep(long nowNanos, long graceNanos) {
+        int freed = 0;
+        for (int n = 0; n < STRIPES / 4; n++) {
+            Stripe stripe = stripes[sweepCursor];
+            sweepCursor = (sweepCursor + 1) % STRIPES;
+            ArrayList<Long> expiredKeys = new ArrayList<>();
+            ByteBuffer[] current = segmentArray;
+            long readStamp = stripe.lock.readLock();
+            try {
+                stripe.index.forEach((key, address) -> {
+                    if (isExpired(current, address, nowNanos, graceNanos)) {
+                        expiredKeys.add(key);
+                    }
+                });
+            } finally {
+                stripe.lock.unlockRead(readStamp);
+            }
+            for (long key : expiredKeys) {
+                long address;
+                long stamp = stripe.lock.writeLock();
+                try {
+                    // The key may have been put again since the read lock was let go, then it
+                    // holds a fresh entry that must stay
+                    address = stripe.index.get(key);
+                    if (address == LongLongMap.NOT_FOUND || !isExpired(segmentArray, address, nowNanos, graceNanos)) {
+                        continue;
+                    }
+                    stripe.index.remove(key);
+                } finally {
+                    stripe.lock.unlockWrite(stamp);
+                }
+                free(address);
+                freed++;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return The number of responses stored.
+     */
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.index.size();
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Bytes of blocks in use (the segments themselves may be larger).
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return Responses not stored because there was no room.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    // Takes a block from the class's free list, or cuts a new slab into blocks
+    private synchronized long allocate(int sizeClass) {
+        if (freeCounts[sizeClass] == 0 && !addSlab(sizeClass)) {
+            return -1;
+        }
+        usedBytes.addAndGet(blockSize(sizeClass));
+        return freeBlocks[sizeClass][--freeCounts[sizeClass]];
+    }
+
+    private synchronized void free(long address) {
+        ByteBuffer segment = segmentArray[segmentOf(address)];
+        int sizeClass = segment.get(offsetOf(address));
+        usedBytes.addAndGet(-blockSize(sizeClass));
+        pushFree(sizeClass, address);
+    }
+
+    private boolean addSlab(int sizeClass) {
+        if (slabsInLastSegment == SEGMENT_SIZE / SLAB_SIZE) {
+            if ((long) (segments.size() + 1) * SEGMENT_SIZE > maxBytes) {
+                return false;
+            }
+            segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+            segmentArray = segments.toArray(new ByteBuffer[0]);
+            slabsInLastSegment = 0;
+        }
+        int segment = segments.size() - 1;
+        int slabStart = slabsInLastSegment++ * SLAB_SIZE;
+        int blockSize = blockSize(sizeClass);
+        for (int offset = slabStart + SLAB_SIZE - blockSize; offset >= slabStart; offset -= blockSize) {
+            pushFree(sizeClass, ((long) segment << 32) | offset);
+        }
+        return true;
+    }
+
+    private void pushFree(int sizeClass, long address) {
+        long[] stack = freeBlocks[sizeClass];
+        if (freeCounts[sizeClass] == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            freeBlocks[sizeClass] = stack;
+        }
+        stack[freeCounts[sizeClass]++] = address;
+    }
+
+    // Smallest class whose blocks hold size bytes, -1 if bigger than a slab
+    private static int sizeClass(int size) {
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            if (blockSize(sizeClass) >= size) {
+                return sizeClass;
+            }
+        }
+        return -1;
+    }
+
+    private static int blockSize(int sizeClass) {
+        return 1 << (MIN_BLOCK_SHIFT + sizeClass);
+    }
+
+    private Stripe stripe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58)];
+    }
+
+    private static int segmentOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapStore{" +
+                "entries=" + size() +
+                ", usedBytes=" + usedBytes.get() +
+                ", segments=" + segmentArray.length +
+                ", rejected=" + rejected.get() +
+                '}';
+    }
+}
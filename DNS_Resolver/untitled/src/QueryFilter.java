@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+/**
+ * A stage every request passes through before it is answered from our zones, the cache or the
+ * upstream. A filter can answer the request itself (block it, sinkhole it, refuse it) or let it
+ * through. Filters are called concurrently from every thread answering queries.
+ */
+public interface QueryFilter {
+    /**
+     * @param request The parsed request, a single question query.
+     * @param raw     The raw request.
+     * @param length  The number of valid bytes in raw.
+     * @param out     Buffer to write a response to, at least 65535 bytes.
+     * @return The length of the response written to out, or -1 to let the request through.
+     * @throws IOException If a response cannot be written.
+     */
+    int filter(DNSMessageView request, byte[] raw, int length, byte[] out) throws IOException;
+}
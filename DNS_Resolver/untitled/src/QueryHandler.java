@@ -0,0 +1,458 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Answers one raw DNS request, from our own zones, the cache or through the upstream, whatever
+ * transport it came in on.
+ * UDP answers are limited to the client's EDNS0 payload size (512 bytes without EDNS) and are
+ * truncated with TC set when they do not fit, TCP answers can use the full 65535 bytes.
+ * Thread-safe: the UDP loop and every TCP connection share one handler.
+ */
+public class QueryHandler {
+    static final int RCODE_SERVFAIL = 2;
+    // Header bits in the fourth byte: authentic data, and checking disabled (RFC 4035)
+    private static final int AD_BIT = 0x20;
+    private static final int CD_BIT = 0x10;
+
+    // Parsing state is per thread so connections can be served concurrently
+    private static final ThreadLocal<DNSMessageView> REQUEST_VIEW = ThreadLocal.withInitial(DNSMessageView::new);
+
+    private final ServerConfig config;
+    private final ZoneStore zones;
+    private final DNSCache cache;
+    private final Upstream upstream;
+    private final Executor upstreamExecutor;
+    // Each thread answering queries has its own small cache in front of the shared one, null if disabled
+    private final ThreadLocal<CacheFront> cacheFront;
+    // Stages every request goes through first, see addFilter()
+    private volatile QueryFilter[] filters = new QueryFilter[0];
+    // Limits UDP answers per client network, null if disabled
+    private volatile ResponseRateLimiter rateLimiter;
+    // Where answered queries are logged, null if disabled
+    private volatile QueryLog queryLog;
+    // Counters and latency histograms, null if disabled
+    private volatile Metrics metrics;
+    // Checks upstream answers before they are cached, null if disabled
+    private volatile DnssecValidator validator;
+
+    /**
+     * @param config           Server settings (budgets, serve-stale, EDNS payload size).
+     * @param zones            Zones answered authoritatively, never forwarded.
+     * @param cache            The answer cache.
+     * @param upstream         Where cache misses are forwarded.
+     * @param upstreamExecutor Runs upstream exchanges so a client's wait is bounded.
+     */
+    public QueryHandler(ServerConfig config, ZoneStore zones, DNSCache cache, Upstream upstream, Executor upstreamExecutor) {
+        this.config = config;
+        this.zones = zones;
+        this.cache = cache;
+        this.upstream = upstream;
+        this.upstreamExecutor = upstreamExecutor;
+        this.cacheFront = config.cacheFrontSize > 0 ? ThreadLocal.withInitial(() -> new CacheFront(config.cacheFrontSize)) : null;
+    }
+
+    /**
+     * Adds a stage that sees every request before our zones, the cache and the upstream do, and
+     * may answer it itself (see QueryFilter). Filters run in the order they were added.
+     */
+    public synchronized void addFilter(QueryFilter filter) {
+        QueryFilter[] grown = Arrays.copyOf(filters, filters.length + 1);
+        grown[grown.length - 1] = filter;
+        filters = grown;
+    }
+
+    /**
+     * Counts queries, outcomes and latencies from now on.
+     *
+     * @param metrics Where to count them, or null to stop.
+     */
+    public void enableMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Validates upstream answers with DNSSEC from now on: misses are forwarded with the DO bit,
+     * bogus answers are not cached and get SERVFAIL (unless the client set CD), and secure ones
+     * are served with the AD bit to clients that set AD or DO.
+     *
+     * @param validator The validator, or null to stop validating.
+     */
+    public void enableDnssec(DnssecValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Logs every query answered from now on.
+     *
+     * @param log The log, or null to stop logging.
+     */
+    public void enableQueryLog(QueryLog log) {
+        this.queryLog = log;
+    }
+
+    /**
+     * Rate limits the UDP queries passed to handleUdp() from now on.
+     *
+     * @param limiter The limiter, or null to stop limiting.
+     */
+    public void enableRateLimiting(ResponseRateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    public ResponseRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Answers a request that came in over UDP, unless its client is over the rate limit.
+     *
+     * @param request The raw request.
+     * @param length  The number of valid bytes in request.
+     * @param out     Buffer the response is written to, at least 65535 bytes.
+     * @param client  Who sent the request.
+     * @return The length of the response in out, or -1 if the request should be dropped.
+     * @throws IOException          If the response cannot be encoded.
+     * @throws InterruptedException If interrupted while waiting for the upstream.
+     */
+    public int handleUdp(byte[] request, int length, byte[] out, InetAddress client) throws IOException, InterruptedException {
+        ResponseRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            int verdict = limiter.check(client, System.nanoTime());
+            if (verdict == ResponseRateLimiter.DROP) {
+                return -1;
+            }
+            if (verdict == ResponseRateLimiter.SLIP) {
+                return slip(request, length, out);
+            }
+        }
+        return handle(request, length, out, true, client);
+    }
+
+    // An empty answer with TC set, so a real client retries over TCP without us doing any lookup
+    private static int slip(byte[] request, int length, byte[] out) {
+        DNSMessageView requestView = requestView();
+        if (!requestView.wrap(request, 0, length)
+                || requestView.getQr() != 0 || requestView.getQuestionCount() != 1) {
+            return -1;
+        }
+        int questionEnd = emptyResponse(request, requestView.questionEnd(0), out, 0);
+        return Edns.truncate(out, questionEnd);
+    }
+
+    /**
+     * Writes a response with the request's ID and question and no records.
+     *
+     * @param request     The raw request.
+     * @param questionEnd The offset just past its question.
+     * @param out         The buffer to write the response to.
+     * @param rcode       The response code.
+     * @return The response length.
+     */
+    static int emptyResponse(byte[] request, int questionEnd, byte[] out, int rcode) {
+        System.arraycopy(request, 0, out, 0, questionEnd);
+        // QR set, opcode and RD kept, AA and TC cleared, RA set
+        out[2] = (byte) ((request[2] & 0x79) | 0x80);
+        out[3] = (byte) (0x80 | rcode);
+        // No answer, authority or additional records
+        Arrays.fill(out, 6, 12, (byte) 0);
+        return questionEnd;
+    }
+
+    /**
+     * Answers a request.
+     *
+     * @param request The raw request.
+     * @param length  The number of valid bytes in request.
+     * @param out     Buffer the response is written to, at least 65535 bytes.
+     * @param udp     true if the answer goes out over UDP and must respect the client's payload size.
+     * @return The length of the response in out, or -1 if the request should be dropped.
+     * @throws IOException          If the response cannot be encoded.
+     * @throws InterruptedException If interrupted while waiting for the upstream.
+     */
+    public int handle(byte[] request, int length, byte[] out, boolean udp) throws IOException, InterruptedException {
+        return handle(request, length, out, udp, null);
+    }
+
+    /**
+     * Answers a request, and logs it to the query log if there is one.
+     *
+     * @param request The raw request.
+     * @param length  The number of valid bytes in request.
+     * @param out     Buffer the response is written to, at least 65535 bytes.
+     * @param udp     true if the answer goes out over UDP and must respect the client's payload size.
+     * @param client  Who sent the request, null if unknown.
+     * @return The length of the response in out, or -1 if the request should be dropped.
+     * @throws IOException          If the response cannot be encoded.
+     * @throws InterruptedException If interrupted while waiting for the upstream.
+     */
+    public int handle(byte[] request, int length, byte[] out, boolean udp, InetAddress client) throws IOException, InterruptedException {
+        Metrics counters = metrics;
+        if (counters != null) {
+            counters.queryStarted(udp);
+        }
+        long start = System.nanoTime();
+        int outcome = -1;
+        DNSMessageView requestView = requestView();
+        try {
+            long answered = answer(requestView, request, length, out, udp);
+            int responseLength = (int) answered;
+            if (responseLength >= 0) {
+                outcome = (int) (answered >>> 32);
+                QueryLog log = queryLog;
+                if (log != null) {
+                    log.record(client, !udp, requestView, outcome, out[3] & 0x0F, System.nanoTime() - start);
+                }
+            }
+            return responseLength;
+        } finally {
+            if (counters != null) {
+                counters.queryFinished(outcome, System.nanoTime() - start);
+            }
+        }
+    }
+
+    // The response length in the low half, how it was answered (a QueryLog outcome) in the high half
+    private static long answered(int outcome, int length) {
+        return ((long) outcome << 32) | length;
+    }
+
+    // Platform threads reuse one view. Virtual threads live for one query, on them a ThreadLocal
+    // would allocate the same view plus a map entry that is thrown away with the thread
+    private static DNSMessageView requestView() {
+        return Thread.currentThread().isVirtual() ? new DNSMessageView() : REQUEST_VIEW.get();
+    }
+
+    private long answer(DNSMessageView requestView, byte[] request, int length, byte[] out, boolean udp)
+            throws IOException, InterruptedException {
+        // Parse the request in place, dropping anything malformed or that is not a single-question query
+        if (!requestView.wrap(request, 0, length)
+                || requestView.getQr() != 0 || requestView.getQuestionCount() != 1) {
+            return -1;
+        }
+
+        // Blocklists and other filters may answer before anything else is looked at
+        for (QueryFilter filter : filters) {
+            int filteredLength = filter.filter(requestView, request, length, out);
+            if (filteredLength >= 0) {
+                return answered(QueryLog.FILTERED, finish(requestView, out, filteredLength, udp));
+            }
+        }
+
+        // Names in our own zones are answered authoritatively, mostly from pre-encoded answers
+        int authoritativeLength = zones.answer(requestView, request, length, out);
+        if (authoritativeLength >= 0) {
+            return answered(QueryLog.AUTHORITATIVE, finish(requestView, out, authoritativeLength, udp));
+        }
+
+        long now = System.nanoTime();
+        // Entries kept off the heap are answered straight from their encoded bytes
+        if (cache.isOffHeap()) {
+            int storedLength = cache.writeFromStore(requestView, request, length, out, now, -1);
+            if (storedLength >= 0) {
+                return answered(QueryLog.HIT, finish(requestView, out, storedLength, udp));
+            }
+        }
+
+        //Check this thread's cache front, then the shared cache, straight from the request bytes
+        // Virtual threads live for one query, a front of their own would never be hit again
+        CacheFront front = cacheFront == null || Thread.currentThread().isVirtual() ? null : cacheFront.get();
+        int questionStart = requestView.questionNameOffset(0);
+        int questionEnd = requestView.questionEnd(0);
+        DNSCacheEntry cachedEntry = front == null ? null : front.get(request, questionStart, questionEnd, now);
+        if (cachedEntry != null) {
+            cache.recordHit(cachedEntry, now);
+        } else {
+            cachedEntry = cache.query(requestView, 0);
+            if (cachedEntry == null) {
+                // An alias whose CNAME chain and final answer are all cached needs no upstream round trip
+                cachedEntry = cache.queryChain(requestView.toQuestion(0));
+            }
+            if (cachedEntry != null && front != null) {
+                front.put(request, questionStart, questionEnd, cachedEntry, now);
+            }
+        }
+
+        //If question is cached, copy the pre-encoded answer and patch ID, RD and TTLs into it
+        boolean dnssecOk = Edns.isDnssecOk(requestView);
+        if (cachedEntry != null) {
+            DNSCacheEntry served = dnssecOk ? cachedEntry : cachedEntry.withoutDnssec();
+            WireResponse wireResponse = served.getWireResponse();
+            int responseLength = wireResponse.writeTo(request, length, questionEnd, out, now);
+            if (responseLength < 0) {
+                // The request's question is not the same length as ours, build the answer the slow way
+                responseLength = encode(DNSMessage.buildResponse(DNSMessage.decodeMessage(Arrays.copyOf(request, length)), served), out);
+            }
+            if (cachedEntry.isAuthenticated() && wantsAd(request, requestView)) {
+                out[3] |= AD_BIT;
+            }
+            return answered(QueryLog.HIT, finish(requestView, out, responseLength, udp));
+        }
+
+        // Not cached (or only stale), decode the whole request and ask the upstream resolver
+        DNSQuestion question = requestView.toQuestion(0);
+        // Ask with our EDNS payload size so big answers do not come back truncated, and for
+        // the signatures too when we validate them
+        DnssecValidator currentValidator = validator;
+        byte[] forwardData = Edns.forUpstream(requestView, request, length, config.ednsUdpPayload, currentValidator != null);
+        boolean checkingDisabled = (request[3] & CD_BIT) != 0;
+        long decodeStart = System.nanoTime();
+        DNSMessage requestMessage = DNSMessage.decodeMessage(Arrays.copyOf(request, length));
+        recordDecode(decodeStart);
+        DNSCacheEntry staleEntry = cache.queryStale(requestView, 0);
+        // An expired entry in the off-heap store is written out now, and only sent if the upstream fails
+        int storedStaleLength = staleEntry == null && cache.isOffHeap()
+                ? cache.writeFromStore(requestView, request, length, out, now, config.staleTtl) : -1;
+        boolean haveStale = staleEntry != null || storedStaleLength >= 0;
+
+        // Forward request to the upstream pool on its own thread, so the
+        // client's wait is bounded. Whatever comes back is cached, even after a stale answer went out
+        DNSMessage googleResponse = null;
+        try {
+            CompletableFuture<DNSMessage> upstreamAnswer = CompletableFuture.supplyAsync(() -> {
+                try {
+                    byte[] reply = upstream.exchange(forwardData, forwardData.length);
+                    long replyDecodeStart = System.nanoTime();
+                    DNSMessage response = DNSMessage.decodeMessage(reply);
+                    recordDecode(replyDecodeStart);
+                    return response;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, upstreamExecutor);
+            if (currentValidator == null) {
+                upstreamAnswer = upstreamAnswer.thenApply(response -> cached(question, response));
+            } else {
+                // Checked before it is cached, the signature checks run on the validator's own threads
+                upstreamAnswer = upstreamAnswer.thenCompose(response -> currentValidator.validate(question, response)
+                        .thenApply(result -> validated(question, response, result, checkingDisabled)));
+            }
+            // With a stale answer to fall back on, only wait for the (shorter) stale budget
+            long budgetMillis = haveStale ? config.staleAnswerTimeoutMillis : config.upstreamTimeoutMillis;
+            googleResponse = upstreamAnswer.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException | RejectedExecutionException e) {
+            Metrics counters = metrics;
+            if (counters != null) {
+                counters.recordUpstreamFailure();
+            }
+        }
+
+        // RFC 8767: if the upstream missed the budget or failed, answer from the expired entry
+        if (haveStale && (googleResponse == null || googleResponse.getHeader().getRCode() == RCODE_SERVFAIL)) {
+            int responseLength = storedStaleLength;
+            if (staleEntry != null) {
+                DNSCacheEntry served = dnssecOk ? staleEntry : staleEntry.withoutDnssec();
+                WireResponse wireResponse = served.getWireResponse();
+                responseLength = wireResponse.writeTo(request, length, questionEnd, out, System.nanoTime(), config.staleTtl);
+                if (responseLength < 0) {
+                    responseLength = encode(DNSMessage.buildResponse(requestMessage, served), out);
+                }
+            }
+            return answered(QueryLog.STALE, finish(requestView, out, responseLength, udp));
+        }
+        if (googleResponse == null) {
+            // Nothing to serve, tell the client now rather than leaving it waiting
+            googleResponse = DNSMessage.buildResponse(requestMessage, new ArrayList<>(), new ArrayList<>(),
+                    new ArrayList<>(), RCODE_SERVFAIL);
+        }
+
+        // Build response message from every section of the upstream answer. The upstream's OPT
+        // record was for us, the client gets its own below. We ask with DO when we validate, the
+        // signatures and proofs that brings back only go to clients that set DO themselves
+        ArrayList<DNSRecord> answers = googleResponse.getAnswers();
+        ArrayList<DNSRecord> authority = googleResponse.getAuthorityRecords();
+        ArrayList<DNSRecord> additional = DNSCacheEntry.withoutOpt(googleResponse.getAdditionalRecords());
+        if (!dnssecOk) {
+            int qtype = question.getQtype();
+            answers = DNSCacheEntry.withoutDnssec(answers, qtype);
+            authority = DNSCacheEntry.withoutDnssec(authority, qtype);
+            additional = DNSCacheEntry.withoutDnssec(additional, qtype);
+        }
+        DNSMessage responseMessage = DNSMessage.buildResponse(requestMessage, answers, authority, additional,
+                googleResponse.getHeader().getRCode());
+
+        int responseLength = encode(responseMessage, out);
+        if (googleResponse.isAuthenticated() && wantsAd(request, requestView)) {
+            out[3] |= AD_BIT;
+        }
+        return answered(QueryLog.MISS, finish(requestView, out, responseLength, udp));
+    }
+
+    // Encodes a response built as a DNSMessage into out
+    private int encode(DNSMessage responseMessage, byte[] out) throws IOException {
+        DNSWireWriter writer = DNSWireWriter.forCurrentThread();
+        try {
+            long encodeStart = System.nanoTime();
+            responseMessage.writeTo(writer);
+            Metrics counters = metrics;
+            if (counters != null) {
+                counters.recordEncode(System.nanoTime() - encodeStart);
+            }
+            int responseLength = writer.length();
+            writer.getBuffer().get(0, out, 0, responseLength);
+            return responseLength;
+        } finally {
+            writer.release();
+        }
+    }
+
+    // Caches the complete RRset, or the negative answer (NXDOMAIN/NODATA) with its SOA
+    private DNSMessage cached(DNSQuestion question, DNSMessage response) {
+        Metrics counters = metrics;
+        if (!cache.insert(question, response) && counters != null) {
+            counters.recordUncacheable();
+        }
+        return response;
+    }
+
+    // A bogus answer is never cached, and only passed on to a client that asked us not to check
+    private DNSMessage validated(DNSQuestion question, DNSMessage response, int result, boolean checkingDisabled) {
+        if (result == DnssecValidator.BOGUS) {
+            if (checkingDisabled) {
+                return response;
+            }
+            throw new CompletionException(new IOException("DNSSEC validation failed for " + question));
+        }
+        response.setAuthenticated(result == DnssecValidator.SECURE);
+        return cached(question, response);
+    }
+
+    // RFC 6840 section 5.7: AD is set for clients that ask for it with AD or with DO
+    private static boolean wantsAd(byte[] request, DNSMessageView requestView) {
+        return (request[3] & AD_BIT) != 0 || Edns.isDnssecOk(requestView);
+    }
+
+    private void recordDecode(long start) {
+        Metrics counters = metrics;
+        if (counters != null) {
+            counters.recordDecode(System.nanoTime() - start);
+        }
+    }
+
+    // Adds our OPT record for EDNS clients, and truncates UDP answers that are too big for the client
+    private int finish(DNSMessageView requestView, byte[] out, int length, boolean udp) {
+        boolean edns = Edns.findOpt(requestView) >= 0;
+        int size = edns ? length + Edns.OPT_RECORD_SIZE : length;
+        if (udp && size > Math.min(Edns.udpPayloadSize(requestView), Math.max(Edns.DEFAULT_UDP_PAYLOAD, config.ednsUdpPayload))) {
+            // Our question section is not always the same length as the request's, find where it ends
+            length = Edns.truncate(out, WireResponse.questionEnd(out));
+            Metrics counters = metrics;
+            if (counters != null) {
+                counters.recordTruncated();
+            }
+        }
+        if (edns && length + Edns.OPT_RECORD_SIZE <= out.length) {
+            length = Edns.appendOpt(out, length, config.ednsUdpPayload);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ File: "DNSQ" | version (1), then records, each:
+   record length (2) | time, epoch millis (8) | address family, 4 or 6 or 0 for none (1)
+   address (0, 4 or 16) | transport, 0 UDP 1 TCP (1) | outcome (1) | rcode (1)
+   qtype (2) | qclass (2) | latency, microseconds (4) | name length (1) | name, wire format
+ */
+/**
+ * A log of every query answered: when, who asked, the question, how it was answered (cache hit,
+ * miss, stale...), the rcode and how long it took.
+ *
+ * Threads answering queries never wait for the disk. They copy their record into a fixed slot of
+ * a ring buffer shared by all of them (a lock-free multi-producer queue: a compare-and-set claims
+ * the next slot, a sequence number per slot says when it is filled and when it is free again).
+ * One background thread drains the ring into the file in batches. When the ring is full the
+ * record is dropped and counted, serving never slows down for the log.
+ *
+ * The file is binary, a few dozen bytes per query, and is rotated at a size limit: "queries.log"
+ * becomes "queries.log.1" and so on, keeping a fixed number of files. QueryLogReader prints them
+ * as text.
+ */
+public class QueryLog {
+    static final byte[] MAGIC = {'D', 'N', 'S', 'Q'};
+    static final int VERSION = 1;
+
+    public static final int AUTHORITATIVE = 0;
+    public static final int HIT = 1;
+    public static final int MISS = 2;
+    public static final int STALE = 3;
+    public static final int FILTERED = 4;
+    static final String[] OUTCOMES = {"authoritative", "hit", "miss", "stale", "filtered"};
+
+    // Big enough for the largest record, a 255 byte name from an IPv6 client
+    private static final int SLOT_SIZE = 320;
+    private static final int WRITE_BUFFER_SIZE = 256 << 10;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int keepFiles;
+
+    private final byte[] ring;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim
+    private long head; // next slot to drain, writer thread only
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private FileChannel channel;
+    private long fileBytes;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    /**
+     * Opens the log, appending to an existing file, and starts its writer thread.
+     *
+     * @param file         The current log file.
+     * @param maxFileBytes Size at which the file is rotated.
+     * @param keepFiles    Rotated files to keep (file.1 ... file.N).
+     * @param ringEntries  Records the ring holds before dropping, rounded up to a power of two.
+     * @throws IOException If the file cannot be opened.
+     */
+    public QueryLog(Path file, long maxFileBytes, int keepFiles, int ringEntries) throws IOException {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.keepFiles = keepFiles;
+        int capacity = Integer.highestOneBit(Math.max(16, ringEntries) - 1) << 1;
+        this.ring = new byte[capacity * SLOT_SIZE];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        open();
+        this.writer = new Thread(this::drain, "dns-querylog");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records an answered query. Never blocks or takes a lock.
+     *
+     * @param client    Who asked, null if unknown.
+     * @param tcp       true if the query came over TCP.
+     * @param request   The parsed request.
+     * @param outcome   How it was answered, one of the constants above.
+     * @param rcode     The response code sent.
+     * @param latencyNanos How long answering took.
+     */
+    public void record(InetAddress client, boolean tcp, DNSMessageView request, int outcome, int rcode, long latencyNanos) {
+        long position = claim();
+        if (position < 0) {
+            dropped.increment();
+            return;
+        }
+        int slot = (int) (position & mask);
+        int offset = slot * SLOT_SIZE;
+        int p = offset + 2;
+        p = putLong(p, System.currentTimeMillis());
+        if (client == null) {
+            ring[p++] = 0;
+        } else {
+            byte[] address = client.getAddress();
+            ring[p++] = (byte) (client instanceof Inet4Address ? 4 : 6);
+            System.arraycopy(address, 0, ring, p, address.length);
+            p += address.length;
+        }
+        ring[p++] = (byte) (tcp ? 1 : 0);
+        ring[p++] = (byte) outcome;
+        ring[p++] = (byte) rcode;
+        p = putShort(p, request.questionType(0));
+        p = putShort(p, request.questionClass(0));
+        p = putInt(p, (int) Math.min(Integer.MAX_VALUE, latencyNanos / 1000));
+        // The question name is never compressed, it is copied as it is
+        int nameStart = request.questionNameOffset(0);
+        int nameLength = Math.min(255, request.questionEnd(0) - 4 - nameStart);
+        ring[p++] = (byte) nameLength;
+        request.getBuffer().get(request.getBuffer().position() + nameStart, ring, p, nameLength);
+        p += nameLength;
+        int length = p - offset - 2;
+        ring[offset] = (byte) (length >>> 8);
+        ring[offset + 1] = (byte) length;
+        // Publishes the slot to the writer
+        sequences.setRelease(slot, position + 1);
+    }
+
+    // Claims the next free slot, or returns -1 if the ring is full
+    private long claim() {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.getAcquire((int) (position & mask));
+            long difference = sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer has not drained this slot from the previous lap yet
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Writer thread: moves filled slots into the file, in order
+    private void drain() {
+        while (running || sequences.getAcquire((int) (head & mask)) == head + 1) {
+            int slot = (int) (head & mask);
+            if (sequences.getAcquire(slot) != head + 1) {
+                if (tail.get() != head) {
+                    // Claimed, its producer is still copying the record in
+                    Thread.onSpinWait();
+                    continue;
+                }
+                flushQuietly();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            int offset = slot * SLOT_SIZE;
+            int length = 2 + (((ring[offset] & 0xFF) << 8) | (ring[offset + 1] & 0xFF));
+            if (writeBuffer.remaining() < length) {
+                flushQuietly();
+            }
+            writeBuffer.put(ring, offset, length);
+            // Hands the slot back to the producers for the next lap
+            sequences.setRelease(slot, head + mask + 1);
+            head++;
+            written.increment();
+        }
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        try {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                fileBytes += channel.write(writeBuffer);
+            }
+            if (fileBytes >= maxFileBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.out.println("Query log write failed: " + e);
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    // file.N-1 -> file.N ... file -> file.1, then a new file
+    private void rotate() throws IOException {
+        channel.close();
+        Files.deleteIfExists(rotated(keepFiles));
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (keepFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        if (fileBytes == 0) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1).put(MAGIC).put((byte) VERSION).flip();
+            fileBytes += channel.write(header);
+        }
+    }
+
+    private int putLong(int p, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            ring[p++] = (byte) (value >>> shift);
+        }
+        return p;
+    }
+
+    private int putInt(int p, int value) {
+        ring[p++] = (byte) (value >>> 24);
+        ring[p++] = (byte) (value >>> 16);
+        ring[p++] = (byte) (value >>> 8);
+        ring[p++] = (byte) value;
+        return p;
+    }
+
+    private int putShort(int p, int value) {
+        ring[p++] = (byte) (value >>> 8);
+        ring[p++] = (byte) value;
+        return p;
+    }
+
+    /**
+     * Writes out what is still in the ring and closes the file.
+     */
+    public void close() throws IOException, InterruptedException {
+        running = false;
+        writer.join();
+        channel.close();
+    }
+
+    /**
+     * @return Records written to the file.
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return Records dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryLog{" +
+                "file=" + file +
+                ", written=" + written.sum() +
+                ", dropped=" + dropped.sum() +
+                '}';
+    }
+}
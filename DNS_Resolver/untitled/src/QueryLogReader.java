@@ -0,0 +1,124 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Prints query log files written by QueryLog as text, one query per line:
+ * 2026-10-19T09:30:00.123Z 192.0.2.7 udp www.example.com. A IN hit NOERROR 12us
+ * Run with: java -cp out QueryLogReader queries.log.2 queries.log.1 queries.log
+ */
+public class QueryLogReader {
+    private static final String[] RCODES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: QueryLogReader <query log file>...");
+            System.exit(1);
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        for (String file : args) {
+            print(file, out);
+        }
+        out.flush();
+    }
+
+    private static void print(String file, PrintStream out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(file)), 1 << 16))) {
+            byte[] magic = new byte[QueryLog.MAGIC.length];
+            in.readFully(magic);
+            int version = in.readUnsignedByte();
+            if (!Arrays.equals(magic, QueryLog.MAGIC) || version != QueryLog.VERSION) {
+                throw new IOException(file + " is not a query log");
+            }
+            byte[] record = new byte[0xFFFF];
+            while (true) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    // The end, or a record cut short by a crash
+                    return;
+                }
+                out.println(format(new DataInputStream(new ByteArrayInputStream(record, 0, length))));
+            }
+        }
+    }
+
+    // One record as a line of text
+    static String format(DataInputStream record) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        line.append(Instant.ofEpochMilli(record.readLong())).append(' ');
+        int family = record.readUnsignedByte();
+        if (family == 0) {
+            line.append('-');
+        } else {
+            byte[] address = new byte[family == 4 ? 4 : 16];
+            record.readFully(address);
+            line.append(InetAddress.getByAddress(address).getHostAddress());
+        }
+        line.append(record.readUnsignedByte() == 1 ? " tcp " : " udp ");
+        int outcome = record.readUnsignedByte();
+        int rcode = record.readUnsignedByte();
+        int qtype = record.readUnsignedShort();
+        int qclass = record.readUnsignedShort();
+        long latencyMicros = record.readInt() & 0xFFFFFFFFL;
+        byte[] name = new byte[record.readUnsignedByte()];
+        record.readFully(name);
+        appendName(line, name);
+        line.append(' ').append(typeName(qtype))
+                .append(' ').append(qclass == 1 ? "IN" : "CLASS" + qclass)
+                .append(' ').append(outcome < QueryLog.OUTCOMES.length ? QueryLog.OUTCOMES[outcome] : "outcome" + outcome)
+                .append(' ').append(rcode < RCODES.length ? RCODES[rcode] : "RCODE" + rcode)
+                .append(' ').append(latencyMicros).append("us");
+        return line.toString();
+    }
+
+    // Labels of a wire format name joined with dots, "." for the root
+    private static void appendName(StringBuilder line, byte[] name) {
+        int position = 0;
+        while (position < name.length && name[position] != 0) {
+            int length = name[position] & 0xFF;
+            for (int i = 1; i <= length && position + i < name.length; i++) {
+                line.append((char) (name[position + i] & 0xFF));
+            }
+            line.append('.');
+            position += 1 + length;
+        }
+        if (position == 0) {
+            line.append('.');
+        }
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case RData.TYPE_A:
+                return "A";
+            case RData.TYPE_NS:
+                return "NS";
+            case RData.TYPE_CNAME:
+                return "CNAME";
+            case RData.TYPE_SOA:
+                return "SOA";
+            case RData.TYPE_PTR:
+                return "PTR";
+            case RData.TYPE_MX:
+                return "MX";
+            case RData.TYPE_TXT:
+                return "TXT";
+            case RData.TYPE_AAAA:
+                return "AAAA";
+            default:
+                return "TYPE" + type;
+        }
+    }
+}
@@ -0,0 +1,957 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * The RDATA of a record, decoded by type.
+ * Names inside RDATA (CNAME, NS, PTR, MX, SOA) may be compressed with pointers into the rest of
+ * the message they came in, so they are decoded against the whole message and kept as labels.
+ * toBytes() gives the RDATA back with every name written out in full, which stays valid when the
+ * record is copied into another message. Types we do not know are kept as opaque bytes.
+ */
+public abstract class RData {
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_MX = 15;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_AAAA = 28;
+    // DNSSEC (RFC 4034)
+    static final int TYPE_DS = 43;
+    static final int TYPE_RRSIG = 46;
+    static final int TYPE_NSEC = 47;
+    static final int TYPE_DNSKEY = 48;
+    static final int TYPE_NSEC3 = 50;
+
+    private static final int MAX_POINTER_JUMPS = 16;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /**
+     * Decodes the RDATA of a record.
+     *
+     * @param type    The record type.
+     * @param message The whole message the record is in, for compression pointers.
+     * @param offset  Where the RDATA starts in message.
+     * @param length  The RDLENGTH of the record.
+     * @return The decoded RDATA.
+     * @throws IOException If the RDATA is malformed for its type.
+     */
+    public static RData decode(int type, byte[] message, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (offset < 0 || end > message.length) {
+            throw new IOException("RDATA runs past the end of the message");
+        }
+        switch (type) {
+            case TYPE_A:
+                expectLength(type, length, 4);
+                return new Address(type, Arrays.copyOfRange(message, offset, end));
+            case TYPE_AAAA:
+                expectLength(type, length, 16);
+                return new Address(type, Arrays.copyOfRange(message, offset, end));
+            case TYPE_CNAME:
+            case TYPE_NS:
+            case TYPE_PTR: {
+                NameReader reader = new NameReader(message, offset, end);
+                String[] target = reader.readName();
+                reader.expectEnd(type);
+                return new Name(type, target);
+            }
+            case TYPE_MX: {
+                NameReader reader = new NameReader(message, offset, end);
+                int preference = reader.readShort();
+                String[] exchange = reader.readName();
+                reader.expectEnd(type);
+                return new MX(preference, exchange);
+            }
+            case TYPE_SOA: {
+                NameReader reader = new NameReader(message, offset, end);
+                String[] mname = reader.readName();
+                String[] rname = reader.readName();
+                long serial = reader.readInt();
+                long refresh = reader.readInt();
+                long retry = reader.readInt();
+                long expire = reader.readInt();
+                long minimum = reader.readInt();
+                reader.expectEnd(type);
+                return new SOA(mname, rname, serial, refresh, retry, expire, minimum);
+            }
+            case TYPE_TXT: {
+                ArrayList<byte[]> strings = new ArrayList<>();
+                int position = offset;
+                while (position < end) {
+                    int stringLength = message[position] & 0xFF;
+                    if (position + 1 + stringLength > end) {
+                        throw new IOException("TXT string runs past the end of the RDATA");
+                    }
+                    strings.add(Arrays.copyOfRange(message, position + 1, position + 1 + stringLength));
+                    position += 1 + stringLength;
+                }
+                return new TXT(strings);
+            }
+            case TYPE_DS: {
+                NameReader reader = new NameReader(message, offset, end);
+                int keyTag = reader.readShort();
+                int algorithm = reader.readByte();
+                int digestType = reader.readByte();
+                return new DS(keyTag, algorithm, digestType, reader.readRest());
+            }
+            case TYPE_DNSKEY: {
+                NameReader reader = new NameReader(message, offset, end);
+                int flags = reader.readShort();
+                int protocol = reader.readByte();
+                int algorithm = reader.readByte();
+                return new DNSKEY(flags, protocol, algorithm, reader.readRest());
+            }
+            case TYPE_RRSIG: {
+                NameReader reader = new NameReader(message, offset, end);
+                int typeCovered = reader.readShort();
+                int algorithm = reader.readByte();
+                int labels = reader.readByte();
+                long originalTtl = reader.readInt();
+                long expiration = reader.readInt();
+                long inception = reader.readInt();
+                int keyTag = reader.readShort();
+                String[] signer = reader.readName();
+                return new RRSIG(typeCovered, algorithm, labels, originalTtl, expiration, inception, keyTag,
+                        signer, reader.readRest());
+            }
+            case TYPE_NSEC: {
+                NameReader reader = new NameReader(message, offset, end);
+                String[] next = reader.readName();
+                return new NSEC(next, reader.readRest());
+            }
+            case TYPE_NSEC3: {
+                NameReader reader = new NameReader(message, offset, end);
+                int hashAlgorithm = reader.readByte();
+                int flags = reader.readByte();
+                int iterations = reader.readShort();
+                byte[] salt = reader.readBytes(reader.readByte());
+                byte[] nextHashed = reader.readBytes(reader.readByte());
+                return new NSEC3(hashAlgorithm, flags, iterations, salt, nextHashed, reader.readRest());
+            }
+            default:
+                return new Opaque(type, Arrays.copyOfRange(message, offset, end));
+        }
+    }
+
+    private static void expectLength(int type, int length, int expected) throws IOException {
+        if (length != expected) {
+            throw new IOException("RDATA of type " + type + " must be " + expected + " bytes, not " + length);
+        }
+    }
+
+    /**
+     * @return The record type this RDATA belongs to.
+     */
+    public abstract int getType();
+
+    /**
+     * Writes the RDATA into a message. Names in the types RFC 3597 allows to be compressed
+     * (CNAME, NS, PTR, MX, SOA) share suffixes with the names already written.
+     *
+     * @param writer The writer of the message.
+     */
+    public abstract void writeTo(DNSWireWriter writer);
+
+    /**
+     * @return The RDATA in wire format with every name uncompressed.
+     */
+    public abstract byte[] toBytes();
+
+    // Uncompressed wire format of a name
+    static void writeName(ByteArrayOutputStream out, String[] name) {
+        for (String label : name) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+    }
+
+    static void writeInt(ByteArrayOutputStream out, long value) {
+        out.write((int) (value >>> 24));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 8));
+        out.write((int) value);
+    }
+
+    /**
+     * An IPv4 (A) or IPv6 (AAAA) address.
+     */
+    public static final class Address extends RData {
+        private final int type;
+        private final byte[] address;
+
+        Address(int type, byte[] address) {
+            this.type = type;
+            this.address = address;
+        }
+
+        public byte[] getAddress() {
+            return address;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(address);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return address;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            if (address.length == 4) {
+                for (int i = 0; i < 4; i++) {
+                    builder.append(i == 0 ? "" : ".").append(address[i] & 0xFF);
+                }
+            } else {
+                for (int i = 0; i < address.length; i += 2) {
+                    builder.append(i == 0 ? "" : ":").append(Integer.toHexString(((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF)));
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A single domain name: the target of a CNAME, NS or PTR record.
+     */
+    public static final class Name extends RData {
+        private final int type;
+        private final String[] target;
+
+        Name(int type, String[] target) {
+            this.type = type;
+            this.target = target;
+        }
+
+        public String[] getTarget() {
+            return target;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeName(target);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeName(out, target);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return DNSMessage.joinDomainName(target);
+        }
+    }
+
+    /**
+     * A mail exchanger and its preference.
+     */
+    public static final class MX extends RData {
+        private final int preference;
+        private final String[] exchange;
+
+        MX(int preference, String[] exchange) {
+            this.preference = preference;
+            this.exchange = exchange;
+        }
+
+        public int getPreference() {
+            return preference;
+        }
+
+        public String[] getExchange() {
+            return exchange;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_MX;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeShort(preference);
+            writer.writeName(exchange);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(preference >>> 8);
+            out.write(preference);
+            writeName(out, exchange);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return preference + " " + DNSMessage.joinDomainName(exchange);
+        }
+    }
+
+    /**
+     * The start of authority of a zone.
+     */
+    public static final class SOA extends RData {
+        private final String[] mname;
+        private final String[] rname;
+        private final long serial;
+        private final long refresh;
+        private final long retry;
+        private final long expire;
+        private final long minimum;
+
+        SOA(String[] mname, String[] rname, long serial, long refresh, long retry, long expire, long minimum) {
+            this.mname = mname;
+            this.rname = rname;
+            this.serial = serial;
+            this.refresh = refresh;
+            this.retry = retry;
+            this.expire = expire;
+            this.minimum = minimum;
+        }
+
+        public String[] getMname() {
+            return mname;
+        }
+
+        public String[] getRname() {
+            return rname;
+        }
+
+        public long getSerial() {
+            return serial;
+        }
+
+        public long getMinimum() {
+            return minimum;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_SOA;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeName(mname);
+            writer.writeName(rname);
+            writer.writeInt((int) serial);
+            writer.writeInt((int) refresh);
+            writer.writeInt((int) retry);
+            writer.writeInt((int) expire);
+            writer.writeInt((int) minimum);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeName(out, mname);
+            writeName(out, rname);
+            writeInt(out, serial);
+            writeInt(out, refresh);
+            writeInt(out, retry);
+            writeInt(out, expire);
+            writeInt(out, minimum);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return DNSMessage.joinDomainName(mname) + " " + DNSMessage.joinDomainName(rname) + " " + serial +
+                    " " + refresh + " " + retry + " " + expire + " " + minimum;
+        }
+    }
+
+    /**
+     * One or more character strings.
+     */
+    public static final class TXT extends RData {
+        private final List<byte[]> strings;
+
+        TXT(List<byte[]> strings) {
+            this.strings = strings;
+        }
+
+        public List<byte[]> getStrings() {
+            return strings;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_TXT;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(toBytes());
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] string : strings) {
+                out.write(string.length);
+                out.write(string, 0, string.length);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (byte[] string : strings) {
+                builder.append(builder.length() == 0 ? "\"" : " \"")
+                        .append(new String(string, StandardCharsets.UTF_8)).append('"');
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A delegation signer: the digest of a child zone's key, published in the parent zone.
+     */
+    public static final class DS extends RData {
+        private final int keyTag;
+        private final int algorithm;
+        private final int digestType;
+        private final byte[] digest;
+
+        DS(int keyTag, int algorithm, int digestType, byte[] digest) {
+            this.keyTag = keyTag;
+            this.algorithm = algorithm;
+            this.digestType = digestType;
+            this.digest = digest;
+        }
+
+        public int getKeyTag() {
+            return keyTag;
+        }
+
+        public int getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getDigestType() {
+            return digestType;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_DS;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(toBytes());
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(keyTag >>> 8);
+            out.write(keyTag);
+            out.write(algorithm);
+            out.write(digestType);
+            out.write(digest, 0, digest.length);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return keyTag + " " + algorithm + " " + digestType + " " + HexFormat.of().withUpperCase().formatHex(digest);
+        }
+    }
+
+    /**
+     * A zone's public key.
+     */
+    public static final class DNSKEY extends RData {
+        // The key signs the zone's records, and with SEP set it is the one the parent's DS points to
+        static final int FLAG_ZONE = 0x0100;
+        static final int FLAG_SEP = 0x0001;
+
+        private final int flags;
+        private final int protocol;
+        private final int algorithm;
+        private final byte[] publicKey;
+
+        DNSKEY(int flags, int protocol, int algorithm, byte[] publicKey) {
+            this.flags = flags;
+            this.protocol = protocol;
+            this.algorithm = algorithm;
+            this.publicKey = publicKey;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getProtocol() {
+            return protocol;
+        }
+
+        public int getAlgorithm() {
+            return algorithm;
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_DNSKEY;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(toBytes());
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(flags >>> 8);
+            out.write(flags);
+            out.write(protocol);
+            out.write(algorithm);
+            out.write(publicKey, 0, publicKey.length);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return flags + " " + protocol + " " + algorithm + " " + Base64.getEncoder().encodeToString(publicKey);
+        }
+    }
+
+    /**
+     * A signature over one RRset. The signer's name is never compressed (RFC 4034), so it is
+     * written back exactly as it came.
+     */
+    public static final class RRSIG extends RData {
+        private final int typeCovered;
+        private final int algorithm;
+        private final int labels;
+        private final long originalTtl;
+        private final long expiration;
+        private final long inception;
+        private final int keyTag;
+        private final String[] signer;
+        private final byte[] signature;
+
+        RRSIG(int typeCovered, int algorithm, int labels, long originalTtl, long expiration, long inception,
+              int keyTag, String[] signer, byte[] signature) {
+            this.typeCovered = typeCovered;
+            this.algorithm = algorithm;
+            this.labels = labels;
+            this.originalTtl = originalTtl;
+            this.expiration = expiration;
+            this.inception = inception;
+            this.keyTag = keyTag;
+            this.signer = signer;
+            this.signature = signature;
+        }
+
+        public int getTypeCovered() {
+            return typeCovered;
+        }
+
+        public int getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getLabels() {
+            return labels;
+        }
+
+        public long getOriginalTtl() {
+            return originalTtl;
+        }
+
+        // Seconds since the epoch, compared with serial number arithmetic (RFC 4034 section 3.1.5)
+        public long getExpiration() {
+            return expiration;
+        }
+
+        public long getInception() {
+            return inception;
+        }
+
+        public int getKeyTag() {
+            return keyTag;
+        }
+
+        public String[] getSigner() {
+            return signer;
+        }
+
+        public byte[] getSignature() {
+            return signature;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_RRSIG;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(toBytes());
+        }
+
+        /**
+         * @param signerName The signer's name to write, the canonical (lowercase) one when signing.
+         * @return The RDATA without the signature, which is what the signature starts with.
+         */
+        byte[] fieldsBeforeSignature(String[] signerName) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(typeCovered >>> 8);
+            out.write(typeCovered);
+            out.write(algorithm);
+            out.write(labels);
+            writeInt(out, originalTtl);
+            writeInt(out, expiration);
+            writeInt(out, inception);
+            out.write(keyTag >>> 8);
+            out.write(keyTag);
+            writeName(out, signerName);
+            return out.toByteArray();
+        }
+
+        @Override
+        public byte[] toBytes() {
+            byte[] fields = fieldsBeforeSignature(signer);
+            byte[] bytes = Arrays.copyOf(fields, fields.length + signature.length);
+            System.arraycopy(signature, 0, bytes, fields.length, signature.length);
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return typeCovered + " " + algorithm + " " + labels + " " + originalTtl + " " + expiration + " " +
+                    inception + " " + keyTag + " " + DNSMessage.joinDomainName(signer) + " " +
+                    Base64.getEncoder().encodeToString(signature);
+        }
+    }
+
+    /**
+     * The next name in a signed zone and the types that exist at the owner, proving that the
+     * names in between and the other types do not exist.
+     */
+    public static final class NSEC extends RData {
+        private final String[] next;
+        private final byte[] typeBitmaps;
+
+        NSEC(String[] next, byte[] typeBitmaps) {
+            this.next = next;
+            this.typeBitmaps = typeBitmaps;
+        }
+
+        public String[] getNext() {
+            return next;
+        }
+
+        /**
+         * @return true if the type bitmaps list the type.
+         */
+        public boolean hasType(int type) {
+            return hasType(typeBitmaps, type);
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_NSEC;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(toBytes());
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeName(out, next);
+            out.write(typeBitmaps, 0, typeBitmaps.length);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return DNSMessage.joinDomainName(next) + " (" + typeBitmaps.length + " bytes of type bitmaps)";
+        }
+    }
+
+    /**
+     * NSEC for zones that do not want their names listed: the owner is a hash of a name, and
+     * the record says which hash comes next and which types exist at the hashed name (RFC 5155).
+     */
+    public static final class NSEC3 extends RData {
+        // Unsigned delegations between this hash and the next may exist without being listed
+        static final int FLAG_OPT_OUT = 0x01;
+
+        private final int hashAlgorithm;
+        private final int flags;
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] nextHashed;
+        private final byte[] typeBitmaps;
+
+        NSEC3(int hashAlgorithm, int flags, int iterations, byte[] salt, byte[] nextHashed, byte[] typeBitmaps) {
+            this.hashAlgorithm = hashAlgorithm;
+            this.flags = flags;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.nextHashed = nextHashed;
+            this.typeBitmaps = typeBitmaps;
+        }
+
+        public int getHashAlgorithm() {
+            return hashAlgorithm;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public byte[] getNextHashed() {
+            return nextHashed;
+        }
+
+        public boolean isOptOut() {
+            return (flags & FLAG_OPT_OUT) != 0;
+        }
+
+        public boolean hasType(int type) {
+            return hasType(typeBitmaps, type);
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_NSEC3;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(toBytes());
+        }
+
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(hashAlgorithm);
+            out.write(flags);
+            out.write(iterations >>> 8);
+            out.write(iterations);
+            out.write(salt.length);
+            out.write(salt, 0, salt.length);
+            out.write(nextHashed.length);
+            out.write(nextHashed, 0, nextHashed.length);
+            out.write(typeBitmaps, 0, typeBitmaps.length);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return hashAlgorithm + " " + flags + " " + iterations + " " +
+                    (salt.length == 0 ? "-" : HexFormat.of().withUpperCase().formatHex(salt)) + " " +
+                    HexFormat.of().withUpperCase().formatHex(nextHashed) + " (" + typeBitmaps.length + " bytes of type bitmaps)";
+        }
+    }
+
+    // Whether NSEC or NSEC3 type bitmaps list a type: blocks of window number, length and bits (RFC 4034 section 4.1.2)
+    static boolean hasType(byte[] typeBitmaps, int type) {
+        int window = type >>> 8;
+        int bit = type & 0xFF;
+        int position = 0;
+        while (position + 2 <= typeBitmaps.length) {
+            int blockWindow = typeBitmaps[position] & 0xFF;
+            int blockLength = typeBitmaps[position + 1] & 0xFF;
+            if (blockWindow == window) {
+                int index = position + 2 + bit / 8;
+                return bit / 8 < blockLength && index < typeBitmaps.length
+                        && (typeBitmaps[index] & (0x80 >>> (bit % 8))) != 0;
+            }
+            position += 2 + blockLength;
+        }
+        return false;
+    }
+
+    /**
+     * RDATA of a type we do not decode, kept as it came.
+     */
+    public static final class Opaque extends RData {
+        private final int type;
+        private final byte[] bytes;
+
+        Opaque(int type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public void writeTo(DNSWireWriter writer) {
+            writer.writeBytes(bytes);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "\\# " + bytes.length;
+        }
+    }
+
+    // Reads the fields of one RDATA, following compression pointers anywhere in the message
+    private static final class NameReader {
+        private final byte[] message;
+        private final int end;
+        private int position;
+
+        NameReader(byte[] message, int offset, int end) {
+            this.message = message;
+            this.position = offset;
+            this.end = end;
+        }
+
+        String[] readName() throws IOException {
+            ArrayList<String> labels = new ArrayList<>();
+            int current = position;
+            int afterName = -1; // where the RDATA continues once we followed a pointer
+            int jumps = 0;
+            int nameLength = 1;
+            while (true) {
+                // Before the first pointer the name must stay inside the RDATA, after it anywhere in the message
+                int limit = afterName < 0 ? end : message.length;
+                if (current >= limit) {
+                    throw new IOException("Name runs past the end of the RDATA");
+                }
+                int length = message[current] & 0xFF;
+                if ((length & 0xC0) == 0xC0) {
+                    if (current + 1 >= limit) {
+                        throw new IOException("Truncated compression pointer in RDATA");
+                    }
+                    if (++jumps > MAX_POINTER_JUMPS) {
+                        throw new IOException("Too many compression pointers in RDATA");
+                    }
+                    if (afterName < 0) {
+                        afterName = current + 2;
+                    }
+                    current = ((length & 0x3F) << 8) | (message[current + 1] & 0xFF);
+                    continue;
+                }
+                if ((length & 0xC0) != 0) {
+                    throw new IOException("Unknown label type in RDATA");
+                }
+                if (length == 0) {
+                    position = afterName < 0 ? current + 1 : afterName;
+                    return labels.toArray(new String[0]);
+                }
+                if (current + 1 + length > limit) {
+                    throw new IOException("Label runs past the end of the RDATA");
+                }
+                nameLength += 1 + length;
+                if (nameLength > MAX_NAME_LENGTH) {
+                    throw new IOException("Name in RDATA is longer than 255 bytes");
+                }
+                labels.add(new String(message, current + 1, length, StandardCharsets.US_ASCII));
+                current += 1 + length;
+            }
+        }
+
+        int readByte() throws IOException {
+            if (position + 1 > end) {
+                throw new IOException("RDATA too short");
+            }
+            return message[position++] & 0xFF;
+        }
+
+        byte[] readBytes(int count) throws IOException {
+            if (position + count > end) {
+                throw new IOException("RDATA too short");
+            }
+            byte[] bytes = Arrays.copyOfRange(message, position, position + count);
+            position += count;
+            return bytes;
+        }
+
+        // Everything left in the RDATA
+        byte[] readRest() {
+            byte[] rest = Arrays.copyOfRange(message, position, end);
+            position = end;
+            return rest;
+        }
+
+        int readShort() throws IOException {
+            if (position + 2 > end) {
+                throw new IOException("RDATA too short");
+            }
+            int value = ((message[position] & 0xFF) << 8) | (message[position + 1] & 0xFF);
+            position += 2;
+            return value;
+        }
+
+        long readInt() throws IOException {
+            if (position + 4 > end) {
+                throw new IOException("RDATA too short");
+            }
+            long value = ((message[position] & 0xFFL) << 24) | ((message[position + 1] & 0xFFL) << 16)
+                    | ((message[position + 2] & 0xFFL) << 8) | (message[position + 3] & 0xFFL);
+            position += 4;
+            return value;
+        }
+
+        void expectEnd(int type) throws IOException {
+            if (position != end) {
+                throw new IOException("RDATA of type " + type + " has " + (end - position) + " extra bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Response rate limiting for UDP: each client network (/24 for IPv4, /56 for IPv6) gets a token
+ * bucket of `perSecond` answers a second with room for a burst. Queries beyond it are dropped,
+ * except every `slip`-th one on average, which gets an empty truncated answer instead. A real
+ * client behind a spoofed flood then retries over TCP (which cannot be spoofed and is not
+ * limited), while the flood's victim only receives small answers at a low rate.
+ *
+ * Each bucket is a single long, its "theoretical arrival time" (GCRA): the time at which the bucket
+ * would be full again. A query is allowed if that is no more than the burst ahead of now, and pushes
+ * it one interval further. Buckets sit in a fixed-size table indexed by a hash of the prefix, so
+ * memory stays bounded however many clients there are; a prefix hashing onto another's slot takes
+ * it over with a full bucket. That can only let more through, never block a client wrongly.
+ * A check is a hash, two array reads and one compare-and-set, with no locks.
+ */
+public class ResponseRateLimiter {
+    public static final int ALLOW = 0;
+    public static final int DROP = 1;
+    public static final int SLIP = 2;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // Tags so an IPv4 and an IPv6 prefix never have the same key, and no key is 0 (an empty slot)
+    private static final long IPV4_TAG = 4L << 56;
+    private static final long IPV6_TAG = 6L << 56;
+    // Inet4Address.hashCode() has always been the address as an int, checked once rather than assumed
+    private static final boolean IPV4_HASH_IS_ADDRESS = ipv4HashIsAddress();
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int slip;
+    private final int mask;
+    private final AtomicLongArray prefixes;
+    private final AtomicLongArray arrivals;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder slipped = new LongAdder();
+
+    /**
+     * @param perSecond Answers a second allowed to one client network.
+     * @param burst     Answers allowed back to back before the rate applies.
+     * @param slip      Answer 1 in this many limited queries with TC set (0 drops them all, 1 truncates all).
+     * @param tableSize Most client networks tracked at once, rounded up to a power of two.
+     */
+    public ResponseRateLimiter(int perSecond, int burst, int slip, int tableSize) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + perSecond);
+        }
+        this.intervalNanos = NANOS_PER_SECOND / perSecond;
+        this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+        this.slip = slip;
+        int size = Integer.highestOneBit(Math.max(16, tableSize) - 1) << 1;
+        this.mask = size - 1;
+        this.prefixes = new AtomicLongArray(size);
+        this.arrivals = new AtomicLongArray(size);
+    }
+
+    /**
+     * Decides what to do with a query from a client.
+     *
+     * @param client   The client's address.
+     * @param nowNanos The current System.nanoTime().
+     * @return ALLOW to answer it, DROP to ignore it, or SLIP to send an empty truncated answer.
+     */
+    public int check(InetAddress client, long nowNanos) {
+        long prefix = prefixOf(client);
+        int slot = slot(prefix);
+        if (prefixes.get(slot) != prefix) {
+            // A new network, or one whose bucket another took over: start it full
+            prefixes.set(slot, prefix);
+            arrivals.set(slot, nowNanos);
+        }
+        while (true) {
+            long arrival = arrivals.get(slot);
+            long from = arrival - nowNanos > 0 ? arrival : nowNanos;
+            if (from - nowNanos > burstNanos) {
+                break;
+            }
+            if (arrivals.compareAndSet(slot, arrival, from + intervalNanos)) {
+                allowed.increment();
+                return ALLOW;
+            }
+        }
+        // A random pick per thread rather than a shared counter, so limiting a flood causes no contention
+        if (slip == 1 || slip > 1 && ThreadLocalRandom.current().nextInt(slip) == 0) {
+            slipped.increment();
+            return SLIP;
+        }
+        dropped.increment();
+        return DROP;
+    }
+
+    // The client's /24 or /56, tagged with its address family
+    static long prefixOf(InetAddress client) {
+        if (client instanceof Inet4Address) {
+            if (IPV4_HASH_IS_ADDRESS) {
+                // No copy of the address: its hash code is the address itself
+                return IPV4_TAG | ((client.hashCode() >>> 8) & 0xFFFFFFL);
+            }
+            byte[] address = client.getAddress();
+            return IPV4_TAG | ((address[0] & 0xFFL) << 16) | ((address[1] & 0xFFL) << 8) | (address[2] & 0xFFL);
+        }
+        // The JDK has no way to read an IPv6 address without copying it
+        byte[] address = client.getAddress();
+        long prefix = 0;
+        for (int i = 0; i < 7; i++) {
+            prefix = (prefix << 8) | (address[i] & 0xFFL);
+        }
+        return IPV6_TAG | prefix;
+    }
+
+    private static boolean ipv4HashIsAddress() {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, (byte) 129}).hashCode() == 0xC0000281;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private int slot(long prefix) {
+        long h = prefix * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @return Queries let through.
+     */
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    /**
+     * @return Queries dropped without an answer.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Queries answered with an empty truncated response.
+     */
+    public long getSlippedCount() {
+        return slipped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseRateLimiter{" +
+                "allowed=" + allowed.sum() +
+                ", dropped=" + dropped.sum() +
+                ", slipped=" + slipped.sum() +
+                '}';
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UDP on several sockets bound to the same port with SO_REUSEPORT.
+ * The kernel spreads incoming packets over the sockets by the client's address and port, so
+ * every socket has its own receive queue and its own worker thread that receives, answers and
+ * sends without ever touching another worker's socket or buffers. With one worker per core the
+ * packet rate scales with the cores instead of stopping at what one socket can receive.
+ * Each worker also gets its own CacheFront through the QueryHandler, so repeated questions are
+ * answered without touching the shared cache.
+ */
+public class ReusePortUdpServer {
+    // Room for bursts on each socket (the kernel caps it at net.core.rmem_max)
+    private static final int RECEIVE_BUFFER_BYTES = 4 << 20;
+
+    private final QueryHandler handler;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    /**
+     * Opens and binds the sockets.
+     *
+     * @param port      The port to listen on.
+     * @param listeners Number of sockets, each with its own worker thread.
+     * @param handler   Answers the queries.
+     * @throws IOException If SO_REUSEPORT is not supported here or the port cannot be bound.
+     */
+    public ReusePortUdpServer(int port, int listeners, QueryHandler handler) throws IOException {
+        this.handler = handler;
+        try {
+            for (int i = 0; i < listeners; i++) {
+                DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channels.add(channel);
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+                channel.bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            closeAll(channels);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts one worker thread per socket.
+     */
+    public void start() {
+        for (int i = 0; i < channels.size(); i++) {
+            DatagramChannel channel = channels.get(i);
+            Thread worker = new Thread(() -> serve(channel), "dns-udp-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Waits until every worker has stopped.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Receives, answers and replies on one socket. Its buffers belong to this worker alone
+    private void serve(DatagramChannel channel) {
+        byte[] requestData = new byte[Edns.MAX_UDP_PAYLOAD];
+        byte[] responseData = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        ByteBuffer requestBuffer = ByteBuffer.wrap(requestData);
+        ByteBuffer responseBuffer = ByteBuffer.wrap(responseData);
+        while (channel.isOpen()) {
+            SocketAddress client;
+            try {
+                requestBuffer.clear();
+                client = channel.receive(requestBuffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("UDP receive failed: " + e);
+                continue;
+            }
+            try {
+                int length = handler.handleUdp(requestData, requestBuffer.position(), responseData,
+                        ((InetSocketAddress) client).getAddress());
+                if (length < 0) {
+                    // Counted by the rate limiter and dns_dropped_total, a line per packet would turn a flood into log I/O
+                    continue;
+                }
+                responseBuffer.clear().limit(length);
+                channel.send(responseBuffer, client);
+            } catch (IOException e) {
+                // One bad answer should not take the worker down
+                System.out.println("Failed to answer " + client + ": " + e);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes every socket, which stops the workers.
+     */
+    public void close() {
+        closeAll(channels);
+    }
+
+    private static void closeAll(List<DatagramChannel> channels) {
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public int getListenerCount() {
+        return channels.size();
+    }
+}
@@ -0,0 +1,208 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server settings, read from system properties so they can be changed on the command line,
+ * e.g. java -Ddns.port=53 -Ddns.upstream=1.1.1.1,8.8.8.8 DNSserver
+ */
+public class ServerConfig {
+    // Port the server listens on
+    final int port = Integer.getInteger("dns.port", 8053);
+    // "single" answers UDP on one socket in one loop, "reuseport" opens udpListeners sockets on the
+    // port with SO_REUSEPORT, each with its own worker thread, "virtual" answers every query on a virtual thread,
+    // "batch" reads and answers bursts of datagrams per wakeup on udpListeners non-blocking sockets
+    final String udpMode = System.getProperty("dns.udp.mode", "single");
+    // Most queries answered at once in virtual mode
+    final int virtualMaxInFlight = Integer.getInteger("dns.virtual.maxInFlight", 50000);
+    // Sockets and workers in reuseport and batch mode, one per core by default
+    final int udpListeners = Integer.getInteger("dns.udp.listeners", Runtime.getRuntime().availableProcessors());
+    // Most datagrams a batch mode worker reads per wakeup
+    final int udpBatchSize = Integer.getInteger("dns.udp.batchSize", 64);
+    // Direct buffers batch mode receives into and sends from, 4 KB each, shared by the workers
+    final int udpPooledBuffers = Integer.getInteger("dns.udp.pooledBuffers", 1024);
+    // Slots in each query thread's cache front (0 disables it)
+    final int cacheFrontSize = Integer.getInteger("dns.cache.frontSize", 1024);
+    // Most cache entries kept on the heap, past it expired then soon to expire entries are evicted
+    final int cacheMaxEntries = Integer.getInteger("dns.cache.maxEntries", DNSCache.DEFAULT_MAX_ENTRIES);
+    // Megabytes of native memory to keep cache entries in instead of the heap (0 keeps them on the heap)
+    final long cacheOffHeapBytes = Long.getLong("dns.cache.offHeapMB", 0) << 20;
+    // File the cache is saved to and restored from on startup, unset to start cold every time
+    final String cacheSnapshotFile = System.getProperty("dns.cache.snapshotFile");
+    // Seconds between cache snapshots (0 only saves on shutdown)
+    final int cacheSnapshotSeconds = Integer.getInteger("dns.cache.snapshotSeconds", 60);
+    // Directory of zone files ("example.com.zone") answered authoritatively, unset for none
+    final String zonesDirectory = System.getProperty("dns.zones.dir");
+    // Seconds between checks for changed zone files (0 disables reloading)
+    final int zonesReloadSeconds = Integer.getInteger("dns.zones.reloadSeconds", 5);
+
+    // "forward" sends misses to the upstream resolvers below, "iterative" resolves them from the root servers
+    final String mode = System.getProperty("dns.mode", "forward");
+    // Root servers iterative mode starts from, comma separated host or host:port
+    final List<InetSocketAddress> rootHints = parseAddresses(System.getProperty("dns.rootHints", IterativeResolver.DEFAULT_ROOT_HINTS), 53);
+    // How long iterative mode waits for one authoritative server
+    final int iterativeTimeoutMillis = Integer.getInteger("dns.iterative.timeoutMillis", 800);
+    // Most queries one iterative lookup may send, including name server lookups
+    final int iterativeMaxQueries = Integer.getInteger("dns.iterative.maxQueries", 64);
+    // Port of the authoritative servers iterative mode learns about (only changed to test against local servers)
+    final int authoritativePort = Integer.getInteger("dns.iterative.serverPort", 53);
+    // Zone cuts remembered by iterative mode
+    final int delegationCacheSize = Integer.getInteger("dns.iterative.delegationCacheSize", 100000);
+
+    // Upstream recursive resolvers, comma separated host or host:port
+    final List<InetSocketAddress> upstreams = parseAddresses(System.getProperty("dns.upstream", "8.8.8.8,1.1.1.1"), 53);
+    // How long to wait for an upstream before giving up on it
+    final int upstreamTimeoutMillis = Integer.getInteger("dns.upstream.timeoutMillis", 2000);
+    // Hedging: re-send to the next upstream once this percentile of recent RTTs has passed (0 disables)...
+    final double hedgePercentile = Double.parseDouble(System.getProperty("dns.hedge.percentile", "0.95"));
+    // ...but never sooner than this
+    final int hedgeMinDelayMillis = Integer.getInteger("dns.hedge.minDelayMillis", 10);
+
+    // Persistent TCP connections kept open to each upstream, for answers that do not fit in UDP
+    final int upstreamTcpConnections = Integer.getInteger("dns.upstream.tcpConnections", 2);
+
+    // EDNS0: largest UDP payload we advertise and send (clients without EDNS still get 512)
+    final int ednsUdpPayload = Math.min(Edns.MAX_UDP_PAYLOAD, Integer.getInteger("dns.edns.udpPayload", Edns.ADVERTISED_UDP_PAYLOAD));
+
+    // DNS over TCP listener on the same port (false disables it)
+    final boolean tcpEnabled = Boolean.parseBoolean(System.getProperty("dns.tcp.enabled", "true"));
+    // Threads answering TCP queries, shared by all connections
+    final int tcpWorkers = Integer.getInteger("dns.tcp.workers", 16);
+    // Idle TCP connections are closed after this long (RFC 7766 suggests seconds, not minutes)
+    final int tcpIdleTimeoutMillis = Integer.getInteger("dns.tcp.idleTimeoutMillis", 10000);
+    // Connections beyond this are refused
+    final int tcpMaxConnections = Integer.getInteger("dns.tcp.maxConnections", 256);
+
+    // Refresh-ahead: entries hit at least this often...
+    final int prefetchMinHits = Integer.getInteger("dns.prefetch.minHits", 3);
+    // ...are refreshed once less than this fraction of their TTL is left (0 disables prefetching)
+    final double prefetchTtlFraction = Double.parseDouble(System.getProperty("dns.prefetch.ttlFraction", "0.1"));
+
+    // Serve-stale (RFC 8767): keep expired entries this long while the cache has room (0 disables serve-stale)...
+    final long staleGraceSeconds = Long.getLong("dns.stale.graceSeconds", 3600);
+    // ...and answer from them when the upstream has not answered within this budget
+    final int staleAnswerTimeoutMillis = Integer.getInteger("dns.stale.answerTimeoutMillis", 400);
+    // TTL put on stale answers
+    final int staleTtl = Integer.getInteger("dns.stale.ttl", 30);
+
+    // DNSSEC: validate upstream answers, SERVFAIL for bogus ones and AD for secure ones
+    final boolean dnssecValidate = Boolean.parseBoolean(System.getProperty("dns.dnssec.validate", "false"));
+    // DS records trusted without a parent, "zone keytag algorithm digesttype digest;...", the root key by default
+    final String dnssecTrustAnchor = System.getProperty("dns.dnssec.trustAnchor", DnssecValidator.DEFAULT_TRUST_ANCHOR);
+    // Threads checking signatures, one per core by default
+    final int dnssecWorkers = Integer.getInteger("dns.dnssec.workers", Runtime.getRuntime().availableProcessors());
+    // Signature results and zone keys kept
+    final int dnssecResultCacheSize = Integer.getInteger("dns.dnssec.resultCacheSize", 100000);
+
+    // Port of the plain text metrics endpoint on 127.0.0.1 (0 disables it, JMX is always on)
+    final int metricsPort = Integer.getInteger("dns.metrics.port", 0);
+    // Binary log of every query answered (print it with QueryLogReader), unset for none
+    final String queryLogFile = System.getProperty("dns.querylog.file");
+    // Size in megabytes at which the query log is rotated
+    final long queryLogMaxFileBytes = Long.getLong("dns.querylog.maxFileMB", 100) << 20;
+    // Rotated query logs kept (file.1 ... file.N)
+    final int queryLogKeepFiles = Integer.getInteger("dns.querylog.keepFiles", 10);
+    // Queries waiting to be written before new ones are dropped
+    final int queryLogBufferEntries = Integer.getInteger("dns.querylog.bufferEntries", 65536);
+
+    // Domains to block, one per line or in hosts file format, unset for none
+    final String blocklistFile = System.getProperty("dns.blocklist.file");
+    // "nxdomain" answers blocked names with NXDOMAIN, "sinkhole" with 0.0.0.0 / ::
+    final String blocklistAction = System.getProperty("dns.blocklist.action", "nxdomain");
+    // TTL of sinkhole answers
+    final int blocklistTtl = Integer.getInteger("dns.blocklist.ttl", 300);
+    // Most names loaded from the blocklist
+    final int blocklistMaxNames = Integer.getInteger("dns.blocklist.maxNames", 10_000_000);
+    // Seconds between checks for a changed blocklist file (0 disables reloading)
+    final int blocklistReloadSeconds = Integer.getInteger("dns.blocklist.reloadSeconds", 60);
+
+    // UDP answers a second to one client /24 (IPv4) or /56 (IPv6), 0 disables rate limiting
+    final int rrlPerSecond = Integer.getInteger("dns.rrl.perSecond", 0);
+    // Answers a client network may get back to back before the rate applies
+    final int rrlBurst = Integer.getInteger("dns.rrl.burst", 20);
+    // 1 in this many limited queries gets an empty truncated answer, so real clients retry over TCP (0 drops all)
+    final int rrlSlip = Integer.getInteger("dns.rrl.slip", 2);
+    // Client networks tracked at once
+    final int rrlTableSize = Integer.getInteger("dns.rrl.tableSize", 65536);
+
+    // Parses "host[:port],host[:port],..."
+    static List<InetSocketAddress> parseAddresses(String text, int defaultPort) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String part : text.split(",")) {
+            if (!part.isBlank()) {
+                addresses.add(parseAddress(part, defaultPort));
+            }
+        }
+        return addresses;
+    }
+
+    // Parses "host" or "host:port"
+    static InetSocketAddress parseAddress(String text, int defaultPort) {
+        String host = text.trim();
+        int port = defaultPort;
+        int colon = host.lastIndexOf(':');
+        if (colon > 0 && host.indexOf(':') == colon) {
+            port = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{" +
+                "port=" + port +
+                ", udpMode=" + udpMode +
+                ", udpListeners=" + udpListeners +
+                ", udpBatchSize=" + udpBatchSize +
+                ", udpPooledBuffers=" + udpPooledBuffers +
+                ", virtualMaxInFlight=" + virtualMaxInFlight +
+                ", cacheFrontSize=" + cacheFrontSize +
+                ", cacheMaxEntries=" + cacheMaxEntries +
+                ", cacheOffHeapBytes=" + cacheOffHeapBytes +
+                ", cacheSnapshotFile=" + cacheSnapshotFile +
+                ", cacheSnapshotSeconds=" + cacheSnapshotSeconds +
+                ", zonesDirectory=" + zonesDirectory +
+                ", zonesReloadSeconds=" + zonesReloadSeconds +
+                ", mode=" + mode +
+                ", rootHints=" + rootHints.size() +
+                ", iterativeTimeoutMillis=" + iterativeTimeoutMillis +
+                ", iterativeMaxQueries=" + iterativeMaxQueries +
+                ", authoritativePort=" + authoritativePort +
+                ", delegationCacheSize=" + delegationCacheSize +
+                ", upstreams=" + upstreams +
+                ", upstreamTimeoutMillis=" + upstreamTimeoutMillis +
+                ", hedgePercentile=" + hedgePercentile +
+                ", hedgeMinDelayMillis=" + hedgeMinDelayMillis +
+                ", upstreamTcpConnections=" + upstreamTcpConnections +
+                ", ednsUdpPayload=" + ednsUdpPayload +
+                ", tcpEnabled=" + tcpEnabled +
+                ", tcpWorkers=" + tcpWorkers +
+                ", tcpIdleTimeoutMillis=" + tcpIdleTimeoutMillis +
+                ", tcpMaxConnections=" + tcpMaxConnections +
+                ", prefetchMinHits=" + prefetchMinHits +
+                ", prefetchTtlFraction=" + prefetchTtlFraction +
+                ", staleGraceSeconds=" + staleGraceSeconds +
+                ", staleAnswerTimeoutMillis=" + staleAnswerTimeoutMillis +
+                ", staleTtl=" + staleTtl +
+                ", dnssecValidate=" + dnssecValidate +
+                ", dnssecTrustAnchor=" + dnssecTrustAnchor +
+                ", dnssecWorkers=" + dnssecWorkers +
+                ", dnssecResultCacheSize=" + dnssecResultCacheSize +
+                ", metricsPort=" + metricsPort +
+                ", queryLogFile=" + queryLogFile +
+                ", queryLogMaxFileBytes=" + queryLogMaxFileBytes +
+                ", queryLogKeepFiles=" + queryLogKeepFiles +
+                ", queryLogBufferEntries=" + queryLogBufferEntries +
+                ", blocklistFile=" + blocklistFile +
+                ", blocklistAction=" + blocklistAction +
+                ", blocklistTtl=" + blocklistTtl +
+                ", blocklistMaxNames=" + blocklistMaxNames +
+                ", blocklistReloadSeconds=" + blocklistReloadSeconds +
+                ", rrlPerSecond=" + rrlPerSecond +
+                ", rrlBurst=" + rrlBurst +
+                ", rrlSlip=" + rrlSlip +
+                ", rrlTableSize=" + rrlTableSize +
+                '}';
+    }
+}
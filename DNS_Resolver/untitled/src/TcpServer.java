@@ -0,0 +1,238 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DNS over TCP (RFC 7766), for answers too big for UDP.
+ * Each message is preceded by its 2 byte length. Clients may pipeline: send many queries on one
+ * connection without waiting. Every query is answered on a worker thread as soon as it is ready,
+ * so a slow upstream lookup never holds up cache hits queued behind it, and answers go back in
+ * whatever order they finish (clients match them by ID). Answers are written by a writer thread of
+ * the connection's own from a bounded queue, so a client that stops reading only stalls its own
+ * connection and never a shared worker. Idle connections, and connections whose client has not
+ * taken its answers for as long, are closed after a timeout.
+ * Anything a client can cause (dropped queries, failed connections) is only counted, a log line
+ * each would let any client turn a flood into log I/O.
+ */
+public class TcpServer implements Runnable {
+    // Queries one connection may have in flight (being answered or waiting to be written) before
+    // we stop reading from it
+    private static final int MAX_IN_FLIGHT_PER_CONNECTION = 64;
+
+    private static final ThreadLocal<byte[]> OUT_BUFFER = ThreadLocal.withInitial(() -> new byte[DNSWireWriter.MAX_MESSAGE_SIZE]);
+
+    private final ServerSocket serverSocket;
+    private final QueryHandler handler;
+    private final int idleTimeoutMillis;
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ThreadPoolExecutor workers;
+    private final LongAdder refusedConnections = new LongAdder(); // over maxConnections
+    private final LongAdder failedConnections = new LongAdder(); // accept or socket I/O failed
+    private final LongAdder droppedQueries = new LongAdder(); // workers busy or the answer failed
+
+    /**
+     * @param port              The port to listen on.
+     * @param handler           Answers the queries.
+     * @param workerThreads     Threads answering queries, shared by all connections.
+     * @param idleTimeoutMillis Close a connection after this long without a query.
+     * @param maxConnections    Refuse connections beyond this many.
+     * @throws IOException If the port cannot be bound.
+     */
+    public TcpServer(int port, QueryHandler handler, int workerThreads, int idleTimeoutMillis, int maxConnections) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.handler = handler;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(4096), runnable -> {
+                    Thread thread = new Thread(runnable, "dns-tcp-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Starts accepting connections on a daemon thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this, "dns-tcp-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (connections.incrementAndGet() > maxConnections) {
+                    connections.decrementAndGet();
+                    refusedConnections.increment();
+                    socket.close();
+                    continue;
+                }
+                Thread reader = new Thread(() -> serve(socket), "dns-tcp-conn");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    failedConnections.increment();
+                }
+            }
+        }
+    }
+
+    // Reads queries off one connection until it closes or goes idle
+    private void serve(Socket socket) {
+        // A permit is held from reading a query until its answer is written
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT_PER_CONNECTION);
+        ArrayBlockingQueue<byte[]> answers = new ArrayBlockingQueue<>(MAX_IN_FLIGHT_PER_CONNECTION);
+        Thread writer = null;
+        try (socket) {
+            socket.setSoTimeout(idleTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writer = new Thread(() -> write(socket, out, answers, inFlight), "dns-tcp-write");
+            writer.setDaemon(true);
+            writer.start();
+            while (true) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException | SocketTimeoutException e) {
+                    break; // client is done, or idle too long
+                }
+                byte[] request = new byte[length];
+                in.readFully(request);
+                if (!inFlight.tryAcquire(idleTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    break; // the client has not taken its answers for too long
+                }
+                try {
+                    workers.execute(() -> answer(request, answers, inFlight, socket.getInetAddress()));
+                } catch (RejectedExecutionException e) {
+                    // Workers busy
+                    inFlight.release();
+                    droppedQueries.increment();
+                }
+            }
+            // Let the answers still being worked on go out before closing, as long as the client reads them
+            inFlight.tryAcquire(MAX_IN_FLIGHT_PER_CONNECTION, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            failedConnections.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.decrementAndGet();
+            // The socket is closed, a writer stuck in a write has failed out of it by now
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+
+    // Runs on a worker, answers one query and queues the answer for the connection's writer
+    private void answer(byte[] request, ArrayBlockingQueue<byte[]> answers, Semaphore inFlight, InetAddress client) {
+        byte[] response = OUT_BUFFER.get();
+        boolean queued = false;
+        try {
+            int length = handler.handle(request, request.length, response, false, client);
+            // Never full: it holds at most one answer per in-flight permit
+            queued = length >= 0 && answers.offer(Arrays.copyOf(response, length));
+        } catch (IOException e) {
+            droppedQueries.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!queued) {
+                inFlight.release();
+            }
+        }
+    }
+
+    // Runs on the connection's writer thread, writes each answer as one length-prefixed message
+    private static void write(Socket socket, DataOutputStream out, ArrayBlockingQueue<byte[]> answers, Semaphore inFlight) {
+        boolean failed = false;
+        while (true) {
+            byte[] answer;
+            try {
+                answer = answers.take();
+            } catch (InterruptedException e) {
+                return; // the connection is closed
+            }
+            if (!failed) {
+                try {
+                    out.writeShort(answer.length);
+                    out.write(answer);
+                    // Answers that are ready together go out in one flush
+                    if (answers.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // The client is gone, close the connection so the reader stops too
+                    failed = true;
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Closing anyway
+                    }
+                }
+            }
+            inFlight.release();
+        }
+    }
+
+    /**
+     * @return Connections closed right away because maxConnections were already open.
+     */
+    public long getRefusedConnectionCount() {
+        return refusedConnections.sum();
+    }
+
+    /**
+     * @return Connections that failed to be accepted or failed while open.
+     */
+    public long getFailedConnectionCount() {
+        return failedConnections.sum();
+    }
+
+    /**
+     * @return Queries read but never answered, because the workers were busy or answering failed.
+     */
+    public long getDroppedQueryCount() {
+        return droppedQueries.sum();
+    }
+
+    /**
+     * Stops accepting connections.
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "TcpServer{" +
+                "port=" + serverSocket.getLocalPort() +
+                ", connections=" + connections.get() +
+                ", maxConnections=" + maxConnections +
+                '}';
+    }
+}
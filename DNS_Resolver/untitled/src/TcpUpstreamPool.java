@@ -0,0 +1,219 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent, pipelined TCP connections to one upstream server (RFC 7766).
+ * Instead of a TCP handshake per query, a few connections stay open and many queries are in
+ * flight on each at once. Every query gets an ID that is unique on its connection, a reader
+ * thread per connection hands each response to whoever sent the query with that ID (responses
+ * may come back in any order), and the client's own ID is put back before returning.
+ * Connections the server closes are replaced on the next query.
+ */
+public class TcpUpstreamPool {
+    // Queries in flight on one connection before the next connection is used
+    private static final int MAX_PENDING_PER_CONNECTION = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final InetSocketAddress server;
+    private final int timeoutMillis;
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param server        The upstream server.
+     * @param connections   How many connections to keep open.
+     * @param timeoutMillis How long to wait for a response.
+     */
+    public TcpUpstreamPool(InetSocketAddress server, int connections, int timeoutMillis) {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.connections = new Connection[Math.max(1, connections)];
+    }
+
+    /**
+     * Sends a query over one of the pooled connections and waits for its response.
+     * A query that fails because its connection died is retried once on a fresh connection.
+     *
+     * @param query  The encoded query.
+     * @param length The number of bytes of query to send.
+     * @return The raw response, with the query's ID.
+     * @throws IOException If no response arrives in time or the connection fails twice.
+     */
+    public byte[] exchange(byte[] query, int length) throws IOException {
+        try {
+            return connection().exchange(query, length, timeoutMillis);
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            // Most likely the server closed an idle connection just as we used it
+            return connection().exchange(query, length, timeoutMillis);
+        }
+    }
+
+    // Picks a live connection round robin, opening one if the slot is empty or dead
+    private Connection connection() throws IOException {
+        int start = Math.floorMod(next.getAndIncrement(), connections.length);
+        for (int i = 0; i < connections.length; i++) {
+            int slot = (start + i) % connections.length;
+            Connection connection = live(slot);
+            if (connection.pending.size() < MAX_PENDING_PER_CONNECTION || i == connections.length - 1) {
+                return connection;
+            }
+        }
+        return live(start);
+    }
+
+    // The lock only guards the slots, connecting happens outside it so one slow connect does not
+    // hold up queries on the other connections
+    private Connection live(int slot) throws IOException {
+        synchronized (connections) {
+            Connection connection = connections[slot];
+            if (connection != null && !connection.closed) {
+                return connection;
+            }
+        }
+        Connection fresh = new Connection(server);
+        synchronized (connections) {
+            Connection connection = connections[slot];
+            if (connection != null && !connection.closed) {
+                // Another query connected this slot first, use that one
+                fresh.close(new IOException("Connection not needed"));
+                return connection;
+            }
+            connections[slot] = fresh;
+            return fresh;
+        }
+    }
+
+    /**
+     * Closes every connection.
+     */
+    public void close() {
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                if (connection != null) {
+                    connection.close(new IOException("Pool closed"));
+                }
+            }
+        }
+    }
+
+    // One TCP connection with a reader thread matching responses to queries by ID
+    private static final class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextId = new AtomicInteger();
+        private volatile boolean closed;
+
+        Connection(InetSocketAddress server) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(server, CONNECT_TIMEOUT_MILLIS);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(this::readResponses, "dns-tcp-upstream-" + server);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        byte[] exchange(byte[] query, int length, int timeoutMillis) throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            // Claim an ID nobody else on this connection is waiting on
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            int id;
+            do {
+                id = nextId.getAndIncrement() & 0xFFFF;
+            } while (pending.putIfAbsent(id, future) != null);
+
+            byte[] wire = Arrays.copyOf(query, length);
+            wire[0] = (byte) (id >>> 8);
+            wire[1] = (byte) id;
+            try {
+                synchronized (out) {
+                    out.writeShort(length);
+                    out.write(wire, 0, length);
+                    out.flush();
+                }
+                byte[] response = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                // Give the caller its own ID back
+                response[0] = query[0];
+                response[1] = query[1];
+                return response;
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            } catch (TimeoutException e) {
+                throw new SocketTimeoutException("No TCP answer from " + socket.getRemoteSocketAddress() + " in " + timeoutMillis + "ms");
+            } catch (ExecutionException e) {
+                throw new IOException("TCP connection to " + socket.getRemoteSocketAddress() + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for TCP answer", e);
+            } finally {
+                pending.remove(id, future);
+            }
+        }
+
+        // Runs on the reader thread until the connection dies
+        private void readResponses() {
+            try {
+                while (true) {
+                    int length = in.readUnsignedShort();
+                    byte[] response = new byte[length];
+                    in.readFully(response);
+                    if (length < 2) {
+                        continue;
+                    }
+                    int id = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+                    CompletableFuture<byte[]> future = pending.remove(id);
+                    if (future != null) {
+                        future.complete(response);
+                    }
+                }
+            } catch (EOFException e) {
+                close(new IOException("Upstream closed the connection"));
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            for (CompletableFuture<byte[]> future : pending.values()) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TcpUpstreamPool{" +
+                "server=" + server +
+                ", connections=" + connections.length +
+                ", timeoutMillis=" + timeoutMillis +
+                '}';
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.function.Consumer;
+
+/*
+        level 3 |  64 slots x 64^3 ticks  |  (~194 days at 1s ticks)
+        level 2 |  64 slots x 64^2 ticks  |  (~3 days)
+        level 1 |  64 slots x 64   ticks  |  (~68 minutes)
+        level 0 |  64 slots x 1    tick   |  (~64 seconds)
+ */
+/**
+ * Hierarchical timer wheel used to expire cache entries in the background.
+ * Scheduling, cancelling and firing a timer are all O(1): every timer is a node in a
+ * doubly linked list hanging off one slot, and a timer only ever moves down a level
+ * when the slot above it is cascaded.
+ * Deadlines are absolute System.nanoTime() values. This class is not thread-safe,
+ * callers must hold a lock around every method.
+ *
+ * @param <T> The value carried by each timer.
+ */
+public class TimerWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS; // slots per level
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // Furthest tick (relative to now) the wheel can hold, later deadlines get clamped and re-cascaded
+    private static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    /**
+     * A scheduled timer. Returned by schedule() so it can later be cancelled or rescheduled.
+     */
+    public static final class Timer<T> {
+        private final T value;
+        private long deadlineTick;
+        private Timer<T> prev;
+        private Timer<T> next;
+        private boolean scheduled;
+
+        private Timer(T value) {
+            this.value = value;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    private final long tickNanos; // length of one tick in nanoseconds
+    private final long startNanos; // nanoTime the wheel was created at, tick 0
+    private final Timer<T>[][] slots; // sentinel head of every slot list
+    private long currentTick; // last tick that has been fired
+    private int size;
+
+    /**
+     * Creates a timer wheel.
+     *
+     * @param tickNanos The resolution of the wheel in nanoseconds.
+     * @param nowNanos  The current System.nanoTime().
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickNanos, long nowNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos must be positive");
+        }
+        this.tickNanos = tickNanos;
+        this.startNanos = nowNanos;
+        this.slots = new Timer[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer<T> head = new Timer<>(null);
+                head.prev = head;
+                head.next = head;
+                slots[level][slot] = head;
+            }
+        }
+        this.currentTick = 0;
+    }
+
+    /**
+     * Schedules a new timer.
+     *
+     * @param value         The value handed back when the timer fires.
+     * @param deadlineNanos Absolute System.nanoTime() the timer should fire at.
+     * @return The timer, which can be passed to cancel() or reschedule().
+     */
+    public Timer<T> schedule(T value, long deadlineNanos) {
+        Timer<T> timer = new Timer<>(value);
+        reschedule(timer, deadlineNanos);
+        return timer;
+    }
+
+    /**
+     * Moves a timer to a new deadline, scheduling it if it was not scheduled.
+     */
+    public void reschedule(Timer<T> timer, long deadlineNanos) {
+        if (timer.scheduled) {
+            unlink(timer);
+        }
+        // Round up so a timer never fires before its deadline
+        long tick = Math.floorDiv(deadlineNanos - startNanos + tickNanos - 1, tickNanos);
+        timer.deadlineTick = Math.max(tick, currentTick + 1);
+        insert(timer);
+    }
+
+    /**
+     * Cancels a timer. Does nothing if it has already fired or been cancelled.
+     */
+    public void cancel(Timer<T> timer) {
+        if (timer.scheduled) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Fires every timer whose deadline is at or before nowNanos.
+     *
+     * @param nowNanos The current System.nanoTime().
+     * @param expired  Called once with the value of every timer that fired.
+     */
+    public void advance(long nowNanos, Consumer<T> expired) {
+        long targetTick = Math.floorDiv(nowNanos - startNanos, tickNanos);
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Cascade higher levels whose slot boundary we just crossed, highest level first
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long levelMask = (1L << (SLOT_BITS * level)) - 1;
+                if ((currentTick & levelMask) == 0) {
+                    int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                    cascade(slots[level][slot]);
+                }
+            }
+            // Fire everything in the level 0 slot for this tick
+            Timer<T> head = slots[0][(int) (currentTick & SLOT_MASK)];
+            while (head.next != head) {
+                Timer<T> timer = head.next;
+                unlink(timer);
+                if (timer.deadlineTick <= currentTick) {
+                    expired.accept(timer.value);
+                } else {
+                    // Only happens for deadlines that were clamped beyond MAX_SPAN
+                    insert(timer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes one of the timers due first, to make room before any deadline has come. Exact to
+     * the slot: from a slot of a higher level, whose timers span many ticks, any of them is taken.
+     *
+     * @return The removed timer's value, or null if no timer is scheduled.
+     */
+    public T pollEarliest() {
+        if (size == 0) {
+            return null;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            long position = currentTick >>> (SLOT_BITS * level);
+            // Level 0 holds the next SLOTS ticks from the current slot on, a higher level holds
+            // timers from the slot after the current one up to a full turn (back to the current one)
+            int first = level == 0 ? 0 : 1;
+            for (int offset = first; offset < first + SLOTS; offset++) {
+                Timer<T> head = slots[level][(int) ((position + offset) & SLOT_MASK)];
+                if (head.next != head) {
+                    Timer<T> timer = head.next;
+                    unlink(timer);
+                    return timer.value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    // Re-inserts every timer of a higher level slot so it lands in a finer slot
+    private void cascade(Timer<T> head) {
+        Timer<T> timer = head.next;
+        head.next = head;
+        head.prev = head;
+        while (timer != head) {
+            Timer<T> next = timer.next;
+            timer.scheduled = false;
+            size--;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    // Links a timer into the slot matching its deadline
+    private void insert(Timer<T> timer) {
+        long tick = timer.deadlineTick;
+        long delta = tick - currentTick;
+        if (delta >= MAX_SPAN) {
+            tick = currentTick + MAX_SPAN - 1;
+            delta = MAX_SPAN - 1;
+        }
+        if (delta < 0) {
+            // Already due, cascades run before the level 0 slot of the current tick fires
+            tick = currentTick;
+            delta = 0;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        Timer<T> head = slots[level][slot];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+        timer.scheduled = true;
+        size++;
+    }
+
+    private void unlink(Timer<T> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.scheduled = false;
+        size--;
+    }
+}
@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Somewhere queries can be forwarded to: a single upstream resolver or a pool of them.
+ */
+public interface Upstream {
+
+    /**
+     * Forwards a raw query and waits for the matching response.
+     *
+     * @param query  The encoded query.
+     * @param length The number of bytes of query to send.
+     * @return The raw response.
+     * @throws IOException If no response arrives in time or the exchange fails.
+     */
+    byte[] exchange(byte[] query, int length) throws IOException;
+
+    /**
+     * Asks the upstream a question on our own behalf (used for cache refreshes).
+     *
+     * @param question The question to resolve.
+     * @return The decoded response.
+     * @throws IOException If the exchange fails or times out.
+     */
+    default DNSMessage resolve(DNSQuestion question) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        // Advertise EDNS0 so large answers come back over UDP
+        byte[] query = Edns.withOpt(DNSMessage.buildQuery(question, id).toBytes(), Edns.ADVERTISED_UDP_PAYLOAD);
+        return DNSMessage.decodeMessage(exchange(query, query.length));
+    }
+}
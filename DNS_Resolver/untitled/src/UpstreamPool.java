@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of upstream resolvers.
+ * Every server keeps a smoothed round trip time and a smoothed failure rate (both EWMAs),
+ * and each query goes to the fastest healthy server. If it has not answered after the
+ * hedge delay (a percentile of recent round trip times), the query is sent again to the
+ * next best server and whichever answers first wins. A server that fails outright is
+ * failed over to immediately. Servers not picked for a query look a little better each time
+ * (like BIND's SRTT decay), so a server that was slow or failing once is tried again later
+ * instead of never being measured again.
+ */
+public class UpstreamPool implements Upstream {
+    // Weight of a new sample in the EWMAs (same as TCP's SRTT, RFC 6298)
+    private static final double ALPHA = 0.125;
+    // Servers failing more often than this are skipped while a healthier one exists
+    private static final double UNHEALTHY_FAILURE_RATE = 0.5;
+    // Recent round trip times kept to compute the hedge delay
+    private static final int RTT_SAMPLES = 256;
+    // What the RTT and failure rate of a server not picked for a query are multiplied by
+    private static final double DECAY = 0.98;
+    // Exchanges run at once on platform threads (two per query while hedging), and queued beyond that
+    private static final int EXCHANGE_THREADS = 32;
+    private static final int EXCHANGE_QUEUE = 4096;
+
+    /**
+     * One upstream server and its statistics.
+     */
+    public static final class Server {
+        private final UpstreamResolver resolver;
+        // Smoothed RTT in nanoseconds and failure rate in [0, 1], written under the server's lock
+        private double srttNanos;
+        private double failureRate;
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        // Every successful round trip, for the metrics
+        private final LatencyHistogram rtt = new LatencyHistogram();
+
+        Server(UpstreamResolver resolver, long initialRttNanos) {
+            this.resolver = resolver;
+            this.srttNanos = initialRttNanos;
+        }
+
+        synchronized void recordSuccess(long rttNanos) {
+            rtt.record(rttNanos);
+            srttNanos += ALPHA * (rttNanos - srttNanos);
+            failureRate += ALPHA * (0 - failureRate);
+        }
+
+        synchronized void recordFailure() {
+            failureRate += ALPHA * (1 - failureRate);
+            failures.incrementAndGet();
+        }
+
+        // Lower is better: the RTT, penalised by how often the server fails
+        synchronized double score() {
+            return srttNanos * (1 + 4 * failureRate);
+        }
+
+        // Not picked this time: look a little faster and healthier, so the server gets tried again
+        synchronized void decay() {
+            srttNanos *= DECAY;
+            failureRate *= DECAY;
+        }
+
+        synchronized boolean isHealthy() {
+            return failureRate < UNHEALTHY_FAILURE_RATE;
+        }
+
+        public synchronized double getSrttMillis() {
+            return srttNanos / 1e6;
+        }
+
+        public synchronized double getFailureRate() {
+            return failureRate;
+        }
+
+        public long getQueries() {
+            return queries.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public LatencyHistogram getRttHistogram() {
+            return rtt;
+        }
+
+        public InetSocketAddress getAddress() {
+            return resolver.getServer();
+        }
+
+        @Override
+        public String toString() {
+            return "Server{" +
+                    "address=" + getAddress() +
+                    ", srttMillis=" + getSrttMillis() +
+                    ", failureRate=" + getFailureRate() +
+                    ", queries=" + getQueries() +
+                    ", failures=" + getFailures() +
+                    '}';
+        }
+    }
+
+    private final List<Server> servers;
+    private final int timeoutMillis;
+    private final double hedgePercentile;
+    private final long minHedgeDelayNanos;
+    private final ExecutorService executor;
+
+    // Ring of recent RTTs and the hedge delay derived from it
+    private final long[] rttSamples = new long[RTT_SAMPLES];
+    private int rttSampleCount;
+    private volatile long hedgeDelayNanos;
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * @param addresses       The upstream servers, in order of preference before any RTT is known.
+     * @param timeoutMillis   How long to wait for any one server.
+     * @param hedgePercentile Percentile of recent RTTs after which a query is hedged (e.g. 0.95), 0 disables hedging.
+     * @param minHedgeDelayMillis Never hedge sooner than this.
+     * @param tcpConnections  Persistent TCP connections to keep open per server.
+     */
+    public UpstreamPool(List<InetSocketAddress> addresses, int timeoutMillis, double hedgePercentile, int minHedgeDelayMillis,
+                        int tcpConnections) {
+        this(addresses, timeoutMillis, hedgePercentile, minHedgeDelayMillis, tcpConnections, false);
+    }
+
+    /**
+     * @param virtualThreads  Run the attempts on virtual threads, so thousands of queries can wait
+     *                        on upstreams at once without a platform thread each.
+     * @see #UpstreamPool(List, int, double, int, int)
+     */
+    public UpstreamPool(List<InetSocketAddress> addresses, int timeoutMillis, double hedgePercentile, int minHedgeDelayMillis,
+                        int tcpConnections, boolean virtualThreads) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream is needed");
+        }
+        this.servers = new ArrayList<>();
+        for (int i = 0; i < addresses.size(); i++) {
+            // Tiny initial differences keep the configured order until real RTTs are measured
+            servers.add(new Server(new UpstreamResolver(addresses.get(i), timeoutMillis, tcpConnections), TimeUnit.MILLISECONDS.toNanos(50) + i));
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+        this.hedgeDelayNanos = Math.max(minHedgeDelayNanos, TimeUnit.MILLISECONDS.toNanos(100));
+        if (virtualThreads) {
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dns-upstream-pool-", 0).factory());
+        } else {
+            // Bounded, so a slow upstream under load queues exchanges instead of starting threads without end
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(EXCHANGE_THREADS, EXCHANGE_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(EXCHANGE_QUEUE), runnable -> {
+                        Thread thread = new Thread(runnable, "dns-upstream-pool");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        }
+    }
+
+    @Override
+    public byte[] exchange(byte[] query, int length) throws IOException {
+        Server[] ranked = rank();
+        Server primary = ranked[0];
+        for (int i = 1; i < ranked.length; i++) {
+            ranked[i].decay();
+        }
+        CompletableFuture<byte[]> first = attempt(primary, query, length);
+
+        Server secondary = ranked.length > 1 ? ranked[1] : null;
+        if (secondary == null) {
+            return await(first, timeoutMillis);
+        }
+        try {
+            // Give the best server until the hedge delay to answer on its own
+            long delay = hedgePercentile > 0 ? hedgeDelayNanos : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            return first.get(delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // Slow: hedge to the next server and take whichever answers first
+            hedges.incrementAndGet();
+            return await(firstSuccess(first, attempt(secondary, query, length)), timeoutMillis);
+        } catch (ExecutionException e) {
+            // Failed outright: fail over
+            return await(attempt(secondary, query, length), timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + primary.getAddress(), e);
+        }
+    }
+
+    /**
+     * @return The servers with their current statistics.
+     */
+    public List<Server> getServers() {
+        return servers;
+    }
+
+    /**
+     * @return How many queries were re-sent to a second server.
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return The current hedge delay in milliseconds.
+     */
+    public double getHedgeDelayMillis() {
+        return hedgeDelayNanos / 1e6;
+    }
+
+    // Healthy servers first, each group ordered by score
+    private Server[] rank() {
+        Server[] ranked = servers.toArray(new Server[0]);
+        double[] scores = new double[ranked.length];
+        boolean[] healthy = new boolean[ranked.length];
+        for (int i = 0; i < ranked.length; i++) {
+            scores[i] = ranked[i].score();
+            healthy[i] = ranked[i].isHealthy();
+        }
+        Integer[] order = new Integer[ranked.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> healthy[i] ? 0 : 1).thenComparingDouble(i -> scores[i]));
+        Server[] result = new Server[ranked.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = ranked[order[i]];
+        }
+        return result;
+    }
+
+    // Runs one exchange with one server in the background, recording its outcome
+    private CompletableFuture<byte[]> attempt(Server server, byte[] query, int length) {
+        server.queries.incrementAndGet();
+        try {
+            return CompletableFuture.supplyAsync(() -> exchange(server, query, length), executor);
+        } catch (RejectedExecutionException e) {
+            // Not the server's fault, so not counted against it
+            return CompletableFuture.failedFuture(new UncheckedIOException(new IOException("Too many upstream exchanges waiting")));
+        }
+    }
+
+    // One exchange on an executor thread, its RTT or failure recorded for the server
+    private byte[] exchange(Server server, byte[] query, int length) {
+        long start = System.nanoTime();
+        try {
+            byte[] response = server.resolver.exchange(query, length);
+            long rtt = System.nanoTime() - start;
+            server.recordSuccess(rtt);
+            recordRtt(rtt);
+            return response;
+        } catch (IOException e) {
+            server.recordFailure();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Completes with the first successful result, or fails once both have failed
+    private static CompletableFuture<byte[]> firstSuccess(CompletableFuture<byte[]> a, CompletableFuture<byte[]> b) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        a.thenAccept(result::complete);
+        b.thenAccept(result::complete);
+        CompletableFuture.allOf(a, b).whenComplete((ignored, error) -> {
+            if (error != null && !result.isDone()) {
+                // allOf only fails once both are done, so if result is still open both failed
+                if (a.isCompletedExceptionally() && b.isCompletedExceptionally()) {
+                    result.completeExceptionally(error);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future, int timeoutMillis) throws IOException {
+        try {
+            // The exchanges time out on their own, the margin only covers scheduling
+            return future.get(timeoutMillis + 100L, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No upstream answered in " + timeoutMillis + "ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for upstream", e);
+        }
+    }
+
+    // Adds an RTT sample, and every 32 samples recomputes the hedge delay from the percentile
+    private synchronized void recordRtt(long rttNanos) {
+        rttSamples[rttSampleCount % RTT_SAMPLES] = rttNanos;
+        rttSampleCount++;
+        if (hedgePercentile > 0 && rttSampleCount % 32 == 0) {
+            int count = Math.min(rttSampleCount, RTT_SAMPLES);
+            long[] sorted = Arrays.copyOf(rttSamples, count);
+            Arrays.sort(sorted);
+            int index = Math.min(count - 1, (int) Math.ceil(hedgePercentile * count) - 1);
+            hedgeDelayNanos = Math.max(minHedgeDelayNanos, sorted[Math.max(0, index)]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UpstreamPool{" +
+                "servers=" + servers +
+                ", hedgeDelayMillis=" + getHedgeDelayMillis() +
+                ", hedges=" + getHedgeCount() +
+                '}';
+    }
+}
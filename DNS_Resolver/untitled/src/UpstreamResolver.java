@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends queries to one upstream recursive resolver (8.8.8.8 by default) and waits for the answer.
+ * Every exchange uses its own socket on a random source port, so the server's listening socket
+ * never has to double as the upstream socket. Each exchange also gets its own random ID instead
+ * of the client's, so a client cannot choose the ID an off-path spoofer has to guess, and replies
+ * are only accepted from the server, with that ID and with the question we asked.
+ * A truncated UDP answer (TC set) is asked again over a pooled, persistent TCP connection.
+ */
+public class UpstreamResolver implements Upstream {
+    // Largest response we accept over UDP
+    static final int MAX_UDP_RESPONSE = 4096;
+
+    // IDs an attacker cannot predict from earlier ones
+    private static final ThreadLocal<SecureRandom> ID_RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final InetSocketAddress server;
+    private final int timeoutMillis;
+    private final TcpUpstreamPool tcp;
+
+    /**
+     * @param server        The upstream resolver's address.
+     * @param timeoutMillis How long to wait for its answer before giving up.
+     */
+    public UpstreamResolver(InetSocketAddress server, int timeoutMillis) {
+        this(server, timeoutMillis, 2);
+    }
+
+    /**
+     * @param server         The upstream resolver's address.
+     * @param timeoutMillis  How long to wait for its answer before giving up.
+     * @param tcpConnections How many TCP connections to keep open for truncated answers.
+     */
+    public UpstreamResolver(InetSocketAddress server, int timeoutMillis, int tcpConnections) {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.tcp = new TcpUpstreamPool(server, tcpConnections, timeoutMillis);
+    }
+
+    /**
+     * Forwards a raw query and waits for the matching response.
+     *
+     * @param query  The encoded query.
+     * @param length The number of bytes of query to send.
+     * @return The raw response with the query's own ID, never truncated.
+     * @throws SocketTimeoutException If no matching response arrives in time.
+     * @throws IOException            If the exchange fails.
+     */
+    @Override
+    public byte[] exchange(byte[] query, int length) throws IOException {
+        Asked asked = new Asked(query, length);
+        byte[] response = exchangeUdp(asked);
+        if (Edns.isTruncated(response)) {
+            // Did not fit in a datagram, the full answer needs TCP
+            return exchangeTcp(query, length);
+        }
+        return asked.restoreId(response);
+    }
+
+    /**
+     * Sends a query over one of the persistent TCP connections.
+     * The pool gives the query an ID of its own on the connection.
+     *
+     * @throws IOException If the exchange fails or the answer is for another question.
+     */
+    public byte[] exchangeTcp(byte[] query, int length) throws IOException {
+        Asked asked = new Asked(query, length);
+        byte[] response = tcp.exchange(query, length);
+        if (!asked.hasQuestion(response, response.length)) {
+            throw new IOException("TCP answer from " + server + " is not for the question asked");
+        }
+        return response;
+    }
+
+    // A query under our own random ID, and its question to check replies against
+    private static final class Asked {
+        final byte[] query;
+        final int length;
+        final byte clientIdHigh;
+        final byte clientIdLow;
+        final String[] qname;
+        final int qtype;
+        final int qclass;
+
+        Asked(byte[] clientQuery, int length) throws IOException {
+            DNSMessageView view = new DNSMessageView();
+            if (!view.wrap(ByteBuffer.wrap(clientQuery, 0, length)) || view.getQuestionCount() != 1) {
+                throw new IOException("Query to forward must have exactly one question");
+            }
+            this.qname = view.readName(view.questionNameOffset(0));
+            this.qtype = view.questionType(0);
+            this.qclass = view.questionClass(0);
+            this.query = Arrays.copyOf(clientQuery, length);
+            this.length = length;
+            this.clientIdHigh = clientQuery[0];
+            this.clientIdLow = clientQuery[1];
+            int id = ID_RANDOM.get().nextInt(0x10000);
+            query[0] = (byte) (id >>> 8);
+            query[1] = (byte) id;
+        }
+
+        // Same ID and the same question
+        boolean isAnsweredBy(byte[] reply, int replyLength) {
+            return replyLength >= 2 && reply[0] == query[0] && reply[1] == query[1] && hasQuestion(reply, replyLength);
+        }
+
+        // The same question, case aside (some servers randomise the case they send back)
+        boolean hasQuestion(byte[] reply, int replyLength) {
+            DNSMessageView view = new DNSMessageView();
+            return view.wrap(ByteBuffer.wrap(reply, 0, replyLength)) && view.getQuestionCount() == 1
+                    && view.questionType(0) == qtype && view.questionClass(0) == qclass
+                    && view.nameEquals(view.questionNameOffset(0), qname);
+        }
+
+        // Gives the reply the client's ID back
+        byte[] restoreId(byte[] reply) {
+            reply[0] = clientIdHigh;
+            reply[1] = clientIdLow;
+            return reply;
+        }
+    }
+
+    private byte[] exchangeUdp(Asked asked) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(asked.query, asked.length, server));
+
+            byte[] buffer = new byte[MAX_UDP_RESPONSE];
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (true) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    throw new SocketTimeoutException("No answer from " + server + " in " + timeoutMillis + "ms");
+                }
+                socket.setSoTimeout((int) remainingMillis);
+                DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
+                socket.receive(responsePacket);
+                // Ignore anything that is not the upstream answering this very query
+                if (server.equals(responsePacket.getSocketAddress()) && asked.isAnsweredBy(buffer, responsePacket.getLength())) {
+                    return Arrays.copyOf(buffer, responsePacket.getLength());
+                }
+            }
+        }
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    @Override
+    public String toString() {
+        return "UpstreamResolver{" +
+                "server=" + server +
+                ", timeoutMillis=" + timeoutMillis +
+                '}';
+    }
+}
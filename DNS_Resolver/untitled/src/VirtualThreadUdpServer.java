@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * UDP with one virtual thread per query (JDK 21).
+ * The receive loop only copies each datagram and starts a virtual thread for it. That thread runs
+ * the same blocking code as everywhere else: look up the cache, on a miss wait for the upstream
+ * with a timeout, send the reply. A virtual thread blocked on the upstream costs a few hundred
+ * bytes instead of a platform thread, so tens of thousands of misses can be waiting at once while
+ * cache hits keep being answered. A limit on queries in flight stops a flood from using up the heap.
+ */
+public class VirtualThreadUdpServer {
+    // Response buffers kept for reuse, queries beyond this allocate their own
+    private static final int POOLED_BUFFERS = 256;
+    // Room for bursts while the receive loop catches up (the kernel caps it at net.core.rmem_max)
+    private static final int RECEIVE_BUFFER_BYTES = 4 << 20;
+
+    private final DatagramChannel channel;
+    private final QueryHandler handler;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService queries = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dns-query-", 0).factory());
+    // handle() needs a 65535 byte output buffer, too big to allocate for every query
+    private final BufferPool<byte[]> responseBuffers = new BufferPool<>(POOLED_BUFFERS, () -> null, 0);
+
+    /**
+     * @param port        The port to listen on.
+     * @param handler     Answers the queries.
+     * @param maxInFlight Most queries being answered at once, the receive loop waits beyond it.
+     * @throws IOException If the port cannot be bound.
+     */
+    public VirtualThreadUdpServer(int port, QueryHandler handler, int maxInFlight) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+        this.channel.bind(new InetSocketAddress(port));
+        this.handler = handler;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Receives datagrams until the socket is closed, each answered on its own virtual thread.
+     *
+     * @throws InterruptedException If interrupted while waiting for room for another query.
+     */
+    public void run() throws InterruptedException {
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(Edns.MAX_UDP_PAYLOAD);
+        while (channel.isOpen()) {
+            SocketAddress client;
+            try {
+                receiveBuffer.clear();
+                client = channel.receive(receiveBuffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("UDP receive failed: " + e);
+                continue;
+            }
+            // The receive buffer is reused right away, the query thread gets its own copy
+            byte[] request = Arrays.copyOf(receiveBuffer.array(), receiveBuffer.position());
+            inFlight.acquire();
+            queries.execute(() -> {
+                try {
+                    answer(request, client);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    // Runs on the query's virtual thread
+    private void answer(byte[] request, SocketAddress client) {
+        byte[] out = responseBuffers.take();
+        if (out == null) {
+            out = new byte[DNSWireWriter.MAX_MESSAGE_SIZE];
+        }
+        try {
+            int length = handler.handleUdp(request, request.length, out, ((InetSocketAddress) client).getAddress());
+            if (length < 0) {
+                // Counted by the rate limiter and dns_dropped_total, a line per packet would turn a flood into log I/O
+                return;
+            }
+            // Sending on a DatagramChannel from many threads at once is safe
+            channel.send(ByteBuffer.wrap(out, 0, length), client);
+        } catch (IOException e) {
+            System.out.println("Failed to answer " + client + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Dropped when the pool is already full
+            responseBuffers.give(out);
+        }
+    }
+
+    /**
+     * @return The number of queries being answered right now.
+     */
+    public int getQueriesInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Closes the socket, which ends run().
+     */
+    public void close() throws IOException {
+        channel.close();
+        queries.shutdown();
+    }
+}
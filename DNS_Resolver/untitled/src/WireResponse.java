@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cached response kept in wire format.
+ * The response is encoded once when first needed. Answering a cache hit is then a copy
+ * of these bytes plus patching the transaction ID, the RD and CD flags, the question (to keep the
+ * client's letter case) and the TTLs, instead of rebuilding and re-serialising a DNSMessage.
+ */
+public class WireResponse {
+    private static final int HEADER_SIZE = 12;
+    private static final int CD_BIT = 0x10; // checking disabled, in the fourth header byte
+
+    private final byte[] wire; // encoded response with ID 0 and RD and CD clear
+    private final int questionEnd; // offset just past the question section
+    private final int[] ttlOffsets; // offset of every record's TTL field
+    private final long[] ttlExpiresAtNanos; // absolute expiry of the record owning each TTL field
+
+    private WireResponse(byte[] wire, int questionEnd, int[] ttlOffsets, long[] ttlExpiresAtNanos) {
+        this.wire = wire;
+        this.questionEnd = questionEnd;
+        this.ttlOffsets = ttlOffsets;
+        this.ttlExpiresAtNanos = ttlExpiresAtNanos;
+    }
+
+    /**
+     * Encodes a cache entry.
+     *
+     * @param entry The entry to encode.
+     * @return The encoded response.
+     * @throws IOException If the entry cannot be encoded.
+     */
+    public static WireResponse encode(DNSCacheEntry entry) throws IOException {
+        byte[] wire = DNSMessage.buildCachedResponse(entry).toBytes();
+
+        // Records are written in section order, collect their expiries in the same order
+        ArrayList<DNSRecord> records = new ArrayList<>(entry.getAnswers());
+        records.addAll(entry.getAuthorityRecords());
+        records.addAll(entry.getAdditionalRecords());
+
+        int[] ttlOffsets = new int[records.size()];
+        long[] expiries = new long[records.size()];
+
+        // Walk our own encoding to find where each TTL ended up
+        int questionEnd = questionEnd(wire);
+        int position = questionEnd;
+        for (int i = 0; i < records.size(); i++) {
+            position = skipName(wire, position) + 4; // TYPE + CLASS
+            ttlOffsets[i] = position;
+            expiries[i] = records.get(i).getExpiresAtNanos();
+            int rdLength = readUnsignedShort(wire, position + 4);
+            position += 6 + rdLength; // TTL + RDLENGTH + RDATA
+        }
+        return new WireResponse(wire, questionEnd, ttlOffsets, expiries);
+    }
+
+    /**
+     * Wraps an encoded response whose TTLs are served as they are, like answers from our own zones.
+     *
+     * @param wire The encoded response with ID 0 and RD clear.
+     * @return The response.
+     */
+    public static WireResponse fixed(byte[] wire) {
+        return new WireResponse(wire, questionEnd(wire), new int[0], new long[0]);
+    }
+
+    /**
+     * Finds the end of the question section in a message we encoded ourselves.
+     *
+     * @param wire The message, trusted to be well formed.
+     * @return The offset just past the question section.
+     */
+    static int questionEnd(byte[] wire) {
+        int position = HEADER_SIZE;
+        int questionCount = readUnsignedShort(wire, 4);
+        for (int i = 0; i < questionCount; i++) {
+            position = skipName(wire, position) + 4; // QTYPE + QCLASS
+        }
+        return position;
+    }
+
+    /**
+     * Writes the response to a request into an outbound buffer.
+     *
+     * @param request            The raw request datagram.
+     * @param requestLength      The number of valid bytes in request.
+     * @param requestQuestionEnd The offset just past the request's question section.
+     * @param out                The buffer to write into, must hold at least length() bytes.
+     * @param nowNanos           The current System.nanoTime(), used to decrement TTLs.
+     * @return The number of bytes written, or -1 if the request's question is not the same length
+     *         as ours, and the answer has to be built the slow way.
+     */
+    public int writeTo(byte[] request, int requestLength, int requestQuestionEnd, byte[] out, long nowNanos) {
+        return writeTo(request, requestLength, requestQuestionEnd, out, nowNanos, -1);
+    }
+
+    /**
+     * Writes the response to a request, optionally with every TTL replaced.
+     * Used to serve an expired entry under serve-stale, with the short TTL RFC 8767 recommends.
+     *
+     * @param staleTtl The TTL to put in every record, or -1 to decrement the cached TTLs.
+     * @return The number of bytes written, or -1 if the question lengths differ.
+     */
+    public int writeTo(byte[] request, int requestLength, int requestQuestionEnd, byte[] out, long nowNanos, int staleTtl) {
+        if (!fitsQuestion(questionEnd, requestLength, requestQuestionEnd)) {
+            return -1;
+        }
+        System.arraycopy(wire, 0, out, 0, wire.length);
+        patchHeader(out, questionEnd, request);
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            patchTtl(out, ttlOffsets[i], ttlExpiresAtNanos[i], nowNanos, staleTtl);
+        }
+        return wire.length;
+    }
+
+    // The client's question can only be copied over ours if it takes exactly the same room
+    static boolean fitsQuestion(int questionEnd, int requestLength, int requestQuestionEnd) {
+        return requestQuestionEnd == questionEnd && requestLength >= questionEnd;
+    }
+
+    // Compares the question section of a response copied to out with the request's, ignoring ASCII
+    // case, once fitsQuestion has said they are the same length. Length bytes are at most 63, so
+    // folding them as if they were letters changes nothing
+    static boolean sameQuestion(byte[] out, byte[] request, int questionEnd) {
+        for (int i = HEADER_SIZE; i < questionEnd; i++) {
+            if (toLower(out[i]) != toLower(request[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b & 0xFF;
+    }
+
+    // Copies the client's transaction ID, RD and CD bits and question into a response copied to out,
+    // once fitsQuestion has said the question sections are the same length
+    static void patchHeader(byte[] out, int questionEnd, byte[] request) {
+        patchId(out, request);
+        // Echo the question exactly as asked
+        System.arraycopy(request, HEADER_SIZE, out, HEADER_SIZE, questionEnd - HEADER_SIZE);
+    }
+
+    // Copies the client's transaction ID, RD and CD bits into a response copied to out
+    static void patchId(byte[] out, byte[] request) {
+        // Transaction ID
+        out[0] = request[0];
+        out[1] = request[1];
+        // Echo the RD bit (lowest bit of the third header byte)
+        out[2] = (byte) ((out[2] & 0xFE) | (request[2] & 0x01));
+        // Echo the CD bit (RFC 4035 section 3.2.2), like the miss path does
+        out[3] = (byte) ((out[3] & ~CD_BIT) | (request[3] & CD_BIT));
+    }
+
+    // Decrements one TTL by the time spent in the cache, or replaces it with staleTtl if that is not -1
+    static void patchTtl(byte[] out, int offset, long expiresAtNanos, long nowNanos, int staleTtl) {
+        long remainingNanos = expiresAtNanos - nowNanos;
+        // Rounded up like DNSRecord.getRemainingTtl
+        int ttl = remainingNanos <= 0 ? 0 : (int) Math.min(TimeUnit.NANOSECONDS.toSeconds(remainingNanos + 999_999_999L), Integer.MAX_VALUE);
+        if (staleTtl >= 0) {
+            ttl = staleTtl;
+        }
+        out[offset] = (byte) (ttl >>> 24);
+        out[offset + 1] = (byte) (ttl >>> 16);
+        out[offset + 2] = (byte) (ttl >>> 8);
+        out[offset + 3] = (byte) ttl;
+    }
+
+    /**
+     * @return The size of the encoded response in bytes.
+     */
+    public int length() {
+        return wire.length;
+    }
+
+    // The encoded response and where its TTLs are, for stores that keep it outside the heap
+    byte[] getWire() {
+        return wire;
+    }
+
+    int getQuestionEnd() {
+        return questionEnd;
+    }
+
+    int[] getTtlOffsets() {
+        return ttlOffsets;
+    }
+
+    long[] getTtlExpiresAtNanos() {
+        return ttlExpiresAtNanos;
+    }
+
+    // Skips an encoded name (labels ending in a 0 byte or a compression pointer)
+    private static int skipName(byte[] wire, int position) {
+        while (true) {
+            int length = wire[position] & 0xFF;
+            if (length == 0) {
+                return position + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                return position + 2;
+            }
+            position += 1 + length;
+        }
+    }
+
+    private static int readUnsignedShort(byte[] wire, int position) {
+        return ((wire[position] & 0xFF) << 8) | (wire[position + 1] & 0xFF);
+    }
+}
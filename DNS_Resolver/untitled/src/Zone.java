@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One zone we are authoritative for, immutable once built.
+ * Records are indexed by owner name and type. Lookups follow RFC 1034 section 4.3.2: a delegation
+ * on the way down to the name gives a referral, an exact match gives the RRset (following CNAMEs
+ * inside the zone), a name that exists without the type gives NODATA, a wildcard at the closest
+ * encloser is expanded, and anything else is NXDOMAIN. Negative answers carry the SOA.
+ */
+public final class Zone {
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_NXDOMAIN = 3;
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    /**
+     * The result of a lookup: the sections and response code of the answer.
+     */
+    public static final class Answer {
+        int rCode;
+        boolean authoritative; // false for referrals
+        final ArrayList<DNSRecord> answers = new ArrayList<>();
+        final ArrayList<DNSRecord> authority = new ArrayList<>();
+        final ArrayList<DNSRecord> additional = new ArrayList<>();
+
+        Answer(int rCode, boolean authoritative) {
+            this.rCode = rCode;
+            this.authoritative = authoritative;
+        }
+    }
+
+    private final String[] origin;
+    private final DNSRecord soa;
+    private final DNSRecord negativeSoa; // the SOA with the negative TTL (RFC 2308)
+    // owner key -> type -> RRset
+    private final Map<String, Map<Integer, List<DNSRecord>>> rrsets;
+    // every name that exists, including empty non-terminals (names with records only below them)
+    private final Set<String> names;
+    // delegation points: owners of NS records other than the apex
+    private final Set<String> cuts;
+    private final int recordCount;
+
+    private Zone(String[] origin, DNSRecord soa, Map<String, Map<Integer, List<DNSRecord>>> rrsets,
+                 Set<String> names, Set<String> cuts, int recordCount) {
+        this.origin = origin;
+        this.soa = soa;
+        long negativeTtl = Math.min(soa.getTtl() & 0xFFFFFFFFL, DNSCacheEntry.soaMinimum(soa));
+        this.negativeSoa = DNSRecord.authoritative(soa.getName(), soa.getType(), soa.getRclass(), (int) negativeTtl, soa.getRdata());
+        this.rrsets = rrsets;
+        this.names = names;
+        this.cuts = cuts;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Builds and checks a zone.
+     *
+     * @param origin  The zone name.
+     * @param records The zone's records.
+     * @return The zone.
+     * @throws IOException If the zone is not valid: no SOA or NS at the apex, records outside the
+     *                     zone, or a CNAME next to other data.
+     */
+    public static Zone build(String[] origin, List<DNSRecord> records) throws IOException {
+        String zoneName = DNSMessage.joinDomainName(origin);
+        Map<String, Map<Integer, List<DNSRecord>>> rrsets = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        Set<String> cuts = new HashSet<>();
+        DNSRecord soa = null;
+        String apex = key(origin);
+
+        for (DNSRecord record : records) {
+            String[] owner = record.getName();
+            if (!IterativeResolver.isSubdomain(owner, origin)) {
+                throw new IOException(DNSMessage.joinDomainName(owner) + " is outside zone " + zoneName);
+            }
+            String ownerKey = key(owner);
+            if (record.getType() == ZoneFileParser.TYPE_SOA) {
+                if (!ownerKey.equals(apex) || soa != null) {
+                    throw new IOException("Zone " + zoneName + " must have exactly one SOA, at its apex");
+                }
+                soa = record;
+            }
+            if (record.getType() == ZoneFileParser.TYPE_NS && !ownerKey.equals(apex)) {
+                cuts.add(ownerKey);
+            }
+            rrsets.computeIfAbsent(ownerKey, k -> new HashMap<>())
+                    .computeIfAbsent(record.getType(), k -> new ArrayList<>())
+                    .add(record);
+            // The owner and every name between it and the apex exist
+            for (int i = 0; i <= owner.length - origin.length; i++) {
+                names.add(key(owner, i));
+            }
+        }
+        if (soa == null) {
+            throw new IOException("Zone " + zoneName + " has no SOA");
+        }
+        if (!rrsets.get(apex).containsKey(ZoneFileParser.TYPE_NS)) {
+            throw new IOException("Zone " + zoneName + " has no NS records at its apex");
+        }
+        for (Map.Entry<String, Map<Integer, List<DNSRecord>>> entry : rrsets.entrySet()) {
+            if (entry.getValue().containsKey(ZoneFileParser.TYPE_CNAME) && entry.getValue().size() > 1) {
+                throw new IOException("CNAME and other data at " + entry.getKey() + " in zone " + zoneName);
+            }
+        }
+
+        // Freeze everything, the zone is shared by every query thread without locking
+        for (Map.Entry<String, Map<Integer, List<DNSRecord>>> entry : rrsets.entrySet()) {
+            Map<Integer, List<DNSRecord>> byType = entry.getValue();
+            byType.replaceAll((type, rrset) -> List.copyOf(rrset));
+            entry.setValue(Collections.unmodifiableMap(byType));
+        }
+        return new Zone(origin, soa, Collections.unmodifiableMap(rrsets), Collections.unmodifiableSet(names),
+                Collections.unmodifiableSet(cuts), records.size());
+    }
+
+    /**
+     * Answers a question for a name in this zone.
+     *
+     * @param qname The name, which must be in this zone (see contains()).
+     * @param qtype The type asked for.
+     * @return The answer.
+     */
+    public Answer lookup(String[] qname, int qtype) {
+        Answer answer = new Answer(RCODE_NOERROR, true);
+        resolve(qname, qtype, answer, 0);
+        return answer;
+    }
+
+    // Fills in the answer for one name, called again for CNAME targets inside the zone
+    private void resolve(String[] qname, int qtype, Answer answer, int chain) {
+        // A delegation between the apex and the name: the child zone answers, not us
+        String[] cut = findCut(qname);
+        if (cut != null) {
+            if (chain > 0) {
+                return; // the CNAME target is delegated, the client follows it itself
+            }
+            Answer referral = referral(cut);
+            answer.authoritative = false;
+            answer.authority.addAll(referral.authority);
+            answer.additional.addAll(referral.additional);
+            return;
+        }
+
+        String qkey = key(qname);
+        Map<Integer, List<DNSRecord>> node = rrsets.get(qkey);
+        if (node == null && !names.contains(qkey)) {
+            // Not an existing name, try the wildcard at the closest encloser
+            node = wildcard(qname);
+            if (node == null) {
+                answer.authority.add(negativeSoa);
+                // A CNAME chain into a missing name is NXDOMAIN too, keeping the CNAMEs
+                answer.rCode = RCODE_NXDOMAIN;
+                return;
+            }
+            node = rename(node, qname);
+        }
+        if (node == null) {
+            // Empty non-terminal: the name exists but has no records
+            answer.authority.add(negativeSoa);
+            return;
+        }
+
+        List<DNSRecord> rrset = node.get(qtype);
+        if (rrset != null) {
+            answer.answers.addAll(rrset);
+            addAdditional(rrset, answer);
+            return;
+        }
+        List<DNSRecord> cname = node.get(ZoneFileParser.TYPE_CNAME);
+        if (cname != null) {
+            answer.answers.addAll(cname);
+            String[] target = readName(cname.get(0).getRdata(), 0);
+            // Follow the chain while it stays in this zone, so the client gets it all at once
+            if (chain < MAX_CNAME_CHAIN && contains(target)) {
+                resolve(target, qtype, answer, chain + 1);
+            }
+            return;
+        }
+        // NODATA
+        answer.authority.add(negativeSoa);
+    }
+
+    // A referral to a child zone: its NS records, and glue for servers inside it
+    private Answer referral(String[] cut) {
+        Answer answer = new Answer(RCODE_NOERROR, false);
+        List<DNSRecord> ns = rrsets.get(key(cut)).get(ZoneFileParser.TYPE_NS);
+        answer.authority.addAll(ns);
+        for (DNSRecord record : ns) {
+            String[] server = readName(record.getRdata(), 0);
+            if (IterativeResolver.isSubdomain(server, cut)) {
+                addAddresses(server, answer);
+            }
+        }
+        return answer;
+    }
+
+    // Addresses of the names NS and MX answers point to, when we have them
+    private void addAdditional(List<DNSRecord> rrset, Answer answer) {
+        for (DNSRecord record : rrset) {
+            if (record.getType() == ZoneFileParser.TYPE_NS) {
+                addAddresses(readName(record.getRdata(), 0), answer);
+            } else if (record.getType() == ZoneFileParser.TYPE_MX) {
+                addAddresses(readName(record.getRdata(), 2), answer);
+            }
+        }
+    }
+
+    private void addAddresses(String[] name, Answer answer) {
+        Map<Integer, List<DNSRecord>> node = rrsets.get(key(name));
+        if (node == null) {
+            return;
+        }
+        List<DNSRecord> a = node.get(ZoneFileParser.TYPE_A);
+        if (a != null) {
+            answer.additional.addAll(a);
+        }
+        List<DNSRecord> aaaa = node.get(ZoneFileParser.TYPE_AAAA);
+        if (aaaa != null) {
+            answer.additional.addAll(aaaa);
+        }
+    }
+
+    // The highest delegation point at or above a name (below the apex), or null
+    String[] findCut(String[] qname) {
+        if (cuts.isEmpty()) {
+            return null;
+        }
+        for (int labels = origin.length + 1; labels <= qname.length; labels++) {
+            int skip = qname.length - labels;
+            if (cuts.contains(key(qname, skip))) {
+                String[] cut = new String[labels];
+                System.arraycopy(qname, skip, cut, 0, labels);
+                return cut;
+            }
+        }
+        return null;
+    }
+
+    // The wildcard RRsets at the closest existing ancestor of a name that does not exist, or null
+    private Map<Integer, List<DNSRecord>> wildcard(String[] qname) {
+        for (int skip = 1; qname.length - skip >= origin.length; skip++) {
+            String encloser = key(qname, skip);
+            if (names.contains(encloser)) {
+                return rrsets.get(encloser.isEmpty() ? "*" : "*." + encloser);
+            }
+        }
+        return null;
+    }
+
+    // Wildcard records answer with the name that was asked for
+    private static Map<Integer, List<DNSRecord>> rename(Map<Integer, List<DNSRecord>> node, String[] qname) {
+        Map<Integer, List<DNSRecord>> renamed = new HashMap<>();
+        for (Map.Entry<Integer, List<DNSRecord>> entry : node.entrySet()) {
+            ArrayList<DNSRecord> records = new ArrayList<>();
+            for (DNSRecord record : entry.getValue()) {
+                records.add(record.withName(qname));
+            }
+            renamed.put(entry.getKey(), records);
+        }
+        return renamed;
+    }
+
+    /**
+     * @return true if a name is this zone's apex or below it.
+     */
+    public boolean contains(String[] name) {
+        return IterativeResolver.isSubdomain(name, origin);
+    }
+
+    /**
+     * @return Every name with records, each with the types it has, for pre-encoding answers.
+     */
+    Map<String, Map<Integer, List<DNSRecord>>> getRRsets() {
+        return rrsets;
+    }
+
+    /**
+     * @return Every existing name, including empty non-terminals.
+     */
+    Set<String> getNames() {
+        return names;
+    }
+
+    public String[] getOrigin() {
+        return origin;
+    }
+
+    public DNSRecord getSoa() {
+        return soa;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    // Reads an uncompressed name from RDATA (zone file RDATA is never compressed)
+    static String[] readName(byte[] rdata, int offset) {
+        ArrayList<String> labels = new ArrayList<>();
+        int position = offset;
+        while (position < rdata.length && rdata[position] != 0) {
+            int length = rdata[position] & 0xFF;
+            labels.add(new String(rdata, position + 1, length, StandardCharsets.US_ASCII));
+            position += 1 + length;
+        }
+        return labels.toArray(new String[0]);
+    }
+
+    // Lower-case dotted key of a name, skipping its first labels
+    static String key(String[] name, int skip) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = skip; i < name.length; i++) {
+            if (i > skip) {
+                builder.append('.');
+            }
+            builder.append(name[i].toLowerCase(Locale.ROOT));
+        }
+        return builder.toString();
+    }
+
+    static String key(String[] name) {
+        return key(name, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "Zone{" +
+                "origin=" + DNSMessage.joinDomainName(origin) +
+                ", records=" + recordCount +
+                ", names=" + names.size() +
+                ", cuts=" + cuts.size() +
+                '}';
+    }
+}
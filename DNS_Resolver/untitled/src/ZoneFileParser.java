@@ -0,0 +1,436 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads zone files in the RFC 1035 master file format (section 5):
+ *
+ *   $ORIGIN example.com.
+ *   $TTL 3600
+ *   @       IN SOA ns1 hostmaster ( 2024010101 7200 900 1209600 300 )
+ *           IN NS  ns1
+ *   ns1        A   192.0.2.1
+ *   www  300   A   192.0.2.10
+ *   *.dev      CNAME www
+ *   mail       MX  10 mx.example.net.
+ *   info       TXT "hello world"
+ *
+ * Names not ending in a dot are relative to the origin, "@" is the origin itself and a line starting
+ * with whitespace belongs to the previous owner. TTL and class are optional and may come in either
+ * order. Parentheses continue a record over several lines and ";" starts a comment.
+ * Supported types are A, AAAA, NS, CNAME, PTR, MX, TXT and SOA; $INCLUDE is not supported.
+ * RDATA is stored in wire format with uncompressed names.
+ */
+public class ZoneFileParser {
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_MX = 15;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_AAAA = 28;
+    static final int CLASS_IN = 1;
+
+    private static final int DEFAULT_TTL = 3600;
+
+    private final String source; // file name, for error messages
+    private String[] origin;
+    private int defaultTtl = DEFAULT_TTL;
+    private String[] lastOwner;
+    private int lineNumber;
+
+    private ZoneFileParser(String source, String[] origin) {
+        this.source = source;
+        this.origin = origin;
+    }
+
+    /**
+     * Parses a zone file.
+     *
+     * @param reader The zone file.
+     * @param source The file name, used in error messages.
+     * @param origin The origin to start with, usually the zone name ($ORIGIN may change it).
+     * @return The records, in file order.
+     * @throws IOException If the file cannot be read or has a syntax error (the message says where).
+     */
+    public static List<DNSRecord> parse(Reader reader, String source, String[] origin) throws IOException {
+        return new ZoneFileParser(source, origin).parseAll(new BufferedReader(reader));
+    }
+
+    private List<DNSRecord> parseAll(BufferedReader reader) throws IOException {
+        ArrayList<DNSRecord> records = new ArrayList<>();
+        StringBuilder entry = new StringBuilder();
+        int depth = 0; // open parentheses
+        boolean startsWithBlank = false;
+        int entryLine = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String text = stripComment(line);
+            if (depth == 0) {
+                if (text.isBlank()) {
+                    continue;
+                }
+                startsWithBlank = Character.isWhitespace(text.charAt(0));
+                entryLine = lineNumber;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '(') {
+                    depth++;
+                    entry.append(' ');
+                } else if (c == ')') {
+                    if (--depth < 0) {
+                        throw error("Unbalanced ')'");
+                    }
+                    entry.append(' ');
+                } else {
+                    entry.append(c);
+                }
+            }
+            entry.append(' ');
+            if (depth == 0) {
+                int saved = lineNumber;
+                lineNumber = entryLine;
+                DNSRecord record = parseEntry(tokenize(entry.toString()), startsWithBlank);
+                lineNumber = saved;
+                if (record != null) {
+                    records.add(record);
+                }
+                entry.setLength(0);
+            }
+        }
+        if (depth != 0) {
+            throw error("Unclosed '(' at end of file");
+        }
+        return records;
+    }
+
+    // One logical entry: a directive or a record. Returns null for directives
+    private DNSRecord parseEntry(List<String> tokens, boolean startsWithBlank) throws IOException {
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        String first = tokens.get(0);
+        if (!startsWithBlank && first.startsWith("$")) {
+            switch (first.toUpperCase(Locale.ROOT)) {
+                case "$ORIGIN":
+                    origin = absoluteName(token(tokens, 1));
+                    return null;
+                case "$TTL":
+                    defaultTtl = parseTtl(token(tokens, 1));
+                    return null;
+                default:
+                    throw error("Unsupported directive " + first);
+            }
+        }
+
+        int index = 0;
+        String[] owner;
+        if (startsWithBlank) {
+            if (lastOwner == null) {
+                throw error("No owner name before this record");
+            }
+            owner = lastOwner;
+        } else {
+            owner = name(tokens.get(index++));
+            lastOwner = owner;
+        }
+
+        // Optional TTL and class, in either order
+        int ttl = defaultTtl;
+        for (int k = 0; k < 2 && index < tokens.size(); k++) {
+            String token = tokens.get(index);
+            if (token.equalsIgnoreCase("IN")) {
+                index++;
+            } else if (Character.isDigit(token.charAt(0))) {
+                ttl = parseTtl(token);
+                index++;
+            }
+        }
+
+        String type = token(tokens, index++).toUpperCase(Locale.ROOT);
+        List<String> rdata = tokens.subList(index, tokens.size());
+        switch (type) {
+            case "A":
+                return record(owner, TYPE_A, ttl, ipv4(single(rdata)));
+            case "AAAA":
+                return record(owner, TYPE_AAAA, ttl, ipv6(single(rdata)));
+            case "NS":
+                return record(owner, TYPE_NS, ttl, nameBytes(name(single(rdata))));
+            case "CNAME":
+                return record(owner, TYPE_CNAME, ttl, nameBytes(name(single(rdata))));
+            case "PTR":
+                return record(owner, TYPE_PTR, ttl, nameBytes(name(single(rdata))));
+            case "MX": {
+                expect(rdata, 2);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writeShort(out, number(rdata.get(0), 0xFFFF));
+                out.writeBytes(nameBytes(name(rdata.get(1))));
+                return record(owner, TYPE_MX, ttl, out.toByteArray());
+            }
+            case "TXT": {
+                if (rdata.isEmpty()) {
+                    throw error("TXT needs at least one string");
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (String text : rdata) {
+                    byte[] bytes = unquote(text).getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > 255) {
+                        throw error("TXT string longer than 255 bytes");
+                    }
+                    out.write(bytes.length);
+                    out.writeBytes(bytes);
+                }
+                return record(owner, TYPE_TXT, ttl, out.toByteArray());
+            }
+            case "SOA": {
+                expect(rdata, 7);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.writeBytes(nameBytes(name(rdata.get(0))));
+                out.writeBytes(nameBytes(name(rdata.get(1))));
+                for (int i = 2; i < 7; i++) {
+                    // Serial is a plain number, the timers may use units like 1h
+                    long value = i == 2 ? number(rdata.get(i), 0xFFFFFFFFL) : parseTtl(rdata.get(i));
+                    writeInt(out, value);
+                }
+                return record(owner, TYPE_SOA, ttl, out.toByteArray());
+            }
+            default:
+                throw error("Unsupported record type " + type);
+        }
+    }
+
+    private static DNSRecord record(String[] owner, int type, int ttl, byte[] rdata) {
+        return DNSRecord.authoritative(owner, type, CLASS_IN, ttl, rdata);
+    }
+
+    // Removes a ";" comment, unless it is inside quotes
+    private static String stripComment(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"' && (i == 0 || line.charAt(i - 1) != '\\')) {
+                quoted = !quoted;
+            } else if (c == ';' && !quoted) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    // Splits on whitespace, keeping quoted strings (with their quotes) as one token
+    private List<String> tokenize(String text) throws IOException {
+        ArrayList<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (c == '"') {
+                i++;
+                while (i < text.length() && (text.charAt(i) != '"' || text.charAt(i - 1) == '\\')) {
+                    i++;
+                }
+                if (i == text.length()) {
+                    throw error("Unclosed quote");
+                }
+                i++;
+            } else {
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+            }
+            tokens.add(text.substring(start, i));
+        }
+        return tokens;
+    }
+
+    private static String unquote(String text) {
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+            text = text.substring(1, text.length() - 1);
+        }
+        return text.replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+
+    // A name from the file: "@", relative to the origin, or absolute with a trailing dot
+    private String[] name(String text) throws IOException {
+        if (text.equals("@")) {
+            return origin;
+        }
+        if (text.endsWith(".")) {
+            return absoluteName(text);
+        }
+        String[] relative = labels(text);
+        String[] name = new String[relative.length + origin.length];
+        System.arraycopy(relative, 0, name, 0, relative.length);
+        System.arraycopy(origin, 0, name, relative.length, origin.length);
+        checkLength(name);
+        return name;
+    }
+
+    private String[] absoluteName(String text) throws IOException {
+        if (text.equals(".")) {
+            return new String[0];
+        }
+        String[] name = labels(text.endsWith(".") ? text.substring(0, text.length() - 1) : text);
+        checkLength(name);
+        return name;
+    }
+
+    private String[] labels(String text) throws IOException {
+        String[] labels = text.split("\\.");
+        for (String label : labels) {
+            if (label.isEmpty() || label.length() > 63) {
+                throw error("Bad label in name " + text);
+            }
+            for (int i = 0; i < label.length(); i++) {
+                if (label.charAt(i) > 0x7F) {
+                    throw error("Non-ASCII name " + text + " (use its xn-- form)");
+                }
+            }
+        }
+        return labels;
+    }
+
+    private void checkLength(String[] name) throws IOException {
+        if (nameBytes(name).length > 255) {
+            throw error("Name longer than 255 bytes");
+        }
+    }
+
+    // A name in uncompressed wire format
+    static byte[] nameBytes(String[] name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String label : name) {
+            out.write(label.length());
+            out.writeBytes(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    // TTLs are seconds, or a number with a unit: 30s, 5m, 1h, 1d, 1w (units can be combined, 1h30m)
+    private int parseTtl(String text) throws IOException {
+        long total = 0;
+        long current = 0;
+        boolean digits = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isDigit(c)) {
+                current = current * 10 + (c - '0');
+                digits = true;
+                if (current > 0xFFFFFFFFL) {
+                    throw error("TTL too large: " + text);
+                }
+                continue;
+            }
+            long unit;
+            switch (c) {
+                case 's': unit = 1; break;
+                case 'm': unit = 60; break;
+                case 'h': unit = 3600; break;
+                case 'd': unit = 86400; break;
+                case 'w': unit = 604800; break;
+                default: throw error("Bad TTL: " + text);
+            }
+            if (!digits) {
+                throw error("Bad TTL: " + text);
+            }
+            total += current * unit;
+            current = 0;
+            digits = false;
+        }
+        total += current;
+        // RFC 2181: TTLs are at most 2^31 - 1
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    private long number(String text, long max) throws IOException {
+        try {
+            long value = Long.parseLong(text);
+            if (value < 0 || value > max) {
+                throw error("Number out of range: " + text);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw error("Not a number: " + text);
+        }
+    }
+
+    private int number(String text, int max) throws IOException {
+        return (int) number(text, (long) max);
+    }
+
+    private byte[] ipv4(String text) throws IOException {
+        String[] parts = text.split("\\.");
+        if (parts.length != 4) {
+            throw error("Bad IPv4 address: " + text);
+        }
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            address[i] = (byte) number(parts[i], 255);
+        }
+        return address;
+    }
+
+    private byte[] ipv6(String text) throws IOException {
+        // A literal with a colon is parsed without any name lookup
+        if (text.indexOf(':') < 0) {
+            throw error("Bad IPv6 address: " + text);
+        }
+        try {
+            byte[] address = InetAddress.getByName(text).getAddress();
+            if (address.length != 16) {
+                throw error("Bad IPv6 address: " + text);
+            }
+            return address;
+        } catch (IOException e) {
+            throw error("Bad IPv6 address: " + text);
+        }
+    }
+
+    private String single(List<String> rdata) throws IOException {
+        expect(rdata, 1);
+        return rdata.get(0);
+    }
+
+    private void expect(List<String> rdata, int count) throws IOException {
+        if (rdata.size() != count) {
+            throw error("Expected " + count + " RDATA fields, found " + rdata.size());
+        }
+    }
+
+    private String token(List<String> tokens, int index) throws IOException {
+        if (index >= tokens.size()) {
+            throw error("Incomplete entry");
+        }
+        return tokens.get(index);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        out.write((int) (value >>> 24));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 8));
+        out.write((int) value);
+    }
+
+    private IOException error(String message) {
+        return new IOException(source + ":" + lineNumber + ": " + message);
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of every zone we serve, with their answers encoded ahead of time.
+ * When the snapshot is built, every (name, type) that exists in a zone is looked up once and the
+ * response encoded into a WireResponse, plus one response per name for every other type (NODATA,
+ * a CNAME or a referral). Answering a query for one of those names is then the same byte copy and
+ * patch as a cache hit. Anything else (NXDOMAIN, wildcard expansion, names below a delegation)
+ * is looked up and encoded on the spot.
+ */
+public final class ZoneSet {
+    static final int CLASS_IN = 1;
+    // Type used in the key of the response for types a name does not have
+    private static final int OTHER_TYPES = 0;
+
+    public static final ZoneSet EMPTY = new ZoneSet(List.of(), new DomainNameTable(1), new HashMap<>());
+
+    private static final ThreadLocal<int[]> LABEL_SCRATCH = ThreadLocal.withInitial(() -> new int[128]);
+
+    private final List<Zone> zones; // longest origin first, so the most specific zone is found first
+    private final DomainNameTable names;
+    private final Map<Long, WireResponse> encoded;
+
+    private ZoneSet(List<Zone> zones, DomainNameTable names, Map<Long, WireResponse> encoded) {
+        this.zones = zones;
+        this.names = names;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Builds a snapshot and encodes its answers.
+     *
+     * @param zones The zones to serve.
+     * @return The snapshot.
+     * @throws IOException If an answer cannot be encoded.
+     */
+    public static ZoneSet build(List<Zone> zones) throws IOException {
+        ArrayList<Zone> sorted = new ArrayList<>(zones);
+        // Parents first when encoding, so a child zone's own answers replace the parent's referral
+        sorted.sort(Comparator.comparingInt(zone -> zone.getOrigin().length));
+        DomainNameTable names = new DomainNameTable();
+        HashMap<Long, WireResponse> encoded = new HashMap<>();
+        for (Zone zone : sorted) {
+            for (String key : zone.getNames()) {
+                String[] name = key.isEmpty() ? new String[0] : key.split("\\.");
+                String[] cut = zone.findCut(name);
+                if (cut != null && cut.length != name.length) {
+                    continue; // below a delegation, answered on the spot
+                }
+                int node = names.intern(name);
+                Map<Integer, List<DNSRecord>> types = zone.getRRsets().get(key);
+                if (types != null && cut == null) {
+                    for (int type : types.keySet()) {
+                        encoded.put(DNSQuestion.cacheKey(node, type, CLASS_IN), encode(zone, name, type));
+                    }
+                    List<DNSRecord> cname = types.get(ZoneFileParser.TYPE_CNAME);
+                    if (cname != null) {
+                        // The answer depends on what the target has, encode the types it has and
+                        // leave the rest to be looked up on the spot
+                        String[] target = Zone.readName(cname.get(0).getRdata(), 0);
+                        Map<Integer, List<DNSRecord>> targetTypes = zone.getRRsets().get(Zone.key(target));
+                        if (targetTypes != null) {
+                            for (int type : targetTypes.keySet()) {
+                                encoded.put(DNSQuestion.cacheKey(node, type, CLASS_IN), encode(zone, name, type));
+                            }
+                        }
+                        continue;
+                    }
+                }
+                encoded.put(DNSQuestion.cacheKey(node, OTHER_TYPES, CLASS_IN), encode(zone, name, OTHER_TYPES));
+            }
+        }
+        sorted.sort(Comparator.comparingInt((Zone zone) -> zone.getOrigin().length).reversed());
+        return new ZoneSet(List.copyOf(sorted), names, encoded);
+    }
+
+    private static WireResponse encode(Zone zone, String[] name, int qtype) throws IOException {
+        Zone.Answer answer = zone.lookup(name, qtype);
+        DNSMessage response = DNSMessage.buildAuthoritativeResponse(new DNSQuestion(name, qtype, CLASS_IN),
+                answer.answers, answer.authority, answer.additional, answer.rCode, answer.authoritative);
+        return WireResponse.fixed(response.toBytes());
+    }
+
+    /**
+     * Answers a request if its name is in one of our zones.
+     *
+     * @param view    The parsed request (one question).
+     * @param request The raw request.
+     * @param length  The number of valid bytes in request.
+     * @param out     The buffer to write the response into.
+     * @return The response length, or -1 if we are not authoritative for the name.
+     * @throws IOException If an answer built on the spot cannot be encoded.
+     */
+    public int answer(DNSMessageView view, byte[] request, int length, byte[] out) throws IOException {
+        if (zones.isEmpty() || view.questionClass(0) != CLASS_IN) {
+            return -1;
+        }
+        int qtype = view.questionType(0);
+        int nameOffset = view.questionNameOffset(0);
+
+        // Pre-encoded answer: no allocation beyond the map key
+        int node = names.lookup(view, nameOffset, LABEL_SCRATCH.get());
+        if (node != DomainNameTable.NOT_FOUND) {
+            WireResponse response = encoded.get(DNSQuestion.cacheKey(node, qtype, CLASS_IN));
+            if (response == null) {
+                response = encoded.get(DNSQuestion.cacheKey(node, OTHER_TYPES, CLASS_IN));
+            }
+            int written = response == null ? -1 : response.writeTo(request, length, view.questionEnd(0), out, System.nanoTime());
+            if (written >= 0) {
+                return written;
+            }
+        }
+
+        // Anything else in one of our zones is looked up now
+        String[] qname = view.readName(nameOffset);
+        Zone zone = find(qname);
+        if (zone == null) {
+            return -1;
+        }
+        Zone.Answer answer = zone.lookup(qname, qtype);
+        DNSMessage response = DNSMessage.buildAuthoritativeResponse(new DNSQuestion(qname, qtype, CLASS_IN),
+                answer.answers, answer.authority, answer.additional, answer.rCode, answer.authoritative);
+        byte[] wire = response.toBytes();
+        int written = WireResponse.fixed(wire).writeTo(request, length, view.questionEnd(0), out, System.nanoTime());
+        if (written < 0) {
+            // The request's question is not the same length as ours, answer with our own copy of it
+            System.arraycopy(wire, 0, out, 0, wire.length);
+            WireResponse.patchId(out, request);
+            written = wire.length;
+        }
+        return written;
+    }
+
+    /**
+     * @return The most specific zone containing a name, or null.
+     */
+    public Zone find(String[] name) {
+        for (Zone zone : zones) {
+            if (zone.contains(name)) {
+                return zone;
+            }
+        }
+        return null;
+    }
+
+    public List<Zone> getZones() {
+        return zones;
+    }
+
+    /**
+     * @return How many answers were encoded ahead of time.
+     */
+    public int getEncodedCount() {
+        return encoded.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ZoneSet{" +
+                "zones=" + zones +
+                ", encoded=" + encoded.size() +
+                '}';
+    }
+}
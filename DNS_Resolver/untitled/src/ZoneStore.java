@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The zones this server is authoritative for, loaded from a directory of zone files named after
+ * their zone ("example.com.zone", "internal.corp.zone").
+ * The zones in use are one immutable ZoneSet behind an AtomicReference. A reload parses and
+ * encodes everything on the side and then swaps the reference, so queries in flight keep using
+ * the old snapshot, are never blocked, and never see half a reload. If any file fails to load,
+ * the old zones stay in place.
+ */
+public class ZoneStore {
+    private static final String ZONE_FILE_SUFFIX = ".zone";
+
+    private final Path directory; // null when no zones are configured
+    private final AtomicReference<ZoneSet> current = new AtomicReference<>(ZoneSet.EMPTY);
+    private volatile long loadedFingerprint;
+
+    /**
+     * @param directory The directory holding the zone files, or null to serve no zones.
+     */
+    public ZoneStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads every zone file and makes the result live at once.
+     *
+     * @throws IOException If a file cannot be read or is invalid (the previous zones stay live).
+     */
+    public void reload() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        long fingerprint = fingerprint();
+        ArrayList<Zone> zones = new ArrayList<>();
+        for (Path file : zoneFiles()) {
+            String fileName = file.getFileName().toString();
+            String zoneName = fileName.substring(0, fileName.length() - ZONE_FILE_SUFFIX.length());
+            String[] origin = zoneName.isEmpty() || zoneName.equals(".") ? new String[0] : zoneName.split("\\.");
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                zones.add(Zone.build(origin, ZoneFileParser.parse(reader, fileName, origin)));
+            }
+        }
+        ZoneSet loaded = ZoneSet.build(zones);
+        current.set(loaded);
+        loadedFingerprint = fingerprint;
+        System.out.println("Loaded " + loaded);
+    }
+
+    /**
+     * Checks the directory for changed zone files every few seconds and reloads when something changed.
+     *
+     * @param intervalSeconds Seconds between checks.
+     */
+    public void watch(int intervalSeconds) {
+        if (directory == null || intervalSeconds <= 0) {
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                    if (fingerprint() != loadedFingerprint) {
+                        reload();
+                    }
+                } catch (IOException e) {
+                    // Keep serving the zones we have, and try again after the next change
+                    loadedFingerprint = safeFingerprint();
+                    System.out.println("Zone reload failed, keeping the previous zones: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-zone-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Answers a request from our zones.
+     *
+     * @return The response length in out, or -1 if the name is not in any of our zones.
+     * @throws IOException If the answer cannot be encoded.
+     */
+    public int answer(DNSMessageView view, byte[] request, int length, byte[] out) throws IOException {
+        return current.get().answer(view, request, length, out);
+    }
+
+    /**
+     * @return The zones currently served.
+     */
+    public ZoneSet getZones() {
+        return current.get();
+    }
+
+    private List<Path> zoneFiles() throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ZONE_FILE_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    // Changes when a zone file is added, removed or modified
+    private long fingerprint() throws IOException {
+        long fingerprint = 17;
+        for (Path file : zoneFiles()) {
+            fingerprint = 31 * fingerprint + file.getFileName().hashCode();
+            fingerprint = 31 * fingerprint + Files.getLastModifiedTime(file).toMillis();
+            fingerprint = 31 * fingerprint + Files.size(file);
+        }
+        return fingerprint;
+    }
+
+    private long safeFingerprint() {
+        try {
+            return fingerprint();
+        } catch (IOException e) {
+            return loadedFingerprint;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ZoneStore{" +
+                "directory=" + directory +
+                ", zones=" + current.get() +
+                '}';
+    }
+}